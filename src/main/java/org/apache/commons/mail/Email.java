@@ -16,8 +16,14 @@
  */
 package org.apache.commons.mail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -25,22 +31,30 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.Authenticator;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
+import org.apache.commons.mail.transport.JavaMailTransport;
+import org.apache.commons.mail.transport.SendExecutor;
 import org.apache.commons.mail.util.IDNEmailAddressConverter;
 
 /**
@@ -170,6 +184,15 @@ public abstract class Email
     @Deprecated
     public static final String MAIL_SMTP_TIMEOUT = EmailConstants.MAIL_SMTP_TIMEOUT;
 
+    /** The headers left out when writing a message, as by the SMTP transport. */
+    private static final String[] IGNORED_HEADERS = { "Bcc", "Content-Length" };
+
+    /** The headers not copied into a prototype, each copy has its own Message-ID. */
+    private static final String[] PROTOTYPE_IGNORED_HEADERS = { "Message-ID", "Content-Length" };
+
+    /** The number of Message-IDs created for written emails, prototype copies and merged messages. */
+    private static final AtomicLong MESSAGE_IDS = new AtomicLong();
+
     /** The email message to send. */
     protected MimeMessage message;
 
@@ -325,6 +348,21 @@ public abstract class Email
     /** The Session to mail with. */
     private Session session;
 
+    /** The transport used if none is set for an email. */
+    private static volatile MailTransport defaultMailTransport = new JavaMailTransport();
+
+    /** The transport to send with, null to use the default transport. */
+    private MailTransport mailTransport;
+
+    /** The registry sharing mail sessions, null to create a session per email. */
+    private static volatile SessionRegistry sessionRegistry;
+
+    /** The index of delivered messages, null to send without idempotency check. */
+    private IdempotencyIndex idempotencyIndex;
+
+    /** The idempotency key, null to use the Message-ID. */
+    private String idempotencyKey;
+
     /**
      * Setting to true will enable the display of debug information.
      *
@@ -594,6 +632,9 @@ public abstract class Email
 
     /**
      * Supply a mail Session object from a JNDI directory.
+     * <p>
+     * The session is cached by the {@link #setSessionRegistry(SessionRegistry)
+     * session registry}, if any.
      *
      * @param jndiName name of JNDI resource (javax.mail.Session type), resource
      * if searched in java:comp/env if name does not start with "java:"
@@ -607,24 +648,17 @@ public abstract class Email
         {
             throw new IllegalArgumentException("JNDI name missing");
         }
-        Context ctx = null;
-        if (jndiName.startsWith("java:"))
-        {
-            ctx = new InitialContext();
-        }
-        else
-        {
-            ctx = (Context) new InitialContext().lookup("java:comp/env");
-
-        }
-        this.setMailSession((Session) ctx.lookup(jndiName));
+        final SessionRegistry registry = sessionRegistry;
+        this.setMailSession(registry != null ? registry.lookup(jndiName) : SessionRegistry.lookupJndi(jndiName));
     }
 
     /**
      * Determines the mail session used when sending this Email, creating
      * the Session if necessary. When a mail session is already
      * initialized setting the session related properties will cause
-     * an IllegalStateException.
+     * an IllegalStateException. If a {@link #setSessionRegistry(SessionRegistry)
+     * session registry} is set, the session is shared with all emails using
+     * the same settings.
      *
      * @return A Session.
      * @throws EmailException if the host name was not set
@@ -634,12 +668,9 @@ public abstract class Email
     {
         if (this.session == null)
         {
-            final Properties properties = new Properties(System.getProperties());
-            properties.setProperty(EmailConstants.MAIL_TRANSPORT_PROTOCOL, EmailConstants.SMTP);
-
             if (EmailUtils.isEmpty(this.hostName))
             {
-                this.hostName = properties.getProperty(EmailConstants.MAIL_HOST);
+                this.hostName = System.getProperty(EmailConstants.MAIL_HOST);
             }
 
             if (EmailUtils.isEmpty(this.hostName))
@@ -647,56 +678,11 @@ public abstract class Email
                 throw new EmailException("Cannot find valid hostname for mail session");
             }
 
-            properties.setProperty(EmailConstants.MAIL_PORT, this.smtpPort);
-            properties.setProperty(EmailConstants.MAIL_HOST, this.hostName);
-            properties.setProperty(EmailConstants.MAIL_DEBUG, String.valueOf(this.debug));
-
-            properties.setProperty(EmailConstants.MAIL_TRANSPORT_STARTTLS_ENABLE,
-                    isStartTLSEnabled() ? "true" : "false");
-            properties.setProperty(EmailConstants.MAIL_TRANSPORT_STARTTLS_REQUIRED,
-                    isStartTLSRequired() ? "true" : "false");
-
-            properties.setProperty(EmailConstants.MAIL_SMTP_SEND_PARTIAL,
-                    isSendPartial() ? "true" : "false");
-            properties.setProperty(EmailConstants.MAIL_SMTPS_SEND_PARTIAL,
-                    isSendPartial() ? "true" : "false");
-
-            if (this.authenticator != null)
-            {
-                properties.setProperty(EmailConstants.MAIL_SMTP_AUTH, "true");
-            }
-
-            if (isSSLOnConnect())
-            {
-                properties.setProperty(EmailConstants.MAIL_PORT, this.sslSmtpPort);
-                properties.setProperty(EmailConstants.MAIL_SMTP_SOCKET_FACTORY_PORT, this.sslSmtpPort);
-                properties.setProperty(EmailConstants.MAIL_SMTP_SOCKET_FACTORY_CLASS, "javax.net.ssl.SSLSocketFactory");
-                properties.setProperty(EmailConstants.MAIL_SMTP_SOCKET_FACTORY_FALLBACK, "false");
-            }
-
-            if ((isSSLOnConnect() || isStartTLSEnabled()) && isSSLCheckServerIdentity())
-            {
-                properties.setProperty(EmailConstants.MAIL_SMTP_SSL_CHECKSERVERIDENTITY, "true");
-            }
-
-            if (this.bounceAddress != null)
-            {
-                properties.setProperty(EmailConstants.MAIL_SMTP_FROM, this.bounceAddress);
-            }
-
-            if (this.socketTimeout > 0)
-            {
-                properties.setProperty(EmailConstants.MAIL_SMTP_TIMEOUT, Integer.toString(this.socketTimeout));
-            }
-
-            if (this.socketConnectionTimeout > 0)
-            {
-                properties.setProperty(EmailConstants.MAIL_SMTP_CONNECTIONTIMEOUT, Integer.toString(this.socketConnectionTimeout));
-            }
-
-            // changed this (back) to getInstance due to security exceptions
-            // caused when testing using maven
-            this.session = Session.getInstance(properties, this.authenticator);
+            final SessionKey key = new SessionKey(this);
+            final SessionRegistry registry = sessionRegistry;
+            this.session = registry != null
+                    ? registry.getSession(key)
+                    : key.createSession(new Properties(System.getProperties()));
         }
         return this.session;
     }
@@ -1444,10 +1430,16 @@ public abstract class Email
 
     /**
      * Sends the previously created MimeMessage to the SMTP server.
+     * <p>
+     * With an {@link #setIdempotencyIndex(IdempotencyIndex) idempotency index}
+     * the message is not sent if its idempotency key was delivered within
+     * the time to live of the index. The key is recorded before sending, so
+     * a concurrent send with the same key is skipped, and released again if
+     * sending fails. Sending again keeps the Message-ID of the first attempt then.
      *
      * @return the message id of the underlying MimeMessage
      * @throws IllegalArgumentException if the MimeMessage has not been created
-     * @throws EmailException the sending failed
+     * @throws EmailException the sending failed or the idempotency index failed
      */
     public String sendMimeMessage()
        throws EmailException
@@ -1456,8 +1448,44 @@ public abstract class Email
 
         try
         {
-            Transport.send(this.message);
-            return this.message.getMessageID();
+            final IdempotencyIndex index = this.idempotencyIndex;
+            final String previousMessageId = index != null ? this.message.getMessageID() : null;
+            this.message.saveChanges();
+            if (index == null)
+            {
+                return getMailTransport().send(this.message);
+            }
+
+            if (previousMessageId != null)
+            {
+                // sending again keeps the Message-ID identifying the message
+                this.message.setHeader("Message-ID", previousMessageId);
+            }
+            final String key = this.idempotencyKey != null ? this.idempotencyKey : this.message.getMessageID();
+            if (!reserve(index, key))
+            {
+                return this.message.getMessageID();
+            }
+            try
+            {
+                return getMailTransport().send(this.message);
+            }
+            catch (final MessagingException | RuntimeException e)
+            {
+                try
+                {
+                    index.unmarkDelivered(key);
+                }
+                catch (final RuntimeException ue)
+                {
+                    e.addSuppressed(ue);
+                }
+                throw e;
+            }
+        }
+        catch (final EmailException e)
+        {
+            throw e;
         }
         catch (final Throwable t)
         {
@@ -1470,6 +1498,186 @@ public abstract class Email
         }
     }
 
+    /**
+     * Records the idempotency key before sending.
+     *
+     * @param index the idempotency index
+     * @param key the idempotency key
+     * @return false if the key was delivered or is being sent already
+     * @throws EmailException the index failed, e.g. it is closed or full
+     */
+    private static boolean reserve(final IdempotencyIndex index, final String key) throws EmailException
+    {
+        try
+        {
+            return index.markDelivered(key);
+        }
+        catch (final RuntimeException e)
+        {
+            throw new EmailException("Cannot record the idempotency key " + key, e);
+        }
+    }
+
+    /**
+     * Freezes the email into a template to send the same content to many
+     * recipients: each copy of the template can change the recipients, the
+     * subject and other headers and is sent without building the email
+     * again. The MimeMessage is built unless it was built already.
+     *
+     * @return the template
+     * @throws EmailException building or encoding the email failed
+     * @see MessagePrototype
+     * @since 1.6
+     */
+    public MessagePrototype toPrototype() throws EmailException
+    {
+        if (this.message == null)
+        {
+            buildMimeMessage();
+        }
+        try
+        {
+            this.message.saveChanges();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            this.message.writeTo(out, PROTOTYPE_IGNORED_HEADERS);
+            return new MessagePrototype(this.message.getSession(), out.toByteArray(), this.fromAddress,
+                    getMailTransport());
+        }
+        catch (final IOException | MessagingException e)
+        {
+            throw new EmailException("Encoding the prototype failed", e);
+        }
+    }
+
+    /**
+     * Sets the transport used by {@link #sendMimeMessage()} for this email,
+     * e.g. a {@link org.apache.commons.mail.transport.TransportPool}.
+     *
+     * @param mailTransport the transport or null to use the default transport
+     * @return An Email.
+     * @see #setDefaultMailTransport(MailTransport)
+     * @since 1.6
+     */
+    public Email setMailTransport(final MailTransport mailTransport)
+    {
+        this.mailTransport = mailTransport;
+        return this;
+    }
+
+    /**
+     * Gets the transport used by {@link #sendMimeMessage()}, i.e. the transport
+     * set for this email or the default transport.
+     *
+     * @return the transport
+     * @since 1.6
+     */
+    public MailTransport getMailTransport()
+    {
+        return this.mailTransport != null ? this.mailTransport : defaultMailTransport;
+    }
+
+    /**
+     * Sets the transport used by all emails without a transport of their own.
+     * Initially a {@link JavaMailTransport} sending each message over a new
+     * connection like {@code Transport.send()}.
+     *
+     * @param mailTransport the transport or null to restore the initial transport
+     * @since 1.6
+     */
+    public static void setDefaultMailTransport(final MailTransport mailTransport)
+    {
+        defaultMailTransport = mailTransport != null ? mailTransport : new JavaMailTransport();
+    }
+
+    /**
+     * Gets the transport used by all emails without a transport of their own.
+     *
+     * @return the default transport
+     * @since 1.6
+     */
+    public static MailTransport getDefaultMailTransport()
+    {
+        return defaultMailTransport;
+    }
+
+    /**
+     * Sets the index of delivered messages guarding against sending this
+     * email twice, e.g. when sending is retried after a timeout although the
+     * first attempt succeeded.
+     *
+     * @param idempotencyIndex the index or null to send without check
+     * @return An Email.
+     * @see #setIdempotencyKey(String)
+     * @since 1.6
+     */
+    public Email setIdempotencyIndex(final IdempotencyIndex idempotencyIndex)
+    {
+        this.idempotencyIndex = idempotencyIndex;
+        return this;
+    }
+
+    /**
+     * Gets the index of delivered messages.
+     *
+     * @return the index or null if sending is not checked
+     * @since 1.6
+     */
+    public IdempotencyIndex getIdempotencyIndex()
+    {
+        return this.idempotencyIndex;
+    }
+
+    /**
+     * Sets the key identifying this email in the idempotency index, e.g. the
+     * id of the invoice it carries. The Message-ID is used by default, it
+     * identifies the email when {@link #sendMimeMessage()} is called again
+     * but not a new email built after a restart.
+     *
+     * @param idempotencyKey the key or null to use the Message-ID
+     * @return An Email.
+     * @since 1.6
+     */
+    public Email setIdempotencyKey(final String idempotencyKey)
+    {
+        this.idempotencyKey = idempotencyKey;
+        return this;
+    }
+
+    /**
+     * Gets the key identifying this email in the idempotency index.
+     *
+     * @return the key or null if the Message-ID is used
+     * @since 1.6
+     */
+    public String getIdempotencyKey()
+    {
+        return this.idempotencyKey;
+    }
+
+    /**
+     * Sets the registry sharing mail sessions among all emails with the same
+     * session settings, see {@link SessionRegistry}. Emails which already
+     * created their session keep it.
+     *
+     * @param registry the registry or null to create a session per email
+     * @since 1.6
+     */
+    public static void setSessionRegistry(final SessionRegistry registry)
+    {
+        sessionRegistry = registry;
+    }
+
+    /**
+     * Gets the registry sharing mail sessions.
+     *
+     * @return the registry or null if every email creates its own session
+     * @since 1.6
+     */
+    public static SessionRegistry getSessionRegistry()
+    {
+        return sessionRegistry;
+    }
+
     /**
      * Returns the internal MimeMessage. Please note that the
      * MimeMessage is built by the buildMimeMessage() method.
@@ -1481,6 +1689,58 @@ public abstract class Email
         return this.message;
     }
 
+    /**
+     * Writes the email in MIME format without building the MimeMessage:
+     * the headers, boundaries and encoded parts are written straight to the
+     * stream by a {@link MimeStreamWriter}, streaming the attachments, so
+     * memory use does not grow with their size. The Bcc header is left out.
+     * If the MimeMessage is built already it is written instead.
+     *
+     * @param out the stream, not closed
+     * @throws IOException writing the email or reading an attachment failed
+     * @throws EmailException the email is incomplete or invalid
+     * @since 1.6
+     */
+    public void writeTo(final OutputStream out) throws IOException, EmailException
+    {
+        if (this.message != null)
+        {
+            try
+            {
+                this.message.writeTo(out, IGNORED_HEADERS);
+            }
+            catch (final MessagingException e)
+            {
+                throw new EmailException(e);
+            }
+            return;
+        }
+        final MimeStreamWriter writer = new MimeStreamWriter(out);
+        writeMimeMessage(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the email in MIME format without building the MimeMessage,
+     * see {@link #writeTo(OutputStream)}.
+     *
+     * @param channel the channel in blocking mode, not closed
+     * @throws IOException writing the email or reading an attachment failed
+     * @throws EmailException the email is incomplete or invalid
+     * @since 1.6
+     */
+    public void writeTo(final WritableByteChannel channel) throws IOException, EmailException
+    {
+        if (this.message != null)
+        {
+            writeTo(Channels.newOutputStream(channel));
+            return;
+        }
+        final MimeStreamWriter writer = new MimeStreamWriter(channel);
+        writeMimeMessage(writer);
+        writer.flush();
+    }
+
     /**
      * Sends the email. Internally we build a MimeMessage
      * which is afterwards sent to the SMTP server.
@@ -1496,6 +1756,103 @@ public abstract class Email
         return this.sendMimeMessage();
     }
 
+    /**
+     * Sends the email at the given time, e.g. 09:00 local time with
+     * {@code sendAt(ZonedDateTime.of(date, LocalTime.of(9, 0), zone).toInstant())}.
+     * The {@link #setMailTransport(MailTransport) transport} has to support
+     * scheduled delivery, e.g. an {@link org.apache.commons.mail.transport.outbox.Outbox}
+     * keeping the schedule across restarts.
+     *
+     * @param sendAt the time to send the email
+     * @return the message id of the underlying MimeMessage
+     * @throws IllegalStateException if the MimeMessage was already built
+     * @throws IllegalArgumentException if the time is null
+     * @throws EmailException building the MimeMessage or scheduling it failed
+     * @see MailTransport#sendAt(MimeMessage, Instant)
+     * @since 1.6
+     */
+    public String sendAt(final Instant sendAt) throws EmailException
+    {
+        EmailUtils.notNull(sendAt, "no send time supplied");
+        this.buildMimeMessage();
+        try
+        {
+            this.message.saveChanges();
+            return getMailTransport().sendAt(this.message, sendAt);
+        }
+        catch (final MessagingException e)
+        {
+            throw new EmailException("Scheduling the email failed", e);
+        }
+    }
+
+    /**
+     * Sends the email asynchronously using the shared default {@link SendExecutor}.
+     *
+     * @return the future message id of the underlying MimeMessage
+     * @throws IllegalStateException if the MimeMessage was already built
+     * @throws EmailException building the MimeMessage failed
+     * @throws java.util.concurrent.RejectedExecutionException if the executor is saturated
+     * @see #sendAsync(Executor)
+     * @since 1.6
+     */
+    public CompletableFuture<String> sendAsync() throws EmailException
+    {
+        return sendAsync(SendExecutor.getDefault());
+    }
+
+    /**
+     * Sends the email asynchronously. The MimeMessage is built in the calling
+     * thread, i.e. invalid emails are reported immediately, and afterwards sent
+     * to the SMTP server by the executor. Sending failures complete the returned
+     * future exceptionally with an {@link EmailException}. Cancelling the returned
+     * future cancels a send which has not been started yet.
+     *
+     * @param executor the executor sending the MimeMessage
+     * @return the future message id of the underlying MimeMessage
+     * @throws IllegalStateException if the MimeMessage was already built
+     * @throws EmailException building the MimeMessage failed
+     * @throws java.util.concurrent.RejectedExecutionException if the executor rejects the send
+     * @since 1.6
+     */
+    public CompletableFuture<String> sendAsync(final Executor executor) throws EmailException
+    {
+        EmailUtils.notNull(executor, "executor can not be null");
+        this.buildMimeMessage();
+
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final FutureTask<String> task = new FutureTask<String>(this::sendMimeMessage)
+        {
+            @Override
+            protected void done()
+            {
+                if (isCancelled())
+                {
+                    result.cancel(false);
+                    return;
+                }
+                try
+                {
+                    result.complete(get());
+                }
+                catch (final ExecutionException e)
+                {
+                    result.completeExceptionally(e.getCause());
+                }
+                catch (final InterruptedException e)
+                {
+                    // cannot happen since the task is done
+                    Thread.currentThread().interrupt();
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+        result.whenComplete((messageId, throwable) -> task.cancel(false));
+
+        executor.execute(task);
+        return result;
+    }
+
     /**
      * Sets the sent date for the email.  The sent date will default to the
      * current date if not explicitly set.
@@ -1901,6 +2258,144 @@ public abstract class Email
         return new MimeMessage(aSession);
     }
 
+    /**
+     * Writes the content of the email, i.e. its Content-Type header and the
+     * entity following the headers. Subclasses write their parts with the
+     * writer, the same way {@link #buildMimeMessage()} arranges them.
+     *
+     * @param writer the writer
+     * @throws IOException writing the content failed
+     * @throws MessagingException a part is invalid
+     * @throws EmailException the content is invalid
+     * @since 1.6
+     */
+    protected void writeContent(final MimeStreamWriter writer) throws IOException, MessagingException, EmailException
+    {
+        if (this.content instanceof MimeMultipart)
+        {
+            writer.writeMultipart((MimeMultipart) this.content);
+        }
+        else if (this.content instanceof String
+                && (this.contentType == null || this.contentType.regionMatches(true, 0, "text/", 0, 5)))
+        {
+            final ContentType type = new ContentType(this.contentType != null ? this.contentType
+                    : EmailConstants.TEXT_PLAIN);
+            final String typeCharset = type.getParameter("charset");
+            writer.writeText((String) this.content, type.getSubType(),
+                    typeCharset != null ? typeCharset : this.charset);
+        }
+        else if (this.content != null)
+        {
+            final MimeBodyPart part = new MimeBodyPart();
+            part.setContent(this.content, this.contentType);
+            writer.writePart(part);
+        }
+        else if (this.emailBody != null)
+        {
+            writer.writeMultipart(this.emailBody);
+        }
+        else
+        {
+            writer.writeText("", "plain", this.charset);
+        }
+    }
+
+    /**
+     * Writes the headers and the content of the email.
+     *
+     * @param writer the writer
+     * @throws IOException writing the email failed
+     * @throws EmailException the email is incomplete or invalid
+     */
+    private void writeMimeMessage(final MimeStreamWriter writer) throws IOException, EmailException
+    {
+        if (this.fromAddress == null)
+        {
+            throw new EmailException("From address required");
+        }
+        if (this.toList.size() + this.ccList.size() + this.bccList.size() == 0)
+        {
+            throw new EmailException("At least one receiver address required");
+        }
+
+        writer.writeHeader("Date", new MailDateFormat().format(getSentDate()));
+        writer.writeHeader("From", this.fromAddress.toString());
+        if (!this.replyList.isEmpty())
+        {
+            writer.writeHeader("Reply-To", toHeaderValue(this.replyList));
+        }
+        if (!this.toList.isEmpty())
+        {
+            writer.writeHeader("To", toHeaderValue(this.toList));
+        }
+        if (!this.ccList.isEmpty())
+        {
+            writer.writeHeader("Cc", toHeaderValue(this.ccList));
+        }
+        boolean messageId = false;
+        for (final String name : this.headers.keySet())
+        {
+            messageId |= "Message-ID".equalsIgnoreCase(name);
+        }
+        if (!messageId)
+        {
+            writer.writeHeader("Message-ID", createMessageId(this.fromAddress));
+        }
+        if (EmailUtils.isNotEmpty(this.subject))
+        {
+            writer.writeHeader("Subject", MimeUtility.encodeText(this.subject, this.charset, null));
+        }
+        for (final Map.Entry<String, String> entry : this.headers.entrySet())
+        {
+            writer.writeHeader(entry.getKey(), MimeUtility.encodeText(entry.getValue(), this.charset, null));
+        }
+        writer.writeHeader("MIME-Version", "1.0");
+
+        try
+        {
+            writeContent(writer);
+        }
+        catch (final MessagingException e)
+        {
+            throw new EmailException(e);
+        }
+    }
+
+    /**
+     * Creates a Message-ID for a written email, a prototype copy or a merged
+     * message from the domain of the sender.
+     *
+     * @param from the sender
+     * @return the Message-ID
+     */
+    static String createMessageId(final InternetAddress from)
+    {
+        final String address = from.getAddress();
+        return "<" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "." + MESSAGE_IDS.incrementAndGet()
+                + "." + System.currentTimeMillis() + ".commons-email" + address.substring(address.indexOf('@'))
+                + ">";
+    }
+
+    /**
+     * Joins addresses to the value of an address header.
+     *
+     * @param addresses the addresses
+     * @return the header value
+     */
+    static String toHeaderValue(final List<InternetAddress> addresses)
+    {
+        final StringBuilder value = new StringBuilder();
+        for (final InternetAddress address : addresses)
+        {
+            if (value.length() > 0)
+            {
+                value.append(", ");
+            }
+            value.append(address.toString());
+        }
+        return value.toString();
+    }
+
     /**
      * Create a folded header value containing 76 character chunks.
      *
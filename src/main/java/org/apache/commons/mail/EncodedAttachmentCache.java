@@ -0,0 +1,409 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.EncodingAware;
+
+/**
+ * A cache of base64 encoded attachment contents shared by many emails, so
+ * a file attached to thousands of messages is read and encoded once. A
+ * {@link MultiPartEmail} with a cache attaches the cached encoded content
+ * as a {@code PreencodedMimeBodyPart}, both {@code MimeMessage.writeTo}
+ * and {@link Email#writeTo(java.io.OutputStream)} copy it verbatim.
+ *
+ * <pre>
+ * EncodedAttachmentCache cache = new EncodedAttachmentCache(64 * 1024 * 1024);
+ * for (Customer customer : customers)
+ * {
+ *     MultiPartEmail email = new MultiPartEmail();
+ *     email.setAttachmentCache(cache);
+ *     email.attach(new File("catalog.pdf"));
+ *     ...
+ * }
+ * </pre>
+ *
+ * A file is looked up by its path, modification time and size, so a
+ * changed file is read again. Any other data source is looked up by the
+ * SHA-256 hash of its content, which still reads the content but does not
+ * encode it again. The entries are evicted least recently used first when
+ * the encoded contents exceed the maximum size; a content larger than the
+ * maximum size is encoded but not cached. Two threads missing the same
+ * content both encode it.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public class EncodedAttachmentCache
+{
+    /** The default maximum size of the encoded contents, 64 MB. */
+    public static final long DEFAULT_MAX_SIZE_BYTES = 64L * 1024 * 1024;
+
+    /** The transfer encoding of the cached contents. */
+    static final String ENCODING = "base64";
+
+    /** The size of the buffer reading a content. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The hexadecimal digits. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The encoded contents by key in access order, guarded by this. */
+    private final Map<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The maximum size of the encoded contents in bytes. */
+    private final long maxSizeBytes;
+
+    /** The size of the encoded contents in bytes, guarded by this. */
+    private long sizeBytes;
+
+    /** The number of contents found in the cache, guarded by this. */
+    private long hitCount;
+
+    /** The number of contents encoded, guarded by this. */
+    private long missCount;
+
+    /** The number of evicted contents, guarded by this. */
+    private long evictionCount;
+
+    /**
+     * Creates a cache of {@link #DEFAULT_MAX_SIZE_BYTES}.
+     */
+    public EncodedAttachmentCache()
+    {
+        this(DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSizeBytes the maximum size of the encoded contents in bytes
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public EncodedAttachmentCache(final long maxSizeBytes)
+    {
+        if (maxSizeBytes < 1)
+        {
+            throw new IllegalArgumentException("maxSizeBytes must be greater than 0");
+        }
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Gets the encoded content of a data source from the cache, encoding and
+     * caching it if missing.
+     *
+     * @param source the data source
+     * @return a data source of the base64 encoded content with the content
+     *         type and name of the source
+     * @throws IOException reading the source failed
+     * @throws IllegalArgumentException if the source is null
+     */
+    public DataSource encode(final DataSource source) throws IOException
+    {
+        if (source == null)
+        {
+            throw new IllegalArgumentException("source can not be null");
+        }
+        final String key = getKey(source);
+        byte[] encoded = get(key);
+        if (encoded == null)
+        {
+            encoded = encodeContent(source);
+            put(key, encoded);
+        }
+        return new EncodedDataSource(encoded, source.getContentType(), source.getName());
+    }
+
+    /**
+     * Removes all contents.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    /**
+     * Gets the maximum size of the encoded contents.
+     *
+     * @return the size in bytes
+     */
+    public long getMaxSizeBytes()
+    {
+        return maxSizeBytes;
+    }
+
+    /**
+     * Gets the size of the cached encoded contents.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSizeBytes()
+    {
+        return sizeBytes;
+    }
+
+    /**
+     * Gets the number of cached contents.
+     *
+     * @return the number of contents
+     */
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of contents found in the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Gets the number of contents which were encoded as they were missing.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Gets the number of contents evicted to stay within the maximum size.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "EncodedAttachmentCache[entries=" + entries.size() + ", sizeBytes=" + sizeBytes
+                + ", maxSizeBytes=" + maxSizeBytes + ", hits=" + hitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + "]";
+    }
+
+    /**
+     * Gets an encoded content, counting the hit or miss.
+     *
+     * @param key the key
+     * @return the encoded content, null if missing
+     */
+    private synchronized byte[] get(final String key)
+    {
+        final byte[] encoded = entries.get(key);
+        if (encoded != null)
+        {
+            hitCount++;
+        }
+        else
+        {
+            missCount++;
+        }
+        return encoded;
+    }
+
+    /**
+     * Caches an encoded content, evicting the least recently used contents
+     * above the maximum size.
+     *
+     * @param key the key
+     * @param encoded the encoded content
+     */
+    private synchronized void put(final String key, final byte[] encoded)
+    {
+        if (encoded.length > maxSizeBytes)
+        {
+            return;
+        }
+        final byte[] previous = entries.put(key, encoded);
+        if (previous != null)
+        {
+            sizeBytes -= previous.length;
+        }
+        sizeBytes += encoded.length;
+        final Iterator<byte[]> iterator = entries.values().iterator();
+        while (sizeBytes > maxSizeBytes)
+        {
+            sizeBytes -= iterator.next().length;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Gets the key of a data source: the path, modification time and size of
+     * a file, otherwise the hash of the content.
+     *
+     * @param source the data source
+     * @return the key
+     * @throws IOException reading the source failed
+     */
+    private static String getKey(final DataSource source) throws IOException
+    {
+        if (source instanceof FileDataSource)
+        {
+            final File file = ((FileDataSource) source).getFile();
+            return "file:" + file.getAbsolutePath() + ':' + file.lastModified() + ':' + file.length();
+        }
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = source.getInputStream())
+        {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return "sha-256:" + toHex(digest.digest());
+    }
+
+    /**
+     * Formats bytes as lower case hexadecimal digits.
+     *
+     * @param bytes the bytes
+     * @return the digits
+     */
+    static String toHex(final byte[] bytes)
+    {
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Encodes the content of a data source as base64 in lines of 76
+     * characters.
+     *
+     * @param source the data source
+     * @return the encoded content
+     * @throws IOException reading the source failed
+     */
+    private static byte[] encodeContent(final DataSource source) throws IOException
+    {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = source.getInputStream();
+                OutputStream out = Base64.getMimeEncoder().wrap(encoded))
+        {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+        }
+        return encoded.toByteArray();
+    }
+
+    /**
+     * A data source of an encoded content, its encoding is known so
+     * JavaMail does not scan it.
+     */
+    private static final class EncodedDataSource implements DataSource, EncodingAware
+    {
+        /** The encoded content. */
+        private final byte[] encoded;
+
+        /** The content type of the unencoded content. */
+        private final String contentType;
+
+        /** The name, may be null. */
+        private final String name;
+
+        /**
+         * Creates a data source.
+         *
+         * @param encoded the encoded content
+         * @param contentType the content type of the unencoded content
+         * @param name the name, may be null
+         */
+        EncodedDataSource(final byte[] encoded, final String contentType, final String name)
+        {
+            this.encoded = encoded;
+            this.contentType = contentType;
+            this.name = name;
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return new ByteArrayInputStream(encoded);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            throw new IOException("An encoded attachment is read-only");
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String getEncoding()
+        {
+            return ENCODING;
+        }
+    }
+}
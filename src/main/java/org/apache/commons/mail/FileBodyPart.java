@@ -0,0 +1,407 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.EncodingAware;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+
+/**
+ * A file attachment whose transfer encoded content is a file, so it is
+ * never encoded or copied through the heap when the email is written. A
+ * {@link MimeStreamWriter} writing to a channel, e.g. by
+ * {@link Email#writeTo(java.nio.channels.WritableByteChannel)}, copies the
+ * content with {@code FileChannel.transferTo}, which the operating system
+ * may perform without leaving the kernel; {@code MimeMessage.writeTo}
+ * copies it verbatim.
+ * <p>
+ * An {@link #encoded(File, File) encoded} part is sent from a base64
+ * sidecar file, written next to the other sidecars once and reused while
+ * the attached file is unchanged. The sidecars of earlier versions of a
+ * file are kept, since emails being sent may still read them, until
+ * {@link #deleteStaleSidecars(File, File)} is called. A
+ * {@link #binary(File) binary} part is the file itself, with a
+ * Content-Transfer-Encoding of binary, which only servers supporting
+ * BINARYMIME (RFC 3030) accept; it suits writing emails to files.
+ *
+ * <pre>
+ * MultiPartEmail email = new MultiPartEmail();
+ * email.attach(FileBodyPart.encoded(new File("catalog.pdf"), sidecarDirectory));
+ * </pre>
+ *
+ * @since 1.6
+ */
+public final class FileBodyPart extends PreencodedMimeBodyPart
+{
+    /** The transfer encoding of a binary part. */
+    public static final String BINARY = "binary";
+
+    /** The transfer encoding of an encoded part. */
+    public static final String BASE64 = "base64";
+
+    /** The suffix of a sidecar file. */
+    private static final String SIDECAR_SUFFIX = ".b64";
+
+    /** The number of hexadecimal digits of the path hash naming a sidecar. */
+    private static final int PREFIX_LENGTH = 32;
+
+    /** The size of the buffer encoding a file. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The number of times a file changing while it is encoded is encoded. */
+    private static final int MAX_ENCODE_ATTEMPTS = 3;
+
+    /** The attached file. */
+    private final File file;
+
+    /** The file of the transfer encoded content. */
+    private final File contentFile;
+
+    /**
+     * Creates a part.
+     *
+     * @param file the attached file
+     * @param contentFile the file of the transfer encoded content
+     * @param encoding the transfer encoding
+     * @throws MessagingException the part could not be set up
+     * @throws IOException the file name could not be encoded
+     */
+    private FileBodyPart(final File file, final File contentFile, final String encoding)
+            throws MessagingException, IOException
+    {
+        super(encoding);
+        this.file = file;
+        this.contentFile = contentFile;
+        final String type = new FileDataSource(file).getContentType();
+        setDataHandler(new DataHandler(new ContentDataSource(contentFile, type, file.getName(), encoding)));
+        // spares JavaMail scanning the encoded content for its encoding
+        setHeader("Content-Transfer-Encoding", encoding);
+        setDisposition(Part.ATTACHMENT);
+        setFileName(MimeUtility.encodeText(file.getName()));
+    }
+
+    /**
+     * Creates a part sending a file as is, with a Content-Transfer-Encoding
+     * of binary.
+     *
+     * @param file the file
+     * @return the part
+     * @throws EmailException the file does not exist or the part could not
+     *         be set up
+     * @throws IllegalArgumentException if the file is null
+     */
+    public static FileBodyPart binary(final File file) throws EmailException
+    {
+        EmailUtils.notNull(file, "no file supplied");
+        checkFile(file);
+        try
+        {
+            return new FileBodyPart(file, file, BINARY);
+        }
+        catch (final MessagingException | IOException e)
+        {
+            throw new EmailException("Cannot attach file \"" + file.getAbsolutePath() + "\"", e);
+        }
+    }
+
+    /**
+     * Creates a part sending a file base64 encoded from a sidecar file,
+     * encoding the file unless an up to date sidecar exists.
+     *
+     * @param file the file
+     * @param sidecarDirectory the directory of the sidecar files
+     * @return the part
+     * @throws EmailException the file does not exist, the sidecar could not
+     *         be written or the part could not be set up
+     * @throws IllegalArgumentException if the file or directory is null
+     */
+    public static FileBodyPart encoded(final File file, final File sidecarDirectory) throws EmailException
+    {
+        EmailUtils.notNull(file, "no file supplied");
+        EmailUtils.notNull(sidecarDirectory, "no sidecar directory supplied");
+        checkFile(file);
+        try
+        {
+            return new FileBodyPart(file, getSidecar(file, sidecarDirectory.toPath()), BASE64);
+        }
+        catch (final MessagingException | IOException e)
+        {
+            throw new EmailException("Cannot attach file \"" + file.getAbsolutePath() + "\"", e);
+        }
+    }
+
+    /**
+     * Deletes the sidecars of earlier versions of a file, keeping the sidecar
+     * of its current version. Call it when no email attaching an earlier
+     * version is being sent any more.
+     *
+     * @param file the file
+     * @param sidecarDirectory the directory of the sidecar files
+     * @return the number of deleted sidecars
+     * @throws EmailException listing or deleting the sidecars failed
+     * @throws IllegalArgumentException if the file or directory is null
+     */
+    public static int deleteStaleSidecars(final File file, final File sidecarDirectory) throws EmailException
+    {
+        EmailUtils.notNull(file, "no file supplied");
+        EmailUtils.notNull(sidecarDirectory, "no sidecar directory supplied");
+        final Path directory = sidecarDirectory.toPath();
+        if (!Files.isDirectory(directory))
+        {
+            return 0;
+        }
+        final String prefix = getPrefix(file);
+        final Path current = getSidecarPath(directory, prefix, file.lastModified(), file.length());
+        int deleted = 0;
+        try (DirectoryStream<Path> sidecars = Files.newDirectoryStream(directory, prefix + "-*" + SIDECAR_SUFFIX))
+        {
+            for (final Path path : sidecars)
+            {
+                if (!path.equals(current) && Files.deleteIfExists(path))
+                {
+                    deleted++;
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new EmailException("Cannot delete the sidecars of \"" + file.getAbsolutePath() + "\"", e);
+        }
+        return deleted;
+    }
+
+    /**
+     * Gets the attached file.
+     *
+     * @return the file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Gets the file of the transfer encoded content, the sidecar of an
+     * encoded part or the attached file of a binary part.
+     *
+     * @return the file
+     */
+    public File getContentFile()
+    {
+        return contentFile;
+    }
+
+    /**
+     * Checks that a file exists.
+     *
+     * @param file the file
+     * @throws EmailException if the file does not exist
+     */
+    private static void checkFile(final File file) throws EmailException
+    {
+        if (!file.isFile())
+        {
+            throw new EmailException("Cannot attach file \"" + file.getAbsolutePath() + "\"",
+                    new IOException("\"" + file.getAbsolutePath() + "\" does not exist"));
+        }
+    }
+
+    /**
+     * Gets the up to date sidecar of a file, encoding the file if missing.
+     * The sidecar is named after the hash of the path, the modification time
+     * and the size of the file, and written to a temporary file moved in
+     * place, so a reader never sees a partial sidecar. A file changing while
+     * it is encoded is encoded again, so the name matches the content.
+     *
+     * @param file the file
+     * @param directory the directory of the sidecars
+     * @return the sidecar
+     * @throws IOException encoding the file failed or it kept changing
+     */
+    private static File getSidecar(final File file, final Path directory) throws IOException
+    {
+        final String prefix = getPrefix(file);
+        for (int attempt = 1;; attempt++)
+        {
+            final long modified = file.lastModified();
+            final long length = file.length();
+            final Path sidecar = getSidecarPath(directory, prefix, modified, length);
+            if (Files.isRegularFile(sidecar))
+            {
+                return sidecar.toFile();
+            }
+            Files.createDirectories(directory);
+            final Path temporary = Files.createTempFile(directory, prefix, ".tmp");
+            try
+            {
+                final long encoded = encode(file, temporary);
+                if (encoded == length && file.lastModified() == modified && file.length() == length)
+                {
+                    Files.move(temporary, sidecar, StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    return sidecar.toFile();
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+            if (attempt == MAX_ENCODE_ATTEMPTS)
+            {
+                throw new IOException("\"" + file.getAbsolutePath() + "\" changed while it was encoded");
+            }
+        }
+    }
+
+    /**
+     * Base64 encodes a file.
+     *
+     * @param file the file
+     * @param target the file to write the encoded content to
+     * @return the number of bytes read from the file
+     * @throws IOException reading or writing failed
+     */
+    private static long encode(final File file, final Path target) throws IOException
+    {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        try (InputStream in = Files.newInputStream(file.toPath());
+                OutputStream out = Base64.getMimeEncoder().wrap(Files.newOutputStream(target)))
+        {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the path of the sidecar of a version of a file.
+     *
+     * @param directory the directory of the sidecars
+     * @param prefix the prefix naming the sidecars of the file
+     * @param modified the modification time of the file
+     * @param length the size of the file
+     * @return the path
+     */
+    private static Path getSidecarPath(final Path directory, final String prefix, final long modified,
+            final long length)
+    {
+        return directory.resolve(prefix + '-' + modified + '-' + length + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Gets the prefix naming the sidecars of a file, the hash of its
+     * absolute path.
+     *
+     * @param file the file
+     * @return the prefix
+     */
+    private static String getPrefix(final File file)
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash = digest.digest(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        return EncodedAttachmentCache.toHex(hash).substring(0, PREFIX_LENGTH);
+    }
+
+    /**
+     * A data source of a transfer encoded content file with the content type
+     * and name of the attached file, its encoding is known so JavaMail does
+     * not scan it.
+     */
+    private static final class ContentDataSource extends FileDataSource implements EncodingAware
+    {
+        /** The content type of the attached file. */
+        private final String contentType;
+
+        /** The name of the attached file. */
+        private final String name;
+
+        /** The transfer encoding of the content. */
+        private final String encoding;
+
+        /**
+         * Creates a data source.
+         *
+         * @param contentFile the file of the transfer encoded content
+         * @param contentType the content type of the attached file
+         * @param name the name of the attached file
+         * @param encoding the transfer encoding of the content
+         */
+        ContentDataSource(final File contentFile, final String contentType, final String name,
+                final String encoding)
+        {
+            super(contentFile);
+            this.contentType = contentType;
+            this.name = name;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            throw new IOException("An encoded attachment is read-only");
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String getEncoding()
+        {
+            return encoding;
+        }
+    }
+}
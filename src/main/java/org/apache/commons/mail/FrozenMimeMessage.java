@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.InputStream;
+
+import javax.activation.DataHandler;
+import javax.mail.IllegalWriteException;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * A message parsed from its encoded bytes, e.g. a prototype copy or a
+ * merged message. Only the headers are parsed, the content shares the
+ * bytes and is written as is: saving the message only assigns a Message-ID
+ * if it has none, and the content can not be changed.
+ *
+ * @since 1.6
+ */
+final class FrozenMimeMessage extends SMTPMessage
+{
+    /** The sender, the domain of the Message-ID. */
+    private final InternetAddress from;
+
+    /**
+     * Parses the headers of an encoded message.
+     *
+     * @param session the mail session
+     * @param content the encoded message, a
+     *        {@link javax.mail.internet.SharedInputStream} shared by the content
+     * @param from the sender
+     * @throws MessagingException parsing the headers failed
+     */
+    FrozenMimeMessage(final Session session, final InputStream content, final InternetAddress from)
+            throws MessagingException
+    {
+        super(session, content);
+        this.from = from;
+    }
+
+    @Override
+    public void saveChanges() throws MessagingException
+    {
+        if (getHeader("Message-ID") == null)
+        {
+            setHeader("Message-ID", Email.createMessageId(from));
+        }
+    }
+
+    @Override
+    public void setDataHandler(final DataHandler dataHandler) throws MessagingException
+    {
+        throw new IllegalWriteException("The content of a frozen message can not be changed");
+    }
+}
@@ -511,6 +511,85 @@ public class HtmlEmail extends MultiPartEmail
         super.buildMimeMessage();
     }
 
+    /**
+     * Writes the text and HTML bodies, the inline images and the attachments
+     * in the same multiparts as {@link #buildMimeMessage()} arranges them.
+     *
+     * @param writer the writer
+     * @throws IOException writing the content failed
+     * @throws MessagingException a part is invalid
+     * @throws EmailException the content is invalid
+     * @since 1.6
+     */
+    @Override
+    protected void writeContent(final MimeStreamWriter writer) throws IOException, MessagingException, EmailException
+    {
+        final boolean hasText = EmailUtils.isNotEmpty(this.text);
+        final boolean hasHtml = EmailUtils.isNotEmpty(this.html);
+
+        // EMAIL-142: a text and HTML body without anything else is multipart/alternative
+        final boolean alternativeRoot = hasText && hasHtml && this.inlineEmbeds.isEmpty() && !isBoolHasAttachments();
+        writer.startMultipart(alternativeRoot ? "alternative" : "mixed");
+        if (hasHtml && !this.inlineEmbeds.isEmpty())
+        {
+            writer.startPart();
+            writer.startMultipart("related");
+            writer.startPart();
+            writeBodies(writer, hasText);
+            for (final InlineImage image : this.inlineEmbeds.values())
+            {
+                writer.startPart();
+                writer.writePart(image.getMbp());
+            }
+            writer.endMultipart();
+        }
+        else if (hasText && hasHtml && !alternativeRoot)
+        {
+            writer.startPart();
+            writeBodies(writer, true);
+        }
+        else
+        {
+            if (hasText)
+            {
+                writer.startPart();
+                writer.writeText(this.text, "plain", this.charset);
+            }
+            if (hasHtml)
+            {
+                writer.startPart();
+                writer.writeText(this.html, EmailConstants.TEXT_SUBTYPE_HTML, this.charset);
+            }
+        }
+        writeParts(writer, getContainer());
+        writer.endMultipart();
+    }
+
+    /**
+     * Writes the HTML body as the current part, within a
+     * multipart/alternative after the text body if there is one.
+     *
+     * @param writer the writer
+     * @param withText whether there is a text body
+     * @throws IOException writing the bodies failed
+     */
+    private void writeBodies(final MimeStreamWriter writer, final boolean withText) throws IOException
+    {
+        if (withText)
+        {
+            writer.startMultipart("alternative");
+            writer.startPart();
+            writer.writeText(this.text, "plain", this.charset);
+            writer.startPart();
+            writer.writeText(this.html, EmailConstants.TEXT_SUBTYPE_HTML, this.charset);
+            writer.endMultipart();
+        }
+        else
+        {
+            writer.writeText(this.html, EmailConstants.TEXT_SUBTYPE_HTML, this.charset);
+        }
+    }
+
     /**
      * @throws EmailException EmailException
      * @throws MessagingException MessagingException
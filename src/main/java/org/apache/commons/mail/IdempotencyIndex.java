@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A persistent index of the keys of delivered messages, so a message sent
+ * again after a crash or a timeout is skipped if the first attempt
+ * succeeded. An {@link Email} with an index reserves its idempotency key,
+ * by default its Message-ID, before sending and skips sending if the key
+ * was already reserved within the time to live.
+ *
+ * <pre>
+ * IdempotencyIndex index = new IdempotencyIndex(new File("delivered.idx"), TimeUnit.DAYS.toMillis(7));
+ * email.setIdempotencyIndex(index);
+ * email.setIdempotencyKey("invoice-" + invoice.getId());
+ * email.send();
+ * </pre>
+ *
+ * The index is an open addressing hash table with linear probing in a
+ * memory-mapped file. A slot holds the 64 bit hash of a key and the time it
+ * was delivered, so lookups neither allocate nor read more than a few
+ * slots. Distinct keys with the same hash are indistinguishable; the chance
+ * of such a collision among n keys is about n<sup>2</sup> / 2<sup>65</sup>,
+ * i.e. one in 15,000 for the fifty million keys a full index holds and one
+ * in 3,700 for a hundred million. The slots of
+ * expired keys are reused; when more than three quarters of the slots are
+ * used the table is rebuilt without the expired keys, doubling its
+ * capacity if still more than a quarter of the slots are used.
+ * <p>
+ * Updates are written to the mapped file and survive the JVM dying;
+ * {@link #flush()} forces them to disk. An email reserves its key with
+ * {@link #markDelivered(CharSequence)} before sending and releases it with
+ * {@link #unmarkDelivered(CharSequence)} if sending failed, so of concurrent
+ * sends with the same key only one is sent; the others are skipped even if
+ * that send fails later.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public class IdempotencyIndex implements Closeable
+{
+    /** The default number of slots of a new index. */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /** The maximum number of slots, a 1 GB file. */
+    public static final int MAX_CAPACITY = 1 << 26;
+
+    /** The first bytes of an index file. */
+    private static final long MAGIC = 0x434f4d4d4f4e5331L;
+
+    /** The length of the file header: magic, capacity and used slots. */
+    private static final int HEADER_LENGTH = 64;
+
+    /** The length of a slot: hash and delivery time. */
+    private static final int SLOT_LENGTH = 16;
+
+    /** The position of the capacity in the header. */
+    private static final int CAPACITY_POSITION = 8;
+
+    /** The position of the number of used slots in the header. */
+    private static final int USED_POSITION = 12;
+
+    /** The delivery time of a released key, never live. */
+    private static final long RELEASED = Long.MIN_VALUE;
+
+    /** The index file. */
+    private final File file;
+
+    /** The time a key is kept in milliseconds. */
+    private final long ttlMillis;
+
+    /** The mapped index file, null once closed. */
+    private MappedByteBuffer table;
+
+    /** The number of slots, a power of two. */
+    private int capacity;
+
+    /** The number of used slots including expired keys. */
+    private int used;
+
+    /**
+     * Opens an index file or creates it with the default capacity.
+     *
+     * @param file the index file
+     * @param ttlMillis the time a key is kept in milliseconds
+     * @throws IOException opening the file failed or it is not an index file
+     * @throws IllegalArgumentException if the time to live is not positive
+     */
+    public IdempotencyIndex(final File file, final long ttlMillis) throws IOException
+    {
+        this(file, ttlMillis, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens an index file or creates it with the given capacity. The
+     * capacity of an existing file is kept.
+     *
+     * @param file the index file
+     * @param ttlMillis the time a key is kept in milliseconds
+     * @param capacity the number of slots of a new file, rounded up to a
+     *        power of two
+     * @throws IOException opening the file failed or it is not an index file
+     * @throws IllegalArgumentException if the time to live or the capacity
+     *         is not positive or the capacity exceeds {@link #MAX_CAPACITY}
+     */
+    public IdempotencyIndex(final File file, final long ttlMillis, final int capacity) throws IOException
+    {
+        if (file == null)
+        {
+            throw new IllegalArgumentException("file can not be null");
+        }
+        if (ttlMillis < 1)
+        {
+            throw new IllegalArgumentException("ttlMillis must be greater than 0");
+        }
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+        {
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY);
+        }
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        if (file.exists() && file.length() > 0)
+        {
+            open();
+        }
+        else
+        {
+            this.table = create(file, Math.max(2, Integer.highestOneBit(capacity - 1) << 1));
+            this.capacity = table.getInt(CAPACITY_POSITION);
+        }
+    }
+
+    /**
+     * Was a message with the key delivered within the time to live?
+     *
+     * @param key the idempotency key
+     * @return true if the key is recorded and not expired
+     * @throws IllegalStateException if the index is closed
+     */
+    public synchronized boolean isDelivered(final CharSequence key)
+    {
+        checkOpen();
+        final long hash = hash(key);
+        final long now = System.currentTimeMillis();
+        final int mask = capacity - 1;
+        for (int slot = (int) hash & mask;; slot = slot + 1 & mask)
+        {
+            final int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+            final long stored = table.getLong(position);
+            if (stored == 0)
+            {
+                return false;
+            }
+            if (stored == hash)
+            {
+                return isLive(table.getLong(position + 8), now);
+            }
+        }
+    }
+
+    /**
+     * Records that a message with the key was delivered now.
+     *
+     * @param key the idempotency key
+     * @return false if the key was already delivered within the time to live
+     * @throws IllegalStateException if the index is closed or holds
+     *         {@link #MAX_CAPACITY} live keys
+     * @throws UncheckedIOException rebuilding the full index failed
+     */
+    public synchronized boolean markDelivered(final CharSequence key)
+    {
+        checkOpen();
+        final long hash = hash(key);
+        final long now = System.currentTimeMillis();
+        final int mask = capacity - 1;
+        int expired = -1;
+        for (int slot = (int) hash & mask;; slot = slot + 1 & mask)
+        {
+            final int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+            final long stored = table.getLong(position);
+            if (stored == hash)
+            {
+                final boolean live = isLive(table.getLong(position + 8), now);
+                table.putLong(position + 8, now);
+                return !live;
+            }
+            if (stored == 0)
+            {
+                if (expired < 0 && (used + 1) * 4L > capacity * 3L)
+                {
+                    rebuild(now);
+                    return markDelivered(key);
+                }
+                put(expired >= 0 ? expired : slot, hash, now);
+                return true;
+            }
+            if (expired < 0 && !isLive(table.getLong(position + 8), now))
+            {
+                expired = slot;
+            }
+        }
+    }
+
+    /**
+     * Releases a key recorded by {@link #markDelivered(CharSequence)}, e.g.
+     * because sending the message failed after reserving its key. The slot
+     * of the key is reused like the slot of an expired key.
+     *
+     * @param key the idempotency key
+     * @return false if the key was not recorded or had expired
+     * @throws IllegalStateException if the index is closed
+     */
+    public synchronized boolean unmarkDelivered(final CharSequence key)
+    {
+        checkOpen();
+        final long hash = hash(key);
+        final long now = System.currentTimeMillis();
+        final int mask = capacity - 1;
+        for (int slot = (int) hash & mask;; slot = slot + 1 & mask)
+        {
+            final int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+            final long stored = table.getLong(position);
+            if (stored == 0)
+            {
+                return false;
+            }
+            if (stored == hash)
+            {
+                final boolean live = isLive(table.getLong(position + 8), now);
+                table.putLong(position + 8, RELEASED);
+                return live;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of slots.
+     *
+     * @return the capacity
+     */
+    public synchronized int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of used slots, including expired keys not yet removed.
+     *
+     * @return the number of used slots
+     */
+    public synchronized int getUsedSlots()
+    {
+        return used;
+    }
+
+    /**
+     * Gets the time a key is kept.
+     *
+     * @return the time to live in milliseconds
+     */
+    public long getTtlMillis()
+    {
+        return ttlMillis;
+    }
+
+    /**
+     * Forces the recorded keys to disk.
+     *
+     * @throws IllegalStateException if the index is closed
+     */
+    public synchronized void flush()
+    {
+        checkOpen();
+        table.force();
+    }
+
+    /**
+     * Forces the recorded keys to disk and closes the index. The file is
+     * unmapped when the mapping is garbage collected.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (table != null)
+        {
+            table.force();
+            table = null;
+        }
+    }
+
+    /**
+     * Computes the 64 bit hash of a key, FNV-1a over its characters
+     * finished with the MurmurHash3 mixer, never 0.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    static long hash(final CharSequence key)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++)
+        {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Is a key delivered at the given time still kept?
+     *
+     * @param delivered the delivery time
+     * @param now the current time
+     * @return true if the key is neither expired nor released
+     */
+    private boolean isLive(final long delivered, final long now)
+    {
+        return delivered != RELEASED && now - delivered < ttlMillis;
+    }
+
+    /**
+     * Writes a key into a slot, the time first so a torn write leaves an
+     * empty slot or an expired key.
+     *
+     * @param slot the slot
+     * @param hash the hash of the key
+     * @param delivered the delivery time
+     */
+    private void put(final int slot, final long hash, final long delivered)
+    {
+        final int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+        final boolean empty = table.getLong(position) == 0;
+        table.putLong(position + 8, delivered);
+        table.putLong(position, hash);
+        if (empty)
+        {
+            used++;
+            table.putInt(USED_POSITION, used);
+        }
+    }
+
+    /**
+     * Rebuilds the table without the expired keys into a new file replacing
+     * the index file.
+     *
+     * @param now the current time
+     */
+    private void rebuild(final long now)
+    {
+        int live = 0;
+        for (int slot = 0; slot < capacity; slot++)
+        {
+            final int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+            if (table.getLong(position) != 0 && isLive(table.getLong(position + 8), now))
+            {
+                live++;
+            }
+        }
+        int newCapacity = capacity;
+        while ((live + 1) * 4L > newCapacity)
+        {
+            if (newCapacity == MAX_CAPACITY)
+            {
+                throw new IllegalStateException("The idempotency index is full");
+            }
+            newCapacity <<= 1;
+        }
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            final MappedByteBuffer oldTable = table;
+            final int oldCapacity = capacity;
+            table = create(tmp, newCapacity);
+            capacity = newCapacity;
+            used = 0;
+            for (int slot = 0; slot < oldCapacity; slot++)
+            {
+                final int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+                final long hash = oldTable.getLong(position);
+                final long delivered = oldTable.getLong(position + 8);
+                if (hash != 0 && isLive(delivered, now))
+                {
+                    int newSlot = (int) hash & newCapacity - 1;
+                    while (table.getLong(HEADER_LENGTH + newSlot * SLOT_LENGTH) != 0)
+                    {
+                        newSlot = newSlot + 1 & newCapacity - 1;
+                    }
+                    put(newSlot, hash, delivered);
+                }
+            }
+            table.force();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException("Cannot rebuild the idempotency index " + file, e);
+        }
+    }
+
+    /**
+     * Maps an existing index file.
+     *
+     * @throws IOException mapping failed or the file is not an index file
+     */
+    private void open() throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            if (channel.size() < HEADER_LENGTH)
+            {
+                throw new IOException("Not an idempotency index: " + file);
+            }
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+            final int slots = header.getInt(CAPACITY_POSITION);
+            if (header.getLong(0) != MAGIC || slots < 2 || slots > MAX_CAPACITY || Integer.bitCount(slots) != 1
+                    || channel.size() != HEADER_LENGTH + (long) slots * SLOT_LENGTH)
+            {
+                throw new IOException("Not an idempotency index: " + file);
+            }
+            this.table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            this.capacity = slots;
+            this.used = table.getInt(USED_POSITION);
+        }
+    }
+
+    /**
+     * Creates and maps an empty index file.
+     *
+     * @param target the file
+     * @param slots the number of slots
+     * @return the mapped file
+     * @throws IOException creating the file failed
+     */
+    private static MappedByteBuffer create(final File target, final int slots) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_LENGTH + (long) slots * SLOT_LENGTH);
+            mapped.putLong(0, MAGIC);
+            mapped.putInt(CAPACITY_POSITION, slots);
+            mapped.putInt(USED_POSITION, 0);
+            return mapped;
+        }
+    }
+
+    /**
+     * Throws if the index is closed.
+     */
+    private void checkOpen()
+    {
+        if (table == null)
+        {
+            throw new IllegalStateException("The idempotency index is closed");
+        }
+    }
+}
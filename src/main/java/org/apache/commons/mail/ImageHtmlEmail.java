@@ -17,6 +17,7 @@
 package org.apache.commons.mail;
 
 import javax.activation.DataSource;
+import javax.mail.MessagingException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -112,6 +113,25 @@ public class ImageHtmlEmail extends HtmlEmail
         }
     }
 
+    /**
+     * Embeds the matching image and script resources and writes the
+     * content.
+     *
+     * @param writer the writer
+     * @throws IOException writing the content or resolving the resources failed
+     * @throws MessagingException a part is invalid
+     * @throws EmailException embedding a resource failed
+     * @since 1.6
+     */
+    @Override
+    protected void writeContent(final MimeStreamWriter writer) throws IOException, MessagingException, EmailException
+    {
+        String temp = replacePattern(super.html, IMG_PATTERN);
+        temp = replacePattern(temp, SCRIPT_PATTERN);
+        setHtmlMsg(temp);
+        super.writeContent(writer);
+    }
+
     /**
      * Replace the regexp matching resource locations with "cid:..." references.
      *
@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends the messages of a {@link MergeTemplate} to a stream of recipient
+ * records, e.g. a newsletter with personalised fields to hundreds of
+ * thousands of recipients.
+ *
+ * <pre>
+ * MailMerge merge = new MailMerge(template, pool);
+ * MergeReport report = merge.run(customers.stream().map(Customer::toFields));
+ * </pre>
+ *
+ * The records are rendered in parallel by as many threads as there are
+ * processors by default, only the personalised parts are encoded for each
+ * message while the inline images and attachments of the template are
+ * shared. The rendered messages go through a bounded queue to the send
+ * threads, so a transport slower than rendering holds rendering and
+ * reading the records back instead of filling the memory. The transport is
+ * used by all send threads at once, e.g. a
+ * {@link org.apache.commons.mail.transport.TransportPool} with at least as
+ * many connections as send threads.
+ * <p>
+ * A merge can be run repeatedly but not concurrently.
+ *
+ * @since 1.6
+ */
+public class MailMerge
+{
+    /** The default number of send threads. */
+    public static final int DEFAULT_SEND_THREADS = 4;
+
+    /** The default capacity of the queues between the stages. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** Marks the end of the records in a queue. */
+    private static final Item END = new Item(-1, null, null);
+
+    /** The template. */
+    private final MergeTemplate template;
+
+    /** The transport. */
+    private final MailTransport mailTransport;
+
+    /** The number of render threads. */
+    private int renderThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The number of send threads. */
+    private int sendThreads = DEFAULT_SEND_THREADS;
+
+    /** The capacity of the queues between the stages. */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * Creates a merge.
+     *
+     * @param template the template
+     * @param mailTransport the transport sending the messages
+     * @throws IllegalArgumentException if the template or the transport is null
+     */
+    public MailMerge(final MergeTemplate template, final MailTransport mailTransport)
+    {
+        EmailUtils.notNull(template, "no template supplied");
+        EmailUtils.notNull(mailTransport, "no mail transport supplied");
+        this.template = template;
+        this.mailTransport = mailTransport;
+    }
+
+    /**
+     * Sends the messages to a stream of recipient records and waits until
+     * all are sent or failed.
+     *
+     * @param records the fields of each recipient by name
+     * @return the report
+     * @throws InterruptedException interrupted while waiting, the messages
+     *         not sent yet are discarded
+     * @throws IllegalArgumentException if the records are null
+     */
+    public MergeReport run(final Stream<? extends Map<String, ?>> records) throws InterruptedException
+    {
+        EmailUtils.notNull(records, "no records supplied");
+        return run(records.iterator());
+    }
+
+    /**
+     * Sends the messages to recipient records and waits until all are sent
+     * or failed.
+     *
+     * @param records the fields of each recipient by name
+     * @return the report
+     * @throws InterruptedException interrupted while waiting, the messages
+     *         not sent yet are discarded
+     * @throws IllegalArgumentException if the records are null
+     */
+    public MergeReport run(final Iterable<? extends Map<String, ?>> records) throws InterruptedException
+    {
+        EmailUtils.notNull(records, "no records supplied");
+        return run(records.iterator());
+    }
+
+    /**
+     * Gets the template.
+     *
+     * @return the template
+     */
+    public MergeTemplate getTemplate()
+    {
+        return template;
+    }
+
+    /**
+     * Gets the transport sending the messages.
+     *
+     * @return the transport
+     */
+    public MailTransport getMailTransport()
+    {
+        return mailTransport;
+    }
+
+    /**
+     * Sets the number of threads rendering the messages.
+     *
+     * @param renderThreads the number of threads, by default the number of
+     *        processors
+     * @return this merge
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public MailMerge setRenderThreads(final int renderThreads)
+    {
+        if (renderThreads < 1)
+        {
+            throw new IllegalArgumentException("renderThreads must be greater than 0");
+        }
+        this.renderThreads = renderThreads;
+        return this;
+    }
+
+    /**
+     * Gets the number of threads rendering the messages.
+     *
+     * @return the number of threads
+     */
+    public int getRenderThreads()
+    {
+        return renderThreads;
+    }
+
+    /**
+     * Sets the number of threads sending the messages.
+     *
+     * @param sendThreads the number of threads, {@link #DEFAULT_SEND_THREADS}
+     *        by default
+     * @return this merge
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public MailMerge setSendThreads(final int sendThreads)
+    {
+        if (sendThreads < 1)
+        {
+            throw new IllegalArgumentException("sendThreads must be greater than 0");
+        }
+        this.sendThreads = sendThreads;
+        return this;
+    }
+
+    /**
+     * Gets the number of threads sending the messages.
+     *
+     * @return the number of threads
+     */
+    public int getSendThreads()
+    {
+        return sendThreads;
+    }
+
+    /**
+     * Sets the capacity of the queues of records waiting to be rendered and
+     * of messages waiting to be sent.
+     *
+     * @param queueCapacity the capacity, {@link #DEFAULT_QUEUE_CAPACITY} by
+     *        default
+     * @return this merge
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public MailMerge setQueueCapacity(final int queueCapacity)
+    {
+        if (queueCapacity < 1)
+        {
+            throw new IllegalArgumentException("queueCapacity must be greater than 0");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Gets the capacity of the queues between the stages.
+     *
+     * @return the capacity
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    /**
+     * Feeds the records to the render threads and waits for the stages to
+     * finish.
+     *
+     * @param records the records
+     * @return the report
+     * @throws InterruptedException interrupted while waiting
+     */
+    private MergeReport run(final Iterator<? extends Map<String, ?>> records) throws InterruptedException
+    {
+        final BlockingQueue<Item> rendering = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Item> sending = new ArrayBlockingQueue<>(queueCapacity);
+        final MergeReport report = new MergeReport();
+        final Thread[] renderers = start(renderThreads, "commons-email-merge-render-",
+                () -> render(rendering, sending, report));
+        final Thread[] senders = start(sendThreads, "commons-email-merge-send-", () -> send(sending, report));
+        try
+        {
+            long index = 0;
+            while (records.hasNext())
+            {
+                rendering.put(new Item(index++, records.next(), null));
+            }
+            finish(rendering, renderers);
+            finish(sending, senders);
+        }
+        catch (final InterruptedException | RuntimeException e)
+        {
+            interrupt(renderers);
+            interrupt(senders);
+            throw e;
+        }
+        return report;
+    }
+
+    /**
+     * Renders the records of a queue into the send queue until the end.
+     *
+     * @param rendering the records
+     * @param sending the rendered messages
+     * @param report the report
+     */
+    private void render(final BlockingQueue<Item> rendering, final BlockingQueue<Item> sending,
+            final MergeReport report)
+    {
+        try
+        {
+            Item item;
+            while ((item = rendering.take()) != END)
+            {
+                final MimeMessage message;
+                try
+                {
+                    message = template.render(item.record);
+                }
+                catch (final EmailException | RuntimeException e)
+                {
+                    report.failed(item.index, e);
+                    continue;
+                }
+                sending.put(new Item(item.index, null, message));
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            // the merge was interrupted
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the messages of a queue until the end.
+     *
+     * @param sending the rendered messages
+     * @param report the report
+     */
+    private void send(final BlockingQueue<Item> sending, final MergeReport report)
+    {
+        try
+        {
+            Item item;
+            while ((item = sending.take()) != END)
+            {
+                try
+                {
+                    mailTransport.send(item.message);
+                    report.sent();
+                }
+                catch (final MessagingException | RuntimeException e)
+                {
+                    report.failed(item.index, e);
+                }
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            // the merge was interrupted
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the threads of a stage.
+     *
+     * @param count the number of threads
+     * @param prefix the prefix of the thread names
+     * @param task the task of each thread
+     * @return the threads
+     */
+    private static Thread[] start(final int count, final String prefix, final Runnable task)
+    {
+        final Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++)
+        {
+            threads[i] = new Thread(task, prefix + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    /**
+     * Ends a stage after the items queued and waits for its threads.
+     *
+     * @param queue the queue of the stage
+     * @param threads the threads of the stage
+     * @throws InterruptedException interrupted while waiting
+     */
+    private static void finish(final BlockingQueue<Item> queue, final Thread[] threads) throws InterruptedException
+    {
+        for (int i = 0; i < threads.length; i++)
+        {
+            queue.put(END);
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+    }
+
+    /**
+     * Interrupts the threads of a stage.
+     *
+     * @param threads the threads
+     */
+    private static void interrupt(final Thread[] threads)
+    {
+        for (final Thread thread : threads)
+        {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * A record to render or a message to send.
+     */
+    private static final class Item
+    {
+        /** The position of the record. */
+        private final long index;
+
+        /** The fields of the record, null once rendered. */
+        private final Map<String, ?> record;
+
+        /** The rendered message, null until rendered. */
+        private final MimeMessage message;
+
+        /**
+         * Constructor.
+         *
+         * @param index the position of the record
+         * @param record the fields of the record
+         * @param message the rendered message
+         */
+        Item(final long index, final Map<String, ?> record, final MimeMessage message)
+        {
+            this.index = index;
+            this.record = record;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends a {@code MimeMessage}, e.g. using JavaMail's {@code Transport}, a pool
+ * of connected transports or an in-memory capture. The transport used by an
+ * {@link Email} is set per email with {@link Email#setMailTransport(MailTransport)}
+ * or globally with {@link Email#setDefaultMailTransport(MailTransport)}.
+ * <p>
+ * The caller calls {@code saveChanges()} on a message before passing it; a
+ * transport sends the message as is, so the Message-ID stays the same when a
+ * message is sent again, e.g. when retrying.
+ *
+ * @since 1.6
+ */
+public interface MailTransport extends AutoCloseable
+{
+    /**
+     * Sends the message to all its recipients.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed
+     */
+    String send(MimeMessage message) throws MessagingException;
+
+    /**
+     * Sends the message to all its recipients at the given time, e.g. by
+     * keeping it in a durable {@link org.apache.commons.mail.transport.outbox.Outbox}
+     * until then. The default implementation does not support scheduled
+     * delivery.
+     *
+     * @param message the saved message
+     * @param sendAt the time to send the message
+     * @return the Message-ID of the message
+     * @throws MessagingException scheduling the message failed or is not supported
+     */
+    default String sendAt(final MimeMessage message, final Instant sendAt) throws MessagingException
+    {
+        throw new MessagingException("Scheduled delivery is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Sends the messages. The default implementation sends them one after the
+     * other, implementations may send them concurrently or over a single connection.
+     *
+     * @param messages the saved messages
+     * @return the result for each message in iteration order
+     */
+    default List<SendResult> sendAll(final Collection<? extends MimeMessage> messages)
+    {
+        final List<SendResult> results = new ArrayList<>(messages.size());
+        for (final MimeMessage message : messages)
+        {
+            try
+            {
+                results.add(SendResult.success(message, send(message)));
+            }
+            catch (final MessagingException e)
+            {
+                results.add(SendResult.failure(message, new EmailException(e)));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Releases the resources held by the transport, e.g. open connections.
+     * The default implementation does nothing.
+     */
+    @Override
+    default void close()
+    {
+        // nothing to release
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The outcome of a {@link MailMerge}: the number of messages sent and the
+ * failures by the position of the recipient record, counted from 0. A
+ * failure is an {@link EmailException} if rendering the message failed,
+ * e.g. a field had no value, and the exception of the transport if sending
+ * it failed.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public final class MergeReport
+{
+    /** The number of messages sent. */
+    private final AtomicLong sentCount = new AtomicLong();
+
+    /** The failures by record position. */
+    private final Map<Long, Exception> failures = new ConcurrentSkipListMap<>();
+
+    /**
+     * Constructor.
+     */
+    MergeReport()
+    {
+    }
+
+    /**
+     * Counts a sent message.
+     */
+    void sent()
+    {
+        sentCount.incrementAndGet();
+    }
+
+    /**
+     * Records a failure.
+     *
+     * @param index the position of the record
+     * @param failure the failure
+     */
+    void failed(final long index, final Exception failure)
+    {
+        failures.put(index, failure);
+    }
+
+    /**
+     * Gets the number of messages sent.
+     *
+     * @return the number of messages
+     */
+    public long getSentCount()
+    {
+        return sentCount.get();
+    }
+
+    /**
+     * Gets the number of records which failed to render or send.
+     *
+     * @return the number of failures
+     */
+    public int getFailedCount()
+    {
+        return failures.size();
+    }
+
+    /**
+     * Gets the failures.
+     *
+     * @return the failures by record position, in record order
+     */
+    public Map<Long, Exception> getFailures()
+    {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MergeReport[sent=" + sentCount.get() + ", failed=" + failures.size() + "]";
+    }
+}
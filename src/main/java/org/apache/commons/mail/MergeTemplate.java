@@ -0,0 +1,642 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * A mail merge template: the recipients, the subject, custom headers and
+ * the text and HTML bodies contain {@code ${field}} placeholders replaced
+ * by the fields of each recipient, while inline images and attachments are
+ * encoded once and shared by all messages.
+ *
+ * <pre>
+ * MergeTemplate template = new MergeTemplate()
+ *     .setFrom("shop@example.com")
+ *     .setTo("${name} &lt;${email}&gt;")
+ *     .setSubject("Your order ${order} has shipped");
+ * String cid = template.embed(new FileDataSource("logo.png"), "logo.png");
+ * template.setHtmlMsg("&lt;img src=\"cid:" + cid + "\"&gt;&lt;p&gt;Dear ${name}, ...&lt;/p&gt;");
+ * template.setTextMsg("Dear ${name}, ...");
+ * MimeMessage message = template.render(fields);
+ * </pre>
+ *
+ * The placeholders are compiled when set, so rendering a message only
+ * joins the text between the placeholders with the fields and encodes the
+ * bodies, the static parts are encoded once and shared by reference: a
+ * rendered message holds its headers and bodies only. The fields are
+ * inserted as they are, except in the HTML body where they are escaped.
+ * Rendering a message fails if a field has no value. A message has the
+ * structure of an {@link HtmlEmail} with the same content.
+ * <p>
+ * A template is configured before rendering; rendering is thread-safe and
+ * the rendered messages are independent of each other.
+ *
+ * @see MailMerge
+ * @since 1.6
+ */
+public final class MergeTemplate
+{
+    /** The start of a placeholder. */
+    private static final String PLACEHOLDER_START = "${";
+
+    /** The end of a placeholder. */
+    private static final String PLACEHOLDER_END = "}";
+
+    /** The headers of the bodies and the boundaries of a message. */
+    private static final int STRUCTURE_SIZE = 2048;
+
+    /** The mail session of the rendered messages. */
+    private Session session = Session.getInstance(new Properties());
+
+    /** The sender. */
+    private InternetAddress from;
+
+    /** The recipients. */
+    private Field to;
+
+    /** The subject, null for none. */
+    private Field subject;
+
+    /** The text body, null for none. */
+    private Field text;
+
+    /** The HTML body, null for none. */
+    private Field html;
+
+    /** The charset of the bodies and headers, null for the default. */
+    private String charset;
+
+    /** The custom headers by name. */
+    private final Map<String, Field> headers = new LinkedHashMap<>();
+
+    /** The encoded inline images. */
+    private final List<byte[]> images = new ArrayList<>();
+
+    /** The encoded attachments. */
+    private final List<byte[]> attachments = new ArrayList<>();
+
+    /**
+     * Sets the mail session of the rendered messages, used to send them by
+     * a transport taking the session from the message.
+     *
+     * @param session the session
+     * @return this template
+     * @throws IllegalArgumentException if the session is null
+     */
+    public MergeTemplate setMailSession(final Session session)
+    {
+        EmailUtils.notNull(session, "no mail session supplied");
+        this.session = session;
+        return this;
+    }
+
+    /**
+     * Gets the mail session of the rendered messages.
+     *
+     * @return the session
+     */
+    public Session getMailSession()
+    {
+        return session;
+    }
+
+    /**
+     * Sets the sender.
+     *
+     * @param address the address, optionally with a personal name
+     * @return this template
+     * @throws EmailException the address is invalid
+     */
+    public MergeTemplate setFrom(final String address) throws EmailException
+    {
+        try
+        {
+            final InternetAddress parsed = new InternetAddress(address);
+            parsed.validate();
+            this.from = parsed;
+        }
+        catch (final AddressException e)
+        {
+            throw new EmailException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the recipients, a comma separated list of addresses.
+     *
+     * @param pattern the recipients with placeholders, e.g. {@code "${email}"}
+     * @return this template
+     * @throws IllegalArgumentException if a placeholder is not closed
+     */
+    public MergeTemplate setTo(final String pattern)
+    {
+        this.to = Field.compile(pattern);
+        return this;
+    }
+
+    /**
+     * Sets the subject.
+     *
+     * @param pattern the subject with placeholders
+     * @return this template
+     * @throws IllegalArgumentException if a placeholder is not closed
+     */
+    public MergeTemplate setSubject(final String pattern)
+    {
+        this.subject = Field.compile(pattern);
+        return this;
+    }
+
+    /**
+     * Sets the text body.
+     *
+     * @param pattern the text with placeholders
+     * @return this template
+     * @throws IllegalArgumentException if a placeholder is not closed
+     */
+    public MergeTemplate setTextMsg(final String pattern)
+    {
+        this.text = Field.compile(pattern);
+        return this;
+    }
+
+    /**
+     * Sets the HTML body. The fields replacing its placeholders are escaped.
+     *
+     * @param pattern the HTML with placeholders
+     * @return this template
+     * @throws IllegalArgumentException if a placeholder is not closed
+     */
+    public MergeTemplate setHtmlMsg(final String pattern)
+    {
+        this.html = Field.compile(pattern);
+        return this;
+    }
+
+    /**
+     * Sets the charset of the bodies and headers.
+     *
+     * @param charset the charset, null for us-ascii if possible and the
+     *        default charset otherwise
+     * @return this template
+     */
+    public MergeTemplate setCharset(final String charset)
+    {
+        this.charset = charset;
+        return this;
+    }
+
+    /**
+     * Adds a custom header.
+     *
+     * @param name the name
+     * @param pattern the value with placeholders
+     * @return this template
+     * @throws IllegalArgumentException if the name is empty or a placeholder
+     *         is not closed
+     */
+    public MergeTemplate addHeader(final String name, final String pattern)
+    {
+        if (EmailUtils.isEmpty(name))
+        {
+            throw new IllegalArgumentException("name can not be null or empty");
+        }
+        headers.put(name, Field.compile(pattern));
+        return this;
+    }
+
+    /**
+     * Embeds an image shown by the HTML body, encoding it once.
+     *
+     * @param dataSource the image
+     * @param name the file name of the image
+     * @return the generated Content-ID to refer to the image with
+     *         {@code cid:}
+     * @throws EmailException reading the image failed
+     * @see HtmlEmail#embed(DataSource, String)
+     */
+    public String embed(final DataSource dataSource, final String name) throws EmailException
+    {
+        return embed(dataSource, name, EmailUtils.randomAlphabetic(HtmlEmail.CID_LENGTH).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Embeds an image shown by the HTML body, encoding it once.
+     *
+     * @param dataSource the image
+     * @param name the file name of the image
+     * @param cid the Content-ID to refer to the image with {@code cid:}
+     * @return the URL encoded Content-ID
+     * @throws EmailException reading the image failed or the name is empty
+     * @see HtmlEmail#embed(DataSource, String, String)
+     */
+    public String embed(final DataSource dataSource, final String name, final String cid) throws EmailException
+    {
+        if (EmailUtils.isEmpty(name))
+        {
+            throw new EmailException("name cannot be null or empty");
+        }
+        try
+        {
+            // URL encode the cid according to RFC 2392
+            final String encodedCid = EmailUtils.encodeUrl(cid);
+            final MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(dataSource));
+            part.setFileName(name);
+            part.setDisposition(EmailAttachment.INLINE);
+            part.setContentID("<" + encodedCid + ">");
+            images.add(encode(part));
+            return encodedCid;
+        }
+        catch (final MessagingException | UnsupportedEncodingException e)
+        {
+            throw new EmailException(e);
+        }
+    }
+
+    /**
+     * Attaches a file to all messages, encoding it once.
+     *
+     * @param dataSource the file
+     * @param name the file name, null for the name of the data source
+     * @param description the description, may be null
+     * @return this template
+     * @throws EmailException reading the file failed
+     */
+    public MergeTemplate attach(final DataSource dataSource, final String name, final String description)
+            throws EmailException
+    {
+        try
+        {
+            final MimeBodyPart part = new MimeBodyPart();
+            part.setDisposition(EmailAttachment.ATTACHMENT);
+            part.setFileName(MimeUtility.encodeText(EmailUtils.isEmpty(name) ? dataSource.getName() : name));
+            part.setDescription(description);
+            part.setDataHandler(new DataHandler(dataSource));
+            attachments.add(encode(part));
+        }
+        catch (final MessagingException | UnsupportedEncodingException e)
+        {
+            throw new EmailException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Renders the message of a recipient. The message shares no state with
+     * the template or other messages; it is dated now and has its own
+     * Message-ID.
+     *
+     * @param fields the fields of the recipient by name
+     * @return the message
+     * @throws EmailException a field has no value, the recipients are
+     *         invalid or the template is incomplete
+     * @throws IllegalArgumentException if the fields are null
+     */
+    public MimeMessage render(final Map<String, ?> fields) throws EmailException
+    {
+        EmailUtils.notNull(fields, "no fields supplied");
+        if (from == null)
+        {
+            throw new EmailException("From address required");
+        }
+        if (to == null)
+        {
+            throw new EmailException("At least one receiver address required");
+        }
+        if (text == null && html == null)
+        {
+            throw new EmailException("Invalid message supplied");
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        final String recipients = to.render(fields, false, builder);
+        final InternetAddress[] addresses;
+        try
+        {
+            addresses = InternetAddress.parse(recipients, true);
+        }
+        catch (final AddressException e)
+        {
+            throw new EmailException("Invalid recipients \"" + recipients + "\"", e);
+        }
+        if (addresses.length == 0)
+        {
+            throw new EmailException("At least one receiver address required");
+        }
+        final String textBody = text != null ? text.render(fields, false, builder) : null;
+        final String htmlBody = html != null ? html.render(fields, true, builder) : null;
+
+        final int bodySize = (textBody != null ? textBody.length() : 0) + (htmlBody != null ? htmlBody.length() : 0);
+        final SegmentedOutputStream out = new SegmentedOutputStream(2 * bodySize + STRUCTURE_SIZE);
+        try
+        {
+            final MimeStreamWriter writer = new MimeStreamWriter(out);
+            writer.writeHeader("Date", new MailDateFormat().format(new Date()));
+            writer.writeHeader("From", from.toString());
+            writer.writeHeader("To", Email.toHeaderValue(Arrays.asList(addresses)));
+            boolean messageId = false;
+            for (final String name : headers.keySet())
+            {
+                messageId |= "Message-ID".equalsIgnoreCase(name);
+            }
+            if (!messageId)
+            {
+                writer.writeHeader("Message-ID", Email.createMessageId(from));
+            }
+            if (subject != null)
+            {
+                writer.writeHeader("Subject",
+                        MimeUtility.encodeText(subject.render(fields, false, builder), charset, null));
+            }
+            for (final Map.Entry<String, Field> entry : headers.entrySet())
+            {
+                writer.writeHeader(entry.getKey(),
+                        MimeUtility.encodeText(entry.getValue().render(fields, false, builder), charset, null));
+            }
+            writer.writeHeader("MIME-Version", "1.0");
+            writeContent(writer, textBody, htmlBody);
+            writer.flush();
+            return new FrozenMimeMessage(session, out.toInputStream(), from);
+        }
+        catch (final IOException | MessagingException e)
+        {
+            throw new EmailException("Rendering the message failed", e);
+        }
+    }
+
+    /**
+     * Writes the bodies and the static parts in the structure of an
+     * {@link HtmlEmail}.
+     *
+     * @param writer the writer
+     * @param textBody the rendered text body, may be null
+     * @param htmlBody the rendered HTML body, may be null
+     * @throws IOException writing failed
+     */
+    private void writeContent(final MimeStreamWriter writer, final String textBody, final String htmlBody)
+            throws IOException
+    {
+        final boolean hasText = EmailUtils.isNotEmpty(textBody);
+        final boolean hasHtml = EmailUtils.isNotEmpty(htmlBody);
+
+        // EMAIL-142: a text and HTML body without anything else is multipart/alternative
+        final boolean alternativeRoot = hasText && hasHtml && images.isEmpty() && attachments.isEmpty();
+        writer.startMultipart(alternativeRoot ? "alternative" : "mixed");
+        if (hasHtml && !images.isEmpty())
+        {
+            writer.startPart();
+            writer.startMultipart("related");
+            writer.startPart();
+            writeBodies(writer, hasText ? textBody : null, htmlBody);
+            for (final byte[] image : images)
+            {
+                writer.startPart();
+                writer.writeRendered(image);
+            }
+            writer.endMultipart();
+        }
+        else if (hasText && hasHtml && !alternativeRoot)
+        {
+            writer.startPart();
+            writeBodies(writer, textBody, htmlBody);
+        }
+        else
+        {
+            if (hasText)
+            {
+                writer.startPart();
+                writer.writeText(textBody, "plain", charset);
+            }
+            if (hasHtml)
+            {
+                writer.startPart();
+                writer.writeText(htmlBody, EmailConstants.TEXT_SUBTYPE_HTML, charset);
+            }
+        }
+        for (final byte[] attachment : attachments)
+        {
+            writer.startPart();
+            writer.writeRendered(attachment);
+        }
+        writer.endMultipart();
+    }
+
+    /**
+     * Writes the HTML body as the current part, within a
+     * multipart/alternative after the text body if there is one.
+     *
+     * @param writer the writer
+     * @param textBody the text body, null for none
+     * @param htmlBody the HTML body
+     * @throws IOException writing the bodies failed
+     */
+    private void writeBodies(final MimeStreamWriter writer, final String textBody, final String htmlBody)
+            throws IOException
+    {
+        if (textBody != null)
+        {
+            writer.startMultipart("alternative");
+            writer.startPart();
+            writer.writeText(textBody, "plain", charset);
+            writer.startPart();
+            writer.writeText(htmlBody, EmailConstants.TEXT_SUBTYPE_HTML, charset);
+            writer.endMultipart();
+        }
+        else
+        {
+            writer.writeText(htmlBody, EmailConstants.TEXT_SUBTYPE_HTML, charset);
+        }
+    }
+
+    /**
+     * Encodes a static part once.
+     *
+     * @param part the part
+     * @return the headers and the encoded content of the part
+     * @throws EmailException reading the content failed
+     */
+    private byte[] encode(final MimeBodyPart part) throws EmailException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            final MimeStreamWriter writer = new MimeStreamWriter(out);
+            writer.writePart(part);
+            writer.flush();
+        }
+        catch (final IOException | MessagingException e)
+        {
+            throw new EmailException("Encoding the part failed", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A text with compiled placeholders.
+     */
+    private static final class Field
+    {
+        /** The text before, between and after the placeholders. */
+        private final String[] literals;
+
+        /** The names of the fields of the placeholders. */
+        private final String[] names;
+
+        /**
+         * Constructor.
+         *
+         * @param literals the text around the placeholders, one more than names
+         * @param names the names of the fields
+         */
+        private Field(final String[] literals, final String[] names)
+        {
+            this.literals = literals;
+            this.names = names;
+        }
+
+        /**
+         * Compiles the placeholders of a text.
+         *
+         * @param pattern the text
+         * @return the compiled text
+         * @throws IllegalArgumentException if the text is null, a
+         *         placeholder is not closed or has no name
+         */
+        static Field compile(final String pattern)
+        {
+            EmailUtils.notNull(pattern, "no pattern supplied");
+            final List<String> literals = new ArrayList<>();
+            final List<String> names = new ArrayList<>();
+            int position = 0;
+            int start;
+            while ((start = pattern.indexOf(PLACEHOLDER_START, position)) != -1)
+            {
+                final int end = pattern.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+                if (end == -1)
+                {
+                    throw new IllegalArgumentException("Unclosed placeholder at " + start + " in \"" + pattern + "\"");
+                }
+                final String name = pattern.substring(start + PLACEHOLDER_START.length(), end).trim();
+                if (name.isEmpty())
+                {
+                    throw new IllegalArgumentException("Empty placeholder at " + start + " in \"" + pattern + "\"");
+                }
+                literals.add(pattern.substring(position, start));
+                names.add(name);
+                position = end + PLACEHOLDER_END.length();
+            }
+            literals.add(pattern.substring(position));
+            return new Field(literals.toArray(new String[0]), names.toArray(new String[0]));
+        }
+
+        /**
+         * Replaces the placeholders by the fields.
+         *
+         * @param fields the fields by name
+         * @param escapeHtml whether to escape the fields for HTML
+         * @param builder a builder to reuse
+         * @return the text
+         * @throws EmailException a field has no value
+         */
+        String render(final Map<String, ?> fields, final boolean escapeHtml, final StringBuilder builder)
+                throws EmailException
+        {
+            if (names.length == 0)
+            {
+                return literals[0];
+            }
+            builder.setLength(0);
+            builder.append(literals[0]);
+            for (int i = 0; i < names.length; i++)
+            {
+                final Object value = fields.get(names[i]);
+                if (value == null)
+                {
+                    throw new EmailException("No value for the merge field \"" + names[i] + "\"");
+                }
+                if (escapeHtml)
+                {
+                    escapeHtml(value.toString(), builder);
+                }
+                else
+                {
+                    builder.append(value);
+                }
+                builder.append(literals[i + 1]);
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Appends a text escaping the characters with a meaning in HTML.
+         *
+         * @param value the text
+         * @param builder the builder
+         */
+        private static void escapeHtml(final String value, final StringBuilder builder)
+        {
+            for (int i = 0; i < value.length(); i++)
+            {
+                final char c = value.charAt(i);
+                switch (c)
+                {
+                    case '&':
+                        builder.append("&amp;");
+                        break;
+                    case '<':
+                        builder.append("&lt;");
+                        break;
+                    case '>':
+                        builder.append("&gt;");
+                        break;
+                    case '"':
+                        builder.append("&quot;");
+                        break;
+                    case '\'':
+                        builder.append("&#39;");
+                        break;
+                    default:
+                        builder.append(c);
+                }
+            }
+        }
+    }
+}
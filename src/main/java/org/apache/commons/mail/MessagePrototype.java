@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.util.Date;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * A built email frozen into an immutable template, to send the same
+ * content to many recipients without building the email again, which
+ * [EMAIL-95] does not allow. The template holds the encoded message, so
+ * the body parts are encoded once.
+ *
+ * <pre>
+ * MessagePrototype prototype = email.toPrototype();
+ * for (Team team : teams)
+ * {
+ *     MimeMessage copy = prototype.newMessage();
+ *     copy.setRecipients(Message.RecipientType.TO, team.getAddresses());
+ *     copy.setSubject("[" + team.getName() + "] " + alert.getTitle(), "UTF-8");
+ *     copy.setHeader("X-Team", team.getId());
+ *     prototype.send(copy);
+ * }
+ * </pre>
+ *
+ * A copy parses only the headers of the template and shares the bytes of
+ * its content, which are written as is. The headers of a copy, e.g. the
+ * recipients, the subject, the Date and custom headers, can be changed;
+ * its content can not. Each copy gets a new Message-ID when it is saved or
+ * sent unless one is set on the copy.
+ * <p>
+ * This class is thread-safe, copies can be created and sent concurrently.
+ * A copy itself is not thread-safe.
+ *
+ * @see Email#toPrototype()
+ * @since 1.6
+ */
+public final class MessagePrototype
+{
+    /** The mail session of the copies. */
+    private final Session session;
+
+    /** The encoded message without Message-ID. */
+    private final byte[] content;
+
+    /** The sender, the domain of the Message-IDs. */
+    private final InternetAddress from;
+
+    /** The transport sending the copies. */
+    private final MailTransport mailTransport;
+
+    /**
+     * Constructor.
+     *
+     * @param session the mail session of the copies
+     * @param content the encoded message without Message-ID, not copied
+     * @param from the sender
+     * @param mailTransport the transport sending the copies
+     */
+    MessagePrototype(final Session session, final byte[] content, final InternetAddress from,
+            final MailTransport mailTransport)
+    {
+        this.session = session;
+        this.content = content;
+        this.from = from;
+        this.mailTransport = mailTransport;
+    }
+
+    /**
+     * Creates a copy of the template dated now.
+     *
+     * @return the copy
+     * @throws EmailException parsing the headers failed
+     */
+    public MimeMessage newMessage() throws EmailException
+    {
+        try
+        {
+            final MimeMessage copy = new FrozenMimeMessage(session, new SharedByteArrayInputStream(content), from);
+            copy.setSentDate(new Date());
+            return copy;
+        }
+        catch (final MessagingException e)
+        {
+            throw new EmailException("Copying the prototype failed", e);
+        }
+    }
+
+    /**
+     * Sends a copy with the transport of the email the template was built
+     * from.
+     *
+     * @param copy the copy
+     * @return the Message-ID of the copy
+     * @throws IllegalArgumentException if the copy is null
+     * @throws EmailException sending failed
+     */
+    public String send(final MimeMessage copy) throws EmailException
+    {
+        EmailUtils.notNull(copy, "no copy supplied");
+        try
+        {
+            copy.saveChanges();
+            return mailTransport.send(copy);
+        }
+        catch (final MessagingException e)
+        {
+            throw new EmailException("Sending the prototype copy failed", e);
+        }
+    }
+
+    /**
+     * Gets the mail session of the copies.
+     *
+     * @return the session
+     */
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Gets the transport sending the copies.
+     *
+     * @return the transport
+     */
+    public MailTransport getMailTransport()
+    {
+        return mailTransport;
+    }
+
+    /**
+     * Gets the size of the template.
+     *
+     * @return the size in bytes
+     */
+    public int getSize()
+    {
+        return content.length;
+    }
+}
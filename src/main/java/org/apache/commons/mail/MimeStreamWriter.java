@@ -0,0 +1,1041 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.Header;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.HeaderTokenizer;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+
+/**
+ * Writes a MIME message straight to an {@code OutputStream} or a
+ * {@code WritableByteChannel}: headers, multipart boundaries and the encoded
+ * content of the parts go through a single buffer of fixed size, so the
+ * memory used does not depend on the size of the attachments. Unlike
+ * {@code MimeMessage.writeTo} no {@code MimeMessage} tree has to be built
+ * and saved first, and the content is encoded by a single encoder per part
+ * writing directly into the buffer.
+ * <p>
+ * {@link Email#writeTo(OutputStream)} renders an email with this writer. A
+ * message is written as its headers, followed by exactly one entity, i.e.
+ * a text, a {@link #writePart(Part) part} or a multipart:
+ *
+ * <pre>
+ * MimeStreamWriter writer = new MimeStreamWriter(out);
+ * writer.writeHeader("Subject", MimeUtility.encodeText(subject));
+ * writer.startMultipart("mixed");
+ * writer.startPart();
+ * writer.writeText(text, "plain", null);
+ * writer.startPart();
+ * writer.writePart(attachment);
+ * writer.endMultipart();
+ * writer.flush();
+ * </pre>
+ *
+ * Text is sent as 7bit if it is ASCII with lines of at most 998 bytes,
+ * otherwise quoted-printable, or base64 if it is mostly non-ASCII. Parts
+ * without a Content-Transfer-Encoding header are sent quoted-printable if
+ * they are text and base64 otherwise. The content of a
+ * {@code PreencodedMimeBodyPart}, e.g. from an
+ * {@link EncodedAttachmentCache} or a {@link FileBodyPart}, is copied
+ * verbatim; the content of a file is transferred to a channel without
+ * copying it through the heap.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @since 1.6
+ */
+public final class MimeStreamWriter implements Flushable
+{
+    /** The size of the buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The maximum length of a line of 7bit text without CRLF, see RFC 5322. */
+    private static final int MAX_LINE_LENGTH = 998;
+
+    /** The maximum length of a line of encoded content without CRLF. */
+    private static final int ENCODED_LINE_LENGTH = 76;
+
+    /** The base64 alphabet. */
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    /** The hexadecimal digits of quoted-printable. */
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /** The headers describing the content of a part. */
+    private static final String[] CONTENT_HEADERS = { "Content-Type", "Content-Transfer-Encoding" };
+
+    /** The headers of a message not written for transfer, as by the SMTP transport. */
+    private static final String[] TRANSFER_IGNORED_HEADERS = {
+        "Content-Type", "Content-Transfer-Encoding", "Bcc", "Content-Length" };
+
+    /** The number of boundaries created. */
+    private static final AtomicLong BOUNDARIES = new AtomicLong();
+
+    /** The stream written to, null if writing to a channel. */
+    private final OutputStream out;
+
+    /** The channel written to, null if writing to a stream. */
+    private final WritableByteChannel channel;
+
+    /** The buffer. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /** The buffer wrapped for the channel. */
+    private final ByteBuffer channelBuffer;
+
+    /** The number of bytes in the buffer. */
+    private int count;
+
+    /** The open multiparts, innermost first. */
+    private final Deque<Level> multiparts = new ArrayDeque<>();
+
+    /**
+     * Creates a writer to a stream.
+     *
+     * @param out the stream, not closed by the writer
+     * @throws IllegalArgumentException if the stream is null
+     */
+    public MimeStreamWriter(final OutputStream out)
+    {
+        EmailUtils.notNull(out, "out can not be null");
+        this.out = out;
+        this.channel = null;
+        this.channelBuffer = null;
+    }
+
+    /**
+     * Creates a writer to a channel.
+     *
+     * @param channel the channel in blocking mode, not closed by the writer
+     * @throws IllegalArgumentException if the channel is null
+     */
+    public MimeStreamWriter(final WritableByteChannel channel)
+    {
+        EmailUtils.notNull(channel, "channel can not be null");
+        this.out = null;
+        this.channel = channel;
+        this.channelBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Writes a header, folding long values.
+     *
+     * @param name the name of the header
+     * @param value the value, encoded but not folded yet
+     * @return this writer
+     * @throws IOException writing failed
+     * @throws IllegalArgumentException if the name is empty or the value null
+     */
+    public MimeStreamWriter writeHeader(final String name, final String value) throws IOException
+    {
+        if (EmailUtils.isEmpty(name) || value == null)
+        {
+            throw new IllegalArgumentException("name and value can not be null or empty");
+        }
+        return writeFoldedHeader(name, MimeUtility.fold(name.length() + 2, value));
+    }
+
+    /**
+     * Writes the Content-Type header of a multipart and the end of the
+     * headers; its parts are started with {@link #startPart()}.
+     *
+     * @param subType the subtype, e.g. "mixed" or "alternative"
+     * @return the boundary of the multipart
+     * @throws IOException writing failed
+     */
+    public String startMultipart(final String subType) throws IOException
+    {
+        final String boundary = "----=_Part_" + BOUNDARIES.getAndIncrement() + "_"
+                + System.identityHashCode(this) + "." + System.currentTimeMillis();
+        writeFoldedHeader("Content-Type", "multipart/" + subType + "; \r\n\tboundary=\"" + boundary + "\"");
+        writeCrlf();
+        multiparts.push(new Level(boundary));
+        return boundary;
+    }
+
+    /**
+     * Starts the next part of the innermost multipart. The headers of the
+     * part follow, then its entity.
+     *
+     * @return this writer
+     * @throws IOException writing failed
+     * @throws IllegalStateException if no multipart is open
+     */
+    public MimeStreamWriter startPart() throws IOException
+    {
+        final Level level = multiparts.peek();
+        if (level == null)
+        {
+            throw new IllegalStateException("No multipart is started");
+        }
+        if (level.started)
+        {
+            writeCrlf();
+        }
+        level.started = true;
+        writeAscii("--");
+        writeAscii(level.boundary);
+        writeCrlf();
+        return this;
+    }
+
+    /**
+     * Ends the innermost multipart.
+     *
+     * @return this writer
+     * @throws IOException writing failed or the multipart has no parts
+     * @throws IllegalStateException if no multipart is open
+     */
+    public MimeStreamWriter endMultipart() throws IOException
+    {
+        final Level level = multiparts.poll();
+        if (level == null)
+        {
+            throw new IllegalStateException("No multipart is started");
+        }
+        if (!level.started)
+        {
+            throw new IOException("Empty multipart");
+        }
+        writeCrlf();
+        writeAscii("--");
+        writeAscii(level.boundary);
+        writeAscii("--");
+        writeCrlf();
+        return this;
+    }
+
+    /**
+     * Writes a text entity: its Content-Type and Content-Transfer-Encoding
+     * headers, the end of the headers and the encoded text.
+     *
+     * @param text the text
+     * @param subType the subtype, e.g. "plain" or "html"
+     * @param charset the MIME charset, null for US-ASCII or the default
+     *        MIME charset if the text is not ASCII
+     * @return this writer
+     * @throws IOException writing failed
+     */
+    public MimeStreamWriter writeText(final String text, final String subType, final String charset)
+            throws IOException
+    {
+        final String mimeCharset = charset != null ? charset
+                : isAscii(text) ? "us-ascii" : getDefaultMimeCharset();
+        final byte[] bytes = text.getBytes(Charset.forName(MimeUtility.javaCharset(mimeCharset)));
+        final String encoding = getTextEncoding(bytes);
+        writeHeader("Content-Type", "text/" + subType + "; charset="
+                + MimeUtility.quote(mimeCharset, HeaderTokenizer.MIME));
+        writeHeader("Content-Transfer-Encoding", encoding);
+        writeCrlf();
+        try (OutputStream encoder = encoder(encoding, true))
+        {
+            encoder.write(bytes);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a part: its headers and its content, a multipart content is
+     * written with its parts. The content is encoded as it is read from the
+     * data handler of the part, so attachments are streamed.
+     *
+     * @param part the part, e.g. a {@code MimeBodyPart}
+     * @return this writer
+     * @throws IOException writing or reading the content failed
+     * @throws MessagingException the part is invalid
+     */
+    public MimeStreamWriter writePart(final Part part) throws IOException, MessagingException
+    {
+        return writeEntity(part, CONTENT_HEADERS);
+    }
+
+    /**
+     * Writes a message for transfer: its headers except Bcc and
+     * Content-Length, as the SMTP transport does, and its content as by
+     * {@link #writePart(Part)}.
+     *
+     * @param message the message
+     * @return this writer
+     * @throws IOException writing or reading the content failed
+     * @throws MessagingException the message is invalid
+     */
+    public MimeStreamWriter writeMessage(final MimeMessage message) throws IOException, MessagingException
+    {
+        return writeEntity(message, TRANSFER_IGNORED_HEADERS);
+    }
+
+    /**
+     * Writes a part with its headers except the ignored ones, which include
+     * the content headers.
+     *
+     * @param part the part
+     * @param ignoredHeaders the headers not written
+     * @return this writer
+     * @throws IOException writing or reading the content failed
+     * @throws MessagingException the part is invalid
+     */
+    private MimeStreamWriter writeEntity(final Part part, final String[] ignoredHeaders)
+            throws IOException, MessagingException
+    {
+        final Enumeration<?> headers = part instanceof MimePart
+                ? ((MimePart) part).getNonMatchingHeaderLines(ignoredHeaders)
+                : part.getNonMatchingHeaders(ignoredHeaders);
+        while (headers.hasMoreElements())
+        {
+            final Object header = headers.nextElement();
+            if (header instanceof String)
+            {
+                writeString((String) header);
+            }
+            else
+            {
+                final Header pair = (Header) header;
+                writeFoldedHeader(pair.getName(), pair.getValue());
+            }
+            writeCrlf();
+        }
+
+        final DataHandler dataHandler = part.getDataHandler();
+        final String[] typeHeader = part.getHeader(CONTENT_HEADERS[0]);
+        final ContentType type = new ContentType(typeHeader != null ? typeHeader[0] : dataHandler.getContentType());
+        if (type.match("multipart/*"))
+        {
+            final Object content = dataHandler.getContent();
+            if (content instanceof Multipart)
+            {
+                return writeMultipart((Multipart) content);
+            }
+        }
+
+        final String fileName = part.getFileName();
+        if (fileName != null && type.getParameter("name") == null)
+        {
+            type.setParameter("name", fileName);
+        }
+        final String[] encodingHeader = part.getHeader(CONTENT_HEADERS[1]);
+        final boolean preencoded = part instanceof PreencodedMimeBodyPart;
+        final String encoding;
+        if (preencoded)
+        {
+            encoding = ((PreencodedMimeBodyPart) part).getEncoding();
+        }
+        else if (encodingHeader != null)
+        {
+            encoding = encodingHeader[0].trim().toLowerCase(Locale.ROOT);
+        }
+        else if (type.match("text/*"))
+        {
+            encoding = "quoted-printable";
+        }
+        else if (type.match("message/*"))
+        {
+            encoding = "8bit";
+        }
+        else
+        {
+            encoding = "base64";
+        }
+
+        writeFoldedHeader(CONTENT_HEADERS[0], type.toString());
+        writeHeader(CONTENT_HEADERS[1], encoding);
+        writeCrlf();
+        if (preencoded && dataHandler.getDataSource() instanceof FileDataSource)
+        {
+            return writeFile(((FileDataSource) dataHandler.getDataSource()).getFile());
+        }
+        try (OutputStream encoder = preencoded ? new Encoder() : encoder(encoding, type.match("text/*")))
+        {
+            dataHandler.writeTo(encoder);
+        }
+        return this;
+    }
+
+    /**
+     * Copies the encoded content of a file as is. A channel is written by
+     * {@code FileChannel.transferTo}, which lets the operating system copy
+     * the file to a socket or another file without passing it through the
+     * heap.
+     *
+     * @param file the file
+     * @return this writer
+     * @throws IOException reading the file or writing failed
+     */
+    private MimeStreamWriter writeFile(final File file) throws IOException
+    {
+        drain();
+        if (channel == null)
+        {
+            Files.copy(file.toPath(), out);
+            return this;
+        }
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            final long size = source.size();
+            long position = 0;
+            while (position < size)
+            {
+                position += source.transferTo(position, size - position, channel);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes an entity rendered before by {@link #writePart(Part)} as is,
+     * e.g. a part shared by many merged messages. A
+     * {@link SegmentedOutputStream} refers to the entity instead of copying it.
+     *
+     * @param entity the headers and the encoded content of the entity
+     * @return this writer
+     * @throws IOException writing failed
+     */
+    MimeStreamWriter writeRendered(final byte[] entity) throws IOException
+    {
+        if (out instanceof SegmentedOutputStream)
+        {
+            drain();
+            ((SegmentedOutputStream) out).writeShared(entity);
+            return this;
+        }
+        try (OutputStream encoder = new Encoder())
+        {
+            encoder.write(entity);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a multipart entity with all its parts.
+     *
+     * @param multipart the multipart, e.g. a {@code MimeMultipart}
+     * @return this writer
+     * @throws IOException writing or reading the content failed
+     * @throws MessagingException a part is invalid
+     */
+    public MimeStreamWriter writeMultipart(final Multipart multipart) throws IOException, MessagingException
+    {
+        startMultipart(new ContentType(multipart.getContentType()).getSubType());
+        for (int i = 0; i < multipart.getCount(); i++)
+        {
+            startPart();
+            writePart(multipart.getBodyPart(i));
+        }
+        return endMultipart();
+    }
+
+    /**
+     * Writes the buffered bytes to the stream or channel and flushes the
+     * stream.
+     *
+     * @throws IOException writing failed
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        drain();
+        if (out != null)
+        {
+            out.flush();
+        }
+    }
+
+    /**
+     * Gets the transfer encoding of a text: 7bit if it is ASCII with short
+     * lines, base64 if it is mostly not ASCII, otherwise quoted-printable.
+     *
+     * @param bytes the encoded text
+     * @return the transfer encoding
+     */
+    static String getTextEncoding(final byte[] bytes)
+    {
+        int ascii = 0;
+        int nonAscii = 0;
+        int lineLength = 0;
+        boolean longLines = false;
+        for (final byte b : bytes)
+        {
+            final int c = b & 0xff;
+            if (c == '\r' || c == '\n')
+            {
+                lineLength = 0;
+            }
+            else if (++lineLength > MAX_LINE_LENGTH)
+            {
+                longLines = true;
+            }
+            if (c >= 0x7f || c < 0x20 && c != '\r' && c != '\n' && c != '\t')
+            {
+                nonAscii++;
+            }
+            else
+            {
+                ascii++;
+            }
+        }
+        if (nonAscii == 0)
+        {
+            return longLines ? "quoted-printable" : "7bit";
+        }
+        return nonAscii > ascii ? "base64" : "quoted-printable";
+    }
+
+    /**
+     * Gets the MIME charset JavaMail uses for text without a charset, i.e.
+     * the "mail.mime.charset" system property or the default charset.
+     *
+     * @return the MIME charset
+     */
+    private static String getDefaultMimeCharset()
+    {
+        final String charset = System.getProperty("mail.mime.charset");
+        return EmailUtils.isNotEmpty(charset) ? charset : MimeUtility.mimeCharset(MimeUtility.getDefaultJavaCharset());
+    }
+
+    /**
+     * Is the text ASCII only?
+     *
+     * @param text the text
+     * @return true if all characters are ASCII
+     */
+    private static boolean isAscii(final String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            if (text.charAt(i) >= 0x80)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the encoder of a transfer encoding writing into the buffer.
+     * Closing it finishes the encoding but does not close the writer.
+     *
+     * @param encoding the transfer encoding
+     * @param text whether line breaks are to be kept as CRLF
+     * @return the encoder
+     * @throws IOException the encoding is not supported
+     */
+    private OutputStream encoder(final String encoding, final boolean text) throws IOException
+    {
+        switch (encoding)
+        {
+            case "base64":
+                return new Base64Encoder();
+            case "quoted-printable":
+                return new QuotedPrintableEncoder(text);
+            case "7bit":
+            case "8bit":
+                return new LineEncoder();
+            case "binary":
+                return new Encoder();
+            default:
+                try
+                {
+                    // e.g. uuencode
+                    return MimeUtility.encode(new Encoder(), encoding);
+                }
+                catch (final MessagingException e)
+                {
+                    throw new IOException("Unsupported transfer encoding " + encoding, e);
+                }
+        }
+    }
+
+    /**
+     * Writes a header whose value is folded already.
+     *
+     * @param name the name
+     * @param value the folded value
+     * @return this writer
+     * @throws IOException writing failed
+     */
+    private MimeStreamWriter writeFoldedHeader(final String name, final String value) throws IOException
+    {
+        writeAscii(name);
+        writeAscii(": ");
+        writeString(value);
+        writeCrlf();
+        return this;
+    }
+
+    /**
+     * Writes a string of ASCII characters.
+     *
+     * @param text the text
+     * @throws IOException writing failed
+     */
+    private void writeAscii(final String text) throws IOException
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            put(text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a string, non-ASCII characters as UTF-8.
+     *
+     * @param text the text
+     * @throws IOException writing failed
+     */
+    private void writeString(final String text) throws IOException
+    {
+        if (isAscii(text))
+        {
+            writeAscii(text);
+        }
+        else
+        {
+            for (final byte b : text.getBytes(StandardCharsets.UTF_8))
+            {
+                put(b);
+            }
+        }
+    }
+
+    /**
+     * Writes a line break.
+     *
+     * @throws IOException writing failed
+     */
+    private void writeCrlf() throws IOException
+    {
+        put('\r');
+        put('\n');
+    }
+
+    /**
+     * Adds a byte to the buffer, draining it if full.
+     *
+     * @param b the byte
+     * @throws IOException writing failed
+     */
+    private void put(final int b) throws IOException
+    {
+        if (count == buffer.length)
+        {
+            drain();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    /**
+     * Makes room for the given number of bytes in the buffer.
+     *
+     * @param length the number of bytes
+     * @throws IOException writing failed
+     */
+    private void require(final int length) throws IOException
+    {
+        if (count + length > buffer.length)
+        {
+            drain();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the stream or channel.
+     *
+     * @throws IOException writing failed
+     */
+    private void drain() throws IOException
+    {
+        if (count == 0)
+        {
+            return;
+        }
+        if (out != null)
+        {
+            out.write(buffer, 0, count);
+        }
+        else
+        {
+            ((Buffer) channelBuffer).clear();
+            ((Buffer) channelBuffer).limit(count);
+            while (channelBuffer.hasRemaining())
+            {
+                channel.write(channelBuffer);
+            }
+        }
+        count = 0;
+    }
+
+    /**
+     * An open multipart.
+     */
+    private static final class Level
+    {
+        /** The boundary. */
+        private final String boundary;
+
+        /** Was a part started? */
+        private boolean started;
+
+        /**
+         * Constructor.
+         *
+         * @param boundary the boundary
+         */
+        private Level(final String boundary)
+        {
+            this.boundary = boundary;
+        }
+    }
+
+    /**
+     * Writes the bytes unchanged into the buffer; the base of the encoders.
+     */
+    private class Encoder extends OutputStream
+    {
+        @Override
+        public void write(final int b) throws IOException
+        {
+            put(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0)
+            {
+                if (count == buffer.length)
+                {
+                    drain();
+                }
+                final int chunk = Math.min(remaining, buffer.length - count);
+                System.arraycopy(b, offset, buffer, count, chunk);
+                count += chunk;
+                offset += chunk;
+                remaining -= chunk;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            // finishes the encoding, the writer stays open
+        }
+    }
+
+    /**
+     * Writes line breaks as CRLF, for 7bit and 8bit content.
+     */
+    private final class LineEncoder extends Encoder
+    {
+        /** Was the last byte a CR? */
+        private boolean lastCr;
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            if (b == '\r')
+            {
+                writeCrlf();
+                lastCr = true;
+            }
+            else if (b == '\n')
+            {
+                if (!lastCr)
+                {
+                    writeCrlf();
+                }
+                lastCr = false;
+            }
+            else
+            {
+                put(b);
+                lastCr = false;
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                write(b[i]);
+            }
+        }
+    }
+
+    /**
+     * Encodes base64 in lines of 76 characters.
+     */
+    private final class Base64Encoder extends Encoder
+    {
+        /** The bytes of an incomplete group of three. */
+        private final byte[] pending = new byte[3];
+
+        /** The number of pending bytes. */
+        private int pendingCount;
+
+        /** The length of the current line. */
+        private int lineLength;
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            pending[pendingCount++] = (byte) b;
+            if (pendingCount == 3)
+            {
+                encode(pending[0], pending[1], pending[2]);
+                pendingCount = 0;
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            int i = off;
+            final int end = off + len;
+            while (pendingCount != 0 && i < end)
+            {
+                write(b[i++]);
+            }
+            final int groups = end - (end - i) % 3;
+            while (i < groups)
+            {
+                encode(b[i], b[i + 1], b[i + 2]);
+                i += 3;
+            }
+            while (i < end)
+            {
+                pending[pendingCount++] = b[i++];
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (pendingCount > 0)
+            {
+                startGroup();
+                final int b0 = pending[0] & 0xff;
+                final int b1 = pendingCount > 1 ? pending[1] & 0xff : 0;
+                buffer[count++] = BASE64[b0 >>> 2];
+                buffer[count++] = BASE64[(b0 << 4 | b1 >>> 4) & 0x3f];
+                buffer[count++] = pendingCount > 1 ? BASE64[b1 << 2 & 0x3f] : (byte) '=';
+                buffer[count++] = '=';
+                pendingCount = 0;
+            }
+        }
+
+        /**
+         * Encodes a group of three bytes.
+         *
+         * @param b0 the first byte
+         * @param b1 the second byte
+         * @param b2 the third byte
+         * @throws IOException writing failed
+         */
+        private void encode(final byte b0, final byte b1, final byte b2) throws IOException
+        {
+            startGroup();
+            final int bits = (b0 & 0xff) << 16 | (b1 & 0xff) << 8 | b2 & 0xff;
+            buffer[count++] = BASE64[bits >>> 18];
+            buffer[count++] = BASE64[bits >>> 12 & 0x3f];
+            buffer[count++] = BASE64[bits >>> 6 & 0x3f];
+            buffer[count++] = BASE64[bits & 0x3f];
+        }
+
+        /**
+         * Makes room for a group of four characters, starting a new line if
+         * the current one is full.
+         *
+         * @throws IOException writing failed
+         */
+        private void startGroup() throws IOException
+        {
+            require(6);
+            if (lineLength == ENCODED_LINE_LENGTH)
+            {
+                buffer[count++] = '\r';
+                buffer[count++] = '\n';
+                lineLength = 0;
+            }
+            lineLength += 4;
+        }
+    }
+
+    /**
+     * Encodes quoted-printable in lines of at most 76 characters.
+     */
+    private final class QuotedPrintableEncoder extends Encoder
+    {
+        /** Keep line breaks as CRLF instead of encoding them? */
+        private final boolean text;
+
+        /** The length of the current line. */
+        private int lineLength;
+
+        /** A space or tab not written yet, it is encoded at the end of a line; -1 if none. */
+        private int pendingSpace = -1;
+
+        /** Was the last byte a CR? */
+        private boolean lastCr;
+
+        /**
+         * Constructor.
+         *
+         * @param text whether line breaks are to be kept as CRLF
+         */
+        private QuotedPrintableEncoder(final boolean text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            final int c = b & 0xff;
+            if (text && (c == '\r' || c == '\n'))
+            {
+                if (c == '\n' && lastCr)
+                {
+                    lastCr = false;
+                    return;
+                }
+                lastCr = c == '\r';
+                if (pendingSpace >= 0)
+                {
+                    encoded(pendingSpace);
+                    pendingSpace = -1;
+                }
+                writeCrlf();
+                lineLength = 0;
+                return;
+            }
+            lastCr = false;
+            if (pendingSpace >= 0)
+            {
+                literal(pendingSpace);
+                pendingSpace = -1;
+            }
+            if (c == ' ' || c == '\t')
+            {
+                pendingSpace = c;
+            }
+            else if (c >= 33 && c <= 126 && c != '=')
+            {
+                literal(c);
+            }
+            else
+            {
+                encoded(c);
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (pendingSpace >= 0)
+            {
+                encoded(pendingSpace);
+                pendingSpace = -1;
+            }
+        }
+
+        /**
+         * Writes a character as is, breaking the line if it is full.
+         *
+         * @param c the character
+         * @throws IOException writing failed
+         */
+        private void literal(final int c) throws IOException
+        {
+            require(4);
+            if (lineLength + 1 >= ENCODED_LINE_LENGTH)
+            {
+                softBreak();
+            }
+            buffer[count++] = (byte) c;
+            lineLength++;
+        }
+
+        /**
+         * Writes a byte as "=XX", breaking the line if it is full.
+         *
+         * @param c the byte
+         * @throws IOException writing failed
+         */
+        private void encoded(final int c) throws IOException
+        {
+            require(6);
+            if (lineLength + 3 >= ENCODED_LINE_LENGTH)
+            {
+                softBreak();
+            }
+            buffer[count++] = '=';
+            buffer[count++] = HEX[c >>> 4];
+            buffer[count++] = HEX[c & 0xf];
+            lineLength += 3;
+        }
+
+        /**
+         * Writes a soft line break, the buffer has room for it.
+         */
+        private void softBreak()
+        {
+            buffer[count++] = '=';
+            buffer[count++] = '\r';
+            buffer[count++] = '\n';
+            lineLength = 0;
+        }
+    }
+}
@@ -28,10 +28,12 @@ import javax.activation.FileDataSource;
 import javax.activation.URLDataSource;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimePart;
 import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
 
 /**
  * A multipart email.
@@ -62,6 +64,9 @@ public class MultiPartEmail extends Email
     /** Indicates if attachments have been added to the message. */
     private boolean boolHasAttachments;
 
+    /** The cache of encoded attachments, null to encode them on sending. */
+    private EncodedAttachmentCache attachmentCache;
+
     /**
      * Set the MIME subtype of the email.
      *
@@ -258,6 +263,50 @@ public class MultiPartEmail extends Email
         }
     }
 
+    /**
+     * Writes the parts of the email as a multipart of its subtype, streaming
+     * the attachments.
+     *
+     * @param writer the writer
+     * @throws IOException writing the content failed
+     * @throws MessagingException a part is invalid
+     * @throws EmailException the content is invalid
+     * @since 1.6
+     */
+    @Override
+    protected void writeContent(final MimeStreamWriter writer) throws IOException, MessagingException, EmailException
+    {
+        if (!initialized)
+        {
+            super.writeContent(writer);
+            return;
+        }
+        final MimeMultipart parts = getContainer();
+        writer.startMultipart(subType != null ? subType : new ContentType(parts.getContentType()).getSubType());
+        writeParts(writer, parts);
+        writer.endMultipart();
+    }
+
+    /**
+     * Writes the parts of a multipart into the current multipart of the
+     * writer.
+     *
+     * @param writer the writer
+     * @param parts the parts
+     * @throws IOException writing the parts failed
+     * @throws MessagingException a part is invalid
+     * @since 1.6
+     */
+    protected static void writeParts(final MimeStreamWriter writer, final MimeMultipart parts)
+        throws IOException, MessagingException
+    {
+        for (int i = 0; i < parts.getCount(); i++)
+        {
+            writer.startPart();
+            writer.writePart(parts.getBodyPart(i));
+        }
+    }
+
     /**
      * Attach a file.
      *
@@ -460,13 +509,24 @@ public class MultiPartEmail extends Email
         {
             name = ds.getName();
         }
-        final BodyPart bodyPart = createBodyPart();
+        final BodyPart bodyPart = attachmentCache != null
+                ? new PreencodedMimeBodyPart(EncodedAttachmentCache.ENCODING)
+                : createBodyPart();
         try
         {
             bodyPart.setDisposition(disposition);
             bodyPart.setFileName(MimeUtility.encodeText(name));
             bodyPart.setDescription(description);
-            bodyPart.setDataHandler(new DataHandler(ds));
+            if (attachmentCache != null)
+            {
+                bodyPart.setDataHandler(new DataHandler(attachmentCache.encode(ds)));
+                // spares JavaMail scanning the encoded content for its encoding
+                bodyPart.setHeader("Content-Transfer-Encoding", EncodedAttachmentCache.ENCODING);
+            }
+            else
+            {
+                bodyPart.setDataHandler(new DataHandler(ds));
+            }
 
             getContainer().addBodyPart(bodyPart);
         }
@@ -475,11 +535,70 @@ public class MultiPartEmail extends Email
             // in case the file name could not be encoded
             throw new EmailException(me);
         }
+        catch (final IOException e)
+        {
+            throw new EmailException("Cannot encode attachment \"" + name + "\"", e);
+        }
         setBoolHasAttachments(true);
 
         return this;
     }
 
+    /**
+     * Attaches a file whose transfer encoded content is a file, written
+     * without encoding it or copying it through the heap.
+     *
+     * @param part the part
+     * @return this email
+     * @throws EmailException the part could not be added
+     * @throws IllegalArgumentException if the part is null
+     * @since 1.6
+     */
+    public MultiPartEmail attach(final FileBodyPart part) throws EmailException
+    {
+        EmailUtils.notNull(part, "no part supplied");
+        try
+        {
+            getContainer().addBodyPart(part);
+        }
+        catch (final MessagingException me)
+        {
+            throw new EmailException(me);
+        }
+        setBoolHasAttachments(true);
+
+        return this;
+    }
+
+    /**
+     * Sets the cache of encoded attachments. The content of an attachment
+     * attached afterwards is taken from the cache, encoded once and shared
+     * with the other emails using the cache, and copied verbatim when the
+     * email is sent or written.
+     *
+     * @param attachmentCache the cache, null to encode the attachments when
+     *        the email is sent
+     * @return this email
+     * @since 1.6
+     */
+    public MultiPartEmail setAttachmentCache(final EncodedAttachmentCache attachmentCache)
+    {
+        this.attachmentCache = attachmentCache;
+        return this;
+    }
+
+    /**
+     * Gets the cache of encoded attachments.
+     *
+     * @return the cache, null if the attachments are encoded when the email
+     *         is sent
+     * @since 1.6
+     */
+    public EncodedAttachmentCache getAttachmentCache()
+    {
+        return attachmentCache;
+    }
+
     /**
      * Gets first body part of the message.
      *
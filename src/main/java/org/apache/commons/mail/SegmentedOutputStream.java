@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * Collects the bytes of a message as segments: the bytes written are copied
+ * into segments of the message, while {@link #writeShared(byte[])} adds a
+ * reference to an array shared with other messages, e.g. an attachment of a
+ * {@link MergeTemplate} encoded once. {@link #toInputStream()} reads the
+ * segments in order without joining them.
+ *
+ * @since 1.6
+ */
+final class SegmentedOutputStream extends OutputStream
+{
+    /** The size of the first own segment. */
+    private static final int INITIAL_SIZE = 1024;
+
+    /** The complete segments. */
+    private final List<byte[]> segments = new ArrayList<>();
+
+    /** The used length of each complete segment. */
+    private final List<Integer> lengths = new ArrayList<>();
+
+    /** The own segment being written, null if none. */
+    private byte[] current;
+
+    /** The number of bytes in the own segment being written. */
+    private int count;
+
+    /**
+     * Creates a stream.
+     *
+     * @param size the expected number of own bytes
+     */
+    SegmentedOutputStream(final int size)
+    {
+        current = new byte[Math.max(size, INITIAL_SIZE)];
+    }
+
+    @Override
+    public void write(final int b)
+    {
+        ensureCapacity(1);
+        current[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+    {
+        ensureCapacity(len);
+        System.arraycopy(b, off, current, count, len);
+        count += len;
+    }
+
+    /**
+     * Adds an array shared with other messages without copying it. The
+     * array must not be changed afterwards.
+     *
+     * @param shared the bytes
+     */
+    void writeShared(final byte[] shared)
+    {
+        finishSegment();
+        segments.add(shared);
+        lengths.add(shared.length);
+    }
+
+    /**
+     * Reads the bytes written so far.
+     *
+     * @return a stream sharing the segments
+     */
+    InputStream toInputStream()
+    {
+        finishSegment();
+        final byte[][] array = segments.toArray(new byte[0][]);
+        final long[] starts = new long[array.length + 1];
+        for (int i = 0; i < array.length; i++)
+        {
+            starts[i + 1] = starts[i] + lengths.get(i);
+        }
+        return new SegmentedInputStream(array, starts, 0, starts[array.length]);
+    }
+
+    /**
+     * Completes the own segment being written, if any.
+     */
+    private void finishSegment()
+    {
+        if (current != null && count > 0)
+        {
+            segments.add(current);
+            lengths.add(count);
+        }
+        current = null;
+        count = 0;
+    }
+
+    /**
+     * Makes room in the own segment, starting a new one if necessary.
+     *
+     * @param length the number of bytes to write
+     */
+    private void ensureCapacity(final int length)
+    {
+        if (current == null)
+        {
+            current = new byte[Math.max(length, INITIAL_SIZE)];
+        }
+        else if (count + length > current.length)
+        {
+            current = Arrays.copyOf(current, Math.max(count + length, 2 * current.length));
+        }
+    }
+
+    /**
+     * Reads a range of the segments, shared by the streams created with
+     * {@link #newStream(long, long)}.
+     */
+    private static final class SegmentedInputStream extends InputStream implements SharedInputStream
+    {
+        /** The segments. */
+        private final byte[][] segments;
+
+        /** The offset of each segment and the total length at the end. */
+        private final long[] starts;
+
+        /** The offset of the first byte of this stream. */
+        private final long start;
+
+        /** The offset after the last byte of this stream. */
+        private final long end;
+
+        /** The offset of the next byte. */
+        private long position;
+
+        /** The marked offset. */
+        private long mark;
+
+        /**
+         * Constructor.
+         *
+         * @param segments the segments
+         * @param starts the offset of each segment and the total length
+         * @param start the offset of the first byte
+         * @param end the offset after the last byte
+         */
+        private SegmentedInputStream(final byte[][] segments, final long[] starts, final long start, final long end)
+        {
+            this.segments = segments;
+            this.starts = starts;
+            this.start = start;
+            this.end = end;
+            this.position = start;
+            this.mark = start;
+        }
+
+        @Override
+        public int read()
+        {
+            if (position >= end)
+            {
+                return -1;
+            }
+            final int segment = segmentOf(position);
+            return segments[segment][(int) (position++ - starts[segment])] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (position >= end)
+            {
+                return -1;
+            }
+            int read = 0;
+            while (read < len && position < end)
+            {
+                final int segment = segmentOf(position);
+                final int offset = (int) (position - starts[segment]);
+                final int length = (int) Math.min(len - read, Math.min(starts[segment + 1], end) - position);
+                System.arraycopy(segments[segment], offset, b, off + read, length);
+                read += length;
+                position += length;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n)
+        {
+            final long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public void mark(final int readLimit)
+        {
+            mark = position;
+        }
+
+        @Override
+        public void reset()
+        {
+            position = mark;
+        }
+
+        @Override
+        public long getPosition()
+        {
+            return position - start;
+        }
+
+        @Override
+        public InputStream newStream(final long from, final long to)
+        {
+            if (from < 0)
+            {
+                throw new IllegalArgumentException("start < 0");
+            }
+            return new SegmentedInputStream(segments, starts, start + from, to == -1 ? end : start + to);
+        }
+
+        /**
+         * Finds the segment holding a byte.
+         *
+         * @param offset the offset of the byte
+         * @return the index of the segment
+         */
+        private int segmentOf(final long offset)
+        {
+            final int found = Arrays.binarySearch(starts, offset);
+            int segment = found >= 0 ? found : -found - 2;
+            while (starts[segment + 1] <= offset)
+            {
+                // skip empty segments, they start where the next one starts
+                segment++;
+            }
+            return segment;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The outcome of sending a single message, i.e. either the message id
+ * of the delivered message or the exception that prevented the delivery,
+ * along with the number of attempts made and whether a failure is transient.
+ * <p>
+ * Instances are immutable.
+ *
+ * @since 1.6
+ */
+public final class SendResult
+{
+    /** The message, may be null if building it failed. */
+    private final MimeMessage message;
+
+    /** The message id of the delivered message. */
+    private final String messageId;
+
+    /** The cause of the failed delivery. */
+    private final EmailException exception;
+
+    /** The number of attempts made. */
+    private final int attempts;
+
+    /** Could the failed delivery succeed later? */
+    private final boolean retryable;
+
+    /**
+     * Constructor.
+     *
+     * @param message the message
+     * @param messageId the message id or null
+     * @param exception the exception or null
+     * @param attempts the number of attempts made
+     * @param retryable whether the failure is transient
+     */
+    private SendResult(final MimeMessage message, final String messageId, final EmailException exception,
+            final int attempts, final boolean retryable)
+    {
+        this.message = message;
+        this.messageId = messageId;
+        this.exception = exception;
+        this.attempts = attempts;
+        this.retryable = retryable;
+    }
+
+    /**
+     * Creates the result of a delivered message.
+     *
+     * @param message the message
+     * @param messageId the message id
+     * @return the result
+     */
+    public static SendResult success(final MimeMessage message, final String messageId)
+    {
+        return success(message, messageId, 1);
+    }
+
+    /**
+     * Creates the result of a message delivered after several attempts.
+     *
+     * @param message the message
+     * @param messageId the message id
+     * @param attempts the number of attempts made
+     * @return the result
+     */
+    public static SendResult success(final MimeMessage message, final String messageId, final int attempts)
+    {
+        return new SendResult(message, messageId, null, attempts, false);
+    }
+
+    /**
+     * Creates the result of a failed delivery.
+     *
+     * @param message the message, may be null
+     * @param exception the cause of the failure
+     * @return the result
+     * @throws IllegalArgumentException if the exception is null
+     */
+    public static SendResult failure(final MimeMessage message, final EmailException exception)
+    {
+        return failure(message, exception, 1, false);
+    }
+
+    /**
+     * Creates the result of a failed delivery after several attempts.
+     *
+     * @param message the message, may be null
+     * @param exception the cause of the last failure
+     * @param attempts the number of attempts made
+     * @param retryable whether the last failure is transient, i.e. sending
+     *        the message later may succeed
+     * @return the result
+     * @throws IllegalArgumentException if the exception is null
+     */
+    public static SendResult failure(final MimeMessage message, final EmailException exception,
+            final int attempts, final boolean retryable)
+    {
+        EmailUtils.notNull(exception, "exception can not be null");
+        return new SendResult(message, null, exception, attempts, retryable);
+    }
+
+    /**
+     * Was the message delivered?
+     *
+     * @return true if the message was delivered
+     */
+    public boolean isSuccess()
+    {
+        return exception == null;
+    }
+
+    /**
+     * Gets the message.
+     *
+     * @return the message or null if it could not be built
+     */
+    public MimeMessage getMimeMessage()
+    {
+        return message;
+    }
+
+    /**
+     * Gets the message id of the delivered message.
+     *
+     * @return the message id or null if the delivery failed
+     */
+    public String getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * Gets the cause of the failed delivery.
+     *
+     * @return the exception or null if the message was delivered
+     */
+    public EmailException getException()
+    {
+        return exception;
+    }
+
+    /**
+     * Gets the number of attempts made to deliver the message.
+     *
+     * @return the number of attempts, at least one
+     */
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * Is the failure transient, i.e. may sending the message later succeed?
+     *
+     * @return true if the delivery failed with a transient failure
+     */
+    public boolean isRetryable()
+    {
+        return retryable;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        final String outcome = isSuccess() ? messageId : exception + (retryable ? ", retryable" : "");
+        return "SendResult[" + outcome + (attempts > 1 ? ", attempts=" + attempts : "") + "]";
+    }
+}
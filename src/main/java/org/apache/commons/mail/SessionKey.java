@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Properties;
+
+import javax.mail.Authenticator;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+
+/**
+ * The canonical settings of an {@link Email} feeding its mail session. Keys
+ * with equal settings create equivalent sessions, so a {@link SessionRegistry}
+ * can share one session among them.
+ * <p>
+ * {@link DefaultAuthenticator}s are equal if their user names and passwords
+ * are; keys with any other authenticator are compared by identity of the
+ * authenticator and are not {@link #isShareable() shareable}.
+ *
+ * @since 1.6
+ */
+final class SessionKey
+{
+    /** The host name of the SMTP server. */
+    private final String hostName;
+
+    /** The SMTP port. */
+    private final String smtpPort;
+
+    /** The SSL port, null if SSL on connect is disabled. */
+    private final String sslSmtpPort;
+
+    /** Is debugging enabled? */
+    private final boolean debug;
+
+    /** Is STARTTLS enabled? */
+    private final boolean startTlsEnabled;
+
+    /** Is STARTTLS required? */
+    private final boolean startTlsRequired;
+
+    /** Is SSL on connect enabled? */
+    private final boolean sslOnConnect;
+
+    /** Is the server identity checked? */
+    private final boolean sslCheckServerIdentity;
+
+    /** Are messages sent to the valid recipients only? */
+    private final boolean sendPartial;
+
+    /** The bounce address, may be null. */
+    private final String bounceAddress;
+
+    /** The socket I/O timeout, 0 for none. */
+    private final int socketTimeout;
+
+    /** The socket connection timeout, 0 for none. */
+    private final int socketConnectionTimeout;
+
+    /** The authenticator passed to the session. */
+    private final Authenticator authenticator;
+
+    /** The identity of the authenticator used for equality. */
+    private final Object authenticatorKey;
+
+    /** The cached hash code. */
+    private final int hashCode;
+
+    /**
+     * Creates the key of an email.
+     *
+     * @param email the email, its host name must be resolved
+     */
+    SessionKey(final Email email)
+    {
+        this.hostName = email.hostName;
+        this.smtpPort = email.smtpPort;
+        this.debug = email.debug;
+        this.startTlsEnabled = email.isStartTLSEnabled();
+        this.startTlsRequired = email.isStartTLSRequired();
+        this.sslOnConnect = email.isSSLOnConnect();
+        this.sslSmtpPort = sslOnConnect ? email.sslSmtpPort : null;
+        this.sslCheckServerIdentity = (sslOnConnect || startTlsEnabled) && email.isSSLCheckServerIdentity();
+        this.sendPartial = email.isSendPartial();
+        this.bounceAddress = email.bounceAddress;
+        this.socketTimeout = Math.max(email.socketTimeout, 0);
+        this.socketConnectionTimeout = Math.max(email.socketConnectionTimeout, 0);
+        this.authenticator = email.authenticator;
+        this.authenticatorKey = authenticatorKey(authenticator);
+        this.hashCode = Objects.hash(hostName, smtpPort, sslSmtpPort, debug, startTlsEnabled, startTlsRequired,
+                sslOnConnect, sslCheckServerIdentity, sendPartial, bounceAddress, socketTimeout,
+                socketConnectionTimeout, authenticatorKey);
+    }
+
+    /**
+     * Gets the value identifying an authenticator.
+     *
+     * @param authenticator the authenticator, may be null
+     * @return the user name and password of a {@code DefaultAuthenticator},
+     *         otherwise the authenticator itself
+     */
+    private static Object authenticatorKey(final Authenticator authenticator)
+    {
+        if (authenticator != null && authenticator.getClass() == DefaultAuthenticator.class)
+        {
+            final PasswordAuthentication authentication =
+                    ((DefaultAuthenticator) authenticator).getPasswordAuthentication();
+            return Arrays.asList(authentication.getUserName(), authentication.getPassword());
+        }
+        return authenticator;
+    }
+
+    /**
+     * Can a session for these settings be shared, i.e. is there no
+     * authenticator or one compared by its credentials?
+     *
+     * @return true if the session can be cached
+     */
+    boolean isShareable()
+    {
+        return authenticator == null || authenticatorKey != authenticator;
+    }
+
+    /**
+     * Creates a mail session for these settings.
+     *
+     * @param properties the properties to start with, e.g. the system properties;
+     *        they are modified and passed to the session
+     * @return the mail session
+     */
+    Session createSession(final Properties properties)
+    {
+        properties.setProperty(EmailConstants.MAIL_TRANSPORT_PROTOCOL, EmailConstants.SMTP);
+        properties.setProperty(EmailConstants.MAIL_PORT, smtpPort);
+        properties.setProperty(EmailConstants.MAIL_HOST, hostName);
+        properties.setProperty(EmailConstants.MAIL_DEBUG, String.valueOf(debug));
+
+        properties.setProperty(EmailConstants.MAIL_TRANSPORT_STARTTLS_ENABLE,
+                startTlsEnabled ? "true" : "false");
+        properties.setProperty(EmailConstants.MAIL_TRANSPORT_STARTTLS_REQUIRED,
+                startTlsRequired ? "true" : "false");
+
+        properties.setProperty(EmailConstants.MAIL_SMTP_SEND_PARTIAL,
+                sendPartial ? "true" : "false");
+        properties.setProperty(EmailConstants.MAIL_SMTPS_SEND_PARTIAL,
+                sendPartial ? "true" : "false");
+
+        if (authenticator != null)
+        {
+            properties.setProperty(EmailConstants.MAIL_SMTP_AUTH, "true");
+        }
+
+        if (sslOnConnect)
+        {
+            properties.setProperty(EmailConstants.MAIL_PORT, sslSmtpPort);
+            properties.setProperty(EmailConstants.MAIL_SMTP_SOCKET_FACTORY_PORT, sslSmtpPort);
+            properties.setProperty(EmailConstants.MAIL_SMTP_SOCKET_FACTORY_CLASS, "javax.net.ssl.SSLSocketFactory");
+            properties.setProperty(EmailConstants.MAIL_SMTP_SOCKET_FACTORY_FALLBACK, "false");
+        }
+
+        if (sslCheckServerIdentity)
+        {
+            properties.setProperty(EmailConstants.MAIL_SMTP_SSL_CHECKSERVERIDENTITY, "true");
+        }
+
+        if (bounceAddress != null)
+        {
+            properties.setProperty(EmailConstants.MAIL_SMTP_FROM, bounceAddress);
+        }
+
+        if (socketTimeout > 0)
+        {
+            properties.setProperty(EmailConstants.MAIL_SMTP_TIMEOUT, Integer.toString(socketTimeout));
+        }
+
+        if (socketConnectionTimeout > 0)
+        {
+            properties.setProperty(EmailConstants.MAIL_SMTP_CONNECTIONTIMEOUT, Integer.toString(socketConnectionTimeout));
+        }
+
+        // changed this (back) to getInstance due to security exceptions
+        // caused when testing using maven
+        return Session.getInstance(properties, authenticator);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof SessionKey))
+        {
+            return false;
+        }
+        final SessionKey other = (SessionKey) obj;
+        return hashCode == other.hashCode
+                && debug == other.debug
+                && startTlsEnabled == other.startTlsEnabled
+                && startTlsRequired == other.startTlsRequired
+                && sslOnConnect == other.sslOnConnect
+                && sslCheckServerIdentity == other.sslCheckServerIdentity
+                && sendPartial == other.sendPartial
+                && socketTimeout == other.socketTimeout
+                && socketConnectionTimeout == other.socketConnectionTimeout
+                && Objects.equals(hostName, other.hostName)
+                && Objects.equals(smtpPort, other.smtpPort)
+                && Objects.equals(sslSmtpPort, other.sslSmtpPort)
+                && Objects.equals(bounceAddress, other.bounceAddress)
+                && Objects.equals(authenticatorKey, other.authenticatorKey);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        // without the authenticator, it may hold a password
+        return "SessionKey[" + hostName + ":" + (sslOnConnect ? sslSmtpPort : smtpPort)
+                + ", startTLS=" + startTlsEnabled + ", ssl=" + sslOnConnect + "]";
+    }
+}
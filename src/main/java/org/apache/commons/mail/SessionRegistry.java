@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.Session;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Shares mail sessions among emails with the same session settings.
+ * <p>
+ * Without a registry every {@link Email} creates its own session whose
+ * properties chain to the system properties, so every property lookup of a
+ * transport may fall through to the synchronized system properties. A
+ * registry creates one session per distinct set of settings (host, ports,
+ * TLS/SSL flags, timeouts, bounce address, send-partial, debug and
+ * credentials) from a snapshot of the system properties taken when the
+ * session is created, and reuses it for all later emails. Emails with an
+ * authenticator other than a {@link DefaultAuthenticator} get a session of
+ * their own, since such authenticators can only be compared by identity and
+ * caching them would grow the registry with every email. Sessions looked up
+ * from JNDI by {@link Email#setMailSessionFromJNDI(String)} are cached by
+ * name as well.
+ * <p>
+ * The bounce address is part of the settings, so VERP bounce addresses
+ * create a session per recipient. The registry therefore holds at most
+ * {@link #DEFAULT_MAX_SESSIONS} sessions by default and drops the least
+ * recently used one beyond that.
+ *
+ * <pre>
+ * Email.setSessionRegistry(new SessionRegistry());
+ * </pre>
+ *
+ * Changes of the system properties are not seen by sessions created
+ * earlier, call {@link #clear()} to create new sessions.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public class SessionRegistry
+{
+    /** The default maximum number of sessions created for settings. */
+    public static final int DEFAULT_MAX_SESSIONS = 256;
+
+    /** The sessions by their settings, in the order of their last use. */
+    private final Map<SessionKey, Session> sessions;
+
+    /** The sessions by JNDI name. */
+    private final ConcurrentMap<String, Session> jndiSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a registry of at most {@link #DEFAULT_MAX_SESSIONS} sessions.
+     */
+    public SessionRegistry()
+    {
+        this(DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * Creates a registry.
+     *
+     * @param maxSessions the maximum number of sessions created for settings,
+     *        the least recently used one is dropped beyond that
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public SessionRegistry(final int maxSessions)
+    {
+        if (maxSessions < 1)
+        {
+            throw new IllegalArgumentException("maxSessions must be greater than 0");
+        }
+        this.sessions = Collections.synchronizedMap(new LinkedHashMap<SessionKey, Session>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<SessionKey, Session> eldest)
+            {
+                return size() > maxSessions;
+            }
+        });
+    }
+
+    /**
+     * Gets the session for the settings, creating it if necessary.
+     *
+     * @param key the session settings
+     * @return the shared session, or a new one if the settings can not be shared
+     */
+    Session getSession(final SessionKey key)
+    {
+        if (!key.isShareable())
+        {
+            return key.createSession(snapshotSystemProperties());
+        }
+        return sessions.computeIfAbsent(key, k -> k.createSession(snapshotSystemProperties()));
+    }
+
+    /**
+     * Gets the session bound to a JNDI name, looking it up only once.
+     *
+     * @param jndiName name of JNDI resource (javax.mail.Session type), resource
+     * if searched in java:comp/env if name does not start with "java:"
+     * @return the session
+     * @throws NamingException if the resource cannot be retrieved from JNDI directory
+     */
+    public Session lookup(final String jndiName) throws NamingException
+    {
+        Session session = jndiSessions.get(jndiName);
+        if (session == null)
+        {
+            // looked up outside of the map, concurrent lookups of the same name are harmless
+            session = lookupJndi(jndiName);
+            final Session previous = jndiSessions.putIfAbsent(jndiName, session);
+            if (previous != null)
+            {
+                session = previous;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Gets the number of cached sessions.
+     *
+     * @return the sessions created for settings and looked up from JNDI
+     */
+    public int size()
+    {
+        return sessions.size() + jndiSessions.size();
+    }
+
+    /**
+     * Removes all cached sessions. Emails already holding a session keep it.
+     */
+    public void clear()
+    {
+        sessions.clear();
+        jndiSessions.clear();
+    }
+
+    /**
+     * Looks up a session in JNDI.
+     *
+     * @param jndiName name of JNDI resource (javax.mail.Session type), resource
+     * if searched in java:comp/env if name does not start with "java:"
+     * @return the session
+     * @throws NamingException if the resource cannot be retrieved from JNDI directory
+     */
+    static Session lookupJndi(final String jndiName) throws NamingException
+    {
+        Context ctx = null;
+        if (jndiName.startsWith("java:"))
+        {
+            ctx = new InitialContext();
+        }
+        else
+        {
+            ctx = (Context) new InitialContext().lookup("java:comp/env");
+
+        }
+        return (Session) ctx.lookup(jndiName);
+    }
+
+    /**
+     * Copies the system properties, so the session does not chain to them.
+     *
+     * @return the copy
+     */
+    private static Properties snapshotSystemProperties()
+    {
+        final Properties system = System.getProperties();
+        final Properties properties = new Properties();
+        for (final String name : system.stringPropertyNames())
+        {
+            final String value = system.getProperty(name);
+            if (value != null)
+            {
+                properties.setProperty(name, value);
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.util.MimeMessageUtils;
+
+/**
+ * A {@link MailTransport} adapting the number of concurrent sends to each
+ * relay to what the relay currently accepts, instead of a fixed setting that
+ * is too low for a healthy relay and too high for one deferring messages.
+ * <p>
+ * Each relay, i.e. the host and port of the message session, has its own
+ * {@link ConcurrencyLimit}: senders wait while the sends in flight to the
+ * relay reach its limit. The limit grows while sends succeed with a steady
+ * latency and is cut when the relay defers a message with a 4xx reply, e.g.
+ * 421 or 451, when a connection fails or when the latency rises. Other
+ * failures, e.g. rejected recipients, leave the limit alone. The limits and
+ * their signals, i.e. the sends in flight, latency and success rate, are
+ * available as metrics through {@link #getLimits()}.
+ *
+ * <pre>
+ * TransportPool pool = new TransportPool().setMaxTotalPerKey(32);
+ * Email.setDefaultMailTransport(new AdaptiveConcurrencyMailTransport(
+ *     pool, () -&gt; new ConcurrencyLimit(4, 1, 32)));
+ * </pre>
+ *
+ * The maximum limit should not exceed the connections the underlying
+ * transport may open to a relay, e.g. the maximum per key of a
+ * {@link TransportPool}.
+ * Deferred messages are not sent again; wrap this transport in a
+ * {@link RetryingMailTransport} to retry them once the limit has adapted.
+ *
+ * @since 1.6
+ */
+public class AdaptiveConcurrencyMailTransport implements MailTransport
+{
+    /** The transport sending the messages. */
+    private final MailTransport delegate;
+
+    /** Creates the limit of a relay. */
+    private final Supplier<ConcurrencyLimit> limitFactory;
+
+    /** The limits by relay, i.e. "host:port". */
+    private final ConcurrentMap<String, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a transport using limits with the default bounds.
+     *
+     * @param delegate the transport sending the messages
+     * @throws IllegalArgumentException if the delegate is null
+     */
+    public AdaptiveConcurrencyMailTransport(final MailTransport delegate)
+    {
+        this(delegate, ConcurrencyLimit::new);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate the transport sending the messages
+     * @param limitFactory creates the limit of each relay
+     * @throws IllegalArgumentException if an argument is null
+     */
+    public AdaptiveConcurrencyMailTransport(final MailTransport delegate,
+            final Supplier<ConcurrencyLimit> limitFactory)
+    {
+        if (delegate == null || limitFactory == null)
+        {
+            throw new IllegalArgumentException("delegate and limitFactory can not be null");
+        }
+        this.delegate = delegate;
+        this.limitFactory = limitFactory;
+    }
+
+    /**
+     * Sends the message once the sends in flight to its relay are below the
+     * limit of the relay, and adjusts the limit by the outcome.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed or the wait was interrupted
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        Session session = message.getSession();
+        if (session == null)
+        {
+            // same fallback as Transport.send()
+            session = Session.getDefaultInstance(System.getProperties(), null);
+        }
+        final String relay = RateLimitedMailTransport.relay(session);
+        final ConcurrencyLimit limit = limits.computeIfAbsent(relay, key -> limitFactory.get());
+        final long size = sizeOf(message);
+        try
+        {
+            limit.tryAcquire(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for the concurrency limit of " + relay, e);
+        }
+
+        final long started = System.nanoTime();
+        boolean finished = false;
+        try
+        {
+            final String messageId = delegate.send(message);
+            limit.succeeded(System.nanoTime() - started, TimeUnit.NANOSECONDS, size);
+            finished = true;
+            return messageId;
+        }
+        catch (final MessagingException e)
+        {
+            if (isCongestion(e))
+            {
+                limit.deferred();
+                finished = true;
+            }
+            throw e;
+        }
+        finally
+        {
+            if (!finished)
+            {
+                limit.finished();
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying transport.
+     */
+    @Override
+    public void close()
+    {
+        delegate.close();
+    }
+
+    /**
+     * Gets the transport sending the messages.
+     *
+     * @return the underlying transport
+     */
+    public MailTransport getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Gets the limit of a relay.
+     *
+     * @param host the host name of the relay
+     * @param port the port of the relay
+     * @return the limit, null if nothing was sent to the relay yet
+     */
+    public ConcurrencyLimit getLimit(final String host, final int port)
+    {
+        return limits.get(RateLimitedMailTransport.relay(host, port));
+    }
+
+    /**
+     * Gets the limits of all relays messages were sent to.
+     *
+     * @return the limits by relay, i.e. "host:port"
+     */
+    public Map<String, ConcurrencyLimit> getLimits()
+    {
+        return Collections.unmodifiableMap(limits);
+    }
+
+    /**
+     * Estimates the size of a message, so its latency is compared with that
+     * of messages of about the same size.
+     *
+     * @param message the message
+     * @return the size in bytes, -1 if it can not be estimated
+     */
+    private static long sizeOf(final MimeMessage message)
+    {
+        try
+        {
+            return MimeMessageUtils.estimateSize(message);
+        }
+        catch (final MessagingException | IOException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Is the failure a sign of a congested relay, i.e. did the relay defer
+     * the message with a 4xx reply code or was the connection lost?
+     *
+     * @param failure the failure
+     * @return true if the limit of the relay is to be decreased
+     */
+    private static boolean isCongestion(final Throwable failure)
+    {
+        Throwable current = failure;
+        while (current != null)
+        {
+            final int replyCode = RetryPolicy.getReplyCode(current);
+            if (replyCode > 0)
+            {
+                return replyCode >= 400 && replyCode < 500;
+            }
+            if (current instanceof RateLimitExceededException)
+            {
+                return false;
+            }
+            if (current instanceof IOException)
+            {
+                return true;
+            }
+            current = current.getCause() != current ? current.getCause() : null;
+        }
+        return false;
+    }
+}
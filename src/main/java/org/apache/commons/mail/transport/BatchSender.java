@@ -0,0 +1,339 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SendResult;
+
+/**
+ * Sends many emails using one connection per mail server.
+ * <p>
+ * All emails are built first and grouped by the {@link TransportKey} of
+ * their mail session. Each group is sent over a single connected
+ * {@code Transport}, or over the transports of a {@link TransportPool}
+ * if one is supplied. A message failing, e.g. because of a rejected
+ * recipient, does not abort the batch; the outcome of each email is
+ * reported as a {@link SendResult}.
+ * <p>
+ * If an {@code Executor} is supplied, e.g. a {@link ThreadPerSendExecutor},
+ * the groups are sent concurrently.
+ *
+ * @since 1.6
+ */
+public class BatchSender
+{
+    /** The transport pool, may be null. */
+    private final TransportPool transportPool;
+
+    /** The executor sending the groups concurrently, may be null. */
+    private final Executor executor;
+
+    /**
+     * Creates a batch sender opening one connection per group of emails.
+     */
+    public BatchSender()
+    {
+        this(null);
+    }
+
+    /**
+     * Creates a batch sender using the transports of a pool.
+     *
+     * @param transportPool the transport pool or null
+     */
+    public BatchSender(final TransportPool transportPool)
+    {
+        this(transportPool, null);
+    }
+
+    /**
+     * Creates a batch sender sending the groups of emails concurrently.
+     *
+     * @param transportPool the transport pool or null
+     * @param executor the executor sending the groups or null to send them in the calling thread
+     */
+    public BatchSender(final TransportPool transportPool, final Executor executor)
+    {
+        this.transportPool = transportPool;
+        this.executor = executor;
+    }
+
+    /**
+     * Builds and sends the emails. Emails which have already been built are
+     * sent as is.
+     *
+     * @param emails the emails to send
+     * @return the results in the order of the emails
+     * @throws java.util.concurrent.RejectedExecutionException if the executor rejects a group
+     */
+    public List<SendResult> sendAll(final Collection<? extends Email> emails)
+    {
+        final SendResult[] results = new SendResult[emails.size()];
+        final Map<TransportKey, List<Integer>> groups = new LinkedHashMap<>();
+        final List<Email> list = new ArrayList<>(emails);
+
+        for (int i = 0; i < list.size(); i++)
+        {
+            final Email email = list.get(i);
+            try
+            {
+                if (email.getMimeMessage() == null)
+                {
+                    email.buildMimeMessage();
+                }
+                final TransportKey key = TransportKey.of(email.getMailSession());
+                groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            }
+            catch (final EmailException e)
+            {
+                results[i] = SendResult.failure(email.getMimeMessage(), e);
+            }
+            catch (final RuntimeException e)
+            {
+                results[i] = SendResult.failure(email.getMimeMessage(), new EmailException(e));
+            }
+        }
+
+        if (executor == null)
+        {
+            for (final List<Integer> group : groups.values())
+            {
+                sendGroup(list, group, results);
+            }
+        }
+        else
+        {
+            final CountDownLatch latch = new CountDownLatch(groups.size());
+            for (final List<Integer> group : groups.values())
+            {
+                executor.execute(() -> {
+                    try
+                    {
+                        sendGroup(list, group, results);
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                });
+            }
+            await(latch);
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Sends a group of emails sharing the same transport key.
+     *
+     * @param emails all emails
+     * @param group the indexes of the emails to send
+     * @param results the results to fill in
+     */
+    private void sendGroup(final List<Email> emails, final List<Integer> group, final SendResult[] results)
+    {
+        final Session session = getSession(emails.get(group.get(0)));
+        Transport transport = null;
+
+        try
+        {
+            for (final int index : group)
+            {
+                final Email email = emails.get(index);
+                final MimeMessage message = email.getMimeMessage();
+
+                try
+                {
+                    message.saveChanges();
+                    final Address[] recipients = message.getAllRecipients();
+
+                    if (transportPool != null)
+                    {
+                        transportPool.send(session, message, recipients);
+                    }
+                    else
+                    {
+                        if (recipients == null || recipients.length == 0)
+                        {
+                            throw new SendFailedException("No recipient addresses");
+                        }
+                        if (transport == null)
+                        {
+                            transport = connect(session, email, emails, group, index, results);
+                            if (transport == null)
+                            {
+                                return;
+                            }
+                        }
+                        transport.sendMessage(message, recipients);
+                    }
+                    results[index] = SendResult.success(message, message.getMessageID());
+                }
+                catch (final SendFailedException e)
+                {
+                    results[index] = SendResult.failure(message, createException(email, e));
+                    if (transport != null && !TransportPool.isReusable(transport, e))
+                    {
+                        // the connection has been closed, use a new one for the next message
+                        close(transport);
+                        transport = null;
+                    }
+                }
+                catch (final MessagingException | RuntimeException e)
+                {
+                    results[index] = SendResult.failure(message, createException(email, e));
+                    // the state of the connection is unknown, use a new one for the next message
+                    close(transport);
+                    transport = null;
+                }
+            }
+        }
+        finally
+        {
+            close(transport);
+        }
+    }
+
+    /**
+     * Connects a transport for the remaining emails of a group. If connecting fails
+     * the remaining emails are marked as failed.
+     *
+     * @param session the mail session
+     * @param email the current email
+     * @param emails all emails
+     * @param group the indexes of the emails of the group
+     * @param index the index of the current email
+     * @param results the results to fill in
+     * @return the connected transport or null if connecting failed
+     */
+    private Transport connect(final Session session, final Email email, final List<Email> emails,
+            final List<Integer> group, final int index, final SendResult[] results)
+    {
+        try
+        {
+            final Transport transport = session.getTransport();
+            transport.connect();
+            return transport;
+        }
+        catch (final MessagingException e)
+        {
+            final EmailException exception = createException(email, e);
+            for (int i = group.indexOf(index); i < group.size(); i++)
+            {
+                final int remaining = group.get(i);
+                results[remaining] = SendResult.failure(emails.get(remaining).getMimeMessage(), exception);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waits for all groups to be sent.
+     *
+     * @param latch counts the groups not sent yet
+     */
+    private static void await(final CountDownLatch latch)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                latch.await();
+                break;
+            }
+            catch (final InterruptedException e)
+            {
+                // the results are shared with the sending threads, keep waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the mail session of an email which has already been built.
+     *
+     * @param email the email
+     * @return the session
+     */
+    private static Session getSession(final Email email)
+    {
+        try
+        {
+            return email.getMailSession();
+        }
+        catch (final EmailException e)
+        {
+            // the session has been created while building the email
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates the exception reported for a failed email.
+     *
+     * @param email the email
+     * @param cause the cause
+     * @return the exception
+     */
+    private static EmailException createException(final Email email, final Throwable cause)
+    {
+        return new EmailException("Sending the email to the following server failed : "
+                + email.getHostName() + ":" + email.getSmtpPort(), cause);
+    }
+
+    /**
+     * Closes a transport, ignoring any errors.
+     *
+     * @param transport the transport, may be null
+     */
+    private static void close(final Transport transport)
+    {
+        if (transport != null)
+        {
+            try
+            {
+                transport.close();
+            }
+            catch (final MessagingException e) // NOPMD
+            {
+                // ignore, the connection is discarded anyway
+            }
+        }
+    }
+}
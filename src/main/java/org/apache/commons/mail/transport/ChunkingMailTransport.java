@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * A {@link MailTransport} splitting the recipients of a message into
+ * envelopes of a limited size, for relays limiting the RCPT TO commands per
+ * transaction.
+ * <p>
+ * The message is encoded once and the same bytes are sent in every
+ * transaction; Bcc recipients are never written to the headers. The
+ * envelopes are sent by an {@link EnvelopeSender} through its transport, e.g.
+ * a {@link TransportPool} or a {@link RelayGroup}, concurrently if it has an
+ * executor.
+ *
+ * <pre>
+ * email.setMailTransport(new ChunkingMailTransport(new EnvelopeSender(pool, executor), 500));
+ * </pre>
+ *
+ * {@link #sendWithReport(MimeMessage)} reports the result of each recipient.
+ * {@link #send(MimeMessage)} fails with a {@code SendFailedException} if any
+ * recipient failed; retrying it sends the message to all recipients again.
+ *
+ * @since 1.6
+ */
+public class ChunkingMailTransport implements MailTransport
+{
+    /** The default maximum number of recipients per envelope. */
+    public static final int DEFAULT_MAX_RECIPIENTS = 100;
+
+    /** The sender of the envelopes. */
+    private final EnvelopeSender sender;
+
+    /** The maximum number of recipients per envelope. */
+    private final int maxRecipients;
+
+    /**
+     * Creates a transport with at most {@value #DEFAULT_MAX_RECIPIENTS} recipients per envelope.
+     *
+     * @param sender the sender of the envelopes
+     */
+    public ChunkingMailTransport(final EnvelopeSender sender)
+    {
+        this(sender, DEFAULT_MAX_RECIPIENTS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sender the sender of the envelopes
+     * @param maxRecipients the maximum number of recipients per envelope
+     * @throws IllegalArgumentException if the sender is null or the maximum not positive
+     */
+    public ChunkingMailTransport(final EnvelopeSender sender, final int maxRecipients)
+    {
+        if (sender == null)
+        {
+            throw new IllegalArgumentException("sender can not be null");
+        }
+        if (maxRecipients < 1)
+        {
+            throw new IllegalArgumentException("maxRecipients must be greater than 0");
+        }
+        this.sender = sender;
+        this.maxRecipients = maxRecipients;
+    }
+
+    /**
+     * Sends the message to all its recipients in envelopes of limited size.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws SendFailedException the message was not delivered to all
+     *         recipients, the first failure is chained
+     * @throws MessagingException encoding the message failed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        final DeliveryReport report = sendWithReport(message);
+        if (!report.isSuccess())
+        {
+            throw report.toException();
+        }
+        return report.getMessageId();
+    }
+
+    /**
+     * Sends the message to all its recipients in envelopes of limited size
+     * and reports the result of each recipient.
+     *
+     * @param message the saved message
+     * @return the report
+     * @throws MessagingException encoding the message failed or it has no recipients
+     */
+    public DeliveryReport sendWithReport(final MimeMessage message) throws MessagingException
+    {
+        final Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        final SerializedMessage serialized = SerializedMessage.of(message);
+        return new DeliveryReport(serialized.getMessageId(),
+                sender.sendAll(serialized, new Envelope(null, recipients).split(maxRecipients)));
+    }
+
+    /**
+     * Gets the sender of the envelopes.
+     *
+     * @return the sender
+     */
+    public EnvelopeSender getSender()
+    {
+        return sender;
+    }
+
+    /**
+     * Gets the maximum number of recipients per envelope.
+     *
+     * @return the maximum
+     */
+    public int getMaxRecipients()
+    {
+        return maxRecipients;
+    }
+}
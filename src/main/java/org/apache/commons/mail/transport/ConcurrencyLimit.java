@@ -0,0 +1,478 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An adaptive limit of the concurrent sends to a relay, adjusted by additive
+ * increase and multiplicative decrease (AIMD).
+ * <p>
+ * While sends succeed and their latency stays within
+ * {@link #setLatencyTolerance(double) tolerance} of the lowest latency seen
+ * for messages of about the same size, the limit grows by one per limit's worth of successful sends, i.e. by about
+ * one per round of sends, as long as the sends actually use the limit. A
+ * transient failure of the relay, i.e. a 4xx deferral such as 421 or 451 or
+ * a lost connection, or a latency beyond the tolerance multiplies the limit
+ * by the {@link #setBackoffRatio(double) backoff ratio}. The limit is
+ * decreased at most once per average latency, so a burst of failures of
+ * the sends in flight counts as one congestion signal.
+ * <p>
+ * The latency of a send grows with the size of the message, so each sample
+ * is compared with the lowest latency of its size class: messages up to
+ * 64 KB or of unknown size, and classes each four times as large above. A
+ * large message is therefore not mistaken for congestion.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @see AdaptiveConcurrencyMailTransport
+ * @since 1.6
+ */
+public class ConcurrencyLimit
+{
+    /** The default initial limit. */
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+
+    /** The default minimum limit. */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+
+    /** The default maximum limit. */
+    public static final int DEFAULT_MAX_LIMIT = 64;
+
+    /** The default factor the limit is multiplied with on congestion. */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.5;
+
+    /** The default factor the average latency may exceed the lowest latency of the size class by. */
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+    /** The weight of a new sample in the moving averages. */
+    private static final double ALPHA = 0.2;
+
+    /** The factor the lowest latency drifts up by per sample, so it follows a slower relay. */
+    private static final double BASELINE_DRIFT = 1.01;
+
+    /** The size up to which messages share the lowest latency, 64 KB. */
+    private static final long SMALL_MESSAGE_SIZE = 64 * 1024;
+
+    /** The number of size classes with a lowest latency of their own. */
+    private static final int SIZE_CLASSES = 8;
+
+    /** The minimum limit. */
+    private final int minLimit;
+
+    /** The maximum limit. */
+    private final int maxLimit;
+
+    /** The factor the limit is multiplied with on congestion. */
+    private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+    /** The factor the average latency may exceed the lowest latency of the size class by. */
+    private volatile double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+
+    /** The current limit. */
+    private int limit;
+
+    /** The successful sends using the limit since it was last changed. */
+    private int credit;
+
+    /** The number of sends in flight. */
+    private int inFlight;
+
+    /** The EWMA of the latency in nanoseconds, negative if nothing was measured yet. */
+    private double latencyNanos = -1;
+
+    /** The lowest recent latency in nanoseconds per size class, negative if nothing was measured yet. */
+    private final double[] baselineNanos = new double[SIZE_CLASSES];
+
+    /** The EWMA of the latency relative to the lowest latency of the size class. */
+    private double latencyRatio = 1.0;
+
+    /** The EWMA of the share of successful sends. */
+    private double successRate = 1.0;
+
+    /** The time of the last decrease, see {@link System#nanoTime()}. */
+    private long decreasedAt;
+
+    /** Was the limit decreased yet? */
+    private boolean decreased;
+
+    /** The number of successful sends. */
+    private long successes;
+
+    /** The number of transient failures. */
+    private long deferrals;
+
+    /** The number of decreases of the limit. */
+    private long decreases;
+
+    /**
+     * Creates a limit with the default bounds.
+     */
+    public ConcurrencyLimit()
+    {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param initialLimit the initial limit
+     * @param minLimit the limit is never decreased below
+     * @param maxLimit the limit is never increased above, e.g. the size of a transport pool
+     * @throws IllegalArgumentException if the minimum is not positive or the limits are not ordered
+     */
+    public ConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit)
+    {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+        {
+            throw new IllegalArgumentException("The limits must satisfy 0 < minLimit <= initialLimit <= maxLimit");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        Arrays.fill(baselineNanos, -1);
+    }
+
+    /**
+     * Starts a send, waiting until the number of sends in flight is below
+     * the limit.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return false if the limit was not undercut in time
+     * @throws InterruptedException the thread was interrupted while waiting
+     */
+    public synchronized boolean tryAcquire(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (inFlight >= limit)
+        {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Starts a send if the number of sends in flight is below the limit.
+     *
+     * @return false if the limit is reached
+     */
+    public synchronized boolean tryAcquire()
+    {
+        if (inFlight >= limit)
+        {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Finishes a successful send of a message of unknown size, increasing
+     * the limit if the latency holds and decreasing it otherwise.
+     *
+     * @param latency the time the send took
+     * @param unit the unit of the latency
+     */
+    public void succeeded(final long latency, final TimeUnit unit)
+    {
+        succeeded(latency, unit, -1);
+    }
+
+    /**
+     * Finishes a successful send, increasing the limit if the latency holds
+     * for the size of the message and decreasing it otherwise.
+     *
+     * @param latency the time the send took
+     * @param unit the unit of the latency
+     * @param size the (estimated) size of the message in bytes, negative if unknown
+     */
+    public synchronized void succeeded(final long latency, final TimeUnit unit, final long size)
+    {
+        final double sample = Math.max(1, unit.toNanos(latency));
+        final boolean used = inFlight >= limit / 2;
+        release();
+        successes++;
+        successRate += ALPHA * (1.0 - successRate);
+        latencyNanos = latencyNanos < 0 ? sample : latencyNanos + ALPHA * (sample - latencyNanos);
+        final int sizeClass = sizeClass(size);
+        final double baseline = baselineNanos[sizeClass] < 0
+                ? sample
+                : Math.min(baselineNanos[sizeClass] * BASELINE_DRIFT, sample);
+        baselineNanos[sizeClass] = baseline;
+        latencyRatio += ALPHA * (sample / baseline - latencyRatio);
+
+        if (latencyRatio > latencyTolerance)
+        {
+            decrease();
+        }
+        else if (used && ++credit >= limit)
+        {
+            limit = Math.min(maxLimit, limit + 1);
+            credit = 0;
+        }
+    }
+
+    /**
+     * Finishes a send deferred by the relay, decreasing the limit.
+     */
+    public synchronized void deferred()
+    {
+        release();
+        deferrals++;
+        successRate -= ALPHA * successRate;
+        decrease();
+    }
+
+    /**
+     * Finishes a send without adjusting the limit, e.g. a message rejected
+     * for its content or recipients.
+     */
+    public synchronized void finished()
+    {
+        release();
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return the number of sends allowed in flight
+     */
+    public synchronized int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Gets the minimum limit.
+     *
+     * @return the minimum limit
+     */
+    public int getMinLimit()
+    {
+        return minLimit;
+    }
+
+    /**
+     * Gets the maximum limit.
+     *
+     * @return the maximum limit
+     */
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+
+    /**
+     * Gets the number of sends in flight.
+     *
+     * @return the number of sends
+     */
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    /**
+     * Gets the moving average of the latency of successful sends.
+     *
+     * @return the latency in milliseconds, -1 if nothing was measured yet
+     */
+    public synchronized double getLatencyMillis()
+    {
+        return latencyNanos < 0 ? -1 : latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Gets the lowest recent latency of messages up to 64 KB or of unknown
+     * size, which the latency of these messages is compared with.
+     *
+     * @return the latency in milliseconds, -1 if nothing was measured yet
+     */
+    public synchronized double getBaselineLatencyMillis()
+    {
+        return baselineNanos[0] < 0 ? -1 : baselineNanos[0] / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Gets the moving average of the latency relative to the lowest recent
+     * latency of messages of the same size class; the limit is decreased
+     * when it exceeds the {@link #getLatencyTolerance() tolerance}.
+     *
+     * @return the ratio, 1 if the latency holds
+     */
+    public synchronized double getLatencyRatio()
+    {
+        return latencyRatio;
+    }
+
+    /**
+     * Gets the moving average of the share of sends not deferred by the relay.
+     *
+     * @return the share between 0 and 1
+     */
+    public synchronized double getSuccessRate()
+    {
+        return successRate;
+    }
+
+    /**
+     * Gets the number of successful sends.
+     *
+     * @return the number of sends
+     */
+    public synchronized long getSuccesses()
+    {
+        return successes;
+    }
+
+    /**
+     * Gets the number of sends deferred by the relay.
+     *
+     * @return the number of sends
+     */
+    public synchronized long getDeferrals()
+    {
+        return deferrals;
+    }
+
+    /**
+     * Gets the number of times the limit was decreased.
+     *
+     * @return the number of decreases
+     */
+    public synchronized long getDecreases()
+    {
+        return decreases;
+    }
+
+    /**
+     * Gets the factor the limit is multiplied with on congestion.
+     *
+     * @return the backoff ratio
+     */
+    public double getBackoffRatio()
+    {
+        return backoffRatio;
+    }
+
+    /**
+     * Sets the factor the limit is multiplied with on congestion.
+     *
+     * @param backoffRatio the ratio, greater than 0 and less than 1
+     * @return this limit
+     * @throws IllegalArgumentException if the ratio is out of range
+     */
+    public ConcurrencyLimit setBackoffRatio(final double backoffRatio)
+    {
+        if (!(backoffRatio > 0 && backoffRatio < 1))
+        {
+            throw new IllegalArgumentException("backoffRatio must be greater than 0 and less than 1");
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * Gets the factor the average latency may exceed the lowest latency of the size class by
+     * before the limit is decreased.
+     *
+     * @return the latency tolerance
+     */
+    public double getLatencyTolerance()
+    {
+        return latencyTolerance;
+    }
+
+    /**
+     * Sets the factor the average latency may exceed the lowest latency of the size class by
+     * before the limit is decreased.
+     *
+     * @param latencyTolerance the factor, greater than 1
+     * @return this limit
+     * @throws IllegalArgumentException if the factor is not greater than 1
+     */
+    public ConcurrencyLimit setLatencyTolerance(final double latencyTolerance)
+    {
+        if (!(latencyTolerance > 1))
+        {
+            throw new IllegalArgumentException("latencyTolerance must be greater than 1");
+        }
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "ConcurrencyLimit[limit=" + limit + ", inFlight=" + inFlight + ", latencyMillis="
+                + getLatencyMillis() + ", successRate=" + successRate + "]";
+    }
+
+    /**
+     * Gets the size class of a message: 0 up to 64 KB or if unknown, then
+     * one class per factor of four.
+     *
+     * @param size the size in bytes, negative if unknown
+     * @return the index of the size class
+     */
+    private static int sizeClass(final long size)
+    {
+        int sizeClass = 0;
+        long bound = SMALL_MESSAGE_SIZE;
+        while (size >= bound && sizeClass < SIZE_CLASSES - 1)
+        {
+            sizeClass++;
+            bound *= 4;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Ends a send in flight and wakes up a waiting sender.
+     */
+    private void release()
+    {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Multiplies the limit by the backoff ratio unless it was decreased
+     * within the last average latency.
+     */
+    private void decrease()
+    {
+        final long now = System.nanoTime();
+        if (decreased && now - decreasedAt < latencyNanos)
+        {
+            return;
+        }
+        limit = Math.max(minLimit, (int) (limit * backoffRatio));
+        credit = 0;
+        decreased = true;
+        decreasedAt = now;
+        decreases++;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+/**
+ * The aggregated result of sending a message to the envelopes it was split
+ * into, see {@link ChunkingMailTransport}.
+ * <p>
+ * This class is immutable.
+ *
+ * @since 1.6
+ */
+public final class DeliveryReport
+{
+    /** The Message-ID. */
+    private final String messageId;
+
+    /** The result of each envelope. */
+    private final List<EnvelopeResult> results;
+
+    /** The recipients the message was delivered to. */
+    private final List<Address> delivered;
+
+    /** The failures by recipient. */
+    private final Map<Address, MessagingException> failed;
+
+    /**
+     * Constructor.
+     *
+     * @param messageId the Message-ID
+     * @param results the result of each envelope
+     */
+    public DeliveryReport(final String messageId, final List<EnvelopeResult> results)
+    {
+        final List<Address> allDelivered = new ArrayList<>();
+        final Map<Address, MessagingException> allFailed = new LinkedHashMap<>();
+        for (final EnvelopeResult result : results)
+        {
+            allDelivered.addAll(result.getDelivered());
+            allFailed.putAll(result.getFailed());
+        }
+
+        this.messageId = messageId;
+        this.results = Collections.unmodifiableList(new ArrayList<>(results));
+        this.delivered = Collections.unmodifiableList(allDelivered);
+        this.failed = Collections.unmodifiableMap(allFailed);
+    }
+
+    /**
+     * Was the message delivered to all recipients?
+     *
+     * @return true if all envelopes succeeded
+     */
+    public boolean isSuccess()
+    {
+        return failed.isEmpty();
+    }
+
+    /**
+     * Gets the Message-ID of the message.
+     *
+     * @return the Message-ID
+     */
+    public String getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * Gets the result of each envelope.
+     *
+     * @return the unmodifiable results in the order the envelopes were split
+     */
+    public List<EnvelopeResult> getResults()
+    {
+        return results;
+    }
+
+    /**
+     * Gets the recipients the message was delivered to.
+     *
+     * @return the unmodifiable recipients
+     */
+    public List<Address> getDelivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * Gets the recipients the message was not delivered to and their failures.
+     *
+     * @return the unmodifiable failures by recipient
+     */
+    public Map<Address, MessagingException> getFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * Creates the exception reporting the failed recipients, the first
+     * failure is chained.
+     *
+     * @return the exception
+     */
+    SendFailedException toException()
+    {
+        final MessagingException first = failed.isEmpty() ? null : failed.values().iterator().next();
+        return new SendFailedException("Sending the message failed for " + failed.size() + " recipients", first,
+                delivered.toArray(new Address[0]), null, failed.keySet().toArray(new Address[0]));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return "DeliveryReport[" + messageId + ", envelopes=" + results.size() + ", delivered=" + delivered.size()
+                + ", failed=" + failed.size() + "]";
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.util.IDNEmailAddressConverter;
+
+/**
+ * Paces the delivery of messages per recipient domain, so a campaign does not
+ * hit a single receiving domain with thousands of transactions at once.
+ * <p>
+ * The To, Cc and Bcc recipients of a message are grouped by the domain of
+ * their IDN-normalized address; each domain gets its own envelope, sent by an
+ * {@link EnvelopeSender} with the content encoded once. Every domain has a
+ * queue with a concurrency cap and an optional rate, a {@link TokenBucket}.
+ * A dispatcher thread serves the domains round-robin, one envelope per domain
+ * and turn, so a huge domain never starves the others.
+ *
+ * <pre>
+ * DomainScheduler scheduler = new DomainScheduler(new EnvelopeSender(pool), SendExecutor.getDefault())
+ *     .setDefaultLimit(4, 10, 20)
+ *     .setDomainLimit("gmail.com", 8, 50, 100);
+ * email.setMailTransport(scheduler);
+ * </pre>
+ *
+ * Limits apply to domains queued afterwards; a domain keeps its limit until
+ * its queue has been drained.
+ *
+ * @since 1.6
+ */
+public class DomainScheduler implements MailTransport
+{
+    /** The default maximum number of concurrent transactions per domain. */
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+    /** The interval idle domains are checked for removal. */
+    private static final long LINGER_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Converts recipient addresses to their ASCII form. */
+    private static final IDNEmailAddressConverter IDN_CONVERTER = new IDNEmailAddressConverter();
+
+    /** The sender of the envelopes. */
+    private final EnvelopeSender sender;
+
+    /** The executor sending the envelopes. */
+    private final Executor executor;
+
+    /** The limits of individual domains. */
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+    /** The limit of other domains. */
+    private volatile Limit defaultLimit = new Limit(DEFAULT_MAX_CONCURRENCY, 0, 1);
+
+    /** Guards the queues. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signals the dispatcher that an envelope was queued or finished. */
+    private final Condition changed = lock.newCondition();
+
+    /** The queues of the domains with queued or active envelopes. */
+    private final Map<String, DomainQueue> queues = new HashMap<>();
+
+    /** The domains with queued envelopes in round-robin order. */
+    private final ArrayDeque<DomainQueue> ring = new ArrayDeque<>();
+
+    /** The idle domains kept until their rate has recovered. */
+    private final List<DomainQueue> lingering = new ArrayList<>();
+
+    /** The dispatcher thread. */
+    private final Thread dispatcher;
+
+    /** Has the scheduler been closed? */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param sender the sender of the envelopes
+     * @param executor the executor sending the envelopes, its threads bound the
+     *        overall concurrency
+     * @throws IllegalArgumentException if an argument is null
+     */
+    public DomainScheduler(final EnvelopeSender sender, final Executor executor)
+    {
+        if (sender == null || executor == null)
+        {
+            throw new IllegalArgumentException("sender and executor can not be null");
+        }
+        this.sender = sender;
+        this.executor = executor;
+        this.dispatcher = new Thread(this::dispatch, "commons-email-domain-scheduler");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Sets the limits of a domain.
+     *
+     * @param domain the domain
+     * @param maxConcurrency the maximum number of concurrent transactions
+     * @param permitsPerSecond the transactions per second, 0 for no rate limit
+     * @param burst the transactions which may be started at once after a quiet period
+     * @return this scheduler
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    public DomainScheduler setDomainLimit(final String domain, final int maxConcurrency,
+            final double permitsPerSecond, final int burst)
+    {
+        limits.put(domain.toLowerCase(Locale.ROOT), new Limit(maxConcurrency, permitsPerSecond, burst));
+        return this;
+    }
+
+    /**
+     * Sets the limits of each domain without limits of its own. Every domain
+     * gets its own rate, i.e. the limits are not shared among the domains.
+     *
+     * @param maxConcurrency the maximum number of concurrent transactions
+     * @param permitsPerSecond the transactions per second, 0 for no rate limit
+     * @param burst the transactions which may be started at once after a quiet period
+     * @return this scheduler
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    public DomainScheduler setDefaultLimit(final int maxConcurrency, final double permitsPerSecond,
+            final int burst)
+    {
+        defaultLimit = new Limit(maxConcurrency, permitsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * Queues a message, one envelope per recipient domain.
+     *
+     * @param message the saved message
+     * @return the report, completed once all envelopes have been sent
+     * @throws MessagingException encoding the message failed or it has no recipients
+     * @throws IllegalStateException if the scheduler has been closed
+     */
+    public CompletableFuture<DeliveryReport> submit(final MimeMessage message) throws MessagingException
+    {
+        final Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        final SerializedMessage serialized = SerializedMessage.of(message);
+        final Map<String, List<Address>> byDomain = new LinkedHashMap<>();
+        for (final Address recipient : recipients)
+        {
+            byDomain.computeIfAbsent(getDomain(recipient), d -> new ArrayList<>()).add(recipient);
+        }
+
+        final List<CompletableFuture<EnvelopeResult>> futures = new ArrayList<>(byDomain.size());
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("The scheduler has been closed");
+            }
+            for (final Map.Entry<String, List<Address>> entry : byDomain.entrySet())
+            {
+                final Task task = new Task(serialized, new Envelope(null, entry.getValue()));
+                DomainQueue queue = queues.get(entry.getKey());
+                if (queue == null)
+                {
+                    queue = new DomainQueue(entry.getKey(), getLimit(entry.getKey()));
+                    queues.put(entry.getKey(), queue);
+                }
+                queue.pending.add(task);
+                if (!queue.inRing)
+                {
+                    queue.inRing = true;
+                    ring.addLast(queue);
+                }
+                futures.add(task.future);
+            }
+            changed.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            final List<EnvelopeResult> results = new ArrayList<>(futures.size());
+            for (final CompletableFuture<EnvelopeResult> future : futures)
+            {
+                results.add(future.join());
+            }
+            return new DeliveryReport(serialized.getMessageId(), results);
+        });
+    }
+
+    /**
+     * Queues the message and waits until it has been sent to all recipient domains.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws SendFailedException the message was not delivered to all
+     *         recipients, the first failure is chained
+     * @throws MessagingException encoding the message failed or the wait was interrupted
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        final DeliveryReport report;
+        try
+        {
+            report = submit(message).join();
+        }
+        catch (final CompletionException e)
+        {
+            throw new MessagingException("Sending the message failed", (Exception) e.getCause());
+        }
+        if (!report.isSuccess())
+        {
+            throw report.toException();
+        }
+        return report.getMessageId();
+    }
+
+    /**
+     * Stops the dispatcher. Queued envelopes which have not been started fail.
+     */
+    @Override
+    public void close()
+    {
+        final List<Task> abandoned = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            for (final DomainQueue queue : queues.values())
+            {
+                abandoned.addAll(queue.pending);
+                queue.pending.clear();
+            }
+            ring.clear();
+            changed.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        final MessagingException exception = new MessagingException("The scheduler has been closed");
+        for (final Task task : abandoned)
+        {
+            task.future.complete(EnvelopeResult.failure(task.envelope, task.message.getMessageId(), exception));
+        }
+    }
+
+    /**
+     * Gets the number of envelopes queued and not started yet.
+     *
+     * @param domain the domain
+     * @return the queued envelopes of the domain
+     */
+    public int getQueued(final String domain)
+    {
+        lock.lock();
+        try
+        {
+            final DomainQueue queue = queues.get(domain.toLowerCase(Locale.ROOT));
+            return queue != null ? queue.pending.size() : 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of envelopes being sent.
+     *
+     * @param domain the domain
+     * @return the active envelopes of the domain
+     */
+    public int getActive(final String domain)
+    {
+        lock.lock();
+        try
+        {
+            final DomainQueue queue = queues.get(domain.toLowerCase(Locale.ROOT));
+            return queue != null ? queue.active : 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the domain of a recipient from its IDN-normalized address.
+     *
+     * @param recipient the recipient
+     * @return the lower case domain, empty if the address has none
+     */
+    static String getDomain(final Address recipient)
+    {
+        final String address = IDN_CONVERTER.toASCII(recipient instanceof InternetAddress
+                ? ((InternetAddress) recipient).getAddress() : recipient.toString());
+        final int at = address.lastIndexOf('@');
+        return at < 0 ? "" : address.substring(at + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets the limit of a domain.
+     *
+     * @param domain the domain
+     * @return the limit
+     */
+    private Limit getLimit(final String domain)
+    {
+        final Limit limit = limits.get(domain);
+        return limit != null ? limit : defaultLimit.copy();
+    }
+
+    /**
+     * The loop of the dispatcher thread: starts envelopes of the domains in
+     * turn until the scheduler is closed.
+     */
+    private void dispatch()
+    {
+        final List<Task> started = new ArrayList<>();
+        boolean stopped = false;
+        while (!stopped)
+        {
+            lock.lock();
+            try
+            {
+                while (!closed)
+                {
+                    final long waitNanos = nextRound(started);
+                    if (!started.isEmpty())
+                    {
+                        break;
+                    }
+                    if (waitNanos == Long.MAX_VALUE && lingering.isEmpty())
+                    {
+                        changed.await();
+                    }
+                    else if (waitNanos == Long.MAX_VALUE)
+                    {
+                        changed.awaitNanos(LINGER_CHECK_NANOS);
+                    }
+                    else
+                    {
+                        changed.awaitNanos(waitNanos);
+                    }
+                }
+                stopped = closed;
+            }
+            catch (final InterruptedException e)
+            {
+                stopped = true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            // outside of the lock, the executor may run the task in this thread;
+            // envelopes started before the scheduler was closed are still sent
+            for (final Task task : started)
+            {
+                execute(task);
+            }
+            started.clear();
+        }
+        // fail the queued envelopes if the thread was interrupted
+        close();
+    }
+
+    /**
+     * Starts at most one envelope of each domain whose limits allow it. The
+     * caller holds the lock.
+     *
+     * @param started the started tasks
+     * @return the time until the rate of a domain allows the next envelope,
+     *         {@code Long.MAX_VALUE} if no domain is waiting for its rate
+     */
+    private long nextRound(final List<Task> started)
+    {
+        for (final Iterator<DomainQueue> iterator = lingering.iterator(); iterator.hasNext();)
+        {
+            final DomainQueue queue = iterator.next();
+            if (queue.active > 0 || queue.inRing)
+            {
+                // in use again
+                queue.lingering = false;
+                iterator.remove();
+            }
+            else if (queue.isRecovered())
+            {
+                queue.lingering = false;
+                iterator.remove();
+                queues.remove(queue.domain);
+            }
+        }
+
+        long waitNanos = Long.MAX_VALUE;
+        for (int i = ring.size(); i > 0; i--)
+        {
+            final DomainQueue queue = ring.pollFirst();
+            if (queue.pending.isEmpty())
+            {
+                queue.inRing = false;
+                removeIfIdle(queue);
+                continue;
+            }
+            ring.addLast(queue);
+
+            if (queue.active >= queue.limit.maxConcurrency)
+            {
+                continue;
+            }
+            if (queue.limit.bucket != null && !queue.limit.bucket.tryAcquire())
+            {
+                waitNanos = Math.min(waitNanos, Math.max(1, queue.limit.bucket.getWaitTime(TimeUnit.NANOSECONDS)));
+                continue;
+            }
+            final Task task = queue.pending.poll();
+            task.queue = queue;
+            queue.active++;
+            started.add(task);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Sends an envelope using the executor.
+     *
+     * @param task the task
+     */
+    private void execute(final Task task)
+    {
+        try
+        {
+            executor.execute(() -> {
+                EnvelopeResult result = null;
+                try
+                {
+                    result = sender.send(task.message, task.envelope);
+                }
+                finally
+                {
+                    // the domain's slot is free before the sender learns the result
+                    finished(task.queue);
+                    if (result != null)
+                    {
+                        task.future.complete(result);
+                    }
+                    else
+                    {
+                        task.future.complete(EnvelopeResult.failure(task.envelope, task.message.getMessageId(),
+                                new MessagingException("Sending to " + task.envelope + " failed")));
+                    }
+                }
+            });
+        }
+        catch (final RuntimeException e)
+        {
+            task.future.complete(EnvelopeResult.failure(task.envelope, task.message.getMessageId(),
+                    new MessagingException("Sending to " + task.envelope + " was rejected", e)));
+            finished(task.queue);
+        }
+    }
+
+    /**
+     * Records the end of a transaction and wakes up the dispatcher.
+     *
+     * @param queue the queue of the domain
+     */
+    private void finished(final DomainQueue queue)
+    {
+        lock.lock();
+        try
+        {
+            queue.active--;
+            removeIfIdle(queue);
+            changed.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the queue of a domain without queued or active envelopes, so
+     * changed limits apply to it. A queue whose rate has not recovered yet
+     * lingers, so the domain does not get a new burst. The caller holds the lock.
+     *
+     * @param queue the queue
+     */
+    private void removeIfIdle(final DomainQueue queue)
+    {
+        if (queue.active == 0 && queue.pending.isEmpty() && !queue.inRing)
+        {
+            if (queue.isRecovered())
+            {
+                queues.remove(queue.domain);
+            }
+            else if (!queue.lingering)
+            {
+                queue.lingering = true;
+                lingering.add(queue);
+            }
+        }
+    }
+
+    /**
+     * The limits of a domain.
+     */
+    private static final class Limit
+    {
+        /** The maximum number of concurrent transactions. */
+        private final int maxConcurrency;
+
+        /** The rate of the transactions, a template if shared by several domains. */
+        private final double permitsPerSecond;
+
+        /** The burst of the rate. */
+        private final int burst;
+
+        /** The rate of the domain, null for none. */
+        private final TokenBucket bucket;
+
+        /**
+         * Constructor.
+         *
+         * @param maxConcurrency the maximum number of concurrent transactions
+         * @param permitsPerSecond the transactions per second, 0 for no rate limit
+         * @param burst the burst of the rate
+         */
+        Limit(final int maxConcurrency, final double permitsPerSecond, final int burst)
+        {
+            if (maxConcurrency < 1 || permitsPerSecond < 0 || burst < 1)
+            {
+                throw new IllegalArgumentException(
+                        "maxConcurrency and burst must be greater than 0 and permitsPerSecond not negative");
+            }
+            this.maxConcurrency = maxConcurrency;
+            this.permitsPerSecond = permitsPerSecond;
+            this.burst = burst;
+            this.bucket = permitsPerSecond > 0 ? new TokenBucket(permitsPerSecond, burst) : null;
+        }
+
+        /**
+         * Creates the limit of a domain from this template.
+         *
+         * @return a limit with its own rate
+         */
+        Limit copy()
+        {
+            return new Limit(maxConcurrency, permitsPerSecond, burst);
+        }
+    }
+
+    /**
+     * The envelopes of a domain.
+     */
+    private static final class DomainQueue
+    {
+        /** The domain. */
+        private final String domain;
+
+        /** The limits of the domain. */
+        private final Limit limit;
+
+        /** The envelopes not started yet. */
+        private final Queue<Task> pending = new ArrayDeque<>();
+
+        /** The number of envelopes being sent. */
+        private int active;
+
+        /** Is the queue part of the round-robin ring? */
+        private boolean inRing;
+
+        /** Is the idle queue kept until its rate has recovered? */
+        private boolean lingering;
+
+        /**
+         * Constructor.
+         *
+         * @param domain the domain
+         * @param limit the limits
+         */
+        DomainQueue(final String domain, final Limit limit)
+        {
+            this.domain = domain;
+            this.limit = limit;
+        }
+
+        /**
+         * Has the rate of the domain recovered, i.e. would a new queue start
+         * with the same permits?
+         *
+         * @return true if the domain has no rate or a full burst
+         */
+        boolean isRecovered()
+        {
+            return limit.bucket == null || limit.bucket.getAvailablePermits() >= limit.burst;
+        }
+    }
+
+    /**
+     * An envelope to send.
+     */
+    private static final class Task
+    {
+        /** The encoded message. */
+        private final SerializedMessage message;
+
+        /** The envelope. */
+        private final Envelope envelope;
+
+        /** Completed with the result. */
+        private final CompletableFuture<EnvelopeResult> future = new CompletableFuture<>();
+
+        /** The queue the envelope was started from. */
+        private DomainQueue queue;
+
+        /**
+         * Constructor.
+         *
+         * @param message the encoded message
+         * @param envelope the envelope
+         */
+        Task(final SerializedMessage message, final Envelope envelope)
+        {
+            this.message = message;
+            this.envelope = envelope;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The envelope of an SMTP transaction: the reverse path used in the MAIL
+ * FROM command and the recipients of the RCPT TO commands.
+ * <p>
+ * This class is immutable.
+ *
+ * @see EnvelopeSender
+ * @since 1.6
+ */
+public final class Envelope
+{
+    /** The reverse path, null for the default of the mail session. */
+    private final String from;
+
+    /** The recipients. */
+    private final List<Address> recipients;
+
+    /**
+     * Constructor.
+     *
+     * @param from the address used in the MAIL FROM command, null for the
+     *        default of the mail session, i.e. its bounce address or the From
+     *        header of the message
+     * @param recipients the recipients
+     * @throws IllegalArgumentException if there are no recipients
+     */
+    public Envelope(final String from, final Collection<? extends Address> recipients)
+    {
+        if (recipients == null || recipients.isEmpty())
+        {
+            throw new IllegalArgumentException("recipients can not be null or empty");
+        }
+        this.from = from;
+        this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param from the address used in the MAIL FROM command, null for the
+     *        default of the mail session
+     * @param recipients the recipients
+     * @throws IllegalArgumentException if there are no recipients
+     */
+    public Envelope(final String from, final Address... recipients)
+    {
+        this(from, recipients != null ? Arrays.asList(recipients) : null);
+    }
+
+    /**
+     * Creates the envelope of a message, i.e. all its To, Cc and Bcc
+     * recipients and the default reverse path.
+     *
+     * @param message the message
+     * @return the envelope
+     * @throws MessagingException reading the recipients failed
+     * @throws IllegalArgumentException if the message has no recipients
+     */
+    public static Envelope of(final MimeMessage message) throws MessagingException
+    {
+        return new Envelope(null, message.getAllRecipients());
+    }
+
+    /**
+     * Creates a VERP (variable envelope return path) bounce address for a
+     * recipient, so a bounce identifies the recipient it belongs to, e.g.
+     * {@code bounces+jane=example.org@example.com} for the bounce address
+     * {@code bounces@example.com} and the recipient {@code jane@example.org}.
+     *
+     * @param bounceAddress the bounce address
+     * @param recipient the recipient
+     * @return the bounce address of the recipient
+     * @throws IllegalArgumentException if an address has no domain
+     */
+    public static String verp(final String bounceAddress, final Address recipient)
+    {
+        final String address = recipient instanceof InternetAddress
+                ? ((InternetAddress) recipient).getAddress() : recipient.toString();
+        final int bounceAt = bounceAddress.lastIndexOf('@');
+        final int recipientAt = address.lastIndexOf('@');
+        if (bounceAt < 0 || recipientAt < 0)
+        {
+            throw new IllegalArgumentException("The addresses must have a domain");
+        }
+        return bounceAddress.substring(0, bounceAt) + '+' + address.substring(0, recipientAt) + '='
+                + address.substring(recipientAt + 1) + bounceAddress.substring(bounceAt);
+    }
+
+    /**
+     * Splits the envelope into envelopes with the same reverse path and at
+     * most the given number of recipients each.
+     *
+     * @param maxRecipients the maximum number of recipients per envelope
+     * @return the envelopes, this envelope if it is small enough
+     * @throws IllegalArgumentException if the maximum is not positive
+     */
+    public List<Envelope> split(final int maxRecipients)
+    {
+        if (maxRecipients < 1)
+        {
+            throw new IllegalArgumentException("maxRecipients must be greater than 0");
+        }
+        if (recipients.size() <= maxRecipients)
+        {
+            return Collections.singletonList(this);
+        }
+
+        final List<Envelope> envelopes = new ArrayList<>((recipients.size() + maxRecipients - 1) / maxRecipients);
+        for (int i = 0; i < recipients.size(); i += maxRecipients)
+        {
+            envelopes.add(new Envelope(from, recipients.subList(i, Math.min(i + maxRecipients, recipients.size()))));
+        }
+        return envelopes;
+    }
+
+    /**
+     * Gets the reverse path.
+     *
+     * @return the address used in the MAIL FROM command, null for the default of the mail session
+     */
+    public String getFrom()
+    {
+        return from;
+    }
+
+    /**
+     * Gets the recipients.
+     *
+     * @return the unmodifiable recipients
+     */
+    public List<Address> getRecipients()
+    {
+        return recipients;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return "Envelope[from=" + from + ", recipients=" + recipients.size() + "]";
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+
+/**
+ * The result of sending a message to an {@link Envelope}: the recipients the
+ * message was delivered to and the failure of each other recipient.
+ * <p>
+ * This class is immutable.
+ *
+ * @see EnvelopeSender
+ * @since 1.6
+ */
+public final class EnvelopeResult
+{
+    /** The envelope. */
+    private final Envelope envelope;
+
+    /** The Message-ID. */
+    private final String messageId;
+
+    /** The recipients the message was delivered to. */
+    private final List<Address> delivered;
+
+    /** The failures by recipient. */
+    private final Map<Address, MessagingException> failed;
+
+    /** The failure of the transaction, null if successful. */
+    private final MessagingException exception;
+
+    /**
+     * Constructor.
+     *
+     * @param envelope the envelope
+     * @param messageId the Message-ID
+     * @param delivered the recipients the message was delivered to
+     * @param failed the failures by recipient
+     * @param exception the failure of the transaction, null if successful
+     */
+    private EnvelopeResult(final Envelope envelope, final String messageId, final List<Address> delivered,
+            final Map<Address, MessagingException> failed, final MessagingException exception)
+    {
+        this.envelope = envelope;
+        this.messageId = messageId;
+        this.delivered = Collections.unmodifiableList(delivered);
+        this.failed = Collections.unmodifiableMap(failed);
+        this.exception = exception;
+    }
+
+    /**
+     * Creates the result of a message delivered to all recipients.
+     *
+     * @param envelope the envelope
+     * @param messageId the Message-ID
+     * @return the result
+     */
+    static EnvelopeResult success(final Envelope envelope, final String messageId)
+    {
+        return new EnvelopeResult(envelope, messageId, envelope.getRecipients(),
+                Collections.<Address, MessagingException>emptyMap(), null);
+    }
+
+    /**
+     * Creates the result of a failed transaction. The recipients of a
+     * {@code SendFailedException} are reported individually, e.g. the valid
+     * recipients a partial message was sent to count as delivered. All
+     * recipients failed for other exceptions.
+     *
+     * @param envelope the envelope
+     * @param messageId the Message-ID
+     * @param exception the failure
+     * @return the result
+     */
+    static EnvelopeResult failure(final Envelope envelope, final String messageId,
+            final MessagingException exception)
+    {
+        final List<Address> delivered = new ArrayList<>();
+        final Map<Address, MessagingException> failed = new LinkedHashMap<>();
+
+        if (exception instanceof SendFailedException)
+        {
+            final SendFailedException sendFailed = (SendFailedException) exception;
+            addAll(delivered, sendFailed.getValidSentAddresses());
+
+            // the reply to each rejected RCPT TO is chained
+            Exception next = exception.getNextException();
+            while (next != null)
+            {
+                if (next instanceof SMTPAddressFailedException)
+                {
+                    final SMTPAddressFailedException addressFailed = (SMTPAddressFailedException) next;
+                    failed.put(addressFailed.getAddress(), addressFailed);
+                }
+                next = next instanceof MessagingException ? ((MessagingException) next).getNextException() : null;
+            }
+        }
+
+        for (final Address recipient : envelope.getRecipients())
+        {
+            if (!delivered.contains(recipient) && !failed.containsKey(recipient))
+            {
+                failed.put(recipient, exception);
+            }
+        }
+        return new EnvelopeResult(envelope, messageId, delivered, failed, exception);
+    }
+
+    /**
+     * Adds the addresses to a list.
+     *
+     * @param list the list
+     * @param addresses the addresses, may be null
+     */
+    private static void addAll(final List<Address> list, final Address[] addresses)
+    {
+        if (addresses != null)
+        {
+            Collections.addAll(list, addresses);
+        }
+    }
+
+    /**
+     * Was the message delivered to all recipients?
+     *
+     * @return true if successful
+     */
+    public boolean isSuccess()
+    {
+        return exception == null;
+    }
+
+    /**
+     * Gets the envelope.
+     *
+     * @return the envelope
+     */
+    public Envelope getEnvelope()
+    {
+        return envelope;
+    }
+
+    /**
+     * Gets the Message-ID of the message.
+     *
+     * @return the Message-ID
+     */
+    public String getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * Gets the recipients the message was delivered to.
+     *
+     * @return the unmodifiable recipients
+     */
+    public List<Address> getDelivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * Gets the recipients the message was not delivered to and their failures.
+     *
+     * @return the unmodifiable failures by recipient
+     */
+    public Map<Address, MessagingException> getFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * Gets the failure of the transaction.
+     *
+     * @return the failure, null if successful
+     */
+    public MessagingException getException()
+    {
+        return exception;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return "EnvelopeResult[" + envelope + ", delivered=" + delivered.size() + ", failed=" + failed.size() + "]";
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * Sends an encoded message to envelopes, one SMTP transaction per envelope.
+ * The content is encoded once by {@link SerializedMessage} and the same bytes
+ * are sent in every transaction, e.g. to send a notification to each
+ * recipient separately instead of building one email per recipient.
+ *
+ * <pre>
+ * email.buildMimeMessage();
+ * email.getMimeMessage().saveChanges();
+ * EnvelopeSender sender = new EnvelopeSender(pool, SendExecutor.getDefault());
+ * List&lt;EnvelopeResult&gt; results = sender.sendAll(email.getMimeMessage(), recipients.stream()
+ *     .map(to -&gt; new Envelope(Envelope.verp("bounces@example.com", to), to)));
+ * </pre>
+ *
+ * Each envelope is sent as a message carrying the envelope by a
+ * {@link MailTransport}, e.g. a {@link TransportPool} reusing pooled
+ * connections, a {@link org.apache.commons.mail.transport.nio.NioSmtpClient},
+ * a {@link RelayGroup} or a {@link RetryingMailTransport}; without one each
+ * transaction opens a new connection. With an executor the envelopes are
+ * sent concurrently.
+ *
+ * @since 1.6
+ */
+public class EnvelopeSender
+{
+    /** The default maximum number of envelopes handed to the executor at once. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+    /** The upper bound of the envelopes handed to the executor at once. */
+    public static final int MAX_IN_FLIGHT_LIMIT = 65534;
+
+    /** The transport sending the envelopes. */
+    private final MailTransport transport;
+
+    /** The executor sending the envelopes concurrently, may be null. */
+    private final Executor executor;
+
+    /** The maximum number of envelopes handed to the executor at once. */
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * Creates a sender opening one connection per envelope.
+     */
+    public EnvelopeSender()
+    {
+        this(null);
+    }
+
+    /**
+     * Creates a sender using a transport, e.g. a {@link TransportPool}.
+     *
+     * @param transport the transport or null to open one connection per envelope
+     */
+    public EnvelopeSender(final MailTransport transport)
+    {
+        this(transport, null);
+    }
+
+    /**
+     * Creates a sender sending envelopes concurrently.
+     *
+     * @param transport the transport or null to open one connection per envelope
+     * @param executor the executor sending the envelopes or null to send them in the calling thread
+     */
+    public EnvelopeSender(final MailTransport transport, final Executor executor)
+    {
+        this.transport = transport != null ? transport : new JavaMailTransport();
+        this.executor = executor;
+    }
+
+    /**
+     * Sends the message to an envelope.
+     *
+     * @param message the encoded message
+     * @param envelope the envelope
+     * @return the result
+     */
+    public EnvelopeResult send(final SerializedMessage message, final Envelope envelope)
+    {
+        try
+        {
+            final Address[] recipients = envelope.getRecipients().toArray(new Address[0]);
+            transport.send(message.createMimeMessage(envelope.getFrom(), recipients));
+            return EnvelopeResult.success(envelope, message.getMessageId());
+        }
+        catch (final MessagingException e)
+        {
+            return EnvelopeResult.failure(envelope, message.getMessageId(), e);
+        }
+        catch (final RuntimeException e)
+        {
+            return EnvelopeResult.failure(envelope, message.getMessageId(),
+                    new MessagingException("Sending to " + envelope + " failed", e));
+        }
+    }
+
+    /**
+     * Sends the message to the envelopes, concurrently if an executor is set.
+     *
+     * @param message the encoded message
+     * @param envelopes the envelopes
+     * @return the results in the order of the envelopes
+     * @throws java.util.concurrent.RejectedExecutionException if the executor rejects an envelope
+     */
+    public List<EnvelopeResult> sendAll(final SerializedMessage message, final List<Envelope> envelopes)
+    {
+        return sendAll(message, envelopes.iterator());
+    }
+
+    /**
+     * Encodes the message once and sends it to each envelope of a stream,
+     * e.g. one envelope per recipient with its own bounce address.
+     *
+     * @param message the saved message
+     * @param envelopes the envelopes
+     * @return the results in the order of the envelopes
+     * @throws MessagingException encoding the message failed
+     * @throws java.util.concurrent.RejectedExecutionException if the executor rejects an envelope
+     */
+    public List<EnvelopeResult> sendAll(final MimeMessage message, final Stream<Envelope> envelopes)
+        throws MessagingException
+    {
+        return sendAll(SerializedMessage.of(message), envelopes.iterator());
+    }
+
+    /**
+     * Sends the message to the envelopes, concurrently if an executor is set.
+     * The envelopes are consumed as they are sent, at most
+     * {@link #getMaxInFlight()} envelopes are handed to the executor at once.
+     *
+     * @param message the encoded message
+     * @param envelopes the envelopes
+     * @return the results in the order of the envelopes
+     * @throws java.util.concurrent.RejectedExecutionException if the executor rejects an envelope
+     */
+    public List<EnvelopeResult> sendAll(final SerializedMessage message, final Iterator<Envelope> envelopes)
+    {
+        final List<EnvelopeResult> results = new ArrayList<>();
+
+        if (executor == null)
+        {
+            while (envelopes.hasNext())
+            {
+                results.add(send(message, envelopes.next()));
+            }
+            return results;
+        }
+
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final Phaser pending = new Phaser(1);
+        try
+        {
+            while (envelopes.hasNext())
+            {
+                final Envelope envelope = envelopes.next();
+                final int index;
+                synchronized (results)
+                {
+                    index = results.size();
+                    results.add(null);
+                }
+
+                inFlight.acquireUninterruptibly();
+                pending.register();
+                try
+                {
+                    executor.execute(() -> {
+                        try
+                        {
+                            final EnvelopeResult result = send(message, envelope);
+                            synchronized (results)
+                            {
+                                results.set(index, result);
+                            }
+                        }
+                        finally
+                        {
+                            inFlight.release();
+                            pending.arriveAndDeregister();
+                        }
+                    });
+                }
+                catch (final RuntimeException e)
+                {
+                    inFlight.release();
+                    pending.arriveAndDeregister();
+                    throw e;
+                }
+            }
+        }
+        finally
+        {
+            // the results are shared with the sending threads
+            pending.arriveAndAwaitAdvance();
+        }
+
+        synchronized (results)
+        {
+            return new ArrayList<>(results);
+        }
+    }
+
+    /**
+     * Gets the maximum number of envelopes handed to the executor at once.
+     *
+     * @return the maximum
+     */
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of envelopes handed to the executor at once,
+     * which bounds the envelopes held in memory while sending a stream.
+     *
+     * @param maxInFlight the maximum, between 1 and {@value #MAX_IN_FLIGHT_LIMIT}
+     * @return this sender
+     * @throws IllegalArgumentException if the maximum is out of range
+     */
+    public EnvelopeSender setMaxInFlight(final int maxInFlight)
+    {
+        if (maxInFlight < 1 || maxInFlight > MAX_IN_FLIGHT_LIMIT)
+        {
+            throw new IllegalArgumentException("maxInFlight must be between 1 and " + MAX_IN_FLIGHT_LIMIT);
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Gets the transport sending the envelopes.
+     *
+     * @return the transport, a {@link JavaMailTransport} if none was given
+     */
+    public MailTransport getMailTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Gets the executor sending envelopes concurrently.
+     *
+     * @return the executor, null if envelopes are sent in the calling thread
+     */
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * A {@link MailTransport} capturing the messages in memory without any I/O,
+ * e.g. for tests or for measuring the cost of building messages without the
+ * noise of a network connection.
+ * <p>
+ * Optionally the messages are written to a discarding stream, which performs
+ * the content encoding a real transport would do and counts the bytes.
+ * Keeping the messages can be turned off for long running benchmarks.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public class InMemoryMailTransport implements MailTransport
+{
+    /** Keep the messages sent? */
+    private final boolean retainMessages;
+
+    /** Write the messages to measure the encoding? */
+    private final boolean writeMessages;
+
+    /** The messages sent. */
+    private final List<MimeMessage> messages = new ArrayList<>();
+
+    /** The number of messages sent. */
+    private final AtomicLong sentCount = new AtomicLong();
+
+    /** The number of bytes written. */
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    /** Has the transport been closed? */
+    private volatile boolean closed;
+
+    /**
+     * Creates a transport keeping the messages without writing them.
+     */
+    public InMemoryMailTransport()
+    {
+        this(true, false);
+    }
+
+    /**
+     * Creates a transport.
+     *
+     * @param retainMessages whether to keep the messages sent
+     * @param writeMessages whether to write the messages to a discarding stream
+     */
+    public InMemoryMailTransport(final boolean retainMessages, final boolean writeMessages)
+    {
+        this.retainMessages = retainMessages;
+        this.writeMessages = writeMessages;
+    }
+
+    /**
+     * Captures the message.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException the message has no recipients or writing it failed
+     * @throws IllegalStateException the transport has been closed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("The transport has been closed");
+        }
+
+        final Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        if (writeMessages)
+        {
+            final CountingOutputStream out = new CountingOutputStream();
+            try
+            {
+                message.writeTo(out);
+            }
+            catch (final IOException e)
+            {
+                throw new MessagingException("Writing the message failed", e);
+            }
+            sentBytes.addAndGet(out.count);
+        }
+
+        if (retainMessages)
+        {
+            synchronized (messages)
+            {
+                messages.add(message);
+            }
+        }
+        sentCount.incrementAndGet();
+        return message.getMessageID();
+    }
+
+    /**
+     * @return a copy of the messages sent, empty if not retaining messages
+     */
+    public List<MimeMessage> getMessages()
+    {
+        synchronized (messages)
+        {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    /**
+     * @return the number of messages sent
+     */
+    public long getSentCount()
+    {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of bytes written, zero if not writing messages
+     */
+    public long getSentBytes()
+    {
+        return sentBytes.get();
+    }
+
+    /**
+     * Forgets the messages sent and resets the counters.
+     */
+    public void clear()
+    {
+        synchronized (messages)
+        {
+            messages.clear();
+        }
+        sentCount.set(0);
+        sentBytes.set(0);
+    }
+
+    /**
+     * Closes the transport, further sends are rejected.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+    }
+
+    /**
+     * An output stream discarding the bytes written but counting them.
+     */
+    private static final class CountingOutputStream extends OutputStream
+    {
+        /** The number of bytes written. */
+        private long count;
+
+        @Override
+        public void write(final int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * The default {@link MailTransport} sending every message like
+ * {@code Transport.send()}: a transport for the message session is connected,
+ * sends the message and is closed again. Unlike {@code Transport.send()} the
+ * message is not saved again.
+ *
+ * @since 1.6
+ */
+public class JavaMailTransport implements MailTransport
+{
+    /**
+     * Sends the message using a new connection.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        final Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        Session session = message.getSession();
+        if (session == null)
+        {
+            // same fallback as Transport.send()
+            session = Session.getDefaultInstance(System.getProperties(), null);
+        }
+
+        final Transport transport = session.getTransport(recipients[0]);
+        try
+        {
+            transport.connect();
+            transport.sendMessage(message, recipients);
+        }
+        finally
+        {
+            transport.close();
+        }
+        return message.getMessageID();
+    }
+}
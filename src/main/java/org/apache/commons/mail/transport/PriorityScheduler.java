@@ -0,0 +1,556 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * Sends messages through named {@link SendLane lanes}, so transactional mail
+ * such as password resets is not queued behind a bulk campaign.
+ * <p>
+ * The scheduler sends at most a given number of messages at once, e.g. the
+ * connections of the {@link TransportPool} behind the transport. Whenever a
+ * message has been sent the free slot goes to the next message of a lane
+ * below its own cap, chosen by the {@link Policy}: the strict policy always
+ * prefers the lane with the highest weight, the weighted policy shares the
+ * slots among the lanes with queued messages in proportion to their
+ * weights. A lane's cap bounds its share of the slots, so a bulk lane
+ * capped below the total always leaves slots for other lanes.
+ *
+ * <pre>
+ * PriorityScheduler scheduler = new PriorityScheduler(pool, SendExecutor.getDefault(), 8);
+ * SendLane transactional = scheduler.addLane("transactional", 10, 8);
+ * SendLane bulk = scheduler.addLane("bulk", 1, 6);
+ * email.setMailTransport(transactional);
+ * </pre>
+ *
+ * Messages of a lane are started in the order they were queued.
+ *
+ * @since 1.6
+ */
+public class PriorityScheduler implements MailTransport
+{
+    /**
+     * How the free slots are shared among the lanes.
+     */
+    public enum Policy
+    {
+        /** The lane with the highest weight and queued messages goes first. */
+        STRICT,
+
+        /** The lanes with queued messages share the slots in proportion to their weights. */
+        WEIGHTED
+    }
+
+    /** The virtual time a message of a lane with weight 1 takes for the weighted policy. */
+    private static final long STRIDE = 1L << 20;
+
+    /** The transport sending the messages. */
+    private final MailTransport transport;
+
+    /** The executor sending the messages. */
+    private final Executor executor;
+
+    /** The maximum number of messages sent at once. */
+    private final int maxConcurrency;
+
+    /** Guards the lanes and counters. */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** The lanes by name in the order they were added. */
+    private final Map<String, SendLane> lanes = new LinkedHashMap<>();
+
+    /** The policy sharing the slots. */
+    private Policy policy = Policy.WEIGHTED;
+
+    /** The lane used by {@link #send(MimeMessage)}. */
+    private SendLane defaultLane;
+
+    /** The number of messages being sent. */
+    private int active;
+
+    /** The virtual time of the last started message for the weighted policy. */
+    private long virtualTime;
+
+    /** Has the scheduler been closed? */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param transport the transport sending the messages
+     * @param executor the executor sending the messages
+     * @param maxConcurrency the maximum number of messages sent at once
+     * @throws IllegalArgumentException if an argument is null or the
+     *         concurrency is not positive
+     */
+    public PriorityScheduler(final MailTransport transport, final Executor executor, final int maxConcurrency)
+    {
+        if (transport == null || executor == null)
+        {
+            throw new IllegalArgumentException("transport and executor can not be null");
+        }
+        if (maxConcurrency < 1)
+        {
+            throw new IllegalArgumentException("maxConcurrency must be greater than 0");
+        }
+        this.transport = transport;
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Adds a lane. The first lane added is the default lane.
+     *
+     * @param name the name of the lane
+     * @param weight the priority of the lane for the strict policy and its
+     *        share of the slots for the weighted policy
+     * @param maxConcurrency the maximum number of messages of the lane sent at once
+     * @return the lane
+     * @throws IllegalArgumentException if a lane with the name exists or a
+     *         value is not positive
+     */
+    public SendLane addLane(final String name, final int weight, final int maxConcurrency)
+    {
+        if (name == null)
+        {
+            throw new IllegalArgumentException("name can not be null");
+        }
+        if (weight < 1 || maxConcurrency < 1)
+        {
+            throw new IllegalArgumentException("weight and maxConcurrency must be greater than 0");
+        }
+        lock.lock();
+        try
+        {
+            if (lanes.containsKey(name))
+            {
+                throw new IllegalArgumentException("The lane " + name + " already exists");
+            }
+            final SendLane lane = new SendLane(this, name, weight, maxConcurrency);
+            lane.pass = virtualTime;
+            lanes.put(name, lane);
+            if (defaultLane == null)
+            {
+                defaultLane = lane;
+            }
+            return lane;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a lane.
+     *
+     * @param name the name of the lane
+     * @return the lane or null if there is no lane with the name
+     */
+    public SendLane getLane(final String name)
+    {
+        lock.lock();
+        try
+        {
+            return lanes.get(name);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the lanes.
+     *
+     * @return the lanes in the order they were added
+     */
+    public List<SendLane> getLanes()
+    {
+        lock.lock();
+        try
+        {
+            return Collections.unmodifiableList(new ArrayList<>(lanes.values()));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the lane used by {@link #send(MimeMessage)}.
+     *
+     * @param name the name of the lane
+     * @return this scheduler
+     * @throws IllegalArgumentException if there is no lane with the name
+     */
+    public PriorityScheduler setDefaultLane(final String name)
+    {
+        lock.lock();
+        try
+        {
+            final SendLane lane = lanes.get(name);
+            if (lane == null)
+            {
+                throw new IllegalArgumentException("There is no lane " + name);
+            }
+            defaultLane = lane;
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the policy sharing the free slots among the lanes.
+     *
+     * @param policy the policy
+     * @return this scheduler
+     * @throws IllegalArgumentException if the policy is null
+     */
+    public PriorityScheduler setPolicy(final Policy policy)
+    {
+        if (policy == null)
+        {
+            throw new IllegalArgumentException("policy can not be null");
+        }
+        lock.lock();
+        try
+        {
+            this.policy = policy;
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the policy sharing the free slots among the lanes.
+     *
+     * @return the policy
+     */
+    public Policy getPolicy()
+    {
+        lock.lock();
+        try
+        {
+            return policy;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the maximum number of messages sent at once.
+     *
+     * @return the maximum concurrency
+     */
+    public int getMaxConcurrency()
+    {
+        return maxConcurrency;
+    }
+
+    /**
+     * Gets the number of messages being sent.
+     *
+     * @return the active messages of all lanes
+     */
+    public int getActive()
+    {
+        lock.lock();
+        try
+        {
+            return active;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a message through the default lane and waits until it has been sent.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed
+     * @throws IllegalStateException if there are no lanes or the scheduler has been closed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        final SendLane lane;
+        lock.lock();
+        try
+        {
+            lane = defaultLane;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (lane == null)
+        {
+            throw new IllegalStateException("The scheduler has no lanes");
+        }
+        return lane.send(message);
+    }
+
+    /**
+     * Fails the queued messages which have not been started. The transport
+     * is not closed.
+     */
+    @Override
+    public void close()
+    {
+        final List<Task> abandoned = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            closed = true;
+            for (final SendLane lane : lanes.values())
+            {
+                abandoned.addAll(lane.pending);
+                lane.pending.clear();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        final MessagingException exception = new MessagingException("The scheduler has been closed");
+        for (final Task task : abandoned)
+        {
+            task.future.completeExceptionally(exception);
+        }
+    }
+
+    /**
+     * Queues a message in a lane and starts it if a slot is free.
+     *
+     * @param lane the lane
+     * @param message the saved message
+     * @return the Message-ID, completed once the message has been sent
+     * @throws IllegalStateException if the scheduler has been closed
+     */
+    CompletableFuture<String> submit(final SendLane lane, final MimeMessage message)
+    {
+        final Task task = new Task(lane, message);
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("The scheduler has been closed");
+            }
+            if (lane.pending.isEmpty())
+            {
+                // an idle lane does not save up slots for later
+                lane.pass = Math.max(lane.pass, virtualTime);
+            }
+            lane.pending.add(task);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        dispatch();
+        return task.future;
+    }
+
+    /**
+     * Starts queued messages while slots are free. The slots of messages
+     * rejected by the executor are handed to the next queued messages.
+     */
+    private void dispatch()
+    {
+        boolean rejected;
+        do
+        {
+            final List<Task> started = new ArrayList<>();
+            lock.lock();
+            try
+            {
+                final long now = System.nanoTime();
+                while (active < maxConcurrency && !closed)
+                {
+                    final SendLane lane = nextLane();
+                    if (lane == null)
+                    {
+                        break;
+                    }
+                    final Task task = lane.pending.poll();
+                    lane.started(task, now);
+                    active++;
+                    started.add(task);
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            // outside of the lock, the executor may run the task in this thread
+            rejected = false;
+            for (final Task task : started)
+            {
+                rejected |= !execute(task);
+            }
+        }
+        while (rejected);
+    }
+
+    /**
+     * Chooses the lane of the next message. The caller holds the lock.
+     *
+     * @return the lane or null if no lane can start a message
+     */
+    private SendLane nextLane()
+    {
+        SendLane next = null;
+        for (final SendLane lane : lanes.values())
+        {
+            if (lane.isReady() && (next == null
+                    || (policy == Policy.STRICT ? lane.getWeight() > next.getWeight() : lane.pass < next.pass)))
+            {
+                next = lane;
+            }
+        }
+        if (next != null && policy == Policy.WEIGHTED)
+        {
+            virtualTime = next.pass;
+            next.pass += STRIDE / next.getWeight();
+        }
+        return next;
+    }
+
+    /**
+     * Sends a message using the executor.
+     *
+     * @param task the task
+     * @return false if the executor rejected the message, its slot is free again
+     */
+    private boolean execute(final Task task)
+    {
+        try
+        {
+            executor.execute(() -> {
+                String messageId = null;
+                Exception failure = null;
+                try
+                {
+                    messageId = transport.send(task.message);
+                }
+                catch (final MessagingException | RuntimeException e)
+                {
+                    failure = e;
+                }
+                finally
+                {
+                    // the slot is free before the sender learns the result
+                    finished(task.lane);
+                }
+                if (failure == null)
+                {
+                    task.future.complete(messageId);
+                }
+                else
+                {
+                    task.future.completeExceptionally(failure);
+                }
+                dispatch();
+            });
+            return true;
+        }
+        catch (final RuntimeException e)
+        {
+            finished(task.lane);
+            task.future.completeExceptionally(new MessagingException("Sending the message was rejected", e));
+            return false;
+        }
+    }
+
+    /**
+     * Records the end of a message.
+     *
+     * @param lane the lane of the message
+     */
+    private void finished(final SendLane lane)
+    {
+        lock.lock();
+        try
+        {
+            lane.active--;
+            active--;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A queued message.
+     */
+    static final class Task
+    {
+        /** The lane of the message. */
+        final SendLane lane;
+
+        /** The message. */
+        final MimeMessage message;
+
+        /** When the message was queued. */
+        final long queuedNanos = System.nanoTime();
+
+        /** The Message-ID, completed once the message has been sent. */
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        /**
+         * Creates a task.
+         *
+         * @param lane the lane of the message
+         * @param message the message
+         */
+        Task(final SendLane lane, final MimeMessage message)
+        {
+            this.lane = lane;
+            this.message = message;
+        }
+    }
+}
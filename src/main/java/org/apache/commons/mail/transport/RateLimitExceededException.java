@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import javax.mail.MessagingException;
+
+/**
+ * Signals that a message was not sent because the rate limit of its relay
+ * has been exceeded. The failure is transient, see {@link RetryPolicy}.
+ *
+ * @see RateLimitedMailTransport
+ * @since 1.6
+ */
+public class RateLimitExceededException extends MessagingException
+{
+    /** Serializable version identifier. */
+    private static final long serialVersionUID = 20261018L;
+
+    /** The time until a permit becomes available. */
+    private final long retryAfterMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param relay the relay, i.e. host and port
+     * @param retryAfterMillis the time until a permit becomes available
+     */
+    public RateLimitExceededException(final String relay, final long retryAfterMillis)
+    {
+        super("The rate limit of " + relay + " has been exceeded, retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Gets the time until a permit becomes available, at the time of the rejection.
+     *
+     * @return the time in milliseconds
+     */
+    public long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.EmailConstants;
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * A {@link MailTransport} enforcing per-relay rate limits before handing a
+ * message to another transport.
+ * <p>
+ * The limits are token buckets registered JVM-wide for a relay, i.e. the host
+ * and port of the message session ({@code mail.smtp.host} and
+ * {@code mail.smtp.port}, as set by {@code Email.setHostName()} and
+ * {@code Email.setSmtpPort()}). All instances of this class, and therefore all
+ * emails sent through them, share the limit of a relay. Messages to relays
+ * without a limit are passed on immediately.
+ *
+ * <pre>
+ * RateLimitedMailTransport.setRateLimit("smtp.example.com", 587, 10, 20);
+ * Email.setDefaultMailTransport(new RateLimitedMailTransport(new JavaMailTransport()));
+ * </pre>
+ *
+ * If no permit is available a sender either waits for one, or fails
+ * immediately with a {@link RateLimitExceededException} when created with a
+ * maximum wait of zero. The rejection is transient, so a
+ * {@link RetryingMailTransport} wrapping this transport retries it.
+ * <p>
+ * The number of connections per relay is limited by the pooling transports,
+ * see {@link TransportPool} and {@code NioSmtpClient}.
+ *
+ * @since 1.6
+ */
+public class RateLimitedMailTransport implements MailTransport
+{
+    /** Waits as long as necessary for a permit. */
+    public static final long WAIT_FOREVER = Long.MAX_VALUE;
+
+    /** The limits by relay, i.e. "host:port". */
+    private static final ConcurrentMap<String, TokenBucket> LIMITS = new ConcurrentHashMap<>();
+
+    /** The transport sending the messages. */
+    private final MailTransport delegate;
+
+    /** The maximum time to wait for a permit. */
+    private final long maxWaitMillis;
+
+    /**
+     * Creates a transport waiting as long as necessary for a permit.
+     *
+     * @param delegate the transport sending the messages
+     * @throws IllegalArgumentException if the delegate is null
+     */
+    public RateLimitedMailTransport(final MailTransport delegate)
+    {
+        this(delegate, WAIT_FOREVER);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate the transport sending the messages
+     * @param maxWaitMillis the maximum time to wait for a permit, zero to
+     *        reject messages immediately and {@link #WAIT_FOREVER} to wait as
+     *        long as necessary
+     * @throws IllegalArgumentException if the delegate is null or the wait negative
+     */
+    public RateLimitedMailTransport(final MailTransport delegate, final long maxWaitMillis)
+    {
+        if (delegate == null)
+        {
+            throw new IllegalArgumentException("delegate can not be null");
+        }
+        if (maxWaitMillis < 0)
+        {
+            throw new IllegalArgumentException("maxWaitMillis can not be negative");
+        }
+        this.delegate = delegate;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Sets the rate limit of a relay, replacing any previous limit. The new
+     * bucket starts full.
+     *
+     * @param host the host name of the relay
+     * @param port the port of the relay
+     * @param permitsPerSecond the messages per second
+     * @param burst the number of messages which may be sent at once after a quiet period
+     * @return the token bucket of the relay
+     * @throws IllegalArgumentException if the host is null or a value is not positive
+     */
+    public static TokenBucket setRateLimit(final String host, final int port, final double permitsPerSecond,
+            final int burst)
+    {
+        final TokenBucket bucket = new TokenBucket(permitsPerSecond, burst);
+        LIMITS.put(relay(host, port), bucket);
+        return bucket;
+    }
+
+    /**
+     * Removes the rate limit of a relay.
+     *
+     * @param host the host name of the relay
+     * @param port the port of the relay
+     */
+    public static void removeRateLimit(final String host, final int port)
+    {
+        LIMITS.remove(relay(host, port));
+    }
+
+    /**
+     * Removes all rate limits.
+     */
+    public static void clearRateLimits()
+    {
+        LIMITS.clear();
+    }
+
+    /**
+     * Gets the rate limit of a relay.
+     *
+     * @param host the host name of the relay
+     * @param port the port of the relay
+     * @return the token bucket, null if the relay is not limited
+     */
+    public static TokenBucket getRateLimit(final String host, final int port)
+    {
+        return LIMITS.get(relay(host, port));
+    }
+
+    /**
+     * Sends the message once a permit of its relay is available.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws RateLimitExceededException no permit became available in time
+     * @throws MessagingException sending the message failed or the wait was interrupted
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        final Session session = message.getSession();
+        if (session != null && !LIMITS.isEmpty())
+        {
+            final String relay = relay(session);
+            final TokenBucket bucket = LIMITS.get(relay);
+            if (bucket != null)
+            {
+                acquire(bucket, relay);
+            }
+        }
+        return delegate.send(message);
+    }
+
+    /**
+     * Closes the underlying transport.
+     */
+    @Override
+    public void close()
+    {
+        delegate.close();
+    }
+
+    /**
+     * Gets the transport sending the messages.
+     *
+     * @return the underlying transport
+     */
+    public MailTransport getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Gets the maximum time to wait for a permit.
+     *
+     * @return the time in milliseconds, {@link #WAIT_FOREVER} if unlimited
+     */
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Takes a permit from the bucket.
+     *
+     * @param bucket the token bucket
+     * @param relay the relay
+     * @throws MessagingException no permit became available in time or the wait was interrupted
+     */
+    private void acquire(final TokenBucket bucket, final String relay) throws MessagingException
+    {
+        final boolean acquired;
+        if (maxWaitMillis == 0)
+        {
+            acquired = bucket.tryAcquire();
+        }
+        else
+        {
+            try
+            {
+                acquired = bucket.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for the rate limit of " + relay, e);
+            }
+        }
+
+        if (!acquired)
+        {
+            throw new RateLimitExceededException(relay, bucket.getWaitTime(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Gets the relay of a mail session, using the JavaMail defaults for a
+     * missing host or port.
+     *
+     * @param session the mail session
+     * @return the relay
+     */
+    static String relay(final Session session)
+    {
+        String protocol = session.getProperty(EmailConstants.MAIL_TRANSPORT_PROTOCOL);
+        if (protocol == null || protocol.isEmpty())
+        {
+            protocol = EmailConstants.SMTP;
+        }
+
+        final String prefix = "mail." + protocol + ".";
+        String host = session.getProperty(prefix + "host");
+        if (host == null)
+        {
+            host = "localhost";
+        }
+        final String port = session.getProperty(prefix + "port");
+        if (port != null)
+        {
+            return relay(host, Integer.parseInt(port.trim()));
+        }
+        final boolean ssl = "smtps".equals(protocol)
+                || Boolean.parseBoolean(session.getProperty(prefix + "ssl.enable"));
+        return relay(host, ssl ? 465 : 25);
+    }
+
+    /**
+     * Gets the key of a relay.
+     *
+     * @param host the host name
+     * @param port the port
+     * @return the key
+     */
+    static String relay(final String host, final int port)
+    {
+        if (host == null)
+        {
+            throw new IllegalArgumentException("host can not be null");
+        }
+        return host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+}
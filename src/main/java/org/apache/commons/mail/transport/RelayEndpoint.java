@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An SMTP relay of a {@link RelayGroup} and its health: a circuit breaker,
+ * the exponentially weighted moving average (EWMA) of its send latency and
+ * the number of sends in progress.
+ * <p>
+ * The circuit breaker opens after a number of consecutive failures, so the
+ * relay is skipped without waiting for connection timeouts. Once the open
+ * duration has passed a single trial send is let through (half-open); the
+ * circuit closes again if it succeeds and reopens otherwise.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public class RelayEndpoint
+{
+    /**
+     * The states of the circuit breaker.
+     */
+    public enum State
+    {
+        /** The relay is used. */
+        CLOSED,
+
+        /** The relay failed and is skipped. */
+        OPEN,
+
+        /** A trial send to the failed relay is in progress. */
+        HALF_OPEN
+    }
+
+    /** The host name. */
+    private final String host;
+
+    /** The port, null for the port of the mail session. */
+    private final String port;
+
+    /** The relative share of the load. */
+    private final int weight;
+
+    /** The state of the circuit breaker. */
+    private State state = State.CLOSED;
+
+    /** The number of consecutive failures. */
+    private int consecutiveFailures;
+
+    /** The time the circuit opened, see {@link System#nanoTime()}. */
+    private long openedAt;
+
+    /** The EWMA of the latency in nanoseconds, negative if nothing was measured yet. */
+    private double latencyNanos = -1;
+
+    /** The number of sends in progress. */
+    private int outstanding;
+
+    /**
+     * Constructor.
+     *
+     * @param host the host name
+     * @param port the port, null for the port of the mail session
+     * @param weight the relative share of the load
+     * @throws IllegalArgumentException if the host is empty or the weight not positive
+     */
+    public RelayEndpoint(final String host, final String port, final int weight)
+    {
+        if (host == null || host.isEmpty())
+        {
+            throw new IllegalArgumentException("host can not be null or empty");
+        }
+        if (weight < 1)
+        {
+            throw new IllegalArgumentException("weight must be greater than 0");
+        }
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+    }
+
+    /**
+     * Gets the host name.
+     *
+     * @return the host name
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Gets the port.
+     *
+     * @return the port, null for the port of the mail session
+     */
+    public String getPort()
+    {
+        return port;
+    }
+
+    /**
+     * Gets the relative share of the load.
+     *
+     * @return the weight
+     */
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Gets the state of the circuit breaker.
+     *
+     * @return the state
+     */
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Gets the number of consecutive failures.
+     *
+     * @return the number of failures since the last success
+     */
+    public synchronized int getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Gets the moving average of the send latency.
+     *
+     * @return the latency in milliseconds, -1 if nothing was measured yet
+     */
+    public synchronized double getLatencyMillis()
+    {
+        return latencyNanos < 0 ? -1 : latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Gets the number of sends in progress.
+     *
+     * @return the outstanding sends
+     */
+    public synchronized int getOutstanding()
+    {
+        return outstanding;
+    }
+
+    /**
+     * Gets the cost of another send to this relay, relays with lower costs
+     * are preferred. The cost grows with the outstanding sends and the
+     * latency, and shrinks with the weight.
+     *
+     * @param defaultLatencyNanos the latency assumed if nothing was measured yet
+     * @return the cost
+     */
+    synchronized double getCost(final double defaultLatencyNanos)
+    {
+        final double latency = latencyNanos < 0 ? defaultLatencyNanos : latencyNanos;
+        return (outstanding + 1) * Math.max(latency, 1) / weight;
+    }
+
+    /**
+     * Gets the measured latency.
+     *
+     * @return the latency in nanoseconds, negative if nothing was measured yet
+     */
+    synchronized double getLatencyNanos()
+    {
+        return latencyNanos;
+    }
+
+    /**
+     * Can a send use this relay now? An open circuit is not available until
+     * the open duration has passed.
+     *
+     * @param now the current time, see {@link System#nanoTime()}
+     * @param openDurationNanos the time the circuit stays open
+     * @return true if the relay may be used
+     */
+    synchronized boolean isAvailable(final long now, final long openDurationNanos)
+    {
+        switch (state)
+        {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return now - openedAt >= openDurationNanos;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Starts a send to this relay if it is available. A send to a relay whose
+     * open duration has passed is the trial send of the half-open circuit.
+     *
+     * @param now the current time, see {@link System#nanoTime()}
+     * @param openDurationNanos the time the circuit stays open
+     * @return false if the relay is not available
+     */
+    synchronized boolean start(final long now, final long openDurationNanos)
+    {
+        if (!isAvailable(now, openDurationNanos))
+        {
+            return false;
+        }
+        if (state == State.OPEN)
+        {
+            state = State.HALF_OPEN;
+        }
+        outstanding++;
+        return true;
+    }
+
+    /**
+     * Records a successful send and closes the circuit.
+     *
+     * @param elapsedNanos the latency of the send
+     * @param alpha the weight of the new sample in the moving average
+     */
+    synchronized void succeeded(final long elapsedNanos, final double alpha)
+    {
+        outstanding--;
+        latencyNanos = latencyNanos < 0 ? elapsedNanos : alpha * elapsedNanos + (1 - alpha) * latencyNanos;
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records a failure of the relay and opens the circuit if the trial send
+     * failed or the threshold is reached.
+     *
+     * @param now the current time, see {@link System#nanoTime()}
+     * @param failureThreshold the consecutive failures opening the circuit
+     */
+    synchronized void failed(final long now, final int failureThreshold)
+    {
+        outstanding--;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold)
+        {
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+
+    /**
+     * Records a send which failed for reasons unrelated to the relay's
+     * health, e.g. a rejected recipient.
+     */
+    synchronized void finished()
+    {
+        outstanding--;
+        if (state == State.HALF_OPEN)
+        {
+            // the relay answered, so it is healthy again
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString()
+    {
+        return host + (port != null ? ":" + port : "") + "[" + state + ", outstanding=" + outstanding + "]";
+    }
+}
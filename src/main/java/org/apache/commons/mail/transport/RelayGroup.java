@@ -0,0 +1,587 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.Authenticator;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.EmailConstants;
+import org.apache.commons.mail.MailTransport;
+
+import com.sun.mail.util.MailConnectException;
+
+/**
+ * A {@link MailTransport} spreading messages over a group of SMTP relays and
+ * failing over to another relay if a relay can not be connected.
+ * <p>
+ * The relays replace the host (and optionally the port) of the message
+ * session; all other session settings, including TLS and authentication, are
+ * used for every relay. The health of each relay is tracked by a
+ * {@link RelayEndpoint}: relays failing repeatedly are skipped by a circuit
+ * breaker until the open duration has passed.
+ * <p>
+ * By default the relay with the lowest cost is used, i.e. the fewest
+ * outstanding sends relative to its weight, scaled by the moving average of
+ * its latency, so a slow relay gets less load instead of stalling all senders.
+ * An ordered group always uses the first available relay, the others are
+ * backups.
+ *
+ * <pre>
+ * RelayGroup relays = new RelayGroup()
+ *     .addEndpoint("smtp1.example.com")
+ *     .addEndpoint("smtp2.example.com")
+ *     .addEndpoint("smtp3.example.com", "2525", 2);
+ * Email.setDefaultMailTransport(relays);
+ * </pre>
+ *
+ * Each relay has its own mail session, created once per configuration of the
+ * message sessions, and its own {@link MailTransport}. By default the relays
+ * share a {@link TransportPool} owned by the group, so connections are reused;
+ * use {@link #setTransportFactory(Function)} to send through another transport,
+ * e.g. {@code NioSmtpClient::forSession}.
+ * <p>
+ * Only connect failures are failed over, a message rejected by a connected
+ * relay is not sent again. Wrap the group in a {@link RetryingMailTransport}
+ * to retry such failures, later attempts prefer healthier relays.
+ *
+ * @since 1.6
+ */
+public class RelayGroup implements MailTransport
+{
+    /** The default number of consecutive failures opening a circuit. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /** The default time a circuit stays open. */
+    public static final long DEFAULT_OPEN_DURATION_MS = 30000;
+
+    /** The default weight of a new latency sample in the moving average. */
+    public static final double DEFAULT_LATENCY_ALPHA = 0.3;
+
+    /** The SMTP reply code of a relay closing the connection. */
+    private static final int SERVICE_NOT_AVAILABLE = 421;
+
+    /** The relays. */
+    private final List<RelayEndpoint> endpoints = new CopyOnWriteArrayList<>();
+
+    /** The transport of each relay per configuration of the message sessions. */
+    private final ConcurrentMap<RelayEndpoint, ConcurrentMap<TransportKey, MailTransport>> transports =
+            new ConcurrentHashMap<>();
+
+    /** The pool used by the default transport factory. */
+    private final TransportPool pool = new TransportPool();
+
+    /** Creates the transport of a relay from its mail session. */
+    private volatile Function<Session, ? extends MailTransport> transportFactory = pool::forSession;
+
+    /** Use the first available relay instead of the cheapest. */
+    private volatile boolean ordered;
+
+    /** The number of consecutive failures opening a circuit. */
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    /** The time a circuit stays open. */
+    private volatile long openDurationMillis = DEFAULT_OPEN_DURATION_MS;
+
+    /** The weight of a new latency sample in the moving average. */
+    private volatile double latencyAlpha = DEFAULT_LATENCY_ALPHA;
+
+    /**
+     * Adds a relay using the port of the mail session.
+     *
+     * @param host the host name
+     * @return this group
+     */
+    public RelayGroup addEndpoint(final String host)
+    {
+        return addEndpoint(host, null, 1);
+    }
+
+    /**
+     * Adds a relay.
+     *
+     * @param host the host name
+     * @param port the port, null for the port of the mail session
+     * @return this group
+     */
+    public RelayGroup addEndpoint(final String host, final String port)
+    {
+        return addEndpoint(host, port, 1);
+    }
+
+    /**
+     * Adds a relay.
+     *
+     * @param host the host name
+     * @param port the port, null for the port of the mail session
+     * @param weight the relative share of the load
+     * @return this group
+     * @throws IllegalArgumentException if the host is empty or the weight not positive
+     */
+    public RelayGroup addEndpoint(final String host, final String port, final int weight)
+    {
+        final RelayEndpoint endpoint = new RelayEndpoint(host, port, weight);
+        transports.put(endpoint, new ConcurrentHashMap<TransportKey, MailTransport>());
+        endpoints.add(endpoint);
+        return this;
+    }
+
+    /**
+     * Gets the relays.
+     *
+     * @return the relays in the order they were added
+     */
+    public List<RelayEndpoint> getEndpoints()
+    {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * Sends the message to the least loaded available relay, failing over to
+     * the next one if the relay can not be connected.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException no relay could be connected or the relay failed to send the message
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        final Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        Session session = message.getSession();
+        if (session == null)
+        {
+            // same fallback as Transport.send()
+            session = Session.getDefaultInstance(System.getProperties(), null);
+        }
+
+        final TransportKey key = TransportKey.of(session);
+        final List<RelayEndpoint> tried = new ArrayList<>(endpoints.size());
+        MessagingException failure = null;
+        RelayEndpoint endpoint;
+
+        while ((endpoint = start(tried)) != null)
+        {
+            tried.add(endpoint);
+            final long started = System.nanoTime();
+            try
+            {
+                final String messageId = getTransport(endpoint, session, key).send(message);
+                endpoint.succeeded(System.nanoTime() - started, latencyAlpha);
+                return messageId;
+            }
+            catch (final MessagingException e)
+            {
+                if (isConnectFailure(e))
+                {
+                    endpoint.failed(System.nanoTime(), failureThreshold);
+                    if (failure != null)
+                    {
+                        e.addSuppressed(failure);
+                    }
+                    failure = e;
+                    continue;
+                }
+                if (isRelayFailure(e))
+                {
+                    endpoint.failed(System.nanoTime(), failureThreshold);
+                }
+                else
+                {
+                    // e.g. the credentials are wrong or the message was rejected
+                    endpoint.finished();
+                }
+                throw e;
+            }
+            catch (final RuntimeException e)
+            {
+                endpoint.finished();
+                throw e;
+            }
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+        throw new MessagingException("No relay of the group is available",
+                new ConnectException("The circuits of all " + endpoints.size() + " relays are open"));
+    }
+
+    /**
+     * Selects a relay which has not been tried yet and starts a send to it.
+     *
+     * @param tried the relays already tried for the message
+     * @return the relay or null if none is available
+     */
+    RelayEndpoint start(final List<RelayEndpoint> tried)
+    {
+        final long openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+        while (true)
+        {
+            final long now = System.nanoTime();
+            final RelayEndpoint selected = select(tried, now, openDurationNanos);
+            if (selected == null || selected.start(now, openDurationNanos))
+            {
+                return selected;
+            }
+            // became unavailable concurrently, e.g. another sender started the trial send
+        }
+    }
+
+    /**
+     * Selects the first available relay of an ordered group, otherwise the
+     * available relay with the lowest cost. Relays without a measured latency
+     * are assumed to be as fast as the fastest relay.
+     *
+     * @param tried the relays to skip
+     * @param now the current time, see {@link System#nanoTime()}
+     * @param openDurationNanos the time a circuit stays open
+     * @return the relay or null if none is available
+     */
+    private RelayEndpoint select(final List<RelayEndpoint> tried, final long now, final long openDurationNanos)
+    {
+        final List<RelayEndpoint> candidates = new ArrayList<>(endpoints.size());
+        double fastest = Double.MAX_VALUE;
+        for (final RelayEndpoint endpoint : endpoints)
+        {
+            if (!tried.contains(endpoint) && endpoint.isAvailable(now, openDurationNanos))
+            {
+                if (ordered)
+                {
+                    return endpoint;
+                }
+                candidates.add(endpoint);
+                final double latency = endpoint.getLatencyNanos();
+                if (latency >= 0)
+                {
+                    fastest = Math.min(fastest, latency);
+                }
+            }
+        }
+
+        final double defaultLatency = fastest == Double.MAX_VALUE ? 1 : fastest;
+        RelayEndpoint selected = null;
+        double lowestCost = Double.MAX_VALUE;
+        for (final RelayEndpoint endpoint : candidates)
+        {
+            final double cost = endpoint.getCost(defaultLatency);
+            if (cost < lowestCost)
+            {
+                selected = endpoint;
+                lowestCost = cost;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Gets the transport of a relay, creating it and the mail session of the
+     * relay on first use for the configuration of the message session.
+     *
+     * @param endpoint the relay
+     * @param session the mail session of the message
+     * @param key the key of the message session
+     * @return the transport
+     */
+    private MailTransport getTransport(final RelayEndpoint endpoint, final Session session, final TransportKey key)
+    {
+        final ConcurrentMap<TransportKey, MailTransport> relayTransports = transports.get(endpoint);
+        MailTransport transport = relayTransports.get(key);
+        if (transport == null)
+        {
+            final MailTransport created = transportFactory.apply(createSession(session, endpoint));
+            transport = relayTransports.putIfAbsent(key, created);
+            if (transport == null)
+            {
+                transport = created;
+            }
+            else
+            {
+                created.close();
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Creates the mail session for a relay: a copy of the message session
+     * with the host and port of the relay. Password requests are passed on
+     * to the message session.
+     *
+     * @param session the mail session of the message
+     * @param endpoint the relay
+     * @return the mail session
+     */
+    private static Session createSession(final Session session, final RelayEndpoint endpoint)
+    {
+        String protocol = session.getProperty(EmailConstants.MAIL_TRANSPORT_PROTOCOL);
+        if (protocol == null || protocol.isEmpty())
+        {
+            protocol = EmailConstants.SMTP;
+        }
+        final String prefix = "mail." + protocol + ".";
+
+        final Properties source = session.getProperties();
+        final Properties properties = new Properties();
+        for (final String name : source.stringPropertyNames())
+        {
+            properties.setProperty(name, source.getProperty(name));
+        }
+        properties.setProperty(prefix + "host", endpoint.getHost());
+        if (endpoint.getPort() != null)
+        {
+            properties.setProperty(prefix + "port", endpoint.getPort());
+            if (properties.getProperty(prefix + "socketFactory.port") != null)
+            {
+                properties.setProperty(prefix + "socketFactory.port", endpoint.getPort());
+            }
+        }
+
+        final Session relaySession = Session.getInstance(properties, new Authenticator()
+        {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication()
+            {
+                return session.requestPasswordAuthentication(getRequestingSite(), getRequestingPort(),
+                        getRequestingProtocol(), getRequestingPrompt(), getDefaultUserName());
+            }
+        });
+        relaySession.setDebug(session.getDebug());
+        relaySession.setDebugOut(session.getDebugOut());
+        return relaySession;
+    }
+
+    /**
+     * Did the failure occur while connecting to the relay, i.e. before the
+     * message could have been sent?
+     *
+     * @param failure the failure
+     * @return true if the message can be sent to another relay
+     */
+    private static boolean isConnectFailure(final Throwable failure)
+    {
+        Throwable current = failure;
+        while (current != null)
+        {
+            if (current instanceof MailConnectException || current instanceof ConnectException
+                    || current instanceof UnknownHostException)
+            {
+                return true;
+            }
+            current = current.getCause() != current ? current.getCause() : null;
+        }
+        return false;
+    }
+
+    /**
+     * Is the failure caused by the relay rather than the message, i.e. was
+     * the connection lost or closed by the relay?
+     *
+     * @param failure the failure of a connected relay
+     * @return true if the failure counts against the health of the relay
+     */
+    private static boolean isRelayFailure(final Throwable failure)
+    {
+        Throwable current = failure;
+        while (current != null)
+        {
+            if (current instanceof IOException || RetryPolicy.getReplyCode(current) == SERVICE_NOT_AVAILABLE)
+            {
+                return true;
+            }
+            current = current.getCause() != current ? current.getCause() : null;
+        }
+        return false;
+    }
+
+    /**
+     * Closes the transports of the relays and the pool of the default
+     * transport factory.
+     */
+    @Override
+    public void close()
+    {
+        for (final ConcurrentMap<TransportKey, MailTransport> relayTransports : transports.values())
+        {
+            for (final MailTransport transport : relayTransports.values())
+            {
+                transport.close();
+            }
+            relayTransports.clear();
+        }
+        pool.close();
+    }
+
+    /**
+     * Gets the factory creating the transport of a relay.
+     *
+     * @return the factory
+     */
+    public Function<Session, ? extends MailTransport> getTransportFactory()
+    {
+        return transportFactory;
+    }
+
+    /**
+     * Sets the factory creating the transport of a relay from the mail session
+     * of the relay, e.g. {@code nioSmtpClient::forSession} or
+     * {@code transportPool::forSession}. The transports created are closed
+     * when the group is closed. Set the factory before using the group.
+     *
+     * @param transportFactory the factory
+     * @return this group
+     * @throws IllegalArgumentException if the factory is null
+     */
+    public RelayGroup setTransportFactory(final Function<Session, ? extends MailTransport> transportFactory)
+    {
+        if (transportFactory == null)
+        {
+            throw new IllegalArgumentException("transportFactory can not be null");
+        }
+        this.transportFactory = transportFactory;
+        return this;
+    }
+
+    /**
+     * Does the group always use the first available relay?
+     *
+     * @return true if the relays are used in order
+     */
+    public boolean isOrdered()
+    {
+        return ordered;
+    }
+
+    /**
+     * Sets whether the group always uses the first available relay, i.e.
+     * the other relays are backups, instead of balancing the load.
+     *
+     * @param ordered true to use the relays in order
+     * @return this group
+     */
+    public RelayGroup setOrdered(final boolean ordered)
+    {
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * Gets the number of consecutive failures opening a circuit.
+     *
+     * @return the failure threshold
+     */
+    public int getFailureThreshold()
+    {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failures opening a circuit.
+     *
+     * @param failureThreshold the failure threshold
+     * @return this group
+     * @throws IllegalArgumentException if the threshold is not positive
+     */
+    public RelayGroup setFailureThreshold(final int failureThreshold)
+    {
+        if (failureThreshold < 1)
+        {
+            throw new IllegalArgumentException("failureThreshold must be greater than 0");
+        }
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /**
+     * Gets the time a circuit stays open.
+     *
+     * @return the time in milliseconds
+     */
+    public long getOpenDurationMillis()
+    {
+        return openDurationMillis;
+    }
+
+    /**
+     * Sets the time a circuit stays open before a trial send is let through.
+     *
+     * @param openDurationMillis the time in milliseconds
+     * @return this group
+     * @throws IllegalArgumentException if the time is negative
+     */
+    public RelayGroup setOpenDurationMillis(final long openDurationMillis)
+    {
+        if (openDurationMillis < 0)
+        {
+            throw new IllegalArgumentException("openDurationMillis can not be negative");
+        }
+        this.openDurationMillis = openDurationMillis;
+        return this;
+    }
+
+    /**
+     * Gets the weight of a new latency sample in the moving average.
+     *
+     * @return the weight between 0 and 1
+     */
+    public double getLatencyAlpha()
+    {
+        return latencyAlpha;
+    }
+
+    /**
+     * Sets the weight of a new latency sample in the moving average, higher
+     * values react faster to latency changes.
+     *
+     * @param latencyAlpha the weight, greater than 0 and at most 1
+     * @return this group
+     * @throws IllegalArgumentException if the weight is out of range
+     */
+    public RelayGroup setLatencyAlpha(final double latencyAlpha)
+    {
+        if (latencyAlpha <= 0 || latencyAlpha > 1)
+        {
+            throw new IllegalArgumentException("latencyAlpha must be greater than 0 and at most 1");
+        }
+        this.latencyAlpha = latencyAlpha;
+        return this;
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.net.ssl.SSLHandshakeException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Decides whether and when a failed send is retried.
+ * <p>
+ * A failure is transient if the SMTP server replied with a 4xx reply code,
+ * e.g. 421 (service not available) or 451 (local error), or if the connection
+ * failed or timed out, or if a local rate limit rejected the message
+ * ({@link RateLimitExceededException}). 5xx reply codes, authentication
+ * failures, unknown hosts and TLS handshake failures are permanent and never
+ * retried. A {@code SendFailedException} listing valid sent addresses, e.g.
+ * with {@code mail.smtp.sendpartial}, is never retried either: those
+ * recipients have the message already and would get it twice.
+ * <p>
+ * The delay before attempt {@code n + 1} is
+ * {@code min(maxDelayMillis, initialDelayMillis * multiplier^(n - 1))}, reduced
+ * by a random share of up to {@code jitter} to spread retries of many senders.
+ * <p>
+ * The policy is thread-safe. Configure it before using it.
+ *
+ * @see RetryingMailTransport
+ * @since 1.6
+ */
+public class RetryPolicy
+{
+    /** The default maximum number of attempts. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /** The default delay before the first retry in milliseconds. */
+    public static final long DEFAULT_INITIAL_DELAY_MS = 1000;
+
+    /** The default maximum delay between two attempts in milliseconds. */
+    public static final long DEFAULT_MAX_DELAY_MS = 60000;
+
+    /** The default factor the delay grows with after each attempt. */
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+
+    /** The default maximum share of the delay removed at random. */
+    public static final double DEFAULT_JITTER = 0.5;
+
+    /** Finds the reply code in the messages of JavaMail's exceptions. */
+    private static final Pattern REPLY_CODE = Pattern.compile("(?:^|response: )([2-5]\\d\\d)(?:[ -]|$)");
+
+    /** The maximum number of attempts. */
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /** The delay before the first retry. */
+    private volatile long initialDelayMillis = DEFAULT_INITIAL_DELAY_MS;
+
+    /** The maximum delay between two attempts. */
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MS;
+
+    /** The factor the delay grows with. */
+    private volatile double multiplier = DEFAULT_MULTIPLIER;
+
+    /** The maximum share of the delay removed at random. */
+    private volatile double jitter = DEFAULT_JITTER;
+
+    /**
+     * Is the failure transient, i.e. may a later attempt succeed?
+     *
+     * @param failure the failure, wrapping exceptions such as
+     *        {@code EmailException} are looked through
+     * @return true if the failure is transient
+     */
+    public boolean isRetryable(final Throwable failure)
+    {
+        Throwable current = failure;
+        while (current != null)
+        {
+            if (current instanceof SendFailedException && isPartiallyDelivered((SendFailedException) current))
+            {
+                return false;
+            }
+            if (current instanceof RateLimitExceededException)
+            {
+                return true;
+            }
+            if (current instanceof SendFailedException && getReplyCode(current) < 0)
+            {
+                // rejected recipients, transient only if all rejections are
+                final Boolean recipients = isRetryable((SendFailedException) current);
+                if (recipients != null)
+                {
+                    return recipients;
+                }
+            }
+
+            final int replyCode = getReplyCode(current);
+            if (replyCode > 0)
+            {
+                return isTransientReplyCode(replyCode);
+            }
+            if (hasPermanentCause(current))
+            {
+                // e.g. an UnknownHostException below the IOException of a MailConnectException
+                return false;
+            }
+            if (current instanceof IOException)
+            {
+                // connect failures, timeouts and lost connections
+                return true;
+            }
+            current = current.getCause() != current ? current.getCause() : null;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the delay before the next attempt.
+     *
+     * @param attempt the number of the failed attempt, starting with 1
+     * @return the delay in milliseconds
+     */
+    public long getDelayMillis(final int attempt)
+    {
+        final double delay = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, attempt - 1));
+        return (long) (delay * (1.0 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    /**
+     * Is the SMTP reply code transient? By default all 4xx codes are.
+     *
+     * @param replyCode the reply code
+     * @return true if the reply code is transient
+     */
+    protected boolean isTransientReplyCode(final int replyCode)
+    {
+        return replyCode >= 400 && replyCode < 500;
+    }
+
+    /**
+     * Is the failure or one of its causes permanent whatever the wrapping
+     * exceptions are, i.e. an authentication failure, an unknown host or a
+     * TLS handshake failure?
+     *
+     * @param failure the failure
+     * @return true if a permanent failure is found in the cause chain
+     */
+    private static boolean hasPermanentCause(final Throwable failure)
+    {
+        Throwable current = failure;
+        while (current != null)
+        {
+            if (current instanceof AuthenticationFailedException
+                    || current instanceof UnknownHostException
+                    || current instanceof SSLHandshakeException)
+            {
+                return true;
+            }
+            current = current.getCause() != current ? current.getCause() : null;
+        }
+        return false;
+    }
+
+    /**
+     * Has a failed message been delivered to some recipients?
+     *
+     * @param failure the failure
+     * @return true if the failure lists valid sent addresses
+     */
+    private static boolean isPartiallyDelivered(final SendFailedException failure)
+    {
+        final Address[] sent = failure.getValidSentAddresses();
+        return sent != null && sent.length > 0;
+    }
+
+    /**
+     * Classifies the rejected recipients of a {@code SendFailedException}.
+     *
+     * @param failure the failure
+     * @return null if no recipient failures are chained, otherwise whether all are transient
+     */
+    private Boolean isRetryable(final SendFailedException failure)
+    {
+        Boolean retryable = null;
+        Exception next = failure.getNextException();
+        while (next != null)
+        {
+            final int replyCode = getReplyCode(next);
+            if (replyCode > 0)
+            {
+                if (!isTransientReplyCode(replyCode))
+                {
+                    return Boolean.FALSE;
+                }
+                retryable = Boolean.TRUE;
+            }
+            next = next instanceof MessagingException ? ((MessagingException) next).getNextException() : null;
+        }
+        return retryable;
+    }
+
+    /**
+     * Gets the SMTP reply code of a failure.
+     *
+     * @param failure the failure
+     * @return the reply code or -1 if unknown
+     */
+    static int getReplyCode(final Throwable failure)
+    {
+        if (failure instanceof SMTPSendFailedException)
+        {
+            return ((SMTPSendFailedException) failure).getReturnCode();
+        }
+        if (failure instanceof SMTPAddressFailedException)
+        {
+            return ((SMTPAddressFailedException) failure).getReturnCode();
+        }
+        if (failure instanceof SMTPSenderFailedException)
+        {
+            return ((SMTPSenderFailedException) failure).getReturnCode();
+        }
+        if (failure instanceof MessagingException && !(failure instanceof SendFailedException)
+                && failure.getMessage() != null)
+        {
+            // e.g. "Could not connect to SMTP host: ..., response: 421"
+            final Matcher matcher = REPLY_CODE.matcher(failure.getMessage());
+            if (matcher.find())
+            {
+                return Integer.parseInt(matcher.group(1));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the maximum number of attempts.
+     *
+     * @return the maximum number of attempts including the first one
+     */
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the maximum number of attempts.
+     *
+     * @param maxAttempts the maximum number of attempts including the first one
+     * @return this policy
+     * @throws IllegalArgumentException if the value is &lt; 1
+     */
+    public RetryPolicy setMaxAttempts(final int maxAttempts)
+    {
+        if (maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("maxAttempts must be greater than 0");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Gets the delay before the first retry.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getInitialDelayMillis()
+    {
+        return initialDelayMillis;
+    }
+
+    /**
+     * Sets the delay before the first retry.
+     *
+     * @param initialDelayMillis the delay in milliseconds
+     * @return this policy
+     * @throws IllegalArgumentException if the value is &lt; 0
+     */
+    public RetryPolicy setInitialDelayMillis(final long initialDelayMillis)
+    {
+        if (initialDelayMillis < 0)
+        {
+            throw new IllegalArgumentException("initialDelayMillis must not be negative");
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        return this;
+    }
+
+    /**
+     * Gets the maximum delay between two attempts.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getMaxDelayMillis()
+    {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Sets the maximum delay between two attempts.
+     *
+     * @param maxDelayMillis the delay in milliseconds
+     * @return this policy
+     * @throws IllegalArgumentException if the value is &lt; 0
+     */
+    public RetryPolicy setMaxDelayMillis(final long maxDelayMillis)
+    {
+        if (maxDelayMillis < 0)
+        {
+            throw new IllegalArgumentException("maxDelayMillis must not be negative");
+        }
+        this.maxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    /**
+     * Gets the factor the delay grows with after each attempt.
+     *
+     * @return the factor
+     */
+    public double getMultiplier()
+    {
+        return multiplier;
+    }
+
+    /**
+     * Sets the factor the delay grows with after each attempt.
+     *
+     * @param multiplier the factor
+     * @return this policy
+     * @throws IllegalArgumentException if the value is &lt; 1
+     */
+    public RetryPolicy setMultiplier(final double multiplier)
+    {
+        if (multiplier < 1.0)
+        {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Gets the maximum share of the delay removed at random.
+     *
+     * @return the share between 0 and 1
+     */
+    public double getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * Sets the maximum share of the delay removed at random, e.g. 0.5 waits
+     * between half and the full delay.
+     *
+     * @param jitter the share between 0 and 1
+     * @return this policy
+     * @throws IllegalArgumentException if the value is not between 0 and 1
+     */
+    public RetryPolicy setJitter(final double jitter)
+    {
+        if (jitter < 0.0 || jitter > 1.0)
+        {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+}
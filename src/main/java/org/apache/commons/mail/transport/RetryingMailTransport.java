@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.SendResult;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * A {@link MailTransport} retrying transient failures of another transport
+ * according to a {@link RetryPolicy}.
+ * <p>
+ * The message is neither rebuilt nor saved again between attempts, so all
+ * attempts send the same Message-ID. Before the first retry the message is
+ * frozen once into a copy holding its encoded content, so later attempts
+ * write those bytes instead of encoding the content again.
+ *
+ * <pre>
+ * email.setMailTransport(new RetryingMailTransport(pool, new RetryPolicy().setMaxAttempts(5)));
+ * </pre>
+ *
+ * Retries block the sending thread while waiting. Use
+ * {@link #sendWithResult(MimeMessage)} or {@link #sendAll(Collection)} to
+ * learn the number of attempts and whether a failure was transient.
+ *
+ * @since 1.6
+ */
+public class RetryingMailTransport implements MailTransport
+{
+    /** The transport sending the messages. */
+    private final MailTransport delegate;
+
+    /** The retry policy. */
+    private final RetryPolicy policy;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate the transport sending the messages
+     * @param policy the retry policy
+     * @throws IllegalArgumentException if an argument is null
+     */
+    public RetryingMailTransport(final MailTransport delegate, final RetryPolicy policy)
+    {
+        if (delegate == null || policy == null)
+        {
+            throw new IllegalArgumentException("delegate and policy can not be null");
+        }
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    /**
+     * Sends the message, retrying transient failures.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException the last attempt failed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        final SendResult result = sendWithResult(message);
+        if (!result.isSuccess())
+        {
+            throw (MessagingException) result.getException().getCause();
+        }
+        return result.getMessageId();
+    }
+
+    /**
+     * Sends the message, retrying transient failures, and reports the number
+     * of attempts made.
+     *
+     * @param message the saved message
+     * @return the result, a failure wraps the {@code MessagingException} of the last attempt
+     */
+    public SendResult sendWithResult(final MimeMessage message)
+    {
+        MimeMessage attempted = message;
+        int attempt = 0;
+
+        while (true)
+        {
+            attempt++;
+            try
+            {
+                return SendResult.success(message, delegate.send(attempted), attempt);
+            }
+            catch (final MessagingException e)
+            {
+                final boolean retryable = policy.isRetryable(e);
+                if (!retryable || attempt >= policy.getMaxAttempts() || !sleep(policy.getDelayMillis(attempt)))
+                {
+                    return SendResult.failure(message, new EmailException(e), attempt, retryable);
+                }
+                if (attempted == message)
+                {
+                    attempted = freeze(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the messages one after the other, retrying transient failures.
+     *
+     * @param messages the saved messages
+     * @return the result for each message in iteration order
+     */
+    @Override
+    public List<SendResult> sendAll(final Collection<? extends MimeMessage> messages)
+    {
+        final List<SendResult> results = new ArrayList<>(messages.size());
+        for (final MimeMessage message : messages)
+        {
+            results.add(sendWithResult(message));
+        }
+        return results;
+    }
+
+    /**
+     * Closes the underlying transport.
+     */
+    @Override
+    public void close()
+    {
+        delegate.close();
+    }
+
+    /**
+     * Gets the transport sending the messages.
+     *
+     * @return the underlying transport
+     */
+    public MailTransport getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Gets the retry policy.
+     *
+     * @return the policy
+     */
+    public RetryPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Waits before the next attempt.
+     *
+     * @param millis the delay
+     * @return false if interrupted, i.e. no further attempt should be made
+     */
+    protected boolean sleep(final long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+            return true;
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Creates a copy of the message holding its encoded content, which is
+     * written as is by later attempts. The copy keeps the envelope of the
+     * message: its recipients as returned by {@code getAllRecipients()}, which
+     * may differ from the To, Cc and Bcc headers, and the envelope sender and
+     * options of an {@code SMTPMessage}. Falls back to the original message if
+     * the copy cannot be created.
+     *
+     * @param message the message
+     * @return the frozen copy
+     */
+    private static MimeMessage freeze(final MimeMessage message)
+    {
+        try
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out);
+            final SMTPMessage copy = new RetryCopy(message.getSession(), out.toByteArray(),
+                    message.getAllRecipients());
+            if (message instanceof SMTPMessage)
+            {
+                final SMTPMessage smtpMessage = (SMTPMessage) message;
+                copy.setEnvelopeFrom(smtpMessage.getEnvelopeFrom());
+                copy.setNotifyOptions(smtpMessage.getNotifyOptions());
+                copy.setReturnOption(smtpMessage.getReturnOption());
+                copy.setAllow8bitMIME(smtpMessage.getAllow8bitMIME());
+                copy.setSendPartial(smtpMessage.getSendPartial());
+                copy.setSubmitter(smtpMessage.getSubmitter());
+                copy.setMailExtension(smtpMessage.getMailExtension());
+            }
+            return copy;
+        }
+        catch (final IOException | MessagingException e)
+        {
+            return message;
+        }
+    }
+
+    /**
+     * A frozen copy of a message sent to the envelope recipients of the
+     * original message.
+     */
+    private static final class RetryCopy extends SMTPMessage
+    {
+        /** The envelope recipients of the original message, may be null. */
+        private final Address[] recipients;
+
+        /**
+         * Parses a copy.
+         *
+         * @param session the session of the original message
+         * @param content the written original message
+         * @param recipients the envelope recipients of the original message
+         * @throws MessagingException parsing the copy failed
+         */
+        RetryCopy(final Session session, final byte[] content, final Address[] recipients)
+                throws MessagingException
+        {
+            super(session, new ByteArrayInputStream(content));
+            this.recipients = recipients;
+        }
+
+        @Override
+        public Address[] getAllRecipients()
+        {
+            return recipients != null ? recipients.clone() : null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded executor for sending emails asynchronously, see
+ * {@link org.apache.commons.mail.Email#sendAsync(Executor)}.
+ * <p>
+ * Sends are executed by a fixed number of daemon threads. Pending sends
+ * wait in a queue of limited capacity; when the queue is full the
+ * {@code RejectedExecutionHandler} decides, by default the send is rejected
+ * with a {@code RejectedExecutionException}.
+ *
+ * @since 1.6
+ */
+public class SendExecutor implements Executor
+{
+    /** The default capacity of the queue of pending sends. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /** Counts the executors to create unique thread names. */
+    private static final AtomicInteger EXECUTOR_COUNT = new AtomicInteger();
+
+    /** The shared default executor, created on demand. */
+    private static SendExecutor defaultExecutor;
+
+    /** The executor running the sends. */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates an executor rejecting sends when the queue is full.
+     *
+     * @param threads the number of threads
+     * @param queueCapacity the capacity of the queue of pending sends
+     */
+    public SendExecutor(final int threads, final int queueCapacity)
+    {
+        this(threads, queueCapacity, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param threads the number of threads
+     * @param queueCapacity the capacity of the queue of pending sends
+     * @param rejectionHandler handles sends when the queue is full, e.g.
+     *   {@code ThreadPoolExecutor.CallerRunsPolicy} to send in the calling thread
+     */
+    public SendExecutor(final int threads, final int queueCapacity, final RejectedExecutionHandler rejectionHandler)
+    {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), createThreadFactory(), rejectionHandler);
+    }
+
+    /**
+     * Gets the shared default executor using one thread per available processor,
+     * but at least two, and a queue of {@link #DEFAULT_QUEUE_CAPACITY}. A new
+     * default executor is created if the previous one has been shut down.
+     *
+     * @return the default executor
+     */
+    public static synchronized SendExecutor getDefault()
+    {
+        if (defaultExecutor == null || defaultExecutor.isShutdown())
+        {
+            final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            defaultExecutor = new SendExecutor(threads, DEFAULT_QUEUE_CAPACITY);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Executes a send.
+     *
+     * @param command the send
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full
+     *   or the executor is shut down
+     */
+    @Override
+    public void execute(final Runnable command)
+    {
+        executor.execute(command);
+    }
+
+    /**
+     * Shuts the executor down gracefully. No new sends are accepted, pending and
+     * in-flight sends are completed. Sends not completed within the timeout are
+     * cancelled.
+     *
+     * @param timeout the time to wait for pending and in-flight sends
+     * @return true if all sends completed, false if sends were cancelled
+     */
+    public boolean shutdown(final Duration timeout)
+    {
+        executor.shutdown();
+
+        try
+        {
+            if (executor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS))
+            {
+                return true;
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        for (final Runnable pending : executor.shutdownNow())
+        {
+            if (pending instanceof Future)
+            {
+                ((Future<?>) pending).cancel(false);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Has the executor been shut down?
+     *
+     * @return true if shut down
+     */
+    public boolean isShutdown()
+    {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Gets the number of pending sends.
+     *
+     * @return the number of pending sends
+     */
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the approximate number of in-flight sends.
+     *
+     * @return the number of in-flight sends
+     */
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Creates the factory for the daemon threads.
+     *
+     * @return the thread factory
+     */
+    private static ThreadFactory createThreadFactory()
+    {
+        final int executorNumber = EXECUTOR_COUNT.incrementAndGet();
+        final AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r,
+                    "commons-email-send-" + executorNumber + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * A named lane of a {@link PriorityScheduler} with its own queue, weight and
+ * concurrency cap. A lane is a {@link MailTransport}, so an email is sent
+ * through a lane by setting the lane as its transport.
+ * <p>
+ * The metrics of a lane cover the messages started since the lane was added.
+ *
+ * @since 1.6
+ */
+public final class SendLane implements MailTransport
+{
+    /** The scheduler of the lane. */
+    private final PriorityScheduler scheduler;
+
+    /** The name of the lane. */
+    private final String name;
+
+    /** The weight of the lane. */
+    private final int weight;
+
+    /** The maximum number of messages of the lane sent at once. */
+    private final int maxConcurrency;
+
+    /** The queued messages, guarded by the lock of the scheduler. */
+    final ArrayDeque<PriorityScheduler.Task> pending = new ArrayDeque<>();
+
+    /** The number of messages being sent, guarded by the lock of the scheduler. */
+    int active;
+
+    /** The virtual time of the next message for the weighted policy, guarded by the lock of the scheduler. */
+    long pass;
+
+    /** The number of started messages, guarded by the lock of the scheduler. */
+    private long started;
+
+    /** The total time the started messages waited, guarded by the lock of the scheduler. */
+    private long totalWaitNanos;
+
+    /** The longest time a started message waited, guarded by the lock of the scheduler. */
+    private long maxWaitNanos;
+
+    /**
+     * Creates a lane.
+     *
+     * @param scheduler the scheduler of the lane
+     * @param name the name of the lane
+     * @param weight the weight of the lane
+     * @param maxConcurrency the maximum number of messages of the lane sent at once
+     */
+    SendLane(final PriorityScheduler scheduler, final String name, final int weight, final int maxConcurrency)
+    {
+        this.scheduler = scheduler;
+        this.name = name;
+        this.weight = weight;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Queues a message in this lane.
+     *
+     * @param message the saved message
+     * @return the Message-ID, completed once the message has been sent
+     * @throws IllegalStateException if the scheduler has been closed
+     */
+    public CompletableFuture<String> submit(final MimeMessage message)
+    {
+        return scheduler.submit(this, message);
+    }
+
+    /**
+     * Queues a message in this lane and waits until it has been sent.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed
+     * @throws IllegalStateException if the scheduler has been closed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        try
+        {
+            return submit(message).join();
+        }
+        catch (final CompletionException e)
+        {
+            if (e.getCause() instanceof MessagingException)
+            {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Sending the message failed", (Exception) e.getCause());
+        }
+    }
+
+    /**
+     * Gets the name of the lane.
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Gets the weight of the lane, its priority for the strict policy and
+     * its share of the concurrent messages for the weighted policy.
+     *
+     * @return the weight
+     */
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Gets the maximum number of messages of the lane sent at once.
+     *
+     * @return the maximum concurrency
+     */
+    public int getMaxConcurrency()
+    {
+        return maxConcurrency;
+    }
+
+    /**
+     * Gets the number of queued messages not started yet.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth()
+    {
+        scheduler.lock.lock();
+        try
+        {
+            return pending.size();
+        }
+        finally
+        {
+            scheduler.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of messages being sent.
+     *
+     * @return the active messages
+     */
+    public int getActive()
+    {
+        scheduler.lock.lock();
+        try
+        {
+            return active;
+        }
+        finally
+        {
+            scheduler.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of started messages.
+     *
+     * @return the started messages
+     */
+    public long getStarted()
+    {
+        scheduler.lock.lock();
+        try
+        {
+            return started;
+        }
+        finally
+        {
+            scheduler.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the average time the started messages waited in the queue.
+     *
+     * @return the average wait time in milliseconds, 0 if none was started
+     */
+    public double getAverageWaitMillis()
+    {
+        scheduler.lock.lock();
+        try
+        {
+            return started > 0 ? totalWaitNanos / (started * 1e6) : 0;
+        }
+        finally
+        {
+            scheduler.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the longest time a started message waited in the queue.
+     *
+     * @return the maximum wait time in milliseconds
+     */
+    public long getMaxWaitMillis()
+    {
+        scheduler.lock.lock();
+        try
+        {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+        }
+        finally
+        {
+            scheduler.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the time the oldest queued message has been waiting.
+     *
+     * @return the wait time in milliseconds, 0 if no message is queued
+     */
+    public long getOldestWaitMillis()
+    {
+        scheduler.lock.lock();
+        try
+        {
+            final PriorityScheduler.Task oldest = pending.peek();
+            return oldest != null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedNanos) : 0;
+        }
+        finally
+        {
+            scheduler.lock.unlock();
+        }
+    }
+
+    /**
+     * Records the start of a message. The caller holds the lock of the scheduler.
+     *
+     * @param task the started message
+     * @param now the current time in nanoseconds
+     */
+    void started(final PriorityScheduler.Task task, final long now)
+    {
+        final long waitNanos = now - task.queuedNanos;
+        started++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        active++;
+    }
+
+    /**
+     * Can a message of this lane be started? The caller holds the lock of the scheduler.
+     *
+     * @return true if messages are queued and the lane is below its cap
+     */
+    boolean isReady()
+    {
+        return !pending.isEmpty() && active < maxConcurrency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
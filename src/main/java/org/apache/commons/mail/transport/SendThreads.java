@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads executing a single send each.
+ * <p>
+ * This implementation creates daemon platform threads. The multi-release
+ * jar contains a Java 21 implementation creating virtual threads.
+ *
+ * @since 1.6
+ */
+final class SendThreads
+{
+    /**
+     * Instances should NOT be constructed in standard programming.
+     */
+    private SendThreads()
+    {
+    }
+
+    /**
+     * Are the created threads virtual threads?
+     *
+     * @return false
+     */
+    static boolean isVirtual()
+    {
+        return false;
+    }
+
+    /**
+     * Creates a factory for threads executing a single send each.
+     *
+     * @param prefix the prefix of the thread names
+     * @return the thread factory
+     */
+    static ThreadFactory newThreadFactory(final String prefix)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * The content of a message encoded once, to be sent to any number of
+ * envelopes without encoding it again.
+ * <p>
+ * The Bcc header is never part of the content, so Bcc recipients are not
+ * disclosed to other recipients. The messages created by
+ * {@link #createMimeMessage(String, Address[])} share the bytes and write
+ * them as is, and carry their envelope, so any
+ * {@link org.apache.commons.mail.MailTransport} sends them to the envelope.
+ * <p>
+ * This class is immutable.
+ *
+ * @see EnvelopeSender
+ * @since 1.6
+ */
+public final class SerializedMessage
+{
+    /** The headers never written. */
+    private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+
+    /** The mail session of the message. */
+    private final Session session;
+
+    /** The encoded message. */
+    private final byte[] content;
+
+    /** The Message-ID. */
+    private final String messageId;
+
+    /**
+     * Constructor.
+     *
+     * @param session the mail session
+     * @param content the encoded message, not copied
+     * @param messageId the Message-ID
+     */
+    private SerializedMessage(final Session session, final byte[] content, final String messageId)
+    {
+        this.session = session;
+        this.content = content;
+        this.messageId = messageId;
+    }
+
+    /**
+     * Encodes a message. The message must be saved, i.e. the caller is
+     * responsible for calling {@code saveChanges()}.
+     *
+     * @param message the saved message
+     * @return the encoded message
+     * @throws MessagingException encoding the message failed
+     */
+    public static SerializedMessage of(final MimeMessage message) throws MessagingException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            message.writeTo(out, IGNORED_HEADERS);
+        }
+        catch (final IOException e)
+        {
+            throw new MessagingException("Encoding the message failed", e);
+        }
+
+        Session session = message.getSession();
+        if (session == null)
+        {
+            // same fallback as Transport.send()
+            session = Session.getDefaultInstance(System.getProperties(), null);
+        }
+        return new SerializedMessage(session, out.toByteArray(), message.getMessageID());
+    }
+
+    /**
+     * Creates a message writing the encoded content, sharing its bytes.
+     *
+     * @param envelopeFrom the address used in the MAIL FROM command, null
+     *        for the default of the mail session
+     * @return the message
+     * @throws MessagingException parsing the headers failed
+     */
+    public MimeMessage createMimeMessage(final String envelopeFrom) throws MessagingException
+    {
+        return createMimeMessage(envelopeFrom, null);
+    }
+
+    /**
+     * Creates a message writing the encoded content, sharing its bytes, whose
+     * {@code getAllRecipients()} returns the envelope recipients instead of
+     * the recipients of the headers.
+     *
+     * @param envelopeFrom the address used in the MAIL FROM command, null
+     *        for the default of the mail session
+     * @param recipients the envelope recipients, null for the recipients of the headers
+     * @return the message
+     * @throws MessagingException parsing the headers failed
+     */
+    public MimeMessage createMimeMessage(final String envelopeFrom, final Address[] recipients)
+            throws MessagingException
+    {
+        final SMTPMessage message = new EnvelopeMessage(session, content, recipients);
+        if (envelopeFrom != null)
+        {
+            message.setEnvelopeFrom(envelopeFrom);
+        }
+        return message;
+    }
+
+    /**
+     * Writes the encoded content.
+     *
+     * @param out the stream to write to
+     * @throws IOException writing failed
+     */
+    public void writeTo(final OutputStream out) throws IOException
+    {
+        out.write(content);
+    }
+
+    /**
+     * Gets the mail session of the message.
+     *
+     * @return the session
+     */
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Gets the Message-ID of the message.
+     *
+     * @return the Message-ID, null if the message has none
+     */
+    public String getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * Gets the size of the encoded content.
+     *
+     * @return the size in bytes
+     */
+    public int getSize()
+    {
+        return content.length;
+    }
+
+    /**
+     * A message parsed from the encoded content sent to its envelope recipients.
+     */
+    private static final class EnvelopeMessage extends SMTPMessage
+    {
+        /** The envelope recipients, null for the recipients of the headers. */
+        private final Address[] recipients;
+
+        /**
+         * Constructor.
+         *
+         * @param session the mail session
+         * @param content the encoded message, shared
+         * @param recipients the envelope recipients, may be null
+         * @throws MessagingException parsing the headers failed
+         */
+        EnvelopeMessage(final Session session, final byte[] content, final Address[] recipients)
+                throws MessagingException
+        {
+            super(session, new SharedByteArrayInputStream(content));
+            this.recipients = recipients != null ? recipients.clone() : null;
+        }
+
+        /**
+         * Gets the envelope recipients.
+         *
+         * @return the recipients
+         * @throws MessagingException parsing the recipient headers failed
+         */
+        @Override
+        public Address[] getAllRecipients() throws MessagingException
+        {
+            return recipients != null ? recipients.clone() : super.getAllRecipients();
+        }
+    }
+}
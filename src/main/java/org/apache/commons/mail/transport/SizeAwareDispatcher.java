@@ -0,0 +1,419 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.util.MimeMessageUtils;
+
+/**
+ * Routes messages by their estimated size, so small messages are not queued
+ * behind a message with a 20 MB attachment occupying a connection for
+ * seconds.
+ * <p>
+ * Messages whose size, estimated by
+ * {@link MimeMessageUtils#estimateSize(javax.mail.Part)} from the lengths of
+ * their attachments and the encoding overhead, reaches the threshold are
+ * queued in the large lane, all others in the small lane. Each lane has its
+ * own worker threads, the large lane usually only a few. A worker whose
+ * own lane is empty takes a message from the other lane, but small workers
+ * take a large message only while another small worker stays idle, so a
+ * new small message always finds a free worker.
+ *
+ * <pre>
+ * SizeAwareDispatcher dispatcher = new SizeAwareDispatcher(pool, 8, 2, SizeAwareDispatcher.DEFAULT_LARGE_THRESHOLD);
+ * email.setMailTransport(dispatcher);
+ * </pre>
+ *
+ * @since 1.6
+ */
+public class SizeAwareDispatcher implements MailTransport
+{
+    /** The default size from which a message is large, 1 MB. */
+    public static final long DEFAULT_LARGE_THRESHOLD = 1024 * 1024;
+
+    /** The transport sending the messages. */
+    private final MailTransport transport;
+
+    /** The size from which a message is large. */
+    private final long largeThreshold;
+
+    /** The number of small workers. */
+    private final int smallWorkers;
+
+    /** Guards the queues and counters. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signals the workers that a message was queued or the dispatcher closed. */
+    private final Condition queued = lock.newCondition();
+
+    /** The small messages. */
+    private final ArrayDeque<Task> smallQueue = new ArrayDeque<>();
+
+    /** The large messages. */
+    private final ArrayDeque<Task> largeQueue = new ArrayDeque<>();
+
+    /** The worker threads. */
+    private final List<Thread> workers = new ArrayList<>();
+
+    /** The number of small workers sending a message. */
+    private int busySmallWorkers;
+
+    /** The number of messages taken from the other lane. */
+    private long stolen;
+
+    /** Has the dispatcher been closed? */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param transport the transport sending the messages
+     * @param smallWorkers the number of threads sending small messages
+     * @param largeWorkers the number of threads sending large messages
+     * @param largeThreshold the estimated size in bytes from which a message is large
+     * @throws IllegalArgumentException if the transport is null or a value is not positive
+     */
+    public SizeAwareDispatcher(final MailTransport transport, final int smallWorkers, final int largeWorkers,
+            final long largeThreshold)
+    {
+        if (transport == null)
+        {
+            throw new IllegalArgumentException("transport can not be null");
+        }
+        if (smallWorkers < 1 || largeWorkers < 1 || largeThreshold < 1)
+        {
+            throw new IllegalArgumentException("smallWorkers, largeWorkers and largeThreshold must be greater than 0");
+        }
+        this.transport = transport;
+        this.largeThreshold = largeThreshold;
+        this.smallWorkers = smallWorkers;
+        for (int i = 1; i <= smallWorkers; i++)
+        {
+            workers.add(new Thread(() -> work(false), "commons-email-small-sender-" + i));
+        }
+        for (int i = 1; i <= largeWorkers; i++)
+        {
+            workers.add(new Thread(() -> work(true), "commons-email-large-sender-" + i));
+        }
+        for (final Thread worker : workers)
+        {
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a message in the lane for its estimated size.
+     *
+     * @param message the saved message
+     * @return the Message-ID, completed once the message has been sent
+     * @throws IllegalStateException if the dispatcher has been closed
+     */
+    public CompletableFuture<String> submit(final MimeMessage message)
+    {
+        final Task task = new Task(message, isLarge(message));
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("The dispatcher has been closed");
+            }
+            (task.large ? largeQueue : smallQueue).add(task);
+            queued.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return task.future;
+    }
+
+    /**
+     * Queues a message and waits until it has been sent.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed
+     * @throws IllegalStateException if the dispatcher has been closed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        try
+        {
+            return submit(message).join();
+        }
+        catch (final CompletionException e)
+        {
+            if (e.getCause() instanceof MessagingException)
+            {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Sending the message failed", (Exception) e.getCause());
+        }
+    }
+
+    /**
+     * Is the estimated size of the message at least the threshold? A message
+     * whose size cannot be estimated is small.
+     *
+     * @param message the message
+     * @return true if the message goes to the large lane
+     */
+    public boolean isLarge(final MimeMessage message)
+    {
+        try
+        {
+            return MimeMessageUtils.estimateSize(message) >= largeThreshold;
+        }
+        catch (final MessagingException | IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the size from which a message is large.
+     *
+     * @return the threshold in bytes
+     */
+    public long getLargeThreshold()
+    {
+        return largeThreshold;
+    }
+
+    /**
+     * Gets the number of queued small messages.
+     *
+     * @return the queue depth of the small lane
+     */
+    public int getSmallQueueDepth()
+    {
+        lock.lock();
+        try
+        {
+            return smallQueue.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of queued large messages.
+     *
+     * @return the queue depth of the large lane
+     */
+    public int getLargeQueueDepth()
+    {
+        lock.lock();
+        try
+        {
+            return largeQueue.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of messages sent by a worker of the other lane.
+     *
+     * @return the stolen messages
+     */
+    public long getStolen()
+    {
+        lock.lock();
+        try
+        {
+            return stolen;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers after their current message. Queued messages which
+     * have not been started fail. The transport is not closed.
+     */
+    @Override
+    public void close()
+    {
+        final List<Task> abandoned = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            closed = true;
+            abandoned.addAll(smallQueue);
+            abandoned.addAll(largeQueue);
+            smallQueue.clear();
+            largeQueue.clear();
+            queued.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        final MessagingException exception = new MessagingException("The dispatcher has been closed");
+        for (final Task task : abandoned)
+        {
+            task.future.completeExceptionally(exception);
+        }
+    }
+
+    /**
+     * The loop of a worker thread.
+     *
+     * @param large is the worker a large worker?
+     */
+    private void work(final boolean large)
+    {
+        Task task;
+        while ((task = take(large)) != null)
+        {
+            String messageId = null;
+            Throwable failure = null;
+            try
+            {
+                messageId = transport.send(task.message);
+            }
+            catch (final Throwable e)
+            {
+                // even an Error completes the future and keeps the worker alive
+                failure = e;
+            }
+            finally
+            {
+                if (!large)
+                {
+                    // the worker is free before the sender learns the result
+                    finished();
+                }
+            }
+            if (failure == null)
+            {
+                task.future.complete(messageId);
+            }
+            else
+            {
+                task.future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Takes the next message of a worker, waiting until one is queued.
+     *
+     * @param large is the worker a large worker?
+     * @return the message or null if the dispatcher has been closed
+     */
+    private Task take(final boolean large)
+    {
+        lock.lock();
+        try
+        {
+            while (!closed)
+            {
+                final ArrayDeque<Task> own = large ? largeQueue : smallQueue;
+                final ArrayDeque<Task> other = large ? smallQueue : largeQueue;
+                Task task = own.poll();
+                if (task == null && !other.isEmpty() && (large || busySmallWorkers + 1 < smallWorkers))
+                {
+                    task = other.poll();
+                    stolen++;
+                }
+                if (task != null)
+                {
+                    if (!large)
+                    {
+                        busySmallWorkers++;
+                    }
+                    return task;
+                }
+                queued.awaitUninterruptibly();
+            }
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a small worker finished its message and wakes up the
+     * workers, a small worker may take a large message now.
+     */
+    private void finished()
+    {
+        lock.lock();
+        try
+        {
+            busySmallWorkers--;
+            queued.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A queued message.
+     */
+    private static final class Task
+    {
+        /** The message. */
+        private final MimeMessage message;
+
+        /** Is the message large? */
+        private final boolean large;
+
+        /** The Message-ID, completed once the message has been sent. */
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        /**
+         * Creates a task.
+         *
+         * @param message the message
+         * @param large is the message large?
+         */
+        private Task(final MimeMessage message, final boolean large)
+        {
+            this.message = message;
+            this.large = large;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executes every send in a thread of its own.
+ * <p>
+ * On Java 21 and later the threads are virtual threads, i.e. thousands of
+ * concurrent SMTP conversations do not need thousands of platform threads.
+ * On older Java versions daemon platform threads are used. The number of
+ * concurrent sends is limited by {@code maxConcurrency}. With virtual threads
+ * further sends wait for a permit in their own cheap thread; with platform
+ * threads they wait in a queue and their thread is only started once a
+ * permit is available, so at most {@code maxConcurrency} threads exist.
+ * <p>
+ * Note that JavaMail's {@code SMTPTransport} performs its I/O while holding a
+ * monitor, which pins a virtual thread to its carrier thread before Java 24.
+ * The send path of commons-email itself uses {@code java.util.concurrent}
+ * locks only.
+ *
+ * @since 1.6
+ */
+public class ThreadPerSendExecutor implements Executor
+{
+    /** Creates the threads. */
+    private final ThreadFactory threadFactory = SendThreads.newThreadFactory("commons-email-send-");
+
+    /** Limits the number of concurrent sends. */
+    private final Semaphore permits;
+
+    /** Are the threads virtual, i.e. cheap enough to wait for a permit? */
+    private final boolean virtual = SendThreads.isVirtual();
+
+    /** The sends waiting for a permit before their platform thread is started. */
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    /** The threads of the sends not completed yet. */
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    /** The number of sends not completed yet. */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** Guards waiting for the completion of all sends. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when the last send completed. */
+    private final Condition completed = lock.newCondition();
+
+    /** Has the executor been shut down? */
+    private volatile boolean shutdown;
+
+    /**
+     * Creates an executor.
+     *
+     * @param maxConcurrency the maximum number of concurrent sends
+     */
+    public ThreadPerSendExecutor(final int maxConcurrency)
+    {
+        if (maxConcurrency < 1)
+        {
+            throw new IllegalArgumentException("maxConcurrency must be greater than 0");
+        }
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Are sends executed in virtual threads?
+     *
+     * @return true if running on Java 21 or later
+     */
+    public static boolean isVirtual()
+    {
+        return SendThreads.isVirtual();
+    }
+
+    /**
+     * Executes a send in a new thread.
+     *
+     * @param command the send
+     * @throws RejectedExecutionException if the executor is shut down
+     */
+    @Override
+    public void execute(final Runnable command)
+    {
+        if (shutdown)
+        {
+            throw new RejectedExecutionException("The executor is shut down");
+        }
+
+        pending.incrementAndGet();
+        if (virtual)
+        {
+            start(() -> run(command));
+        }
+        else
+        {
+            waiting.add(command);
+            startWaiting();
+        }
+    }
+
+    /**
+     * Shuts the executor down gracefully. No new sends are accepted, in-flight
+     * sends are completed. Sends not completed within the timeout are interrupted.
+     *
+     * @param timeout the time to wait for in-flight sends
+     * @return true if all sends completed, false if sends were interrupted
+     */
+    public boolean shutdown(final Duration timeout)
+    {
+        shutdown = true;
+
+        long nanos = timeout.toNanos();
+        lock.lock();
+        try
+        {
+            while (pending.get() > 0 && nanos > 0)
+            {
+                nanos = completed.awaitNanos(nanos);
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (pending.get() == 0)
+        {
+            return true;
+        }
+        Runnable command;
+        while ((command = waiting.poll()) != null)
+        {
+            cancel(command);
+            countCompleted();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Has the executor been shut down?
+     *
+     * @return true if shut down
+     */
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    /**
+     * Gets the number of sends not completed yet.
+     *
+     * @return the number of in-flight and waiting sends
+     */
+    public int getActiveCount()
+    {
+        return pending.get();
+    }
+
+    /**
+     * Starts a thread.
+     *
+     * @param task the task of the thread
+     */
+    private void start(final Runnable task)
+    {
+        final Thread thread = threadFactory.newThread(() -> {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                threads.remove(Thread.currentThread());
+            }
+        });
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Starts a platform thread for each waiting send a permit is available for.
+     */
+    private void startWaiting()
+    {
+        while (!waiting.isEmpty() && permits.tryAcquire())
+        {
+            final Runnable command = waiting.poll();
+            if (command == null)
+            {
+                // taken by a concurrent call
+                permits.release();
+                continue;
+            }
+            start(() -> {
+                try
+                {
+                    command.run();
+                }
+                finally
+                {
+                    permits.release();
+                    countCompleted();
+                    startWaiting();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a send in a virtual thread once a permit is available.
+     *
+     * @param command the send
+     */
+    private void run(final Runnable command)
+    {
+        try
+        {
+            permits.acquire();
+            try
+            {
+                command.run();
+            }
+            finally
+            {
+                permits.release();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            // interrupted by a forced shutdown while waiting for a permit
+            cancel(command);
+        }
+        finally
+        {
+            countCompleted();
+        }
+    }
+
+    /**
+     * Cancels a send which has not been started.
+     *
+     * @param command the send
+     */
+    private static void cancel(final Runnable command)
+    {
+        if (command instanceof Future)
+        {
+            ((Future<?>) command).cancel(false);
+        }
+    }
+
+    /**
+     * Counts a completed send and wakes up a waiting shutdown.
+     */
+    private void countCompleted()
+    {
+        pending.decrementAndGet();
+        lock.lock();
+        try
+        {
+            completed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
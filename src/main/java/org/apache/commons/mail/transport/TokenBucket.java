@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free token bucket: permits are refilled at a fixed rate and up to
+ * {@code burst} permits can be taken at once after a quiet period.
+ * <p>
+ * The bucket is implemented as a generic cell rate algorithm on a single
+ * {@code AtomicLong} holding the theoretical arrival time of the next permit,
+ * so acquiring a permit is a compare-and-set without locking. Blocking callers
+ * reserve their permit first and then wait for it, i.e. waiting callers are
+ * served in the order of their reservations.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public class TokenBucket
+{
+    /** The nanoseconds per permit. */
+    private final long intervalNanos;
+
+    /** The time span covered by a full bucket. */
+    private final long capacityNanos;
+
+    /** The permits per second. */
+    private final double permitsPerSecond;
+
+    /** The burst capacity. */
+    private final int burst;
+
+    /** The theoretical arrival time of the next permit, see {@link System#nanoTime()}. */
+    private final AtomicLong nextPermit;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param permitsPerSecond the rate permits are refilled with
+     * @param burst the maximum number of permits available at once
+     * @throws IllegalArgumentException if a value is not positive
+     */
+    public TokenBucket(final double permitsPerSecond, final int burst)
+    {
+        if (permitsPerSecond <= 0 || burst < 1)
+        {
+            throw new IllegalArgumentException("permitsPerSecond and burst must be greater than 0");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.capacityNanos = intervalNanos * burst;
+        this.nextPermit = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a permit if one is available right now.
+     *
+     * @return true if a permit has been taken
+     */
+    public boolean tryAcquire()
+    {
+        while (true)
+        {
+            final long now = System.nanoTime();
+            final long next = nextPermit.get();
+            final long reserved = Math.max(next, now) + intervalNanos;
+            if (reserved - now > capacityNanos)
+            {
+                return false;
+            }
+            if (nextPermit.compareAndSet(next, reserved))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a permit, waiting up to the given time for one to become available.
+     * A permit which would not be available in time is not taken.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if a permit has been taken
+     * @throws InterruptedException interrupted while waiting, the reserved permit is lost
+     */
+    public boolean tryAcquire(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long timeoutNanos = unit.toNanos(timeout);
+        while (true)
+        {
+            final long now = System.nanoTime();
+            final long next = nextPermit.get();
+            final long reserved = Math.max(next, now) + intervalNanos;
+            final long waitNanos = reserved - now - capacityNanos;
+            if (waitNanos > timeoutNanos)
+            {
+                return false;
+            }
+            if (nextPermit.compareAndSet(next, reserved))
+            {
+                if (waitNanos > 0)
+                {
+                    waitUntil(now + waitNanos);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a permit, waiting as long as necessary.
+     *
+     * @throws InterruptedException interrupted while waiting, the reserved permit is lost
+     */
+    public void acquire() throws InterruptedException
+    {
+        tryAcquire(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the time until a permit becomes available.
+     *
+     * @param unit the unit of the result
+     * @return the time to wait, zero if a permit is available now
+     */
+    public long getWaitTime(final TimeUnit unit)
+    {
+        final long now = System.nanoTime();
+        final long waitNanos = Math.max(nextPermit.get(), now) + intervalNanos - now - capacityNanos;
+        return unit.convert(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the number of permits available right now.
+     *
+     * @return the number of permits
+     */
+    public int getAvailablePermits()
+    {
+        final long now = System.nanoTime();
+        final long used = Math.max(nextPermit.get(), now) - now;
+        return (int) ((capacityNanos - used) / intervalNanos);
+    }
+
+    /**
+     * Gets the rate permits are refilled with.
+     *
+     * @return the permits per second
+     */
+    public double getPermitsPerSecond()
+    {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Gets the maximum number of permits available at once.
+     *
+     * @return the burst capacity
+     */
+    public int getBurst()
+    {
+        return burst;
+    }
+
+    /**
+     * Parks the current thread until the deadline.
+     *
+     * @param deadline the deadline, see {@link System#nanoTime()}
+     * @throws InterruptedException interrupted while waiting
+     */
+    private static void waitUntil(final long deadline) throws InterruptedException
+    {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return "TokenBucket[" + permitsPerSecond + "/s, burst=" + burst + "]";
+    }
+}
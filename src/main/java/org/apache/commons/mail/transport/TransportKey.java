@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+
+import org.apache.commons.mail.EmailConstants;
+
+/**
+ * Identifies a connection to a mail server, i.e. the host, port, user
+ * and SSL/TLS mode a transport is connected with. Transports sharing a key
+ * are interchangeable and can be reused for each other's messages.
+ * <p>
+ * A key created by {@link #of(Session)} also holds a fingerprint of the
+ * password and the mail properties of the session, so sessions differing
+ * only in their credentials or settings do not share transports. The
+ * fingerprint is a hash and not part of {@link #toString()}.
+ * <p>
+ * Instances are immutable.
+ *
+ * @since 1.6
+ */
+public final class TransportKey
+{
+    /** The keys of the sessions seen, computed once per session. */
+    private static final Map<Session, TransportKey> KEYS =
+            Collections.synchronizedMap(new WeakHashMap<Session, TransportKey>());
+
+    /** The transport protocol, e.g. "smtp". */
+    private final String protocol;
+
+    /** The host name of the mail server. */
+    private final String host;
+
+    /** The port of the mail server. */
+    private final String port;
+
+    /** The user to authenticate as, may be null. */
+    private final String user;
+
+    /** Does the transport use SSL/TLS encryption upon connection? */
+    private final boolean sslOnConnect;
+
+    /** Does the transport switch to TLS using STARTTLS? */
+    private final boolean startTls;
+
+    /** Is switching to TLS using STARTTLS required? */
+    private final boolean startTlsRequired;
+
+    /** The hash of the password and the mail properties, may be null. */
+    private final String fingerprint;
+
+    /**
+     * Constructor.
+     *
+     * @param protocol the transport protocol
+     * @param host the host name of the mail server
+     * @param port the port of the mail server
+     * @param user the user name, may be null
+     * @param sslOnConnect whether SSL/TLS is used upon connection
+     * @param startTls whether STARTTLS is enabled
+     * @param startTlsRequired whether STARTTLS is required
+     */
+    public TransportKey(final String protocol, final String host, final String port, final String user,
+            final boolean sslOnConnect, final boolean startTls, final boolean startTlsRequired)
+    {
+        this(protocol, host, port, user, sslOnConnect, startTls, startTlsRequired, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param protocol the transport protocol
+     * @param host the host name of the mail server
+     * @param port the port of the mail server
+     * @param user the user name, may be null
+     * @param sslOnConnect whether SSL/TLS is used upon connection
+     * @param startTls whether STARTTLS is enabled
+     * @param startTlsRequired whether STARTTLS is required
+     * @param fingerprint a hash of the credentials and settings, may be null
+     */
+    public TransportKey(final String protocol, final String host, final String port, final String user,
+            final boolean sslOnConnect, final boolean startTls, final boolean startTlsRequired,
+            final String fingerprint)
+    {
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.sslOnConnect = sslOnConnect;
+        this.startTls = startTls;
+        this.startTlsRequired = startTlsRequired;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Gets the key for the transports of a mail session. The user and password
+     * are taken from the session's authenticator if authentication is enabled.
+     * The key is computed on first use and then kept as long as the session,
+     * so later changes to the session's properties are not seen.
+     *
+     * @param session the mail session
+     * @return the key
+     */
+    public static TransportKey of(final Session session)
+    {
+        TransportKey key = KEYS.get(session);
+        if (key == null)
+        {
+            key = create(session);
+            KEYS.put(session, key);
+        }
+        return key;
+    }
+
+    /**
+     * Creates the key for the transports of a mail session.
+     *
+     * @param session the mail session
+     * @return the key
+     */
+    private static TransportKey create(final Session session)
+    {
+        String protocol = session.getProperty(EmailConstants.MAIL_TRANSPORT_PROTOCOL);
+        if (protocol == null || protocol.isEmpty())
+        {
+            protocol = EmailConstants.SMTP;
+        }
+
+        final String prefix = "mail." + protocol + ".";
+        final String host = session.getProperty(prefix + "host");
+        final String port = session.getProperty(prefix + "port");
+        String user = session.getProperty(prefix + "user");
+        String password = null;
+
+        if (Boolean.parseBoolean(session.getProperty(prefix + "auth")))
+        {
+            final PasswordAuthentication authentication = session.requestPasswordAuthentication(
+                    null, port != null ? Integer.parseInt(port) : -1, protocol, null, user);
+            if (authentication != null)
+            {
+                user = authentication.getUserName();
+                password = authentication.getPassword();
+            }
+        }
+
+        final boolean sslOnConnect = Boolean.parseBoolean(session.getProperty(prefix + "ssl.enable"))
+                || session.getProperty(prefix + "socketFactory.class") != null;
+
+        return new TransportKey(
+                protocol,
+                host,
+                port,
+                user,
+                sslOnConnect,
+                Boolean.parseBoolean(session.getProperty(prefix + "starttls.enable")),
+                Boolean.parseBoolean(session.getProperty(prefix + "starttls.required")),
+                fingerprint(password, session.getProperties()));
+    }
+
+    /**
+     * Hashes a password and the mail properties of a session.
+     *
+     * @param password the password, may be null
+     * @param properties the properties of the session
+     * @return the hexadecimal SHA-256 hash
+     */
+    private static String fingerprint(final String password, final Properties properties)
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+        for (final String name : new TreeSet<>(properties.stringPropertyNames()))
+        {
+            if (name.startsWith("mail."))
+            {
+                digest.update(("\0" + name + '=' + properties.getProperty(name)).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+
+    /**
+     * Gets the transport protocol.
+     *
+     * @return the protocol
+     */
+    public String getProtocol()
+    {
+        return protocol;
+    }
+
+    /**
+     * Gets the host name of the mail server.
+     *
+     * @return the host name
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Gets the port of the mail server.
+     *
+     * @return the port
+     */
+    public String getPort()
+    {
+        return port;
+    }
+
+    /**
+     * Gets the user name used for authentication.
+     *
+     * @return the user name or null
+     */
+    public String getUser()
+    {
+        return user;
+    }
+
+    /**
+     * Does the transport use SSL/TLS encryption upon connection?
+     *
+     * @return true if SSL/TLS is used upon connection
+     */
+    public boolean isSSLOnConnect()
+    {
+        return sslOnConnect;
+    }
+
+    /**
+     * Does the transport switch to TLS using STARTTLS?
+     *
+     * @return true if STARTTLS is enabled
+     */
+    public boolean isStartTLSEnabled()
+    {
+        return startTls;
+    }
+
+    /**
+     * Is switching to TLS using STARTTLS required?
+     *
+     * @return true if STARTTLS is required
+     */
+    public boolean isStartTLSRequired()
+    {
+        return startTlsRequired;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof TransportKey))
+        {
+            return false;
+        }
+        final TransportKey other = (TransportKey) obj;
+        return sslOnConnect == other.sslOnConnect
+                && startTls == other.startTls
+                && startTlsRequired == other.startTlsRequired
+                && Objects.equals(protocol, other.protocol)
+                && Objects.equals(host, other.host)
+                && Objects.equals(port, other.port)
+                && Objects.equals(user, other.user)
+                && Objects.equals(fingerprint, other.fingerprint);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(protocol, host, port, user, sslOnConnect, startTls, startTlsRequired, fingerprint);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return protocol + "://" + (user != null ? user + "@" : "") + host + ":" + port
+                + (sslOnConnect ? " [SSL]" : "") + (startTls ? " [STARTTLS]" : "");
+    }
+}
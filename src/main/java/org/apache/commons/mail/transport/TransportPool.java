@@ -0,0 +1,720 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MailTransport;
+
+/**
+ * A pool of connected and authenticated JavaMail {@code Transport} instances.
+ * <p>
+ * {@code Transport.send()} opens a new connection for every message, i.e. every
+ * message pays for the TCP connect, the TLS handshake, EHLO and AUTH. The pool keeps
+ * connected transports per {@link TransportKey} (host, port, credentials, SSL/TLS mode
+ * and mail properties) and reuses them for subsequent messages.
+ * <ul>
+ *   <li>at most {@code maxTotalPerKey} transports are in use per key; a caller waits
+ *   up to {@code borrowTimeoutMillis} for one to become available</li>
+ *   <li>at most {@code maxIdlePerKey} idle transports are kept, the {@link #evict() evictor}
+ *   closes transports being idle longer than {@code maxIdleTimeMillis} and tops the idle
+ *   transports up to {@code minIdlePerKey} without exceeding {@code maxTotalPerKey}</li>
+ *   <li>a transport being idle longer than {@code validationIntervalMillis} is checked
+ *   using {@code Transport.isConnected()}, which sends an SMTP NOOP</li>
+ *   <li>a transport is closed after sending {@code maxMessagesPerConnection} messages
+ *   since many servers limit the number of messages per connection</li>
+ * </ul>
+ * <p>
+ * The pool is thread-safe. Configure it before using it and {@link #close()} it
+ * when done. As a {@link MailTransport} the pool is set for an email with
+ * {@code Email.setMailTransport()}.
+ *
+ * @since 1.6
+ */
+public class TransportPool implements MailTransport
+{
+    /** The default maximum number of transports per key. */
+    public static final int DEFAULT_MAX_TOTAL_PER_KEY = 8;
+
+    /** The default maximum idle time of a transport in milliseconds. */
+    public static final long DEFAULT_MAX_IDLE_TIME_MS = 60000;
+
+    /** The default number of messages sent before a transport is recycled. */
+    public static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+
+    /** The default time to wait for an available transport in milliseconds. */
+    public static final long DEFAULT_BORROW_TIMEOUT_MS = 30000;
+
+    /** The default idle time after which a transport is validated in milliseconds. */
+    public static final long DEFAULT_VALIDATION_INTERVAL_MS = 5000;
+
+    /** The keyed pools. */
+    private final Map<TransportKey, KeyedPool> pools = new ConcurrentHashMap<>();
+
+    /** The maximum number of transports per key. */
+    private volatile int maxTotalPerKey = DEFAULT_MAX_TOTAL_PER_KEY;
+
+    /** The maximum number of idle transports per key. */
+    private volatile int maxIdlePerKey = DEFAULT_MAX_TOTAL_PER_KEY;
+
+    /** The minimum number of idle transports per key maintained by the evictor. */
+    private volatile int minIdlePerKey;
+
+    /** The maximum idle time of a transport in milliseconds. */
+    private volatile long maxIdleTimeMillis = DEFAULT_MAX_IDLE_TIME_MS;
+
+    /** The number of messages sent before a transport is recycled, 0 for no limit. */
+    private volatile int maxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+
+    /** The time to wait for an available transport in milliseconds. */
+    private volatile long borrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MS;
+
+    /** The idle time after which a transport is validated before use in milliseconds. */
+    private volatile long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MS;
+
+    /** Runs the evictor periodically, may be null. */
+    private ScheduledExecutorService evictor;
+
+    /** Has the pool been closed? */
+    private volatile boolean closed;
+
+    /**
+     * Sends a message to all its recipients using a pooled transport for the
+     * session of the message.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed or the message has no session
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        if (message.getSession() == null)
+        {
+            throw new MessagingException("The message has no mail session");
+        }
+        send(message.getSession(), message, message.getAllRecipients());
+        return message.getMessageID();
+    }
+
+    /**
+     * Sends a message using a pooled transport. The message is sent as is, i.e.
+     * the caller is responsible for calling {@code saveChanges()}.
+     *
+     * @param session the mail session the transport is created with
+     * @param message the message to send
+     * @param recipients the envelope recipients
+     * @throws MessagingException sending the message failed
+     */
+    public void send(final Session session, final MimeMessage message, final Address[] recipients)
+        throws MessagingException
+    {
+        if (recipients == null || recipients.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        final KeyedPool pool = getPool(session);
+        final PooledTransport pooledTransport = pool.borrow();
+        boolean invalidate = true;
+
+        try
+        {
+            pooledTransport.transport.sendMessage(message, recipients);
+            invalidate = false;
+        }
+        catch (final SendFailedException e)
+        {
+            // the server rejected recipients, keep the connection unless it is
+            // closed or the server is shutting it down
+            invalidate = !isReusable(pooledTransport.transport, e);
+            throw e;
+        }
+        finally
+        {
+            pool.release(pooledTransport, invalidate);
+        }
+    }
+
+    /**
+     * Can a transport be used for the next message after the server rejected
+     * recipients? Not if the connection has been closed or the server replied
+     * 421, i.e. it is closing the connection.
+     *
+     * @param transport the transport
+     * @param failure the rejection
+     * @return true if the transport is still usable
+     */
+    static boolean isReusable(final Transport transport, final SendFailedException failure)
+    {
+        Exception current = failure;
+        while (current != null)
+        {
+            if (RetryPolicy.getReplyCode(current) == 421)
+            {
+                return false;
+            }
+            current = current instanceof MessagingException ? ((MessagingException) current).getNextException() : null;
+        }
+        return transport.isConnected();
+    }
+
+    /**
+     * Gets a transport sending messages using pooled transports for the given
+     * session instead of the session of each message, e.g. a relay of a
+     * {@link RelayGroup}. Closing the returned transport does not close the pool.
+     *
+     * @param session the mail session the transports are created with
+     * @return the transport
+     */
+    public MailTransport forSession(final Session session)
+    {
+        return new MailTransport()
+        {
+            @Override
+            public String send(final MimeMessage message) throws MessagingException
+            {
+                TransportPool.this.send(session, message, message.getAllRecipients());
+                return message.getMessageID();
+            }
+        };
+    }
+
+    /**
+     * Closes idle transports exceeding the maximum idle time and creates
+     * transports to keep the minimum number of idle transports per key.
+     * This method is invoked periodically when an eviction interval is set.
+     */
+    public void evict()
+    {
+        for (final KeyedPool pool : pools.values())
+        {
+            pool.evict();
+        }
+    }
+
+    /**
+     * Closes the pool and all idle transports. Transports currently in
+     * use are closed when they are returned to the pool.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        synchronized (this)
+        {
+            if (evictor != null)
+            {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+
+        for (final KeyedPool pool : pools.values())
+        {
+            pool.clear();
+        }
+    }
+
+    /**
+     * Has the pool been closed?
+     *
+     * @return true if closed
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Gets the number of idle transports for a key.
+     *
+     * @param key the key
+     * @return the number of idle transports
+     */
+    public int getNumIdle(final TransportKey key)
+    {
+        final KeyedPool pool = pools.get(key);
+        return pool != null ? pool.idle.size() : 0;
+    }
+
+    /**
+     * Gets the number of transports currently in use for a key.
+     *
+     * @param key the key
+     * @return the number of active transports
+     */
+    public int getNumActive(final TransportKey key)
+    {
+        final KeyedPool pool = pools.get(key);
+        return pool != null ? pool.maxTotal - pool.permits.availablePermits() : 0;
+    }
+
+    /**
+     * Gets the maximum number of transports per key.
+     *
+     * @return the maximum number of transports per key
+     */
+    public int getMaxTotalPerKey()
+    {
+        return maxTotalPerKey;
+    }
+
+    /**
+     * Sets the maximum number of transports per key, i.e. the
+     * number of concurrent connections to a mail server.
+     * The setting applies to keys not used yet.
+     *
+     * @param maxTotalPerKey the maximum number of transports per key
+     * @return this pool
+     * @throws IllegalArgumentException if the value is &lt; 1
+     */
+    public TransportPool setMaxTotalPerKey(final int maxTotalPerKey)
+    {
+        if (maxTotalPerKey < 1)
+        {
+            throw new IllegalArgumentException("maxTotalPerKey must be greater than 0");
+        }
+        this.maxTotalPerKey = maxTotalPerKey;
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of idle transports per key.
+     *
+     * @return the maximum number of idle transports per key
+     */
+    public int getMaxIdlePerKey()
+    {
+        return maxIdlePerKey;
+    }
+
+    /**
+     * Sets the maximum number of idle transports per key. Transports
+     * returned to a full pool are closed.
+     *
+     * @param maxIdlePerKey the maximum number of idle transports per key
+     * @return this pool
+     */
+    public TransportPool setMaxIdlePerKey(final int maxIdlePerKey)
+    {
+        this.maxIdlePerKey = maxIdlePerKey;
+        return this;
+    }
+
+    /**
+     * Gets the minimum number of idle transports per key.
+     *
+     * @return the minimum number of idle transports per key
+     */
+    public int getMinIdlePerKey()
+    {
+        return minIdlePerKey;
+    }
+
+    /**
+     * Sets the minimum number of idle transports per key the
+     * evictor keeps connected.
+     *
+     * @param minIdlePerKey the minimum number of idle transports per key
+     * @return this pool
+     */
+    public TransportPool setMinIdlePerKey(final int minIdlePerKey)
+    {
+        this.minIdlePerKey = minIdlePerKey;
+        return this;
+    }
+
+    /**
+     * Gets the maximum idle time of a transport in milliseconds.
+     *
+     * @return the maximum idle time
+     */
+    public long getMaxIdleTimeMillis()
+    {
+        return maxIdleTimeMillis;
+    }
+
+    /**
+     * Sets the maximum idle time of a transport in milliseconds. Should be
+     * lower than the idle timeout of the mail server.
+     *
+     * @param maxIdleTimeMillis the maximum idle time
+     * @return this pool
+     */
+    public TransportPool setMaxIdleTimeMillis(final long maxIdleTimeMillis)
+    {
+        this.maxIdleTimeMillis = maxIdleTimeMillis;
+        return this;
+    }
+
+    /**
+     * Gets the number of messages sent before a transport is recycled.
+     *
+     * @return the number of messages, 0 for no limit
+     */
+    public int getMaxMessagesPerConnection()
+    {
+        return maxMessagesPerConnection;
+    }
+
+    /**
+     * Sets the number of messages sent before a transport is recycled.
+     *
+     * @param maxMessagesPerConnection the number of messages, 0 for no limit
+     * @return this pool
+     */
+    public TransportPool setMaxMessagesPerConnection(final int maxMessagesPerConnection)
+    {
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        return this;
+    }
+
+    /**
+     * Gets the time to wait for an available transport in milliseconds.
+     *
+     * @return the borrow timeout
+     */
+    public long getBorrowTimeoutMillis()
+    {
+        return borrowTimeoutMillis;
+    }
+
+    /**
+     * Sets the time to wait for an available transport in milliseconds.
+     *
+     * @param borrowTimeoutMillis the borrow timeout
+     * @return this pool
+     */
+    public TransportPool setBorrowTimeoutMillis(final long borrowTimeoutMillis)
+    {
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Gets the idle time after which a transport is validated before use.
+     *
+     * @return the validation interval in milliseconds
+     */
+    public long getValidationIntervalMillis()
+    {
+        return validationIntervalMillis;
+    }
+
+    /**
+     * Sets the idle time after which a transport is validated using
+     * a NOOP command before use. Use 0 to validate before every use.
+     *
+     * @param validationIntervalMillis the validation interval in milliseconds
+     * @return this pool
+     */
+    public TransportPool setValidationIntervalMillis(final long validationIntervalMillis)
+    {
+        this.validationIntervalMillis = validationIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Runs the evictor periodically in a daemon thread.
+     *
+     * @param evictionIntervalMillis the interval in milliseconds
+     * @return this pool
+     * @throws IllegalStateException if the evictor has already been started
+     */
+    public synchronized TransportPool startEvictor(final long evictionIntervalMillis)
+    {
+        if (evictor != null)
+        {
+            throw new IllegalStateException("The evictor is already started");
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "commons-email-transport-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, evictionIntervalMillis, evictionIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Gets or creates the pool for the key of the session. Sessions sharing
+     * a key have the same credentials and mail properties, so the transports
+     * created with the first of them serve all of them.
+     *
+     * @param session the mail session
+     * @return the keyed pool
+     * @throws IllegalStateException if the pool has been closed
+     */
+    private KeyedPool getPool(final Session session)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("The transport pool is closed");
+        }
+        return pools.computeIfAbsent(TransportKey.of(session), key -> new KeyedPool(key, session, maxTotalPerKey));
+    }
+
+    /**
+     * Closes a transport, ignoring any errors.
+     *
+     * @param pooledTransport the transport to close
+     */
+    private static void destroy(final PooledTransport pooledTransport)
+    {
+        try
+        {
+            pooledTransport.transport.close();
+        }
+        catch (final MessagingException e) // NOPMD
+        {
+            // ignore, the connection is discarded anyway
+        }
+    }
+
+    /**
+     * A connected transport and its usage statistics.
+     */
+    private static final class PooledTransport
+    {
+        /** The connected transport. */
+        private final Transport transport;
+
+        /** The number of messages sent. */
+        private int messageCount;
+
+        /** When the transport was last used. */
+        private long lastUsedMillis = System.currentTimeMillis();
+
+        /**
+         * Constructor.
+         *
+         * @param transport the connected transport
+         */
+        PooledTransport(final Transport transport)
+        {
+            this.transport = transport;
+        }
+    }
+
+    /**
+     * The transports for a single key.
+     */
+    private final class KeyedPool
+    {
+        /** The key. */
+        private final TransportKey key;
+
+        /** The session used to create transports. */
+        private final Session session;
+
+        /** The maximum number of transports. */
+        private final int maxTotal;
+
+        /** A permit per transport in use. */
+        private final Semaphore permits;
+
+        /** The idle transports, most recently used first. */
+        private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+
+        /**
+         * Constructor.
+         *
+         * @param key the key
+         * @param session the session used to create transports
+         * @param maxTotal the maximum number of transports
+         */
+        KeyedPool(final TransportKey key, final Session session, final int maxTotal)
+        {
+            this.key = key;
+            this.session = session;
+            this.maxTotal = maxTotal;
+            this.permits = new Semaphore(maxTotal, true);
+        }
+
+        /**
+         * Borrows a transport, waiting for a transport to become available.
+         *
+         * @return a connected transport
+         * @throws MessagingException no transport became available or connecting failed
+         */
+        PooledTransport borrow() throws MessagingException
+        {
+            try
+            {
+                if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+                {
+                    throw new MessagingException("Timeout waiting for an available transport for " + key);
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for an available transport for " + key, e);
+            }
+
+            try
+            {
+                PooledTransport pooledTransport;
+                while ((pooledTransport = idle.pollFirst()) != null)
+                {
+                    if (isUsable(pooledTransport, System.currentTimeMillis()))
+                    {
+                        return pooledTransport;
+                    }
+                    destroy(pooledTransport);
+                }
+                return create();
+            }
+            catch (final MessagingException | RuntimeException e)
+            {
+                permits.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns a borrowed transport to the pool.
+         *
+         * @param pooledTransport the transport
+         * @param invalidate close the transport instead of keeping it
+         */
+        void release(final PooledTransport pooledTransport, final boolean invalidate)
+        {
+            pooledTransport.messageCount++;
+            pooledTransport.lastUsedMillis = System.currentTimeMillis();
+
+            final int maxMessages = maxMessagesPerConnection;
+            if (invalidate
+                    || closed
+                    || (maxMessages > 0 && pooledTransport.messageCount >= maxMessages)
+                    || idle.size() >= maxIdlePerKey)
+            {
+                destroy(pooledTransport);
+            }
+            else
+            {
+                idle.offerFirst(pooledTransport);
+            }
+            permits.release();
+        }
+
+        /**
+         * Closes expired idle transports and creates transports up to the minimum idle count.
+         */
+        void evict()
+        {
+            final long now = System.currentTimeMillis();
+            final Iterator<PooledTransport> iter = idle.descendingIterator();
+            while (iter.hasNext())
+            {
+                final PooledTransport pooledTransport = iter.next();
+                if (now - pooledTransport.lastUsedMillis > maxIdleTimeMillis && idle.remove(pooledTransport))
+                {
+                    destroy(pooledTransport);
+                }
+            }
+
+            while (!closed && idle.size() < Math.min(minIdlePerKey, maxIdlePerKey))
+            {
+                // the new transport counts as in use while connecting, so the
+                // idle and active transports never exceed the maximum
+                if (!permits.tryAcquire())
+                {
+                    break;
+                }
+                try
+                {
+                    if (idle.size() > permits.availablePermits())
+                    {
+                        break;
+                    }
+                    idle.offerLast(create());
+                }
+                catch (final MessagingException e)
+                {
+                    // the server is not reachable right now, retry on the next run
+                    break;
+                }
+                finally
+                {
+                    permits.release();
+                }
+            }
+        }
+
+        /**
+         * Closes all idle transports.
+         */
+        void clear()
+        {
+            PooledTransport pooledTransport;
+            while ((pooledTransport = idle.pollFirst()) != null)
+            {
+                destroy(pooledTransport);
+            }
+        }
+
+        /**
+         * Creates and connects a new transport.
+         *
+         * @return the connected transport
+         * @throws MessagingException connecting failed
+         */
+        private PooledTransport create() throws MessagingException
+        {
+            final Transport transport = session.getTransport();
+            transport.connect();
+            return new PooledTransport(transport);
+        }
+
+        /**
+         * Checks whether an idle transport may be used.
+         *
+         * @param pooledTransport the idle transport
+         * @param now the current time in milliseconds
+         * @return true if the transport may be used
+         */
+        private boolean isUsable(final PooledTransport pooledTransport, final long now)
+        {
+            final long idleMillis = now - pooledTransport.lastUsedMillis;
+            if (idleMillis > maxIdleTimeMillis)
+            {
+                return false;
+            }
+            // for SMTP isConnected() sends a NOOP command
+            return idleMillis < validationIntervalMillis || pooledTransport.transport.isConnected();
+        }
+    }
+}
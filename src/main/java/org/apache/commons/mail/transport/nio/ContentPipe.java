@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+/**
+ * The encoded content of a delivery on its way from the encoder thread to the
+ * connection. The encoder writes the content as a stream, cut into blocks of
+ * {@link #BLOCK_SIZE} bytes, and blocks while the content not yet taken by the
+ * connection reaches the capacity. The connection takes whole blocks on its
+ * selector thread and is notified once more content is available, so at most
+ * the capacity plus the blocks being written to the socket are held in memory
+ * however large the message is.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+final class ContentPipe extends OutputStream
+{
+    /** The size of the blocks handed to the connection. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /** The maximum number of bytes buffered before the encoder blocks. */
+    private final int capacity;
+
+    /** Called when content becomes available to a waiting connection, must not block. */
+    private final Runnable listener;
+
+    /** The complete blocks not taken yet. */
+    private final Deque<ByteBuffer> blocks = new ArrayDeque<ByteBuffer>();
+
+    /** The block being filled or <code>null</code>. */
+    private byte[] block;
+
+    /** The number of bytes in the block being filled. */
+    private int count;
+
+    /** The number of bytes in the complete blocks. */
+    private int available;
+
+    /** Has the encoder written all content? */
+    private boolean finished;
+
+    /** Why the encoder failed or <code>null</code>. */
+    private Exception failure;
+
+    /** Has the transfer been aborted? */
+    private boolean cancelled;
+
+    /** Is the connection waiting for content? */
+    private boolean waiting;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of bytes buffered, a multiple of {@link #BLOCK_SIZE}
+     * @param listener called when content becomes available to a waiting
+     *        connection, must not block
+     */
+    ContentPipe(final int capacity, final Runnable listener)
+    {
+        this.capacity = capacity;
+        this.listener = listener;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void write(final int b) throws IOException
+    {
+        awaitSpace();
+        block[count++] = (byte) b;
+        if (count == BLOCK_SIZE)
+        {
+            push();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        int offset = off;
+        int remaining = len;
+
+        while (remaining > 0)
+        {
+            awaitSpace();
+            final int length = Math.min(remaining, BLOCK_SIZE - count);
+            System.arraycopy(b, offset, block, count, length);
+            count += length;
+            offset += length;
+            remaining -= length;
+            if (count == BLOCK_SIZE)
+            {
+                push();
+            }
+        }
+    }
+
+    /**
+     * Completes the content, called by the encoder when it has written
+     * everything.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (finished || cancelled)
+        {
+            return;
+        }
+        if (count > 0)
+        {
+            push();
+        }
+        finished = true;
+        signal();
+    }
+
+    /**
+     * Reports that encoding the content failed, called by the encoder.
+     *
+     * @param cause the failure
+     */
+    synchronized void fail(final Exception cause)
+    {
+        if (failure == null)
+        {
+            failure = cause;
+        }
+        signal();
+    }
+
+    /**
+     * Aborts the transfer, called by the connection. A blocked or subsequent
+     * write of the encoder fails.
+     */
+    synchronized void cancel()
+    {
+        cancelled = true;
+        blocks.clear();
+        available = 0;
+        block = null;
+        notifyAll();
+    }
+
+    /**
+     * Takes the next blocks of the content, called by the connection. If not
+     * enough content is available yet the listener is called once it is.
+     *
+     * @param max the maximum number of bytes to take, a multiple of {@link #BLOCK_SIZE}
+     * @param partial whether to take less than max bytes before the end of
+     *        the content
+     * @return the blocks, empty at the end of the content, or <code>null</code>
+     *         if not enough content is available yet
+     * @throws MessagingException encoding the message failed
+     */
+    synchronized List<ByteBuffer> take(final int max, final boolean partial) throws MessagingException
+    {
+        if (failure != null)
+        {
+            throw new MessagingException("Encoding the message failed", failure);
+        }
+        if (!finished && (blocks.isEmpty() || !partial && available < max))
+        {
+            waiting = true;
+            return null;
+        }
+
+        final List<ByteBuffer> taken = new ArrayList<ByteBuffer>();
+        int size = 0;
+        while (!blocks.isEmpty() && size + blocks.peek().remaining() <= max)
+        {
+            final ByteBuffer next = blocks.poll();
+            size += next.remaining();
+            taken.add(next);
+        }
+        available -= size;
+        notifyAll();
+        return taken;
+    }
+
+    /**
+     * @return whether all content has been written and taken
+     */
+    synchronized boolean isDrained()
+    {
+        return finished && blocks.isEmpty();
+    }
+
+    /**
+     * Waits until the buffered content is below the capacity and provides a
+     * block to fill.
+     *
+     * @throws IOException the transfer has been aborted or the encoder has
+     *         been interrupted
+     */
+    private void awaitSpace() throws IOException
+    {
+        while (available >= capacity && !cancelled)
+        {
+            try
+            {
+                wait();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while encoding the message");
+            }
+        }
+        if (cancelled)
+        {
+            throw new IOException("The transfer of the message has been aborted");
+        }
+        if (finished)
+        {
+            throw new IOException("The content has been completed");
+        }
+        if (block == null)
+        {
+            block = new byte[BLOCK_SIZE];
+            count = 0;
+        }
+    }
+
+    /**
+     * Hands the block being filled to the connection.
+     */
+    private void push()
+    {
+        blocks.add(ByteBuffer.wrap(block, 0, count));
+        available += count;
+        block = null;
+        count = 0;
+        signal();
+    }
+
+    /**
+     * Notifies a waiting connection.
+     */
+    private void signal()
+    {
+        if (waiting)
+        {
+            waiting = false;
+            listener.run();
+        }
+    }
+}
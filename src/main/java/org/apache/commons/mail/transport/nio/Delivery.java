@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.MimeStreamWriter;
+
+/**
+ * A message waiting for or in transfer: the envelope, the message and the
+ * future completed with the outcome.
+ * <p>
+ * The content is encoded by {@link #writeContent(OutputStream, boolean)} while
+ * it is transferred, either for the DATA command, i.e. dot-stuffed and
+ * terminated by a dot line, or for the BDAT command of the CHUNKING extension
+ * with CRLF line endings only, depending on the extensions of the server.
+ * Content with binary parts is written as is and can only be sent with BDAT to
+ * a server supporting BINARYMIME.
+ *
+ * @since 1.6
+ */
+final class Delivery
+{
+    /** The headers not transferred, like the JavaMail provider does. */
+    private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+
+    /** The envelope sender. */
+    final String from;
+
+    /** The envelope recipients. */
+    final InternetAddress[] recipients;
+
+    /** The BODY parameter of MAIL FROM, 8BITMIME, BINARYMIME or null for 7bit. */
+    final String body;
+
+    /** Completed with the Message-ID or the failure. */
+    final CompletableFuture<String> future = new CompletableFuture<String>();
+
+    /** The message. */
+    private final MimeMessage message;
+
+    /** May the content be sent with BDAT? */
+    private final boolean chunkable;
+
+    /** The estimated size of the message or -1 if unknown. */
+    private final int size;
+
+    /** The Message-ID of the message, set once the content has been written. */
+    private volatile String messageId;
+
+    /**
+     * Constructor.
+     *
+     * @param from the envelope sender
+     * @param recipients the envelope recipients
+     * @param message the message
+     * @param chunkable whether the content may be sent with BDAT
+     * @param body the BODY parameter of MAIL FROM, null for 7bit
+     * @param size the estimated size of the message or -1 if unknown
+     */
+    Delivery(final String from, final InternetAddress[] recipients, final MimeMessage message,
+            final boolean chunkable, final String body, final int size)
+    {
+        this.from = from;
+        this.recipients = recipients;
+        this.message = message;
+        this.chunkable = chunkable;
+        this.body = body;
+        this.size = size;
+    }
+
+    /**
+     * @return whether the content may be sent with BDAT
+     */
+    boolean isChunkable()
+    {
+        return chunkable;
+    }
+
+    /**
+     * @return the estimated size of the message for the SIZE parameter, or -1
+     *         if unknown
+     */
+    int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return the Message-ID of the message, once the content has been written
+     */
+    String getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * Writes the content with CRLF line endings and without the Bcc header,
+     * or with the binary parts as is. Does not close the stream.
+     *
+     * @param out the stream
+     * @param dotStuffing whether to encode for DATA, i.e. with dot-stuffing
+     *        and the terminating dot line
+     * @throws IOException writing failed
+     * @throws MessagingException writing failed
+     */
+    void writeContent(final OutputStream out, final boolean dotStuffing) throws IOException, MessagingException
+    {
+        if (NioSmtpClient.BINARYMIME.equals(body))
+        {
+            if (message.getMessageID() == null)
+            {
+                message.saveChanges();
+            }
+            final MimeStreamWriter writer = new MimeStreamWriter(out);
+            writer.writeMessage(message);
+            writer.flush();
+        }
+        else
+        {
+            final SmtpDataOutputStream data = new SmtpDataOutputStream(out, dotStuffing);
+            message.writeTo(data, IGNORED_HEADERS);
+            data.finish();
+        }
+        messageId = message.getMessageID();
+    }
+}
@@ -0,0 +1,795 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.activation.DataHandler;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.SendResult;
+import org.apache.commons.mail.transport.TransportKey;
+
+/**
+ * A non-blocking SMTP client as an alternative to the blocking JavaMail
+ * transport. A few selector threads drive any number of SMTP sessions, so a
+ * large volume of mail can keep many relay connections busy without
+ * dedicating a thread to each of them.
+ * <p>
+ * The server, TLS and authentication settings are read from the mail session
+ * with the same properties as the JavaMail SMTP provider, e.g. as configured
+ * by {@link org.apache.commons.mail.Email}. Connections are kept open per
+ * server and credentials and reused for subsequent messages until they have
+ * been idle for {@link #setIdleTimeoutMillis(long)}.
+ *
+ * <pre>
+ * NioSmtpClient client = new NioSmtpClient();
+ * email.buildMimeMessage();
+ * CompletableFuture&lt;String&gt; messageId = client.send(email.getMailSession(), email.getMimeMessage());
+ * </pre>
+ *
+ * The message is encoded while it is transferred: an encoder thread writes it,
+ * with dot-stuffing and CRLF normalization applied, into a bounded buffer of
+ * the connection which the selector thread owning the connection drains as
+ * the socket becomes writable. Only about a megabyte of content per
+ * connection is held in memory however large the messages are and however
+ * many are queued. Failures complete the returned future with the exceptions
+ * the JavaMail provider would throw, e.g. a {@link SendFailedException}
+ * listing the rejected recipients.
+ * <p>
+ * A message with 8bit parts is announced with BODY=8BITMIME if the server
+ * supports it. A message with binary parts, e.g. a
+ * {@link org.apache.commons.mail.FileBodyPart#binary(java.io.File)}, is
+ * written as is and needs CHUNKING enabled and a server supporting BINARYMIME,
+ * otherwise it fails; see {@link #supportsExtension(Session, String)}.
+ * <p>
+ * As a {@link MailTransport} the client sends synchronously, except for
+ * {@link #sendAll(Collection)} which transfers all messages concurrently.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @since 1.6
+ */
+public class NioSmtpClient implements Closeable, MailTransport
+{
+    /** The default number of selector threads. */
+    public static final int DEFAULT_SELECTOR_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /** The default maximum number of connections per server. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_RELAY = 8;
+
+    /** The default time in milliseconds after which an idle connection is closed. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    /** Numbers the clients for the thread names. */
+    private static final AtomicInteger CLIENT_NUMBER = new AtomicInteger();
+
+    /** How long to wait for the selector threads when closing. */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    /** The extension and BODY parameter for content with 8bit parts, see RFC 6152. */
+    static final String EIGHTBITMIME = "8BITMIME";
+
+    /** The extension and BODY parameter for content with binary parts, see RFC 3030. */
+    static final String BINARYMIME = "BINARYMIME";
+
+    /** The header naming the transfer encoding of a part. */
+    private static final String TRANSFER_ENCODING = "Content-Transfer-Encoding";
+
+    /** The selector loops. */
+    private final SelectorLoop[] loops;
+
+    /** The loop for the next connection. */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /** The threads encoding the messages in transfer. */
+    private final ExecutorService encoders;
+
+    /** The relays by server and credentials. */
+    private final ConcurrentMap<TransportKey, Relay> relays = new ConcurrentHashMap<TransportKey, Relay>();
+
+    /** The maximum number of connections per server. */
+    private volatile int maxConnectionsPerRelay = DEFAULT_MAX_CONNECTIONS_PER_RELAY;
+
+    /** The time after which an idle connection is closed. */
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT;
+
+    /** The context creating the TLS engines or <code>null</code> for the default. */
+    private volatile SSLContext sslContext;
+
+    /** Pipeline the commands if the server supports PIPELINING. */
+    private volatile boolean pipeliningEnabled;
+
+    /** Send the content with BDAT if the server supports CHUNKING. */
+    private volatile boolean chunkingEnabled;
+
+    /** The host name announced with EHLO, determined on first use. */
+    private volatile String localHost;
+
+    /** Set when closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates a client with {@link #DEFAULT_SELECTOR_THREADS} selector threads.
+     *
+     * @throws IOException opening a selector failed
+     */
+    public NioSmtpClient() throws IOException
+    {
+        this(DEFAULT_SELECTOR_THREADS);
+    }
+
+    /**
+     * Creates a client.
+     *
+     * @param selectorThreads the number of selector threads
+     * @throws IOException opening a selector failed
+     */
+    public NioSmtpClient(final int selectorThreads) throws IOException
+    {
+        if (selectorThreads < 1)
+        {
+            throw new IllegalArgumentException("selectorThreads must be positive");
+        }
+        final int clientNumber = CLIENT_NUMBER.incrementAndGet();
+        final AtomicInteger encoderNumber = new AtomicInteger();
+        encoders = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "commons-email-smtp-" + clientNumber + "-encoder-"
+                    + encoderNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        loops = new SelectorLoop[selectorThreads];
+        try
+        {
+            for (int i = 0; i < selectorThreads; i++)
+            {
+                loops[i] = new SelectorLoop("commons-email-smtp-" + clientNumber + "-" + (i + 1));
+            }
+        }
+        catch (final IOException e)
+        {
+            for (final SelectorLoop loop : loops)
+            {
+                if (loop != null)
+                {
+                    loop.shutdown();
+                }
+            }
+            encoders.shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the maximum number of connections per server.
+     *
+     * @param maxConnectionsPerRelay the maximum
+     * @return this client
+     */
+    public NioSmtpClient setMaxConnectionsPerRelay(final int maxConnectionsPerRelay)
+    {
+        if (maxConnectionsPerRelay < 1)
+        {
+            throw new IllegalArgumentException("maxConnectionsPerRelay must be positive");
+        }
+        this.maxConnectionsPerRelay = maxConnectionsPerRelay;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of connections per server
+     */
+    public int getMaxConnectionsPerRelay()
+    {
+        return maxConnectionsPerRelay;
+    }
+
+    /**
+     * Sets the time after which an idle connection is closed.
+     *
+     * @param idleTimeoutMillis the time in milliseconds
+     * @return this client
+     */
+    public NioSmtpClient setIdleTimeoutMillis(final long idleTimeoutMillis)
+    {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return the time in milliseconds after which an idle connection is closed
+     */
+    public long getIdleTimeoutMillis()
+    {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the context creating the TLS engines, e.g. to trust a private
+     * certificate authority.
+     *
+     * @param sslContext the context or <code>null</code> for the default context
+     * @return this client
+     */
+    public NioSmtpClient setSSLContext(final SSLContext sslContext)
+    {
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    /**
+     * Enables sending the envelope commands without waiting for each reply,
+     * if the server advertises PIPELINING (RFC 2920). This saves a round trip
+     * per recipient on high-latency links. The content is pipelined along with
+     * the envelope only if it must be sent anyway, i.e. for a single recipient
+     * or if the session allows partial sends.
+     *
+     * @param pipeliningEnabled whether to use PIPELINING
+     * @return this client
+     */
+    public NioSmtpClient setPipeliningEnabled(final boolean pipeliningEnabled)
+    {
+        this.pipeliningEnabled = pipeliningEnabled;
+        return this;
+    }
+
+    /**
+     * @return whether PIPELINING is used if supported
+     */
+    public boolean isPipeliningEnabled()
+    {
+        return pipeliningEnabled;
+    }
+
+    /**
+     * Enables sending the content in BDAT chunks instead of DATA if the server
+     * advertises CHUNKING (RFC 3030), which transfers the content without
+     * dot-stuffing and without scanning for the terminating dot line. If the
+     * server does not support CHUNKING the content is dot-stuffed when
+     * transferred instead.
+     *
+     * @param chunkingEnabled whether to use CHUNKING
+     * @return this client
+     */
+    public NioSmtpClient setChunkingEnabled(final boolean chunkingEnabled)
+    {
+        this.chunkingEnabled = chunkingEnabled;
+        return this;
+    }
+
+    /**
+     * @return whether CHUNKING is used if supported
+     */
+    public boolean isChunkingEnabled()
+    {
+        return chunkingEnabled;
+    }
+
+    /**
+     * Sends a message to all its recipients and waits for the outcome.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed or the message has no session
+     * @throws IllegalStateException the client has been closed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        return await(sendAsync(message));
+    }
+
+    /**
+     * Gets a transport sending messages to the server of the given session
+     * instead of the session of each message, e.g. a relay of a
+     * {@link org.apache.commons.mail.transport.RelayGroup}. Closing the
+     * returned transport does not close this client.
+     *
+     * @param session the mail session defining the server
+     * @return the transport
+     */
+    public MailTransport forSession(final Session session)
+    {
+        return new MailTransport()
+        {
+            @Override
+            public String send(final MimeMessage message) throws MessagingException
+            {
+                return await(NioSmtpClient.this.send(session, message));
+            }
+        };
+    }
+
+    /**
+     * Waits for the outcome of a send.
+     *
+     * @param future the future outcome
+     * @return the Message-ID of the message
+     * @throws MessagingException sending the message failed
+     */
+    private static String await(final CompletableFuture<String> future) throws MessagingException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (final ExecutionException e)
+        {
+            if (e.getCause() instanceof MessagingException)
+            {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Sending the message failed", e);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for the message to be sent", e);
+        }
+    }
+
+    /**
+     * Sends the messages concurrently and waits for all of them.
+     *
+     * @param messages the saved messages
+     * @return the result for each message in iteration order
+     * @throws IllegalStateException the client has been closed
+     */
+    @Override
+    public List<SendResult> sendAll(final Collection<? extends MimeMessage> messages)
+    {
+        final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(messages.size());
+        for (final MimeMessage message : messages)
+        {
+            futures.add(sendAsync(message));
+        }
+
+        final List<SendResult> results = new ArrayList<SendResult>(messages.size());
+        int i = 0;
+        for (final MimeMessage message : messages)
+        {
+            try
+            {
+                results.add(SendResult.success(message, futures.get(i++).join()));
+            }
+            catch (final CompletionException e)
+            {
+                results.add(SendResult.failure(message, new EmailException(e.getCause())));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sends a message to all its recipients.
+     *
+     * @param session the mail session defining the server
+     * @param message the message, {@link MimeMessage#saveChanges()} is called
+     *        if it has not been saved yet
+     * @return completed with the Message-ID when the server accepted the
+     *         message or with the failure
+     * @throws IllegalStateException the client has been closed
+     */
+    public CompletableFuture<String> send(final Session session, final MimeMessage message)
+    {
+        try
+        {
+            return send(session, message, message.getAllRecipients());
+        }
+        catch (final MessagingException e)
+        {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Sends a message.
+     *
+     * @param session the mail session defining the server
+     * @param message the message, {@link MimeMessage#saveChanges()} is called
+     *        if it has not been saved yet
+     * @param addresses the envelope recipients
+     * @return completed with the Message-ID when the server accepted the
+     *         message or with the failure
+     * @throws IllegalStateException the client has been closed
+     */
+    public CompletableFuture<String> send(final Session session, final MimeMessage message, final Address[] addresses)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("The SMTP client has been closed");
+        }
+
+        try
+        {
+            final SmtpEndpoint endpoint = new SmtpEndpoint(session);
+            final InternetAddress[] recipients = toInternetAddresses(addresses);
+            final String from = envelopeFrom(endpoint, message);
+            final boolean chunking = chunkingEnabled;
+            final String body;
+            if (hasTransferEncoding(message, "binary"))
+            {
+                if (!chunking)
+                {
+                    return failed(new MessagingException("Binary content requires CHUNKING to be enabled"));
+                }
+                body = BINARYMIME;
+            }
+            else
+            {
+                body = hasTransferEncoding(message, "8bit") ? EIGHTBITMIME : null;
+            }
+            final Delivery delivery = new Delivery(from, recipients, message, chunking, body, estimateSize(message));
+
+            Relay relay = relays.get(endpoint.key);
+            if (relay == null)
+            {
+                final Relay created = new Relay(this, endpoint);
+                relay = relays.putIfAbsent(endpoint.key, created);
+                if (relay == null)
+                {
+                    relay = created;
+                }
+            }
+            if (closed)
+            {
+                relay.close();
+            }
+            relay.submit(delivery);
+            return delivery.future;
+        }
+        catch (final MessagingException e)
+        {
+            return failed(e);
+        }
+        catch (final IOException e)
+        {
+            return failed(new MessagingException("Reading the message failed", e));
+        }
+    }
+
+    /**
+     * Tells whether a server advertised an extension when last greeted, e.g.
+     * whether a message may contain binary parts such as a
+     * {@link org.apache.commons.mail.FileBodyPart#binary(java.io.File)} if
+     * the server supports BINARYMIME and CHUNKING is enabled.
+     *
+     * @param session the mail session defining the server
+     * @param keyword the keyword of the extension, e.g. BINARYMIME
+     * @return whether the extension is supported, false if no connection to
+     *         the server has been greeted yet
+     */
+    public boolean supportsExtension(final Session session, final String keyword)
+    {
+        final Relay relay = relays.get(new SmtpEndpoint(session).key);
+        return relay != null && relay.supportsExtension(keyword);
+    }
+
+    /**
+     * @return the number of open or opening connections over all servers
+     */
+    public int getConnectionCount()
+    {
+        int count = 0;
+        for (final Relay relay : relays.values())
+        {
+            count += relay.getConnectionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Fails the queued messages, aborts the transfers in progress and stops
+     * the selector threads.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        for (final Relay relay : relays.values())
+        {
+            relay.close();
+        }
+        for (final SelectorLoop loop : loops)
+        {
+            loop.shutdown();
+        }
+        encoders.shutdown();
+
+        boolean interrupted = false;
+        for (final SelectorLoop loop : loops)
+        {
+            try
+            {
+                loop.join(CLOSE_TIMEOUT);
+            }
+            catch (final InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether the client has been closed
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * @return the selector loop for a new connection, round robin
+     */
+    SelectorLoop nextLoop()
+    {
+        return loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+    }
+
+    /**
+     * @return the context creating the TLS engines
+     * @throws SSLException no default context is available
+     */
+    SSLContext getSSLContext() throws SSLException
+    {
+        if (sslContext != null)
+        {
+            return sslContext;
+        }
+        try
+        {
+            return SSLContext.getDefault();
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new SSLException("No default TLS context available", e);
+        }
+    }
+
+    /**
+     * @return the name of the local host announced with EHLO
+     */
+    String getLocalHost()
+    {
+        String name = localHost;
+        if (name == null)
+        {
+            try
+            {
+                name = InetAddress.getLocalHost().getCanonicalHostName();
+            }
+            catch (final UnknownHostException e)
+            {
+                name = "localhost";
+            }
+            localHost = name;
+        }
+        return name;
+    }
+
+    /**
+     * Starts encoding the content of a delivery in an encoder thread.
+     *
+     * @param delivery the delivery
+     * @param pipe receives the content
+     * @param dotStuffing whether to encode for DATA, i.e. with dot-stuffing
+     *        and the terminating dot line
+     */
+    void encode(final Delivery delivery, final ContentPipe pipe, final boolean dotStuffing)
+    {
+        try
+        {
+            encoders.execute(() -> {
+                try
+                {
+                    delivery.writeContent(pipe, dotStuffing);
+                    pipe.close();
+                }
+                catch (final IOException | MessagingException | RuntimeException e)
+                {
+                    pipe.fail(e);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            pipe.fail(e);
+        }
+    }
+
+    /**
+     * Estimates the size of a message without encoding it.
+     *
+     * @param message the message
+     * @return the size of the content plus the headers, or -1 if the size of
+     *         the content is unknown
+     * @throws MessagingException reading the headers failed
+     */
+    private static int estimateSize(final MimeMessage message) throws MessagingException
+    {
+        final int contentSize = message.getSize();
+        if (contentSize < 0)
+        {
+            return -1;
+        }
+        int size = contentSize + 2;
+        final Enumeration<String> lines = message.getAllHeaderLines();
+        while (lines.hasMoreElements())
+        {
+            size += lines.nextElement().length() + 2;
+        }
+        return size;
+    }
+
+    /**
+     * Tells whether a part or one of its nested parts has a transfer
+     * encoding, without reading the content of the other parts.
+     *
+     * @param part the part
+     * @param encoding the transfer encoding
+     * @return whether a part has the transfer encoding
+     * @throws IOException reading a multipart failed
+     * @throws MessagingException reading a multipart failed
+     */
+    private static boolean hasTransferEncoding(final Part part, final String encoding)
+            throws IOException, MessagingException
+    {
+        final String[] header = part.getHeader(TRANSFER_ENCODING);
+        if (header != null && encoding.equalsIgnoreCase(header[0].trim()))
+        {
+            return true;
+        }
+        final DataHandler dataHandler = part.getDataHandler();
+        if (!new ContentType(dataHandler.getContentType()).match("multipart/*"))
+        {
+            return false;
+        }
+        final Object content = dataHandler.getContent();
+        if (content instanceof Multipart)
+        {
+            final Multipart multipart = (Multipart) content;
+            for (int i = 0; i < multipart.getCount(); i++)
+            {
+                if (hasTransferEncoding(multipart.getBodyPart(i), encoding))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines the envelope sender like the JavaMail provider does.
+     *
+     * @param endpoint the settings of the session
+     * @param message the message
+     * @return the envelope sender
+     * @throws MessagingException the message has no sender
+     */
+    private static String envelopeFrom(final SmtpEndpoint endpoint, final MimeMessage message)
+            throws MessagingException
+    {
+        if (message instanceof SMTPMessage)
+        {
+            final String envelopeFrom = ((SMTPMessage) message).getEnvelopeFrom();
+            if (envelopeFrom != null && !envelopeFrom.isEmpty())
+            {
+                return envelopeFrom;
+            }
+        }
+        if (endpoint.from != null && !endpoint.from.isEmpty())
+        {
+            return endpoint.from;
+        }
+        final Address[] from = message.getFrom();
+        if (from != null && from.length > 0 && from[0] instanceof InternetAddress)
+        {
+            return ((InternetAddress) from[0]).getAddress();
+        }
+        final InternetAddress local = InternetAddress.getLocalAddress(null);
+        if (local == null)
+        {
+            throw new MessagingException("Can't determine the envelope sender");
+        }
+        return local.getAddress();
+    }
+
+    /**
+     * @param addresses the recipients
+     * @return the recipients as Internet addresses
+     * @throws SendFailedException there are no recipients or some are not Internet addresses
+     */
+    private static InternetAddress[] toInternetAddresses(final Address[] addresses) throws SendFailedException
+    {
+        if (addresses == null || addresses.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+        final InternetAddress[] recipients = new InternetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++)
+        {
+            if (!(addresses[i] instanceof InternetAddress))
+            {
+                throw new SendFailedException("Not an Internet address: " + addresses[i],
+                        null, null, null, new Address[] {addresses[i]});
+            }
+            recipients[i] = (InternetAddress) addresses[i];
+        }
+        return recipients;
+    }
+
+    /**
+     * @param message the message
+     * @return the future outcome of sending the message with its own session
+     */
+    private CompletableFuture<String> sendAsync(final MimeMessage message)
+    {
+        if (message.getSession() == null)
+        {
+            return failed(new MessagingException("The message has no mail session"));
+        }
+        return send(message.getSession(), message);
+    }
+
+    /**
+     * @param cause the failure
+     * @return a future completed with the failure
+     */
+    private static CompletableFuture<String> failed(final MessagingException cause)
+    {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+/**
+ * The deliveries and connections of one SMTP server. Deliveries are handed to
+ * an idle connection or queued until a connection becomes ready; connections
+ * are opened on demand up to the configured maximum.
+ *
+ * @since 1.6
+ */
+final class Relay
+{
+    /** The client owning the relay. */
+    private final NioSmtpClient client;
+
+    /** The server and settings. */
+    private final SmtpEndpoint endpoint;
+
+    /** The deliveries waiting for a connection. */
+    private final Deque<Delivery> queue = new ArrayDeque<Delivery>();
+
+    /** The idle connections, most recently used first. */
+    private final Deque<SmtpConnection> idle = new ArrayDeque<SmtpConnection>();
+
+    /** The number of open or opening connections. */
+    private int connections;
+
+    /** Set when the client has been closed. */
+    private boolean closed;
+
+    /** The extensions advertised in the latest EHLO reply, empty until then. */
+    private volatile Set<String> extensions = Collections.emptySet();
+
+    /**
+     * Constructor.
+     *
+     * @param client the client owning the relay
+     * @param endpoint the server and settings
+     */
+    Relay(final NioSmtpClient client, final SmtpEndpoint endpoint)
+    {
+        this.client = client;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return the server and settings
+     */
+    SmtpEndpoint getEndpoint()
+    {
+        return endpoint;
+    }
+
+    /**
+     * @return the host name announced with EHLO
+     */
+    String getLocalHost()
+    {
+        return endpoint.localHost != null ? endpoint.localHost : client.getLocalHost();
+    }
+
+    /**
+     * @return the context creating the TLS engines
+     * @throws SSLException no context is available
+     */
+    SSLContext getSSLContext() throws SSLException
+    {
+        return client.getSSLContext();
+    }
+
+    /**
+     * @return how long a connection may stay idle
+     */
+    long getIdleTimeoutMillis()
+    {
+        return client.getIdleTimeoutMillis();
+    }
+
+    /**
+     * @param extensions the keywords of the extensions advertised in an EHLO
+     *        reply, upper case
+     */
+    void setExtensions(final Set<String> extensions)
+    {
+        this.extensions = extensions;
+    }
+
+    /**
+     * @param keyword the keyword of the extension
+     * @return whether the server advertised the extension in the latest EHLO
+     *         reply
+     */
+    boolean supportsExtension(final String keyword)
+    {
+        return extensions.contains(keyword.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return whether PIPELINING is used if supported
+     */
+    boolean isPipeliningEnabled()
+    {
+        return client.isPipeliningEnabled();
+    }
+
+    /**
+     * Starts encoding the content of a delivery in an encoder thread.
+     *
+     * @param delivery the delivery
+     * @param pipe receives the content
+     * @param dotStuffing whether to encode for DATA
+     */
+    void encode(final Delivery delivery, final ContentPipe pipe, final boolean dotStuffing)
+    {
+        client.encode(delivery, pipe, dotStuffing);
+    }
+
+    /**
+     * Hands a delivery to an idle connection, or queues it and opens another
+     * connection if allowed.
+     *
+     * @param delivery the delivery
+     */
+    void submit(final Delivery delivery)
+    {
+        final SmtpConnection connection;
+        boolean open = false;
+
+        synchronized (this)
+        {
+            if (closed)
+            {
+                delivery.future.completeExceptionally(new MessagingException("The SMTP client has been closed"));
+                return;
+            }
+            connection = idle.pollFirst();
+            if (connection == null)
+            {
+                queue.add(delivery);
+                if (connections < client.getMaxConnectionsPerRelay())
+                {
+                    connections++;
+                    open = true;
+                }
+            }
+        }
+
+        if (connection != null)
+        {
+            connection.getLoop().execute(() -> connection.start(delivery));
+        }
+        else if (open)
+        {
+            openConnection();
+        }
+    }
+
+    /**
+     * Called by a ready connection to get its next delivery.
+     *
+     * @param connection the ready connection
+     * @return the next delivery or <code>null</code> if the connection is idle now
+     */
+    synchronized Delivery nextDelivery(final SmtpConnection connection)
+    {
+        final Delivery delivery = queue.poll();
+        if (delivery == null)
+        {
+            idle.addFirst(connection);
+        }
+        return delivery;
+    }
+
+    /**
+     * Called by an idle connection before closing itself.
+     *
+     * @param connection the idle connection
+     * @return <code>false</code> if a delivery has been handed to the connection meanwhile
+     */
+    synchronized boolean removeIdle(final SmtpConnection connection)
+    {
+        return idle.remove(connection);
+    }
+
+    /**
+     * Called when a connection has been closed. If the connection never got
+     * ready and was the last one, the queued deliveries fail with its cause;
+     * if an established connection was lost, another one is opened for the
+     * queued deliveries.
+     *
+     * @param connection the closed connection
+     * @param established whether the connection had been ready once
+     * @param cause the failure or <code>null</code> if closed regularly
+     */
+    void closed(final SmtpConnection connection, final boolean established, final MessagingException cause)
+    {
+        List<Delivery> failed = null;
+        boolean reopen = false;
+
+        synchronized (this)
+        {
+            connections--;
+            idle.remove(connection);
+            if (!queue.isEmpty())
+            {
+                if (closed || !established && connections == 0)
+                {
+                    failed = new ArrayList<Delivery>(queue);
+                    queue.clear();
+                }
+                else if (connections < client.getMaxConnectionsPerRelay())
+                {
+                    connections++;
+                    reopen = true;
+                }
+            }
+        }
+
+        if (failed != null)
+        {
+            final MessagingException failure = cause != null
+                    ? cause
+                    : new MessagingException("The connection to " + endpoint + " has been closed");
+            for (final Delivery delivery : failed)
+            {
+                delivery.future.completeExceptionally(failure);
+            }
+        }
+        if (reopen)
+        {
+            openConnection();
+        }
+    }
+
+    /**
+     * Fails the queued deliveries and rejects new ones.
+     */
+    void close()
+    {
+        final List<Delivery> failed;
+        synchronized (this)
+        {
+            closed = true;
+            failed = new ArrayList<Delivery>(queue);
+            queue.clear();
+        }
+        for (final Delivery delivery : failed)
+        {
+            delivery.future.completeExceptionally(new MessagingException("The SMTP client has been closed"));
+        }
+    }
+
+    /**
+     * @return the number of open or opening connections
+     */
+    synchronized int getConnectionCount()
+    {
+        return connections;
+    }
+
+    /**
+     * Opens a connection on the next selector loop.
+     */
+    private void openConnection()
+    {
+        final SmtpConnection connection = new SmtpConnection(client.nextLoop(), this);
+        connection.getLoop().execute(connection::open);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread multiplexing the SMTP connections registered with its selector.
+ * Tasks submitted from other threads are run on the loop thread, so the state
+ * of a connection is only ever touched by its loop.
+ *
+ * @since 1.6
+ */
+final class SelectorLoop implements Runnable
+{
+    /** How often to check the connection deadlines in milliseconds. */
+    private static final long TICK = 250;
+
+    /** The selector. */
+    private final Selector selector;
+
+    /** The loop thread. */
+    private final Thread thread;
+
+    /** Tasks to run on the loop thread. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /** Set to stop the loop. */
+    private volatile boolean shutdown;
+
+    /**
+     * Creates and starts the loop.
+     *
+     * @param name the name of the loop thread
+     * @throws IOException opening the selector failed
+     */
+    SelectorLoop(final String name) throws IOException
+    {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task the task
+     */
+    void execute(final Runnable task)
+    {
+        tasks.add(task);
+        if (Thread.currentThread() != thread)
+        {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel, must be called on the loop thread.
+     *
+     * @param channel the non-blocking channel
+     * @param ops the initial interest set
+     * @param connection the connection handling the events
+     * @return the selection key
+     * @throws ClosedChannelException the channel is closed
+     */
+    SelectionKey register(final SelectableChannel channel, final int ops, final SmtpConnection connection)
+            throws ClosedChannelException
+    {
+        return channel.register(selector, ops, connection);
+    }
+
+    /**
+     * Stops the loop, closing all its connections.
+     */
+    void shutdown()
+    {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for the loop thread to end.
+     *
+     * @param millis the maximum time to wait
+     * @throws InterruptedException interrupted while waiting
+     */
+    void join(final long millis) throws InterruptedException
+    {
+        thread.join(millis);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run()
+    {
+        long nextTick = System.nanoTime();
+
+        while (!shutdown)
+        {
+            try
+            {
+                runTasks();
+                selector.select(TICK);
+
+                final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext())
+                {
+                    final SelectionKey key = selected.next();
+                    selected.remove();
+                    if (key.isValid())
+                    {
+                        ((SmtpConnection) key.attachment()).handle(key.readyOps());
+                    }
+                }
+
+                final long now = System.nanoTime();
+                if (now - nextTick >= 0)
+                {
+                    nextTick = now + TICK * 1000000L;
+                    for (final SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+                    {
+                        ((SmtpConnection) key.attachment()).checkTimeout(now);
+                    }
+                }
+            }
+            catch (final IOException e)
+            {
+                // the selector itself failed, nothing sensible left to do
+                break;
+            }
+            catch (final RuntimeException e)
+            {
+                // a bug in a connection must not take down the other connections
+                continue;
+            }
+        }
+
+        runTasks();
+        final List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.keys());
+        for (final SelectionKey key : keys)
+        {
+            ((SmtpConnection) key.attachment()).abort("The SMTP client has been closed");
+        }
+        try
+        {
+            selector.close();
+        }
+        catch (final IOException e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * Runs the submitted tasks.
+     */
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+        {
+            task.run();
+        }
+    }
+}
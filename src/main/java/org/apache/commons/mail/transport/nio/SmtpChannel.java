@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking socket channel which optionally encrypts the traffic with an
+ * {@link SSLEngine}. All methods return instead of blocking; the caller waits
+ * for the selector to report the channel readable or writable and calls again.
+ * <p>
+ * Not thread-safe, only used by the selector thread owning the connection.
+ *
+ * @since 1.6
+ */
+final class SmtpChannel
+{
+    /** An empty buffer for wrapping handshake messages. */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** The initial size of the plain text buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The underlying channel. */
+    private final SocketChannel channel;
+
+    /** The TLS engine or <code>null</code> for plain text. */
+    private SSLEngine engine;
+
+    /** Received plain text, in write mode. */
+    private ByteBuffer appIn = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Received TLS records, in write mode. */
+    private ByteBuffer netIn;
+
+    /** TLS records to send, in write mode. */
+    private ByteBuffer netOut;
+
+    /**
+     * Constructor.
+     *
+     * @param channel the connected or connecting channel
+     */
+    SmtpChannel(final SocketChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * @return the underlying channel
+     */
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * @return whether the traffic is encrypted
+     */
+    boolean isSecure()
+    {
+        return engine != null;
+    }
+
+    /**
+     * Starts encrypting the traffic. Any plain text already received is
+     * discarded, as required by RFC 3207 for data following STARTTLS.
+     *
+     * @param sslEngine a client mode engine
+     * @throws SSLException starting the handshake failed
+     */
+    void startTls(final SSLEngine sslEngine) throws SSLException
+    {
+        engine = sslEngine;
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocate(Math.max(BUFFER_SIZE, engine.getSession().getApplicationBufferSize()));
+        engine.beginHandshake();
+    }
+
+    /**
+     * Advances the TLS handshake as far as possible without blocking.
+     *
+     * @return <code>true</code> if no handshake is in progress
+     * @throws IOException the handshake failed
+     */
+    boolean handshake() throws IOException
+    {
+        if (engine == null)
+        {
+            return true;
+        }
+
+        while (true)
+        {
+            final HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status)
+            {
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return flushNet();
+
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                    {
+                        task.run();
+                    }
+                    break;
+
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    if (!flushNet())
+                    {
+                        return false;
+                    }
+                    break;
+
+                default:
+                    // NEED_UNWRAP
+                    if (!flushNet())
+                    {
+                        return false;
+                    }
+                    if (!unwrap())
+                    {
+                        if (fill() == 0)
+                        {
+                            return false;
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads as much plain text as available without blocking.
+     *
+     * @return the buffer holding the plain text received so far, in write
+     *         mode; the caller consumes it by flipping and compacting
+     * @throws IOException reading failed or the peer closed the connection
+     */
+    ByteBuffer read() throws IOException
+    {
+        if (engine == null)
+        {
+            if (!appIn.hasRemaining())
+            {
+                appIn = enlarge(appIn, appIn.capacity() * 2);
+            }
+            if (channel.read(appIn) < 0)
+            {
+                throw new EOFException("Connection closed by server");
+            }
+            return appIn;
+        }
+
+        // unwrap buffered records first, then anything the socket has
+        while (unwrap() || fill() > 0)
+        {
+            if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+                    && engine.getHandshakeStatus() != HandshakeStatus.FINISHED)
+            {
+                handshake();
+            }
+        }
+        return appIn;
+    }
+
+    /**
+     * Writes as much of the buffer as possible without blocking.
+     *
+     * @param src the plain text to send
+     * @return <code>true</code> if everything has been written, otherwise
+     *         call again when the channel is writable
+     * @throws IOException writing failed
+     */
+    boolean write(final ByteBuffer src) throws IOException
+    {
+        if (engine == null)
+        {
+            channel.write(src);
+            return !src.hasRemaining();
+        }
+
+        if (!flushNet())
+        {
+            return false;
+        }
+        while (src.hasRemaining())
+        {
+            wrap(src);
+            if (!flushNet())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the pending TLS records.
+     *
+     * @return <code>true</code> if nothing is pending anymore
+     * @throws IOException writing failed
+     */
+    boolean flushNet() throws IOException
+    {
+        if (netOut == null || netOut.position() == 0)
+        {
+            return true;
+        }
+        ((Buffer) netOut).flip();
+        try
+        {
+            channel.write(netOut);
+        }
+        finally
+        {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    /**
+     * Closes the connection, sending a TLS close_notify if possible.
+     */
+    void close()
+    {
+        try
+        {
+            if (engine != null)
+            {
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flushNet();
+            }
+        }
+        catch (final IOException e)
+        {
+            // ignore, the connection is going away anyway
+        }
+        try
+        {
+            channel.close();
+        }
+        catch (final IOException e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * Wraps plain text into netOut.
+     *
+     * @param src the plain text
+     * @throws IOException wrapping failed
+     */
+    private void wrap(final ByteBuffer src) throws IOException
+    {
+        while (true)
+        {
+            final SSLEngineResult result = engine.wrap(src, netOut);
+            switch (result.getStatus())
+            {
+                case BUFFER_OVERFLOW:
+                    netOut = enlarge(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize());
+                    break;
+
+                case CLOSED:
+                    if (src.hasRemaining())
+                    {
+                        throw new SSLException("TLS connection closed");
+                    }
+                    return;
+
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Unwraps the buffered TLS records into appIn.
+     *
+     * @return <code>true</code> if anything has been consumed
+     * @throws IOException unwrapping failed
+     */
+    private boolean unwrap() throws IOException
+    {
+        boolean consumed = false;
+
+        while (netIn.position() > 0)
+        {
+            ((Buffer) netIn).flip();
+            final SSLEngineResult result;
+            try
+            {
+                result = engine.unwrap(netIn, appIn);
+            }
+            finally
+            {
+                netIn.compact();
+            }
+
+            switch (result.getStatus())
+            {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                    break;
+
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining())
+                    {
+                        netIn = enlarge(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+                    }
+                    return consumed;
+
+                case CLOSED:
+                    throw new EOFException("TLS connection closed by server");
+
+                default:
+                    consumed |= result.bytesConsumed() > 0;
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                    {
+                        return consumed;
+                    }
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK
+                            || result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+                    {
+                        return true;
+                    }
+                    break;
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Reads TLS records from the socket.
+     *
+     * @return the number of bytes read
+     * @throws IOException reading failed or the peer closed the connection
+     */
+    private int fill() throws IOException
+    {
+        if (!netIn.hasRemaining())
+        {
+            netIn = enlarge(netIn, netIn.capacity() * 2);
+        }
+        final int read = channel.read(netIn);
+        if (read < 0)
+        {
+            throw new EOFException("Connection closed by server");
+        }
+        return read;
+    }
+
+    /**
+     * Copies a buffer in write mode into a larger one.
+     *
+     * @param buffer the buffer
+     * @param capacity the new capacity
+     * @return the new buffer in write mode
+     */
+    private static ByteBuffer enlarge(final ByteBuffer buffer, final int capacity)
+    {
+        final ByteBuffer larger = ByteBuffer.allocate(capacity);
+        ((Buffer) buffer).flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
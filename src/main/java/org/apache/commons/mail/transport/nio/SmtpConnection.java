@@ -0,0 +1,1211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.util.MailConnectException;
+import com.sun.mail.util.SocketConnectException;
+
+/**
+ * One SMTP session driven by the events of its selector loop. The connection
+ * greets the server, optionally upgrades to TLS and authenticates, and then
+ * transfers the deliveries handed out by its relay one after the other until
+ * it has been idle for too long.
+ * <p>
+ * All methods are called on the loop thread.
+ *
+ * @since 1.6
+ */
+final class SmtpConnection
+{
+    /** The states of the SMTP session. */
+    private enum State
+    {
+        /** Waiting for the TCP connection. */
+        CONNECTING,
+        /** Waiting for the server greeting. */
+        GREETING,
+        /** Sent EHLO. */
+        EHLO,
+        /** Sent HELO after EHLO has been rejected. */
+        HELO,
+        /** Sent STARTTLS. */
+        STARTTLS,
+        /** Sent AUTH PLAIN or the password for AUTH LOGIN. */
+        AUTH,
+        /** Sent AUTH LOGIN. */
+        AUTH_LOGIN_USER,
+        /** Sent the user name for AUTH LOGIN. */
+        AUTH_LOGIN_PASSWORD,
+        /** Waiting for a delivery. */
+        READY,
+        /** Transferring a delivery, see {@link SmtpConnection#expected}. */
+        TRANSFER,
+        /** Sent RSET. */
+        RSET,
+        /** Sent QUIT. */
+        QUIT,
+        /** Closed. */
+        CLOSED
+    }
+
+    /** The replies expected during a transfer. */
+    private enum Expect
+    {
+        /** The reply to MAIL FROM. */
+        MAIL,
+        /** The reply to RCPT TO. */
+        RCPT,
+        /** The reply to DATA. */
+        DATA,
+        /** The reply to the content sent after DATA. */
+        DATA_END,
+        /** The reply to an intermediate BDAT chunk. */
+        BDAT,
+        /** The reply to the BDAT LAST chunk. */
+        BDAT_LAST
+    }
+
+    /** The maximum size of a BDAT chunk, also the capacity of the content pipe. */
+    private static final int CHUNK_SIZE = 16 * ContentPipe.BLOCK_SIZE;
+
+    /** Reply code of the greeting. */
+    private static final int SERVICE_READY = 220;
+
+    /** Reply code of a successful command. */
+    private static final int OK = 250;
+
+    /** Reply code of a recipient which will be forwarded. */
+    private static final int USER_NOT_LOCAL = 251;
+
+    /** Reply code of a successful authentication. */
+    private static final int AUTH_SUCCEEDED = 235;
+
+    /** Reply code of an authentication challenge. */
+    private static final int AUTH_CHALLENGE = 334;
+
+    /** Reply code of DATA accepting the content. */
+    private static final int START_MAIL_INPUT = 354;
+
+    /** The line terminator. */
+    private static final String CRLF = "\r\n";
+
+    /** The selector loop owning this connection. */
+    private final SelectorLoop loop;
+
+    /** The relay handing out deliveries. */
+    private final Relay relay;
+
+    /** The server and settings. */
+    private final SmtpEndpoint endpoint;
+
+    /** The socket, set by {@link #open()}. */
+    private SmtpChannel channel;
+
+    /** The selection key. */
+    private SelectionKey key;
+
+    /** The state of the SMTP session. */
+    private State state = State.CONNECTING;
+
+    /** Is a TLS handshake in progress? */
+    private boolean handshaking;
+
+    /** Has the session been ready for deliveries once? */
+    private boolean established;
+
+    /** Is the connection waiting for a delivery? */
+    private boolean idle;
+
+    /** The deadline for the next event, see {@link System#nanoTime()}. */
+    private long deadline;
+
+    /** The extensions advertised in the EHLO reply, keyword to parameters. */
+    private final Map<String, String> extensions = new HashMap<String, String>();
+
+    /** The lines of the reply being received. */
+    private final List<String> replyLines = new ArrayList<String>();
+
+    /** The command and content buffers waiting to be written. */
+    private final Deque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+
+    /** The delivery in transfer or <code>null</code>. */
+    private Delivery current;
+
+    /** The index of the next recipient of the current delivery. */
+    private int recipientIndex;
+
+    /** The recipients accepted by the server. */
+    private final List<Address> validRecipients = new ArrayList<Address>();
+
+    /** The recipients rejected by the server. */
+    private final List<Address> invalidRecipients = new ArrayList<Address>();
+
+    /** The chain of recipient failures. */
+    private MessagingException recipientFailures;
+
+    /** The rejection of MAIL FROM. */
+    private MessagingException mailFailure;
+
+    /** The first rejection of a BDAT chunk. */
+    private MessagingException contentFailure;
+
+    /** The replies expected for the commands sent, in order. */
+    private final Deque<Expect> expected = new ArrayDeque<Expect>();
+
+    /** Are the commands of the current delivery pipelined? */
+    private boolean pipelining;
+
+    /** Is the content of the current delivery sent with BDAT? */
+    private boolean chunking;
+
+    /** The content of the current delivery not queued yet or <code>null</code>. */
+    private ContentPipe content;
+
+    /** Is the connection ready to queue content as soon as it is available? */
+    private boolean contentRequested;
+
+    /**
+     * Constructor.
+     *
+     * @param loop the selector loop owning this connection
+     * @param relay the relay handing out deliveries
+     */
+    SmtpConnection(final SelectorLoop loop, final Relay relay)
+    {
+        this.loop = loop;
+        this.relay = relay;
+        this.endpoint = relay.getEndpoint();
+    }
+
+    /**
+     * @return the selector loop owning this connection
+     */
+    SelectorLoop getLoop()
+    {
+        return loop;
+    }
+
+    /**
+     * Starts connecting to the server.
+     */
+    void open()
+    {
+        try
+        {
+            final SocketChannel socket = SocketChannel.open();
+            channel = new SmtpChannel(socket);
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+            deadline = System.nanoTime() + endpoint.connectTimeout * 1000000L;
+            key = loop.register(socket, SelectionKey.OP_CONNECT, this);
+            if (socket.connect(new InetSocketAddress(endpoint.host, endpoint.port)))
+            {
+                connected();
+            }
+        }
+        catch (final IOException e)
+        {
+            fail(connectFailure(e));
+        }
+        catch (final MessagingException e)
+        {
+            fail(e);
+        }
+    }
+
+    /**
+     * Handles the events reported by the selector.
+     *
+     * @param readyOps the ready operations
+     */
+    void handle(final int readyOps)
+    {
+        try
+        {
+            if ((readyOps & SelectionKey.OP_CONNECT) != 0)
+            {
+                try
+                {
+                    channel.getChannel().finishConnect();
+                }
+                catch (final IOException e)
+                {
+                    fail(connectFailure(e));
+                    return;
+                }
+                connected();
+            }
+            if (handshaking)
+            {
+                continueHandshake();
+            }
+            if (!handshaking && state != State.CLOSED)
+            {
+                if ((readyOps & SelectionKey.OP_WRITE) != 0)
+                {
+                    flush();
+                }
+                if ((readyOps & SelectionKey.OP_READ) != 0)
+                {
+                    readReplies();
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            fail(new MessagingException("I/O error talking to " + endpoint + ": " + e.getMessage(), e));
+        }
+        catch (final MessagingException e)
+        {
+            fail(e);
+        }
+    }
+
+    /**
+     * Closes the connection if its deadline has passed.
+     *
+     * @param now the current {@link System#nanoTime()}
+     */
+    void checkTimeout(final long now)
+    {
+        if (state == State.CLOSED || now - deadline < 0)
+        {
+            return;
+        }
+        if (idle)
+        {
+            if (relay.removeIdle(this))
+            {
+                idle = false;
+                quit();
+            }
+        }
+        else if (state == State.QUIT)
+        {
+            close();
+        }
+        else
+        {
+            fail(new MessagingException("Timeout waiting for " + endpoint + " in state " + state,
+                    new SocketTimeoutException()));
+        }
+    }
+
+    /**
+     * Starts transferring a delivery, the connection must be ready.
+     * <p>
+     * With PIPELINING, MAIL FROM and all RCPT TO commands are sent at once;
+     * the content follows in the same batch if it must be sent whatever the
+     * recipients replies are, otherwise after the replies.
+     *
+     * @param delivery the delivery
+     */
+    void start(final Delivery delivery)
+    {
+        idle = false;
+        if (state != State.READY)
+        {
+            // closed in the meantime, hand the delivery back
+            relay.submit(delivery);
+            return;
+        }
+        if (NioSmtpClient.BINARYMIME.equals(delivery.body) && !(delivery.isChunkable()
+                && extensions.containsKey("CHUNKING") && extensions.containsKey(NioSmtpClient.BINARYMIME)))
+        {
+            delivery.future.completeExceptionally(new MessagingException(
+                    "Binary content requires BINARYMIME and CHUNKING, not supported by " + endpoint));
+            ready();
+            return;
+        }
+        state = State.TRANSFER;
+        current = delivery;
+        recipientIndex = 0;
+        validRecipients.clear();
+        invalidRecipients.clear();
+        recipientFailures = null;
+        mailFailure = null;
+        contentFailure = null;
+        expected.clear();
+        pipelining = relay.isPipeliningEnabled() && extensions.containsKey("PIPELINING");
+        chunking = delivery.isChunkable() && extensions.containsKey("CHUNKING");
+        contentRequested = false;
+        content = new ContentPipe(CHUNK_SIZE, () -> loop.execute(this::contentAvailable));
+        relay.encode(delivery, content, !chunking);
+
+        final StringBuilder commands = new StringBuilder("MAIL FROM:<").append(delivery.from).append('>');
+        if (extensions.containsKey("SIZE") && delivery.getSize() >= 0)
+        {
+            commands.append(" SIZE=").append(delivery.getSize());
+        }
+        if (delivery.body != null && extensions.containsKey(delivery.body))
+        {
+            commands.append(" BODY=").append(delivery.body);
+        }
+        commands.append(CRLF);
+        expected.add(Expect.MAIL);
+
+        try
+        {
+            if (pipelining)
+            {
+                for (final InternetAddress recipient : delivery.recipients)
+                {
+                    commands.append("RCPT TO:<").append(recipient.getAddress()).append('>').append(CRLF);
+                    expected.add(Expect.RCPT);
+                }
+                output.add(ByteBuffer.wrap(commands.toString().getBytes(StandardCharsets.UTF_8)));
+                if (delivery.recipients.length == 1 || endpoint.sendPartial)
+                {
+                    queueContent();
+                }
+            }
+            else
+            {
+                output.add(ByteBuffer.wrap(commands.toString().getBytes(StandardCharsets.UTF_8)));
+            }
+            touch();
+            flush();
+        }
+        catch (final IOException e)
+        {
+            fail(new MessagingException("I/O error talking to " + endpoint + ": " + e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Fails the current delivery and closes the connection.
+     *
+     * @param reason the message of the failure
+     */
+    void abort(final String reason)
+    {
+        fail(new MessagingException(reason));
+    }
+
+    /**
+     * The TCP connection has been established.
+     *
+     * @throws IOException starting TLS failed
+     * @throws MessagingException a reply following the handshake was bad
+     */
+    private void connected() throws IOException, MessagingException
+    {
+        state = State.GREETING;
+        touch();
+        key.interestOps(SelectionKey.OP_READ);
+        if (endpoint.sslOnConnect)
+        {
+            startTls();
+        }
+    }
+
+    /**
+     * Starts the TLS handshake.
+     *
+     * @throws IOException the handshake failed
+     * @throws MessagingException a reply following the handshake was bad
+     */
+    private void startTls() throws IOException, MessagingException
+    {
+        final SSLEngine engine = relay.getSSLContext().createSSLEngine(endpoint.host, endpoint.port);
+        engine.setUseClientMode(true);
+        if (endpoint.checkServerIdentity)
+        {
+            final SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        channel.startTls(engine);
+        handshaking = true;
+        continueHandshake();
+    }
+
+    /**
+     * Advances the TLS handshake and resumes the session once it is done.
+     *
+     * @throws IOException the handshake failed
+     * @throws MessagingException a reply following the handshake was bad
+     */
+    private void continueHandshake() throws IOException, MessagingException
+    {
+        touch();
+        if (!channel.handshake())
+        {
+            // the engine is waiting for the server or for the socket to drain
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        handshaking = false;
+        key.interestOps(SelectionKey.OP_READ);
+        if (state == State.STARTTLS)
+        {
+            // RFC 3207: forget everything learned before and greet again
+            extensions.clear();
+            send(State.EHLO, "EHLO " + relay.getLocalHost());
+        }
+        else
+        {
+            // the greeting may have arrived along with the last handshake message
+            readReplies();
+        }
+    }
+
+    /**
+     * Reads and dispatches the complete reply lines received.
+     *
+     * @throws IOException reading failed
+     * @throws MessagingException a reply was bad
+     */
+    private void readReplies() throws IOException, MessagingException
+    {
+        final ByteBuffer in = channel.read();
+        ((Buffer) in).flip();
+        try
+        {
+            int lineStart = in.position();
+            for (int i = lineStart; i < in.limit(); i++)
+            {
+                if (in.get(i) != '\n')
+                {
+                    continue;
+                }
+                int lineEnd = i;
+                if (lineEnd > lineStart && in.get(lineEnd - 1) == '\r')
+                {
+                    lineEnd--;
+                }
+                final byte[] line = new byte[lineEnd - lineStart];
+                ((Buffer) in).position(lineStart);
+                in.get(line);
+                ((Buffer) in).position(i + 1);
+                lineStart = i + 1;
+
+                touch();
+                line(new String(line, StandardCharsets.UTF_8));
+                if (handshaking || state == State.CLOSED)
+                {
+                    // anything buffered before the TLS upgrade must be dropped
+                    return;
+                }
+            }
+            ((Buffer) in).position(lineStart);
+        }
+        finally
+        {
+            in.compact();
+        }
+    }
+
+    /**
+     * Collects a reply line and dispatches the reply once complete.
+     *
+     * @param line the line without terminator
+     * @throws IOException writing the next command failed
+     * @throws MessagingException the reply was bad
+     */
+    private void line(final String line) throws IOException, MessagingException
+    {
+        if (line.length() < 3)
+        {
+            throw new MessagingException("Invalid reply from " + endpoint + ": " + line);
+        }
+        final int code;
+        try
+        {
+            code = Integer.parseInt(line.substring(0, 3));
+        }
+        catch (final NumberFormatException e)
+        {
+            throw new MessagingException("Invalid reply from " + endpoint + ": " + line, e);
+        }
+        replyLines.add(line.length() > 4 ? line.substring(4) : "");
+        if (line.length() > 3 && line.charAt(3) == '-')
+        {
+            return;
+        }
+
+        final List<String> lines = new ArrayList<String>(replyLines);
+        replyLines.clear();
+        reply(code, lines, line);
+    }
+
+    /**
+     * Advances the session on a complete reply.
+     *
+     * @param code the reply code
+     * @param lines the text of the reply lines
+     * @param last the last line as received
+     * @throws IOException writing the next command failed
+     * @throws MessagingException the reply was bad
+     */
+    private void reply(final int code, final List<String> lines, final String last)
+            throws IOException, MessagingException
+    {
+        switch (state)
+        {
+            case GREETING:
+                if (code != SERVICE_READY)
+                {
+                    throw new MessagingException("Could not connect to SMTP host: " + endpoint + ", response: " + last);
+                }
+                send(State.EHLO, "EHLO " + relay.getLocalHost());
+                break;
+
+            case EHLO:
+                if (code != OK)
+                {
+                    if (endpoint.startTls && endpoint.startTlsRequired || endpoint.user != null)
+                    {
+                        throw new MessagingException("EHLO rejected by " + endpoint + ": " + last);
+                    }
+                    send(State.HELO, "HELO " + relay.getLocalHost());
+                    break;
+                }
+                for (int i = 1; i < lines.size(); i++)
+                {
+                    final String extension = lines.get(i);
+                    final int space = extension.indexOf(' ');
+                    extensions.put(
+                            (space < 0 ? extension : extension.substring(0, space)).toUpperCase(Locale.ROOT),
+                            space < 0 ? "" : extension.substring(space + 1));
+                }
+                relay.setExtensions(Collections.unmodifiableSet(new HashSet<String>(extensions.keySet())));
+                greeted();
+                break;
+
+            case HELO:
+                if (code != OK)
+                {
+                    throw new MessagingException("HELO rejected by " + endpoint + ": " + last);
+                }
+                greeted();
+                break;
+
+            case STARTTLS:
+                if (code != SERVICE_READY)
+                {
+                    throw new MessagingException("STARTTLS rejected by " + endpoint + ": " + last);
+                }
+                startTls();
+                break;
+
+            case AUTH_LOGIN_USER:
+                checkAuth(code, AUTH_CHALLENGE, last);
+                send(State.AUTH_LOGIN_PASSWORD, base64(endpoint.user));
+                break;
+
+            case AUTH_LOGIN_PASSWORD:
+                checkAuth(code, AUTH_CHALLENGE, last);
+                send(State.AUTH, base64(endpoint.password));
+                break;
+
+            case AUTH:
+                checkAuth(code, AUTH_SUCCEEDED, last);
+                ready();
+                break;
+
+            case TRANSFER:
+                transfer(code, last);
+                break;
+
+            case RSET:
+                if (code != OK)
+                {
+                    throw new MessagingException("RSET rejected by " + endpoint + ": " + last);
+                }
+                ready();
+                break;
+
+            case QUIT:
+                close();
+                break;
+
+            default:
+                throw new MessagingException("Unexpected reply from " + endpoint + " in state " + state + ": " + last);
+        }
+    }
+
+    /**
+     * Handles a reply during a transfer.
+     *
+     * @param code the reply code
+     * @param last the last reply line
+     * @throws IOException writing the next command failed
+     * @throws MessagingException the server accepted content without valid recipients
+     */
+    private void transfer(final int code, final String last) throws IOException, MessagingException
+    {
+        final Expect reply = expected.poll();
+        if (reply == null)
+        {
+            throw new MessagingException("Unexpected reply from " + endpoint + ": " + last);
+        }
+        switch (reply)
+        {
+            case MAIL:
+                if (code != OK)
+                {
+                    mailFailure = new SMTPSendFailedException("MAIL FROM:<" + current.from + ">", code, last,
+                            null, null, current.recipients, null);
+                }
+                break;
+
+            case RCPT:
+                final InternetAddress recipient = current.recipients[recipientIndex++];
+                if (code == OK || code == USER_NOT_LOCAL)
+                {
+                    validRecipients.add(recipient);
+                }
+                else
+                {
+                    invalidRecipients.add(recipient);
+                    final MessagingException failure = new SMTPAddressFailedException(
+                            recipient, "RCPT TO:<" + recipient.getAddress() + ">", code, last);
+                    if (recipientFailures == null)
+                    {
+                        recipientFailures = failure;
+                    }
+                    else
+                    {
+                        recipientFailures.setNextException(failure);
+                    }
+                }
+                break;
+
+            case DATA:
+                if (code == START_MAIL_INPUT)
+                {
+                    final MessagingException failure = envelopeFailure();
+                    if (failure != null)
+                    {
+                        // the content cannot be withdrawn anymore, drop the connection instead
+                        failDelivery(failure);
+                        throw new MessagingException("DATA accepted by " + endpoint + " without valid recipients");
+                    }
+                    expected.add(Expect.DATA_END);
+                    contentRequested = true;
+                    flush();
+                    return;
+                }
+                final MessagingException dataFailure = envelopeFailure();
+                failDelivery(dataFailure != null ? dataFailure : new SMTPSendFailedException("DATA", code, last,
+                        recipientFailures, null, addresses(validRecipients), addresses(invalidRecipients)));
+                send(State.RSET, "RSET");
+                return;
+
+            case DATA_END:
+                complete(code, last, ".");
+                return;
+
+            case BDAT:
+                if (code != OK && contentFailure == null)
+                {
+                    contentFailure = new SMTPSendFailedException("BDAT", code, last, recipientFailures,
+                            null, addresses(validRecipients), addresses(invalidRecipients));
+                }
+                if (!pipelining)
+                {
+                    if (contentFailure != null)
+                    {
+                        failDelivery(contentFailure);
+                        send(State.RSET, "RSET");
+                        return;
+                    }
+                    contentRequested = true;
+                    flush();
+                }
+                return;
+
+            case BDAT_LAST:
+                final MessagingException failure = envelopeFailure();
+                if (failure != null || contentFailure != null)
+                {
+                    failDelivery(failure != null ? failure : contentFailure);
+                    send(State.RSET, "RSET");
+                    return;
+                }
+                complete(code, last, "BDAT");
+                return;
+
+            default:
+                throw new MessagingException("Unexpected reply from " + endpoint + ": " + last);
+        }
+
+        if (!expected.isEmpty() || contentRequested)
+        {
+            // waiting for further replies, or the content has been pipelined with the envelope
+            return;
+        }
+
+        // the envelope replies are complete, or are sent one by one
+        if (mailFailure != null)
+        {
+            failDelivery(mailFailure);
+            send(State.RSET, "RSET");
+        }
+        else if (recipientIndex < current.recipients.length)
+        {
+            expected.add(Expect.RCPT);
+            send(State.TRANSFER, "RCPT TO:<" + current.recipients[recipientIndex].getAddress() + ">");
+        }
+        else
+        {
+            final MessagingException failure = envelopeFailure();
+            if (failure != null)
+            {
+                failDelivery(failure);
+                send(State.RSET, "RSET");
+            }
+            else
+            {
+                queueContent();
+                flush();
+            }
+        }
+    }
+
+    /**
+     * @return the failure if the envelope does not allow sending the content,
+     *         otherwise <code>null</code>
+     */
+    private MessagingException envelopeFailure()
+    {
+        if (mailFailure != null)
+        {
+            return mailFailure;
+        }
+        if (validRecipients.isEmpty() || !invalidRecipients.isEmpty() && !endpoint.sendPartial)
+        {
+            return new SendFailedException("Invalid Addresses", recipientFailures,
+                    null, addresses(validRecipients), addresses(invalidRecipients));
+        }
+        return null;
+    }
+
+    /**
+     * Queues DATA, or requests the BDAT chunks which are queued as soon as
+     * the content is available, all of them if pipelining, otherwise one per
+     * reply.
+     */
+    private void queueContent()
+    {
+        if (!chunking)
+        {
+            output.add(ByteBuffer.wrap(("DATA" + CRLF).getBytes(StandardCharsets.US_ASCII)));
+            expected.add(Expect.DATA);
+            return;
+        }
+        contentRequested = true;
+    }
+
+    /**
+     * Queues the next part of the content if requested and available: the
+     * next blocks after DATA has been accepted, or the next BDAT chunk. If no
+     * content is available yet, the content pipe calls back once it is.
+     *
+     * @return whether anything has been queued
+     */
+    private boolean pullContent()
+    {
+        if (content == null || !contentRequested)
+        {
+            return false;
+        }
+        final List<ByteBuffer> blocks;
+        try
+        {
+            blocks = content.take(CHUNK_SIZE, !chunking);
+        }
+        catch (final MessagingException e)
+        {
+            // part of the content may have been sent, the transaction cannot be completed
+            fail(e);
+            return false;
+        }
+        if (blocks == null)
+        {
+            return false;
+        }
+
+        final boolean last = content.isDrained();
+        if (last)
+        {
+            content = null;
+            contentRequested = false;
+        }
+        if (chunking)
+        {
+            int size = 0;
+            for (final ByteBuffer block : blocks)
+            {
+                size += block.remaining();
+            }
+            output.add(ByteBuffer.wrap(("BDAT " + size + (last ? " LAST" : "") + CRLF)
+                    .getBytes(StandardCharsets.US_ASCII)));
+            expected.add(last ? Expect.BDAT_LAST : Expect.BDAT);
+            contentRequested = !last && pipelining;
+        }
+        output.addAll(blocks);
+        return !output.isEmpty();
+    }
+
+    /**
+     * Queues the content which became available while the connection was
+     * waiting for it.
+     */
+    private void contentAvailable()
+    {
+        if (state != State.TRANSFER || content == null)
+        {
+            return;
+        }
+        try
+        {
+            touch();
+            flush();
+        }
+        catch (final IOException e)
+        {
+            fail(new MessagingException("I/O error talking to " + endpoint + ": " + e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Completes the current delivery on the reply to its content and waits
+     * for the next one.
+     *
+     * @param code the reply code
+     * @param last the last reply line
+     * @param command the command sending the content
+     */
+    private void complete(final int code, final String last, final String command)
+    {
+        final MessagingException failure;
+        if (code != OK)
+        {
+            failure = new SMTPSendFailedException(command, code, last, recipientFailures,
+                    null, addresses(validRecipients), addresses(invalidRecipients));
+        }
+        else if (!invalidRecipients.isEmpty())
+        {
+            // partially sent, reported like the JavaMail provider does
+            failure = new SendFailedException("Invalid Addresses", recipientFailures,
+                    addresses(validRecipients), null, addresses(invalidRecipients));
+        }
+        else
+        {
+            failure = null;
+        }
+
+        // back to the relay before the sender learns the result, so a follow-up send reuses the connection
+        final Delivery delivery = current;
+        ready();
+        if (failure != null)
+        {
+            delivery.future.completeExceptionally(failure);
+        }
+        else
+        {
+            delivery.future.complete(delivery.getMessageId());
+        }
+    }
+
+    /**
+     * Continues after EHLO or HELO with STARTTLS, AUTH or the first delivery.
+     *
+     * @throws IOException writing failed
+     * @throws MessagingException STARTTLS is required but not supported
+     */
+    private void greeted() throws IOException, MessagingException
+    {
+        if (!channel.isSecure() && endpoint.startTls)
+        {
+            if (extensions.containsKey("STARTTLS"))
+            {
+                send(State.STARTTLS, "STARTTLS");
+                return;
+            }
+            if (endpoint.startTlsRequired)
+            {
+                throw new MessagingException("STARTTLS is required but not supported by " + endpoint);
+            }
+        }
+
+        final String mechanisms = extensions.get("AUTH");
+        if (endpoint.user != null && endpoint.password != null && mechanisms != null)
+        {
+            final String supported = " " + mechanisms.toUpperCase(Locale.ROOT) + " ";
+            if (supported.contains(" PLAIN "))
+            {
+                send(State.AUTH, "AUTH PLAIN " + base64("\0" + endpoint.user + "\0" + endpoint.password));
+                return;
+            }
+            if (supported.contains(" LOGIN "))
+            {
+                send(State.AUTH_LOGIN_USER, "AUTH LOGIN");
+                return;
+            }
+            throw new AuthenticationFailedException("No supported authentication mechanism offered by "
+                    + endpoint + ": " + mechanisms);
+        }
+        ready();
+    }
+
+    /**
+     * Checks an authentication reply.
+     *
+     * @param code the reply code
+     * @param expected the expected reply code
+     * @param last the last reply line
+     * @throws AuthenticationFailedException the reply code is not the expected one
+     */
+    private void checkAuth(final int code, final int expected, final String last)
+            throws AuthenticationFailedException
+    {
+        if (code != expected)
+        {
+            throw new AuthenticationFailedException(last);
+        }
+    }
+
+    /**
+     * Waits for the next delivery from the relay.
+     */
+    private void ready()
+    {
+        state = State.READY;
+        established = true;
+        current = null;
+        final Delivery next = relay.nextDelivery(this);
+        if (next != null)
+        {
+            start(next);
+        }
+        else
+        {
+            idle = true;
+            deadline = System.nanoTime() + relay.getIdleTimeoutMillis() * 1000000L;
+        }
+    }
+
+    /**
+     * Fails the current delivery without closing the connection.
+     *
+     * @param cause the failure
+     */
+    private void failDelivery(final MessagingException cause)
+    {
+        final Delivery delivery = current;
+        current = null;
+        if (content != null)
+        {
+            content.cancel();
+            content = null;
+        }
+        contentRequested = false;
+        if (delivery != null)
+        {
+            delivery.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Sends QUIT and closes the connection on the reply or timeout.
+     */
+    private void quit()
+    {
+        deadline = System.nanoTime() + endpoint.readTimeout * 1000000L;
+        send(State.QUIT, "QUIT");
+    }
+
+    /**
+     * Fails the current delivery and closes the connection.
+     *
+     * @param cause the failure
+     */
+    private void fail(final MessagingException cause)
+    {
+        if (state == State.CLOSED)
+        {
+            return;
+        }
+        failDelivery(cause);
+        closeChannel();
+        relay.closed(this, established, cause);
+    }
+
+    /**
+     * Closes the connection after QUIT.
+     */
+    private void close()
+    {
+        if (state == State.CLOSED)
+        {
+            return;
+        }
+        closeChannel();
+        relay.closed(this, established, null);
+    }
+
+    /**
+     * Closes the socket.
+     */
+    private void closeChannel()
+    {
+        state = State.CLOSED;
+        idle = false;
+        if (key != null)
+        {
+            key.cancel();
+        }
+        if (channel != null)
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Queues a command and writes as much as possible.
+     *
+     * @param next the state waiting for the reply
+     * @param command the command without terminator
+     */
+    private void send(final State next, final String command)
+    {
+        state = next;
+        touch();
+        try
+        {
+            write(ByteBuffer.wrap((command + CRLF).getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (final IOException e)
+        {
+            fail(new MessagingException("I/O error talking to " + endpoint + ": " + e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Queues a buffer and writes as much as possible.
+     *
+     * @param buffer the bytes to write
+     * @throws IOException writing failed
+     */
+    private void write(final ByteBuffer buffer) throws IOException
+    {
+        output.add(buffer);
+        flush();
+    }
+
+    /**
+     * Writes the queued buffers, and the content as it becomes available,
+     * until the socket would block.
+     *
+     * @throws IOException writing failed
+     */
+    private void flush() throws IOException
+    {
+        do
+        {
+            while (!output.isEmpty())
+            {
+                final boolean written = channel.write(output.peek());
+                touch();
+                if (!written)
+                {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                output.poll();
+            }
+        }
+        while (pullContent());
+        if (state == State.CLOSED)
+        {
+            return;
+        }
+        if (channel.flushNet())
+        {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Moves the deadline after progress.
+     */
+    private void touch()
+    {
+        deadline = System.nanoTime() + endpoint.readTimeout * 1000000L;
+    }
+
+    /**
+     * @param e the connect failure
+     * @return the exception the JavaMail provider would throw
+     */
+    private MessagingException connectFailure(final IOException e)
+    {
+        return new MailConnectException(new SocketConnectException(
+                "Could not connect to SMTP host: " + endpoint, e, endpoint.host, endpoint.port,
+                endpoint.connectTimeout));
+    }
+
+    /**
+     * @param text the text
+     * @return the text encoded with BASE64
+     */
+    private static String base64(final String text)
+    {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param addresses the addresses
+     * @return the addresses as array or <code>null</code> if empty
+     */
+    private static Address[] addresses(final List<Address> addresses)
+    {
+        return addresses.isEmpty() ? null : addresses.toArray(new Address[addresses.size()]);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the content of an SMTP DATA command on the fly: line endings are
+ * normalized to CRLF and, if enabled, lines starting with a dot are escaped
+ * by an additional dot (RFC 5321, section 4.5.2). {@link #finish()} terminates
+ * the content.
+ * <p>
+ * Dot-stuffing is not applied for the BDAT command of the CHUNKING extension
+ * (RFC 3030) which transfers the content verbatim.
+ *
+ * @since 1.6
+ */
+public class SmtpDataOutputStream extends FilterOutputStream
+{
+    /** The line terminator. */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /** The terminator of the DATA command. */
+    private static final byte[] DATA_TERMINATOR = {'.', '\r', '\n'};
+
+    /** Escape lines starting with a dot? */
+    private final boolean dotStuffing;
+
+    /** Is the next byte the first byte of a line? */
+    private boolean atLineStart = true;
+
+    /** Was the previous byte a CR? */
+    private boolean lastWasCR;
+
+    /** Has the content been terminated? */
+    private boolean finished;
+
+    /**
+     * Constructor.
+     *
+     * @param out the underlying stream
+     * @param dotStuffing whether to escape lines starting with a dot
+     */
+    public SmtpDataOutputStream(final OutputStream out, final boolean dotStuffing)
+    {
+        super(out);
+        this.dotStuffing = dotStuffing;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final int b) throws IOException
+    {
+        final byte[] single = {(byte) b};
+        write(single, 0, 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        // copy runs of regular bytes in one go
+        int start = off;
+        final int end = off + len;
+
+        for (int i = off; i < end; i++)
+        {
+            final byte c = b[i];
+
+            if (lastWasCR && c != '\n')
+            {
+                // bare CR, complete the line
+                out.write(b, start, i - start);
+                out.write('\n');
+                start = i;
+                lastWasCR = false;
+                atLineStart = true;
+            }
+
+            if (c == '\n')
+            {
+                if (!lastWasCR)
+                {
+                    out.write(b, start, i - start);
+                    out.write('\r');
+                    start = i;
+                }
+                lastWasCR = false;
+                atLineStart = true;
+            }
+            else if (c == '\r')
+            {
+                lastWasCR = true;
+                atLineStart = false;
+            }
+            else
+            {
+                if (atLineStart && dotStuffing && c == '.')
+                {
+                    out.write(b, start, i - start);
+                    out.write('.');
+                    start = i;
+                }
+                atLineStart = false;
+            }
+        }
+
+        out.write(b, start, end - start);
+    }
+
+    /**
+     * Terminates the content, i.e. completes the last line and writes the
+     * terminating dot line if dot-stuffing is enabled. Does not close the
+     * underlying stream.
+     *
+     * @throws IOException writing failed
+     */
+    public void finish() throws IOException
+    {
+        if (finished)
+        {
+            return;
+        }
+        if (lastWasCR)
+        {
+            out.write('\n');
+        }
+        else if (!atLineStart)
+        {
+            out.write(CRLF);
+        }
+        if (dotStuffing)
+        {
+            out.write(DATA_TERMINATOR);
+        }
+        lastWasCR = false;
+        atLineStart = true;
+        finished = true;
+        out.flush();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+
+import org.apache.commons.mail.EmailConstants;
+import org.apache.commons.mail.transport.TransportKey;
+
+/**
+ * The SMTP server and the connection settings read from a mail session, using
+ * the same properties as the JavaMail SMTP provider.
+ *
+ * @since 1.6
+ */
+final class SmtpEndpoint
+{
+    /** The default timeout in milliseconds if the session does not define one. */
+    static final int DEFAULT_TIMEOUT = 60000;
+
+    /** The key identifying the server and credentials. */
+    final TransportKey key;
+
+    /** The server host. */
+    final String host;
+
+    /** The server port. */
+    final int port;
+
+    /** Use TLS from the start. */
+    final boolean sslOnConnect;
+
+    /** Upgrade to TLS with STARTTLS if supported. */
+    final boolean startTls;
+
+    /** Fail if STARTTLS is not supported. */
+    final boolean startTlsRequired;
+
+    /** Verify the server certificate matches the host. */
+    final boolean checkServerIdentity;
+
+    /** Send to the accepted recipients if some are rejected. */
+    final boolean sendPartial;
+
+    /** The user name to authenticate or <code>null</code>. */
+    final String user;
+
+    /** The password to authenticate or <code>null</code>. */
+    final String password;
+
+    /** The host name announced with EHLO or <code>null</code> for the default. */
+    final String localHost;
+
+    /** The connect timeout in milliseconds. */
+    final int connectTimeout;
+
+    /** The timeout for server replies in milliseconds. */
+    final int readTimeout;
+
+    /** The envelope sender configured for the session or <code>null</code>. */
+    final String from;
+
+    /**
+     * Reads the settings from the mail session.
+     *
+     * @param session the mail session
+     */
+    SmtpEndpoint(final Session session)
+    {
+        String protocol = session.getProperty(EmailConstants.MAIL_TRANSPORT_PROTOCOL);
+        if (protocol == null || protocol.isEmpty())
+        {
+            protocol = EmailConstants.SMTP;
+        }
+        final String prefix = "mail." + protocol + ".";
+
+        this.key = TransportKey.of(session);
+        this.host = key.getHost() != null ? key.getHost() : "localhost";
+        this.sslOnConnect = key.isSSLOnConnect() || "smtps".equals(protocol);
+        this.port = key.getPort() != null ? Integer.parseInt(key.getPort()) : sslOnConnect ? 465 : 25;
+        this.startTls = key.isStartTLSEnabled();
+        this.startTlsRequired = key.isStartTLSRequired();
+        this.checkServerIdentity = Boolean.parseBoolean(session.getProperty(prefix + "ssl.checkserveridentity"));
+        this.sendPartial = Boolean.parseBoolean(session.getProperty(prefix + "sendpartial"));
+        this.localHost = session.getProperty(prefix + "localhost");
+        this.connectTimeout = intProperty(session, prefix + "connectiontimeout");
+        this.readTimeout = intProperty(session, prefix + "timeout");
+        this.from = session.getProperty(prefix + "from");
+
+        PasswordAuthentication authentication = null;
+        if (Boolean.parseBoolean(session.getProperty(prefix + "auth")))
+        {
+            authentication = session.requestPasswordAuthentication(
+                    null, port, protocol, null, key.getUser());
+        }
+        this.user = authentication != null ? authentication.getUserName() : null;
+        this.password = authentication != null ? authentication.getPassword() : null;
+    }
+
+    /**
+     * @param session the mail session
+     * @param name the property name
+     * @return the positive timeout or the default
+     */
+    private static int intProperty(final Session session, final String name)
+    {
+        final String value = session.getProperty(name);
+        if (value != null)
+        {
+            final int timeout = Integer.parseInt(value.trim());
+            if (timeout > 0)
+            {
+                return timeout;
+            }
+        }
+        return DEFAULT_TIMEOUT;
+    }
+
+    @Override
+    public String toString()
+    {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,621 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.outbox;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of entries split into segment files. Every record
+ * is written with a single write at the end of the active segment:
+ * <pre>
+ * int type | long id | int length | byte[length] payload | int CRC32
+ * </pre>
+ * An entry is live until an acknowledgement record with its id is appended.
+ * When the journal is opened the segments are scanned in order, a torn or
+ * corrupt record at the end of a segment is cut off and the live entries
+ * are recovered.
+ * <p>
+ * A segment is deleted once it and all older segments hold no live
+ * entries, so no acknowledgement is deleted before the entry it
+ * acknowledges. The few live entries of an otherwise dead oldest segment
+ * are copied to the active segment first.
+ *
+ * @since 1.6
+ */
+final class Journal implements Closeable
+{
+    /** The type of an entry record. */
+    static final int ENTRY = 1;
+
+    /** The type of an acknowledgement record. */
+    static final int ACK = 2;
+
+    /** The length of the type, id and length of a record. */
+    private static final int HEADER_LENGTH = 16;
+
+    /** The length of the checksum of a record. */
+    private static final int TRAILER_LENGTH = 4;
+
+    /** The suffix of the segment files. */
+    private static final String SUFFIX = ".log";
+
+    /** The payload of an acknowledgement. */
+    private static final byte[] EMPTY = new byte[0];
+
+    /** The directory of the segment files. */
+    private final File directory;
+
+    /** The prefix of the segment file names. */
+    private final String prefix;
+
+    /** The size after which a new segment is started. */
+    private final long segmentSize;
+
+    /** The segments by their number. */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /** The locations of the live entries in journal order. */
+    private final Map<Long, Location> locations = new LinkedHashMap<>();
+
+    /** The segment appended to. */
+    private Segment active;
+
+    /** The id of the next entry. */
+    private long nextId = 1;
+
+    /**
+     * Creates a journal, call {@link #open()} before using it.
+     *
+     * @param directory the directory of the segment files
+     * @param prefix the prefix of the segment file names
+     * @param segmentSize the size after which a new segment is started
+     */
+    Journal(final File directory, final String prefix, final long segmentSize)
+    {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the segment files and recovers the live entries.
+     *
+     * @throws IOException reading the segment files failed
+     */
+    synchronized void open() throws IOException
+    {
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX));
+        if (files == null)
+        {
+            throw new IOException("Cannot list the journal directory " + directory);
+        }
+        for (final File file : files)
+        {
+            final String name = file.getName();
+            try
+            {
+                final long number = Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+                segments.put(number, new Segment(number, file));
+            }
+            catch (final NumberFormatException e)
+            {
+                // not a segment of this journal
+            }
+        }
+        for (final Segment segment : segments.values())
+        {
+            recover(segment);
+        }
+        active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param payload the payload of the entry
+     * @return the id of the entry
+     * @throws IOException writing the entry failed
+     */
+    synchronized long append(final byte[] payload) throws IOException
+    {
+        checkOpen();
+        final long id = nextId;
+        addEntry(id, payload);
+        nextId++;
+        return id;
+    }
+
+    /**
+     * Acknowledges an entry, so it is not recovered anymore.
+     *
+     * @param id the id of the entry
+     * @return false if the entry is not live
+     * @throws IOException writing the acknowledgement failed
+     */
+    synchronized boolean ack(final long id) throws IOException
+    {
+        checkOpen();
+        final Location location = locations.get(id);
+        if (location == null)
+        {
+            return false;
+        }
+        write(ACK, id, EMPTY);
+        locations.remove(id);
+        location.segment.live--;
+        return true;
+    }
+
+    /**
+     * Reads the payload of a live entry.
+     *
+     * @param id the id of the entry
+     * @return the payload or null if the entry is not live
+     * @throws IOException reading the entry failed
+     */
+    synchronized byte[] read(final long id) throws IOException
+    {
+        checkOpen();
+        final Location location = locations.get(id);
+        return location != null ? read(location) : null;
+    }
+
+    /**
+     * Reads the beginning of the payload of a live entry.
+     *
+     * @param id the id of the entry
+     * @param length the maximum number of bytes to read
+     * @return the first bytes of the payload or null if the entry is not live
+     * @throws IOException reading the entry failed
+     */
+    synchronized byte[] read(final long id, final int length) throws IOException
+    {
+        checkOpen();
+        final Location location = locations.get(id);
+        if (location == null)
+        {
+            return null;
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(Math.min(length, location.length));
+        readFully(location.segment.channel, payload, location.position + HEADER_LENGTH);
+        return payload.array();
+    }
+
+    /**
+     * Forces the appended records to disk. Records appended concurrently
+     * are written on while the active segment is forced.
+     *
+     * @return the id of the last entry forced to disk
+     * @throws IOException forcing the records failed
+     */
+    long sync() throws IOException
+    {
+        final Segment segment;
+        final long lastId;
+        synchronized (this)
+        {
+            checkOpen();
+            segment = active;
+            lastId = nextId - 1;
+        }
+        try
+        {
+            segment.channel.force(false);
+        }
+        catch (final ClosedChannelException e)
+        {
+            synchronized (this)
+            {
+                // a segment is forced when the next one is started, it may be compacted since
+                if (segment == active)
+                {
+                    throw e;
+                }
+            }
+        }
+        return lastId;
+    }
+
+    /**
+     * Deletes the oldest segments without live entries, copying the live
+     * entries of an oldest segment holding at most a quarter live entries
+     * to the active segment.
+     *
+     * @return the number of deleted segments
+     * @throws IOException writing or deleting failed
+     */
+    synchronized int compact() throws IOException
+    {
+        checkOpen();
+        int deleted = 0;
+        while (segments.size() > 1)
+        {
+            final Segment oldest = segments.firstEntry().getValue();
+            if (oldest == active || oldest.live * 4 > oldest.entries)
+            {
+                break;
+            }
+            if (oldest.live > 0)
+            {
+                relocate(oldest);
+                // the copies must be on disk before the originals are deleted
+                active.channel.force(false);
+            }
+            oldest.channel.close();
+            Files.delete(oldest.file.toPath());
+            segments.remove(oldest.number);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Gets the ids of the live entries.
+     *
+     * @return the ids in journal order
+     */
+    synchronized List<Long> getIds()
+    {
+        return new ArrayList<>(locations.keySet());
+    }
+
+    /**
+     * Gets the number of live entries.
+     *
+     * @return the number of live entries
+     */
+    synchronized int size()
+    {
+        return locations.size();
+    }
+
+    /**
+     * Gets the number of segment files.
+     *
+     * @return the number of segment files
+     */
+    synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * Gets the id of the last appended entry.
+     *
+     * @return the id or 0 if no entry was appended
+     */
+    synchronized long getLastId()
+    {
+        return nextId - 1;
+    }
+
+    /**
+     * Forces the active segment to disk and closes all segment files.
+     *
+     * @throws IOException forcing or closing failed
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (active == null)
+        {
+            return;
+        }
+        try
+        {
+            active.channel.force(false);
+        }
+        finally
+        {
+            active = null;
+            for (final Segment segment : segments.values())
+            {
+                segment.channel.close();
+            }
+            segments.clear();
+            locations.clear();
+        }
+    }
+
+    /**
+     * Scans the records of a segment, cutting off a torn or corrupt tail.
+     *
+     * @param segment the segment
+     * @throws IOException reading the segment failed
+     */
+    private void recover(final Segment segment) throws IOException
+    {
+        final long size = segment.channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        long position = 0;
+        while (position + HEADER_LENGTH + TRAILER_LENGTH <= size)
+        {
+            ((Buffer) header).clear();
+            readFully(segment.channel, header, position);
+            ((Buffer) header).flip();
+            final int type = header.getInt();
+            final long id = header.getLong();
+            final int length = header.getInt();
+            if (type != ENTRY && type != ACK || length < 0
+                    || position + HEADER_LENGTH + length + TRAILER_LENGTH > size)
+            {
+                break;
+            }
+
+            final ByteBuffer body = ByteBuffer.allocate(length + TRAILER_LENGTH);
+            readFully(segment.channel, body, position + HEADER_LENGTH);
+            final CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HEADER_LENGTH);
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != body.getInt(length))
+            {
+                break;
+            }
+
+            if (type == ENTRY)
+            {
+                // an entry copied by a compaction is found twice until the old segment is deleted
+                final Location previous = locations.remove(id);
+                if (previous != null)
+                {
+                    previous.segment.live--;
+                }
+                locations.put(id, new Location(segment, position, length));
+                segment.entries++;
+                segment.live++;
+            }
+            else
+            {
+                final Location location = locations.remove(id);
+                if (location != null)
+                {
+                    location.segment.live--;
+                }
+            }
+            nextId = Math.max(nextId, id + 1);
+            position += HEADER_LENGTH + length + TRAILER_LENGTH;
+        }
+        if (position < size)
+        {
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    /**
+     * Copies the live entries of a segment to the active segment.
+     *
+     * @param segment the segment
+     * @throws IOException reading or writing failed
+     */
+    private void relocate(final Segment segment) throws IOException
+    {
+        final Iterator<Map.Entry<Long, Location>> iterator = locations.entrySet().iterator();
+        final Map<Long, byte[]> relocated = new LinkedHashMap<>();
+        while (iterator.hasNext())
+        {
+            final Map.Entry<Long, Location> entry = iterator.next();
+            if (entry.getValue().segment == segment)
+            {
+                relocated.put(entry.getKey(), read(entry.getValue()));
+                iterator.remove();
+                segment.live--;
+            }
+        }
+        for (final Map.Entry<Long, byte[]> entry : relocated.entrySet())
+        {
+            addEntry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes an entry record and records its location.
+     *
+     * @param id the id of the entry
+     * @param payload the payload
+     * @throws IOException writing failed
+     */
+    private void addEntry(final long id, final byte[] payload) throws IOException
+    {
+        final Location location = write(ENTRY, id, payload);
+        locations.put(id, location);
+        location.segment.entries++;
+        location.segment.live++;
+    }
+
+    /**
+     * Writes a record at the end of the active segment, starting a new
+     * segment if the active one is full.
+     *
+     * @param type the type of the record
+     * @param id the id of the entry
+     * @param payload the payload
+     * @return the location of the record
+     * @throws IOException writing failed
+     */
+    private Location write(final int type, final long id, final byte[] payload) throws IOException
+    {
+        final int recordLength = HEADER_LENGTH + payload.length + TRAILER_LENGTH;
+        if (active.size > 0 && active.size + recordLength > segmentSize)
+        {
+            active.channel.force(false);
+            active = createSegment(active.number + 1);
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(type).putLong(id).putInt(payload.length).put(payload);
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        ((Buffer) record).flip();
+
+        final long position = active.size;
+        while (record.hasRemaining())
+        {
+            active.channel.write(record, position + record.position());
+        }
+        // a failed write is overwritten by the next one
+        active.size += recordLength;
+        return new Location(active, position, payload.length);
+    }
+
+    /**
+     * Reads the payload of a record.
+     *
+     * @param location the location of the record
+     * @return the payload
+     * @throws IOException reading failed
+     */
+    private byte[] read(final Location location) throws IOException
+    {
+        final ByteBuffer payload = ByteBuffer.allocate(location.length);
+        readFully(location.segment.channel, payload, location.position + HEADER_LENGTH);
+        return payload.array();
+    }
+
+    /**
+     * Creates a new segment file.
+     *
+     * @param number the number of the segment
+     * @return the segment
+     * @throws IOException creating the file failed
+     */
+    private Segment createSegment(final long number) throws IOException
+    {
+        final Segment segment = new Segment(number, new File(directory, String.format("%s%020d%s", prefix, number, SUFFIX)));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    /**
+     * Throws if the journal is closed.
+     *
+     * @throws IOException the journal is closed
+     */
+    private void checkOpen() throws IOException
+    {
+        if (active == null)
+        {
+            throw new IOException("The journal is closed");
+        }
+    }
+
+    /**
+     * Fills a buffer from a file.
+     *
+     * @param channel the file
+     * @param buffer the buffer
+     * @param position the position in the file
+     * @throws IOException reading failed or the file is too short
+     */
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException
+    {
+        final int start = buffer.position();
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position() - start) < 0)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * A segment file.
+     */
+    private static final class Segment
+    {
+        /** The number of the segment. */
+        private final long number;
+
+        /** The segment file. */
+        private final File file;
+
+        /** The open segment file. */
+        private final FileChannel channel;
+
+        /** The size of the valid records. */
+        private long size;
+
+        /** The number of entries in the segment. */
+        private int entries;
+
+        /** The number of live entries in the segment. */
+        private int live;
+
+        /**
+         * Opens or creates a segment file.
+         *
+         * @param number the number of the segment
+         * @param file the segment file
+         * @throws IOException opening the file failed
+         */
+        private Segment(final long number, final File file) throws IOException
+        {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * The location of an entry record.
+     */
+    private static final class Location
+    {
+        /** The segment of the record. */
+        private final Segment segment;
+
+        /** The position of the record in the segment. */
+        private final long position;
+
+        /** The length of the payload. */
+        private final int length;
+
+        /**
+         * Creates a location.
+         *
+         * @param segment the segment of the record
+         * @param position the position of the record
+         * @param length the length of the payload
+         */
+        private Location(final Segment segment, final long position, final int length)
+        {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
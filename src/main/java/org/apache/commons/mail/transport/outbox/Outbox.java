@@ -0,0 +1,1036 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.EmailConstants;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.transport.Envelope;
+import org.apache.commons.mail.transport.RetryPolicy;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * A durable outbox: a message is accepted with a single write to an
+ * append-only journal and delivered later by worker threads using another
+ * {@link MailTransport}, so sending does not wait for the SMTP server and
+ * no accepted message is lost when the JVM dies.
+ * <pre>
+ * Outbox outbox = new Outbox(new File("spool"), session, new JavaMailTransport()).start();
+ * email.setMailTransport(outbox);
+ * email.send(); // returns once the message is in the journal
+ * </pre>
+ * The journal is forced to disk by a sync thread every
+ * {@link #setSyncIntervalMillis(long) sync interval}, batching the records
+ * written in between; with {@link #setWaitForSync(boolean)} a send waits
+ * for the next sync, which survives an operating system crash as well.
+ * <p>
+ * A delivered message is acknowledged in the journal. Transient failures
+ * are retried according to the {@link RetryPolicy}, a message failing
+ * permanently or too often is moved to the dead letters. The messages not
+ * acknowledged when the outbox is closed or the JVM dies are delivered
+ * again by the next outbox started on the directory, so a message may be
+ * delivered more than once but is never lost. Failures of the journal while
+ * delivering are logged to the {@code java.util.logging} logger of this class.
+ * <p>
+ * All messages are restored from the journal before they are delivered and
+ * use the session of the outbox, e.g. for the host of the SMTP server.
+ * The envelope of a message, i.e. its recipients and bounce address, is
+ * kept.
+ * <p>
+ * A message can be scheduled for a later time, e.g. by
+ * {@link org.apache.commons.mail.Email#sendAt(Instant)}; the time is kept in
+ * the journal, so the schedule survives a restart. Scheduled messages and
+ * retries wait in a {@link TimingWheel} taking constant time to schedule and
+ * cancel, and are delivered within a {@link #setTickMillis(long) tick} of
+ * their time.
+ *
+ * @since 1.6
+ */
+public class Outbox implements MailTransport
+{
+    /** The default size after which a new journal segment is started. */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /** The default interval between forcing the journal to disk. */
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 100;
+
+    /** The default resolution of scheduled deliveries and retries. */
+    public static final long DEFAULT_TICK_MS = 100;
+
+    /** The default number of worker threads. */
+    public static final int DEFAULT_WORKERS = 2;
+
+    /** The interval at which idle workers check if the outbox is closed. */
+    private static final long POLL_INTERVAL_MS = 100;
+
+    /** The logger of journal failures while delivering. */
+    private static final Logger LOG = Logger.getLogger(Outbox.class.getName());
+
+    /** The prefix of the journal segment files. */
+    private static final String JOURNAL_PREFIX = "outbox-";
+
+    /** The prefix of the dead letter segment files. */
+    private static final String DEAD_LETTER_PREFIX = "dead-letter-";
+
+    /** The directory of the journal. */
+    private final File directory;
+
+    /** The session of the restored messages. */
+    private final Session session;
+
+    /** The transport delivering the messages. */
+    private final MailTransport transport;
+
+    /** The deliveries due now. */
+    private final BlockingQueue<Delivery> ready = new LinkedBlockingQueue<>();
+
+    /** The scheduled first deliveries by message id. */
+    private final ConcurrentMap<Long, Delivery> scheduled = new ConcurrentHashMap<>();
+
+    /** Guards the sync state. */
+    private final Object syncLock = new Object();
+
+    /** The sync and worker threads. */
+    private final List<Thread> threads = new ArrayList<>();
+
+    /** The classification of failures and delays between attempts. */
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+    /** The number of worker threads. */
+    private volatile int workers = DEFAULT_WORKERS;
+
+    /** The resolution of scheduled deliveries and retries. */
+    private volatile long tickMillis = DEFAULT_TICK_MS;
+
+    /** The deliveries due later. */
+    private volatile TimingWheel<Delivery> wheel;
+
+    /** The size after which a new journal segment is started. */
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /** The interval between forcing the journal to disk. */
+    private volatile long syncIntervalMillis = DEFAULT_SYNC_INTERVAL_MS;
+
+    /** Does sending wait until the message is forced to disk? */
+    private volatile boolean waitForSync;
+
+    /** The journal of the messages to deliver. */
+    private volatile Journal journal;
+
+    /** The journal of the messages given up. */
+    private volatile Journal deadLetters;
+
+    /** Is the outbox closed? */
+    private volatile boolean closed;
+
+    /** The id of the last entry forced to disk, guarded by syncLock. */
+    private long syncedId;
+
+    /** Is a sync requested before the interval elapsed? Guarded by syncLock. */
+    private boolean syncRequested;
+
+    /** The failure of the last sync, guarded by syncLock. */
+    private IOException syncFailure;
+
+    /**
+     * Creates an outbox, call {@link #start()} before sending.
+     *
+     * @param directory the directory of the journal, created if missing
+     * @param session the session of the restored messages
+     * @param transport the transport delivering the messages
+     * @throws IllegalArgumentException if an argument is null
+     */
+    public Outbox(final File directory, final Session session, final MailTransport transport)
+    {
+        if (directory == null)
+        {
+            throw new IllegalArgumentException("directory can not be null");
+        }
+        if (session == null)
+        {
+            throw new IllegalArgumentException("session can not be null");
+        }
+        if (transport == null)
+        {
+            throw new IllegalArgumentException("transport can not be null");
+        }
+        this.directory = directory;
+        this.session = session;
+        this.transport = transport;
+    }
+
+    /**
+     * Opens the journal, queues or schedules the messages not acknowledged
+     * yet and starts the sync, timer and worker threads.
+     *
+     * @return this outbox
+     * @throws IOException reading the journal failed
+     * @throws IllegalStateException if the outbox was started before
+     */
+    public synchronized Outbox start() throws IOException
+    {
+        if (journal != null || closed)
+        {
+            throw new IllegalStateException("The outbox was started before");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create the outbox directory " + directory);
+        }
+
+        final Journal deadLetterJournal = new Journal(directory, DEAD_LETTER_PREFIX, segmentSize);
+        deadLetterJournal.open();
+        final Journal entryJournal = new Journal(directory, JOURNAL_PREFIX, segmentSize);
+        try
+        {
+            entryJournal.open();
+        }
+        catch (final IOException e)
+        {
+            deadLetterJournal.close();
+            throw e;
+        }
+        wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+        for (final Long id : entryJournal.getIds())
+        {
+            long dueMillis;
+            try
+            {
+                dueMillis = OutboxEntry.decodeDueMillis(entryJournal.read(id, OutboxEntry.DUE_LENGTH));
+            }
+            catch (final IOException e)
+            {
+                // a corrupt entry is given up by its delivery
+                dueMillis = 0;
+            }
+            schedule(new Delivery(id, 1), dueMillis);
+        }
+        synchronized (syncLock)
+        {
+            syncedId = entryJournal.getLastId();
+        }
+        deadLetters = deadLetterJournal;
+        journal = entryJournal;
+
+        threads.add(new Thread(this::runSync, "commons-email-outbox-sync"));
+        threads.add(new Thread(this::runTimer, "commons-email-outbox-timer"));
+        for (int i = 1; i <= workers; i++)
+        {
+            threads.add(new Thread(this::runWorker, "commons-email-outbox-" + i));
+        }
+        for (final Thread thread : threads)
+        {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Adds a message to the outbox, using its recipients and the bounce
+     * address of its session as envelope.
+     *
+     * @param message the saved message
+     * @return the Message-ID of the message
+     * @throws MessagingException writing the message to the journal failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    @Override
+    public String send(final MimeMessage message) throws MessagingException
+    {
+        try
+        {
+            enqueue(message);
+        }
+        catch (final IOException e)
+        {
+            throw new MessagingException("Cannot write the message to the outbox", e);
+        }
+        return message.getMessageID();
+    }
+
+    /**
+     * Adds a message to the outbox to be sent at the given time, using its
+     * recipients and the bounce address of its session as envelope.
+     *
+     * @param message the saved message
+     * @param sendAt the time to send the message
+     * @return the Message-ID of the message
+     * @throws MessagingException writing the message to the journal failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    @Override
+    public String sendAt(final MimeMessage message, final Instant sendAt) throws MessagingException
+    {
+        try
+        {
+            enqueue(message, new Envelope(getEnvelopeFrom(message), message.getAllRecipients()), sendAt);
+        }
+        catch (final IOException e)
+        {
+            throw new MessagingException("Cannot write the message to the outbox", e);
+        }
+        return message.getMessageID();
+    }
+
+    /**
+     * Adds a message to the outbox, using its recipients and the bounce
+     * address of its session as envelope.
+     *
+     * @param message the saved message
+     * @return the id of the message in the journal
+     * @throws IOException writing the journal failed
+     * @throws MessagingException writing the message failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    public long enqueue(final MimeMessage message) throws IOException, MessagingException
+    {
+        return enqueue(message, new Envelope(getEnvelopeFrom(message), message.getAllRecipients()));
+    }
+
+    /**
+     * Adds a message to the outbox to be sent with the given envelope.
+     *
+     * @param message the saved message
+     * @param envelope the envelope
+     * @return the id of the message in the journal
+     * @throws IOException writing the journal failed
+     * @throws MessagingException writing the message failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    public long enqueue(final MimeMessage message, final Envelope envelope) throws IOException, MessagingException
+    {
+        return enqueue(message, envelope, null);
+    }
+
+    /**
+     * Adds a message to the outbox to be sent with the given envelope at the
+     * given time.
+     *
+     * @param message the saved message
+     * @param envelope the envelope
+     * @param sendAt the time to send the message, null for at once
+     * @return the id of the message in the journal
+     * @throws IOException writing the journal failed
+     * @throws MessagingException writing the message failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     * @throws IllegalArgumentException if the time is centuries ahead
+     */
+    public long enqueue(final MimeMessage message, final Envelope envelope, final Instant sendAt)
+            throws IOException, MessagingException
+    {
+        final Journal entries = getJournal();
+        final long dueMillis = sendAt != null ? Math.max(1, sendAt.toEpochMilli()) : 0;
+        final long id = entries.append(OutboxEntry.encode(envelope, message, dueMillis));
+        try
+        {
+            schedule(new Delivery(id, 1), dueMillis);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            entries.ack(id);
+            throw e;
+        }
+        if (waitForSync)
+        {
+            awaitSync(id);
+        }
+        return id;
+    }
+
+    /**
+     * Cancels a scheduled message which is not due yet.
+     *
+     * @param id the id of the message in the journal
+     * @return false if the message is not scheduled or already due
+     * @throws IOException writing the journal failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    public boolean cancel(final long id) throws IOException
+    {
+        final Journal entries = getJournal();
+        final Delivery delivery = scheduled.remove(id);
+        if (delivery == null || delivery.timeout == null || !wheel.cancel(delivery.timeout))
+        {
+            return false;
+        }
+        entries.ack(id);
+        return true;
+    }
+
+    /**
+     * Forces the messages added so far to disk.
+     *
+     * @throws IOException forcing the journal failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    public void flush() throws IOException
+    {
+        sync(getJournal());
+    }
+
+    /**
+     * Gets the number of messages not delivered yet.
+     *
+     * @return the number of messages in the journal
+     */
+    public int getPendingCount()
+    {
+        final Journal entries = journal;
+        return entries != null ? entries.size() : 0;
+    }
+
+    /**
+     * Gets the number of messages scheduled for a later time and not due yet.
+     *
+     * @return the number of scheduled messages
+     */
+    public int getScheduledCount()
+    {
+        return scheduled.size();
+    }
+
+    /**
+     * Gets the number of messages given up.
+     *
+     * @return the number of dead letters
+     */
+    public int getDeadLetterCount()
+    {
+        final Journal letters = deadLetters;
+        return letters != null ? letters.size() : 0;
+    }
+
+    /**
+     * Reads the messages given up, e.g. to inspect or resend them.
+     *
+     * @return the dead letters in the order they were given up
+     * @throws IOException reading the dead letters failed
+     * @throws MessagingException parsing a message failed
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    public List<OutboxEntry> getDeadLetters() throws IOException, MessagingException
+    {
+        getJournal();
+        final Journal letters = deadLetters;
+        final List<OutboxEntry> entries = new ArrayList<>();
+        for (final Long id : letters.getIds())
+        {
+            final byte[] payload = letters.read(id);
+            if (payload != null)
+            {
+                entries.add(OutboxEntry.decodeDeadLetter(id, payload, session));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Stops the threads after their current delivery, forces the journal to
+     * disk and closes it and the transport. The messages not delivered yet
+     * stay in the journal.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+        }
+        synchronized (syncLock)
+        {
+            syncLock.notifyAll();
+        }
+        for (final Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        closeQuietly(journal);
+        closeQuietly(deadLetters);
+        transport.close();
+    }
+
+    /**
+     * Gets the directory of the journal.
+     *
+     * @return the directory
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Gets the classification of failures and the delays between attempts.
+     *
+     * @return the retry policy
+     */
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the classification of failures and the delays between attempts.
+     * A message is given up after the maximum number of attempts.
+     *
+     * @param retryPolicy the retry policy
+     * @return this outbox
+     * @throws IllegalArgumentException if the policy is null
+     */
+    public Outbox setRetryPolicy(final RetryPolicy retryPolicy)
+    {
+        if (retryPolicy == null)
+        {
+            throw new IllegalArgumentException("retryPolicy can not be null");
+        }
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Gets the number of worker threads.
+     *
+     * @return the number of worker threads
+     */
+    public int getWorkers()
+    {
+        return workers;
+    }
+
+    /**
+     * Sets the number of worker threads, i.e. the number of concurrent
+     * deliveries. Takes effect when the outbox is started.
+     *
+     * @param workers the number of worker threads
+     * @return this outbox
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public Outbox setWorkers(final int workers)
+    {
+        if (workers < 1)
+        {
+            throw new IllegalArgumentException("workers must be greater than 0");
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * Gets the resolution of scheduled deliveries and retries.
+     *
+     * @return the length of a tick in milliseconds
+     */
+    public long getTickMillis()
+    {
+        return tickMillis;
+    }
+
+    /**
+     * Sets the resolution of scheduled deliveries and retries. Takes effect
+     * when the outbox is started.
+     *
+     * @param tickMillis the length of a tick in milliseconds
+     * @return this outbox
+     * @throws IllegalArgumentException if the length is not positive
+     */
+    public Outbox setTickMillis(final long tickMillis)
+    {
+        if (tickMillis < 1)
+        {
+            throw new IllegalArgumentException("tickMillis must be greater than 0");
+        }
+        this.tickMillis = tickMillis;
+        return this;
+    }
+
+    /**
+     * Gets the size after which a new journal segment is started.
+     *
+     * @return the size in bytes
+     */
+    public long getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size after which a new journal segment is started. A segment
+     * is deleted once all its messages are delivered. Takes effect when the
+     * outbox is started.
+     *
+     * @param segmentSize the size in bytes
+     * @return this outbox
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public Outbox setSegmentSize(final long segmentSize)
+    {
+        if (segmentSize < 1)
+        {
+            throw new IllegalArgumentException("segmentSize must be greater than 0");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Gets the interval between forcing the journal to disk.
+     *
+     * @return the interval in milliseconds
+     */
+    public long getSyncIntervalMillis()
+    {
+        return syncIntervalMillis;
+    }
+
+    /**
+     * Sets the interval between forcing the journal to disk.
+     *
+     * @param syncIntervalMillis the interval in milliseconds
+     * @return this outbox
+     * @throws IllegalArgumentException if the interval is not positive
+     */
+    public Outbox setSyncIntervalMillis(final long syncIntervalMillis)
+    {
+        if (syncIntervalMillis < 1)
+        {
+            throw new IllegalArgumentException("syncIntervalMillis must be greater than 0");
+        }
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Does sending wait until the message is forced to disk?
+     *
+     * @return true if sending waits for the next sync
+     */
+    public boolean isWaitForSync()
+    {
+        return waitForSync;
+    }
+
+    /**
+     * Sets whether sending waits until the message is forced to disk. The
+     * concurrent senders share a single sync. Without waiting a message
+     * written to the journal survives the JVM dying but not the operating
+     * system crashing before the next sync.
+     *
+     * @param waitForSync true to wait for the next sync
+     * @return this outbox
+     */
+    public Outbox setWaitForSync(final boolean waitForSync)
+    {
+        this.waitForSync = waitForSync;
+        return this;
+    }
+
+    /**
+     * Forces the journal to disk periodically or when requested and compacts it.
+     */
+    private void runSync()
+    {
+        while (!closed)
+        {
+            synchronized (syncLock)
+            {
+                if (!syncRequested)
+                {
+                    try
+                    {
+                        syncLock.wait(syncIntervalMillis);
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                syncRequested = false;
+            }
+            try
+            {
+                sync(journal);
+                journal.compact();
+            }
+            catch (final IOException e)
+            {
+                synchronized (syncLock)
+                {
+                    syncFailure = e;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the due deliveries from the timing wheel to the workers every
+     * tick until the outbox is closed.
+     */
+    private void runTimer()
+    {
+        while (!closed)
+        {
+            try
+            {
+                Thread.sleep(tickMillis);
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+            wheel.advance(System.currentTimeMillis(), delivery -> {
+                scheduled.remove(delivery.id, delivery);
+                ready.add(delivery);
+            });
+        }
+    }
+
+    /**
+     * Delivers the due messages until the outbox is closed.
+     */
+    private void runWorker()
+    {
+        while (!closed)
+        {
+            final Delivery delivery;
+            try
+            {
+                delivery = ready.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+            if (delivery != null)
+            {
+                deliver(delivery);
+            }
+        }
+    }
+
+    /**
+     * Delivers a message and acknowledges it, retries it or gives it up.
+     *
+     * @param delivery the delivery
+     */
+    private void deliver(final Delivery delivery)
+    {
+        final byte[] payload;
+        try
+        {
+            payload = journal.read(delivery.id);
+        }
+        catch (final IOException e)
+        {
+            if (!closed)
+            {
+                LOG.log(Level.WARNING, "Cannot read message " + delivery.id + " from the outbox journal", e);
+                // not an attempt, read again after the retry delay
+                schedule(new Delivery(delivery.id, delivery.attempt),
+                        System.currentTimeMillis() + retryPolicy.getDelayMillis(delivery.attempt));
+            }
+            return;
+        }
+        if (payload == null)
+        {
+            // already acknowledged
+            return;
+        }
+
+        final OutboxEntry entry;
+        try
+        {
+            entry = OutboxEntry.decode(delivery.id, payload, session);
+        }
+        catch (final IOException | MessagingException e)
+        {
+            giveUp(delivery.id, payload, e);
+            return;
+        }
+
+        try
+        {
+            transfer(entry.getMimeMessage());
+        }
+        catch (final MessagingException e)
+        {
+            if (closed)
+            {
+                // sent again after a restart
+                return;
+            }
+            final RetryPolicy policy = retryPolicy;
+            if (delivery.attempt < policy.getMaxAttempts() && policy.isRetryable(e))
+            {
+                schedule(new Delivery(delivery.id, delivery.attempt + 1),
+                        System.currentTimeMillis() + policy.getDelayMillis(delivery.attempt));
+            }
+            else
+            {
+                giveUp(delivery.id, payload, e);
+            }
+            return;
+        }
+
+        try
+        {
+            journal.ack(delivery.id);
+        }
+        catch (final IOException e)
+        {
+            LOG.log(Level.WARNING, "Cannot acknowledge message " + delivery.id
+                    + " in the outbox journal, it is sent again after a restart", e);
+        }
+    }
+
+    /**
+     * Sends a restored message, a runtime exception of the transport counts
+     * as a failed attempt instead of stopping the worker.
+     *
+     * @param message the message
+     * @throws MessagingException sending the message failed
+     */
+    private void transfer(final MimeMessage message) throws MessagingException
+    {
+        try
+        {
+            transport.send(message);
+        }
+        catch (final RuntimeException e)
+        {
+            // kept as the reason of the dead letter
+            throw new MessagingException("Sending the message failed: " + e, e);
+        }
+    }
+
+    /**
+     * Queues a delivery if it is due or schedules it in the timing wheel.
+     *
+     * @param delivery the delivery
+     * @param dueMillis the time it is due in milliseconds since the epoch, 0 for at once
+     * @throws IllegalArgumentException if the time is beyond the span of the wheel
+     */
+    private void schedule(final Delivery delivery, final long dueMillis)
+    {
+        if (dueMillis <= System.currentTimeMillis())
+        {
+            ready.add(delivery);
+        }
+        else if (delivery.attempt == 1)
+        {
+            // registered first, the timer may expire the delivery at once
+            scheduled.put(delivery.id, delivery);
+            try
+            {
+                delivery.timeout = wheel.schedule(delivery, dueMillis);
+            }
+            catch (final IllegalArgumentException e)
+            {
+                scheduled.remove(delivery.id);
+                throw e;
+            }
+        }
+        else
+        {
+            delivery.timeout = wheel.schedule(delivery, dueMillis);
+        }
+    }
+
+    /**
+     * Moves a message to the dead letters.
+     *
+     * @param id the id of the message
+     * @param payload the payload of the message
+     * @param failure the last failure
+     */
+    private void giveUp(final long id, final byte[] payload, final Exception failure)
+    {
+        try
+        {
+            deadLetters.append(OutboxEntry.encodeDeadLetter(failure, payload));
+            deadLetters.sync();
+            journal.ack(id);
+        }
+        catch (final IOException e)
+        {
+            LOG.log(Level.WARNING, "Cannot move message " + id
+                    + " to the dead letters, it is attempted again after a restart", e);
+        }
+    }
+
+    /**
+     * Waits until an entry is forced to disk, requesting a sync.
+     *
+     * @param id the id of the entry
+     * @throws IOException syncing failed or the outbox was closed
+     */
+    private void awaitSync(final long id) throws IOException
+    {
+        synchronized (syncLock)
+        {
+            while (syncedId < id)
+            {
+                if (syncFailure != null)
+                {
+                    throw new IOException("Cannot sync the outbox journal", syncFailure);
+                }
+                if (closed)
+                {
+                    throw new IOException("The outbox is closed");
+                }
+                syncRequested = true;
+                syncLock.notifyAll();
+                try
+                {
+                    syncLock.wait();
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the outbox journal sync");
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces a journal to disk and wakes up the senders waiting for it.
+     *
+     * @param entries the journal
+     * @throws IOException forcing the journal failed
+     */
+    private void sync(final Journal entries) throws IOException
+    {
+        final long lastId = entries.sync();
+        synchronized (syncLock)
+        {
+            syncedId = Math.max(syncedId, lastId);
+            syncFailure = null;
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the journal of a started outbox.
+     *
+     * @return the journal
+     * @throws IllegalStateException if the outbox is not started or closed
+     */
+    private Journal getJournal()
+    {
+        final Journal entries = journal;
+        if (entries == null || closed)
+        {
+            throw new IllegalStateException("The outbox is not started or closed");
+        }
+        return entries;
+    }
+
+    /**
+     * Gets the bounce address of a message, i.e. the envelope sender set on
+     * the message or its session.
+     *
+     * @param message the message
+     * @return the bounce address or null for the default
+     */
+    private static String getEnvelopeFrom(final MimeMessage message)
+    {
+        if (message instanceof SMTPMessage && ((SMTPMessage) message).getEnvelopeFrom() != null)
+        {
+            return ((SMTPMessage) message).getEnvelopeFrom();
+        }
+        return message.getSession() != null ? message.getSession().getProperty(EmailConstants.MAIL_SMTP_FROM) : null;
+    }
+
+    /**
+     * Closes a journal, ignoring failures.
+     *
+     * @param entries the journal, may be null
+     */
+    private static void closeQuietly(final Journal entries)
+    {
+        if (entries != null)
+        {
+            try
+            {
+                entries.close();
+            }
+            catch (final IOException e)
+            {
+                // the records are written, forcing them is up to the operating system
+            }
+        }
+    }
+
+    /**
+     * A delivery attempt of a message.
+     */
+    private static final class Delivery
+    {
+        /** The id of the message. */
+        private final long id;
+
+        /** The number of the attempt, starting with 1. */
+        private final int attempt;
+
+        /** The timeout of a delivery due later. */
+        private volatile TimingWheel.Timeout<Delivery> timeout;
+
+        /**
+         * Creates a delivery attempt.
+         *
+         * @param id the id of the message
+         * @param attempt the number of the attempt
+         */
+        private Delivery(final long id, final int attempt)
+        {
+            this.id = id;
+            this.attempt = attempt;
+        }
+    }
+}
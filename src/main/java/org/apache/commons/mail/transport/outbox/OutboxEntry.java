@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.outbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.mail.transport.Envelope;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * A message stored in an {@link Outbox}, e.g. a dead letter.
+ * <p>
+ * The payload of a journal entry is the time the message is due, the
+ * envelope and the message as written by {@code MimeMessage.writeTo}; the
+ * payload of a dead letter is the failure followed by the payload of the
+ * entry.
+ *
+ * @since 1.6
+ */
+public final class OutboxEntry
+{
+    /** The maximum length of a stored failure. */
+    private static final int MAX_FAILURE_LENGTH = 1000;
+
+    /** The length of the due time at the start of a payload. */
+    static final int DUE_LENGTH = 8;
+
+    /** The id of the entry in its journal. */
+    private final long id;
+
+    /** The envelope of the message. */
+    private final Envelope envelope;
+
+    /** The message. */
+    private final MimeMessage message;
+
+    /** The time the message is due in milliseconds since the epoch, 0 for at once. */
+    private final long dueMillis;
+
+    /** The failure of a dead letter. */
+    private final String failure;
+
+    /**
+     * Creates an entry.
+     *
+     * @param id the id of the entry in its journal
+     * @param envelope the envelope of the message
+     * @param message the message
+     * @param dueMillis the time the message is due, 0 for at once
+     * @param failure the failure of a dead letter, null otherwise
+     */
+    private OutboxEntry(final long id, final Envelope envelope, final MimeMessage message, final long dueMillis,
+            final String failure)
+    {
+        this.id = id;
+        this.envelope = envelope;
+        this.message = message;
+        this.dueMillis = dueMillis;
+        this.failure = failure;
+    }
+
+    /**
+     * Gets the id of the entry in its journal.
+     *
+     * @return the id
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Gets the envelope the message is sent with.
+     *
+     * @return the envelope
+     */
+    public Envelope getEnvelope()
+    {
+        return envelope;
+    }
+
+    /**
+     * Gets the message. Its {@code getAllRecipients()} returns the
+     * recipients of the envelope.
+     *
+     * @return the message
+     */
+    public MimeMessage getMimeMessage()
+    {
+        return message;
+    }
+
+    /**
+     * Gets the time the message was scheduled for.
+     *
+     * @return the time or null if the message was sent at once
+     */
+    public Instant getSendAt()
+    {
+        return dueMillis != 0 ? Instant.ofEpochMilli(dueMillis) : null;
+    }
+
+    /**
+     * Gets the failure of a dead letter.
+     *
+     * @return the message of the last failure, null if the message was not given up
+     */
+    public String getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * Encodes a message, its envelope and the time it is due.
+     *
+     * @param envelope the envelope
+     * @param message the message
+     * @param dueMillis the time the message is due in milliseconds since the epoch, 0 for at once
+     * @return the payload
+     * @throws IOException writing the message failed
+     * @throws MessagingException writing the message failed
+     */
+    static byte[] encode(final Envelope envelope, final MimeMessage message, final long dueMillis)
+            throws IOException, MessagingException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(message.getSize(), 0) + 1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(dueMillis);
+        out.writeBoolean(envelope.getFrom() != null);
+        if (envelope.getFrom() != null)
+        {
+            out.writeUTF(envelope.getFrom());
+        }
+        out.writeInt(envelope.getRecipients().size());
+        for (final Address recipient : envelope.getRecipients())
+        {
+            out.writeUTF(recipient.toString());
+        }
+        message.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a dead letter.
+     *
+     * @param failure the failure giving up the message
+     * @param payload the payload of the journal entry
+     * @return the payload of the dead letter
+     * @throws IOException writing failed
+     */
+    static byte[] encodeDeadLetter(final Throwable failure, final byte[] payload) throws IOException
+    {
+        String reason = failure.getMessage() != null ? failure.getMessage() : failure.getClass().getName();
+        if (reason.length() > MAX_FAILURE_LENGTH)
+        {
+            reason = reason.substring(0, MAX_FAILURE_LENGTH);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + reason.length() + 16);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(reason);
+        out.write(payload);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the time an entry is due from the start of its payload.
+     *
+     * @param payload at least the first {@link #DUE_LENGTH} bytes of the payload
+     * @return the time in milliseconds since the epoch, 0 for at once
+     * @throws IOException the payload is too short
+     */
+    static long decodeDueMillis(final byte[] payload) throws IOException
+    {
+        if (payload.length < DUE_LENGTH)
+        {
+            throw new IOException("The payload is too short");
+        }
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    /**
+     * Decodes a journal entry, the message shares the payload.
+     *
+     * @param id the id of the entry
+     * @param payload the payload
+     * @param session the session of the message
+     * @return the entry
+     * @throws IOException the payload is corrupt
+     * @throws MessagingException the message is corrupt
+     */
+    static OutboxEntry decode(final long id, final byte[] payload, final Session session)
+            throws IOException, MessagingException
+    {
+        return decode(id, new SharedByteArrayInputStream(payload), session, null);
+    }
+
+    /**
+     * Decodes a dead letter, the message shares the payload.
+     *
+     * @param id the id of the dead letter
+     * @param payload the payload
+     * @param session the session of the message
+     * @return the entry
+     * @throws IOException the payload is corrupt
+     * @throws MessagingException the message is corrupt
+     */
+    static OutboxEntry decodeDeadLetter(final long id, final byte[] payload, final Session session)
+            throws IOException, MessagingException
+    {
+        final SharedByteArrayInputStream in = new SharedByteArrayInputStream(payload);
+        final String failure = new DataInputStream(in).readUTF();
+        return decode(id, in, session, failure);
+    }
+
+    /**
+     * Decodes an envelope and the following message.
+     *
+     * @param id the id of the entry
+     * @param in the payload, positioned at the envelope
+     * @param session the session of the message
+     * @param failure the failure of a dead letter
+     * @return the entry
+     * @throws IOException the payload is corrupt
+     * @throws MessagingException the message is corrupt
+     */
+    private static OutboxEntry decode(final long id, final SharedByteArrayInputStream in, final Session session,
+            final String failure) throws IOException, MessagingException
+    {
+        final DataInputStream data = new DataInputStream(in);
+        final long dueMillis = data.readLong();
+        final String from = data.readBoolean() ? data.readUTF() : null;
+        final int count = data.readInt();
+        if (count < 1)
+        {
+            throw new IOException("Invalid number of recipients: " + count);
+        }
+        final List<Address> recipients = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++)
+        {
+            recipients.add(new InternetAddress(data.readUTF(), false));
+        }
+
+        final Envelope envelope = new Envelope(from, recipients);
+        final EnvelopeMessage message = new EnvelopeMessage(session, in.newStream(in.getPosition(), -1), envelope);
+        return new OutboxEntry(id, envelope, message, dueMillis, failure);
+    }
+
+    /**
+     * A message sent to the recipients of its envelope rather than its
+     * To, Cc and Bcc headers.
+     */
+    private static final class EnvelopeMessage extends SMTPMessage
+    {
+        /** The recipients of the envelope. */
+        private final Address[] recipients;
+
+        /**
+         * Parses a message.
+         *
+         * @param session the session of the message
+         * @param in the message
+         * @param envelope the envelope
+         * @throws MessagingException parsing the message failed
+         */
+        private EnvelopeMessage(final Session session, final InputStream in, final Envelope envelope)
+                throws MessagingException
+        {
+            super(session, in);
+            this.recipients = envelope.getRecipients().toArray(new Address[0]);
+            setEnvelopeFrom(envelope.getFrom());
+        }
+
+        @Override
+        public Address[] getAllRecipients()
+        {
+            return recipients.clone();
+        }
+    }
+}
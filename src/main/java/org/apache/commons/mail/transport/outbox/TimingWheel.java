@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.outbox;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel: timeouts are kept in doubly linked slot
+ * lists, so scheduling and cancelling take constant time however many
+ * timeouts are pending.
+ * <p>
+ * Time is counted in ticks since the epoch. Each of the six levels has 64
+ * slots; a timeout is placed on the level of the highest 6 bit group in
+ * which its tick differs from the current tick, in the slot of its own
+ * group on that level. When the lower groups of the current tick wrap to
+ * zero, the slot of the next level whose group is reached is cascaded, i.e.
+ * its timeouts move down to lower levels, until they expire from level 0.
+ * The wheel spans 2^36 ticks, more than two centuries with 100 ms ticks.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <T> the type of the scheduled values
+ * @since 1.6
+ */
+final class TimingWheel<T>
+{
+    /** The bits of a slot index. */
+    private static final int SLOT_BITS = 6;
+
+    /** The number of slots per level. */
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    /** The number of levels. */
+    private static final int LEVELS = 6;
+
+    /** The length of a tick in milliseconds. */
+    private final long tickMillis;
+
+    /** The sentinels of the slot lists by level and slot. */
+    private final Timeout<T>[] slots;
+
+    /** The current tick. */
+    private long currentTick;
+
+    /** The number of pending timeouts. */
+    private int size;
+
+    /**
+     * Creates a wheel.
+     *
+     * @param tickMillis the length of a tick in milliseconds
+     * @param nowMillis the current time in milliseconds since the epoch
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(final long tickMillis, final long nowMillis)
+    {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.slots = (Timeout<T>[]) new Timeout<?>[LEVELS * SLOTS];
+        for (int i = 0; i < slots.length; i++)
+        {
+            final Timeout<T> sentinel = new Timeout<>(null, 0);
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            slots[i] = sentinel;
+        }
+    }
+
+    /**
+     * Schedules a value. A time which has passed expires with the next tick.
+     *
+     * @param value the value
+     * @param dueMillis the time in milliseconds since the epoch
+     * @return the timeout to cancel it
+     * @throws IllegalArgumentException if the time is beyond the span of the wheel
+     */
+    synchronized Timeout<T> schedule(final T value, final long dueMillis)
+    {
+        final long tick = Math.max(currentTick + 1, (dueMillis + tickMillis - 1) / tickMillis);
+        final Timeout<T> timeout = new Timeout<>(value, tick);
+        if (level(tick) >= LEVELS)
+        {
+            throw new IllegalArgumentException("The time " + dueMillis + " is too far in the future");
+        }
+        insert(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels a timeout.
+     *
+     * @param timeout the timeout
+     * @return false if the timeout has expired or was cancelled before
+     */
+    synchronized boolean cancel(final Timeout<T> timeout)
+    {
+        if (timeout.next == null)
+        {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time, passing the expired values in
+     * the order of their ticks.
+     *
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @param expired receives the expired values, called with the lock held
+     */
+    synchronized void advance(final long nowMillis, final Consumer<? super T> expired)
+    {
+        final long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick)
+        {
+            if (size == 0)
+            {
+                currentTick = targetTick;
+                return;
+            }
+            currentTick++;
+            int level = 1;
+            while (level < LEVELS && (currentTick & (1L << level * SLOT_BITS) - 1) == 0)
+            {
+                level++;
+            }
+            for (level--; level > 0; level--)
+            {
+                cascade(level);
+            }
+
+            final Timeout<T> sentinel = slots[(int) currentTick & SLOTS - 1];
+            while (sentinel.next != sentinel)
+            {
+                final Timeout<T> timeout = sentinel.next;
+                unlink(timeout);
+                size--;
+                expired.accept(timeout.value);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of pending timeouts.
+     *
+     * @return the number of timeouts
+     */
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Moves the timeouts of the current slot of a level to lower levels.
+     *
+     * @param level the level
+     */
+    private void cascade(final int level)
+    {
+        final Timeout<T> sentinel = slots[level * SLOTS + ((int) (currentTick >>> level * SLOT_BITS) & SLOTS - 1)];
+        while (sentinel.next != sentinel)
+        {
+            final Timeout<T> timeout = sentinel.next;
+            unlink(timeout);
+            insert(timeout);
+        }
+    }
+
+    /**
+     * Links a timeout into the slot for its tick.
+     *
+     * @param timeout the timeout
+     */
+    private void insert(final Timeout<T> timeout)
+    {
+        final int level = level(timeout.tick);
+        final Timeout<T> sentinel = slots[level * SLOTS + ((int) (timeout.tick >>> level * SLOT_BITS) & SLOTS - 1)];
+        timeout.previous = sentinel.previous;
+        timeout.next = sentinel;
+        sentinel.previous.next = timeout;
+        sentinel.previous = timeout;
+    }
+
+    /**
+     * Unlinks a timeout from its slot.
+     *
+     * @param timeout the timeout
+     */
+    private void unlink(final Timeout<T> timeout)
+    {
+        timeout.previous.next = timeout.next;
+        timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+    }
+
+    /**
+     * Gets the level of a tick, i.e. the highest group in which it differs
+     * from the current tick.
+     *
+     * @param tick the tick
+     * @return the level
+     */
+    private int level(final long tick)
+    {
+        final long difference = tick ^ currentTick;
+        return difference == 0 ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(difference)) / SLOT_BITS;
+    }
+
+    /**
+     * A scheduled value.
+     *
+     * @param <T> the type of the value
+     */
+    static final class Timeout<T>
+    {
+        /** The value. */
+        private final T value;
+
+        /** The tick the timeout expires. */
+        private final long tick;
+
+        /** The previous timeout in the slot, null if not scheduled. */
+        private Timeout<T> previous;
+
+        /** The next timeout in the slot, null if not scheduled. */
+        private Timeout<T> next;
+
+        /**
+         * Creates a timeout.
+         *
+         * @param value the value
+         * @param tick the tick the timeout expires
+         */
+        private Timeout(final T value, final long tick)
+        {
+            this.value = value;
+            this.tick = tick;
+        }
+
+        /**
+         * Gets the scheduled value.
+         *
+         * @return the value
+         */
+        T getValue()
+        {
+            return value;
+        }
+    }
+}
@@ -16,9 +16,18 @@
  */
 package org.apache.commons.mail.util;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -26,6 +35,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.Enumeration;
 
 /**
  * Static helper methods.
@@ -34,6 +44,12 @@ import java.nio.charset.Charset;
  */
 public final class MimeMessageUtils
 {
+    /** The length of a multipart boundary line: dashes, boundary and line breaks. */
+    private static final int BOUNDARY_LINE_LENGTH = 72;
+
+    /** The raw bytes in a base64 encoded line of 76 characters. */
+    private static final int BASE64_LINE_BYTES = 57;
+
     /**
      * Instances should NOT be constructed in standard programming.
      */
@@ -157,4 +173,103 @@ public final class MimeMessageUtils
             }
         }
     }
+
+    /**
+     * Estimates the size of a message or body part as written to the SMTP
+     * server without encoding it, e.g. to route large messages differently.
+     * The size of an attachment is taken from its {@link FileDataSource} or
+     * {@link ByteArrayDataSource} plus the overhead of its transfer encoding;
+     * the content of other data sources, e.g. URLs, is not read and counts
+     * as empty. Call {@code saveChanges()} on a message first so the
+     * transfer encodings are known.
+     *
+     * @param part the message or body part
+     * @return the estimated size in bytes
+     * @throws MessagingException reading the part failed
+     * @throws IOException reading the part failed
+     * @since 1.6
+     */
+    public static long estimateSize(final Part part) throws MessagingException, IOException
+    {
+        long size = 2;
+        final Enumeration<?> headers = part.getAllHeaders();
+        while (headers.hasMoreElements())
+        {
+            final Header header = (Header) headers.nextElement();
+            size += header.getName().length() + (header.getValue() != null ? header.getValue().length() : 0) + 4;
+        }
+
+        if (part.isMimeType("multipart/*"))
+        {
+            final Object content = part.getContent();
+            if (content instanceof Multipart)
+            {
+                final Multipart multipart = (Multipart) content;
+                for (int i = 0; i < multipart.getCount(); i++)
+                {
+                    size += BOUNDARY_LINE_LENGTH + estimateSize(multipart.getBodyPart(i));
+                }
+                return size + BOUNDARY_LINE_LENGTH;
+            }
+        }
+
+        final int encodedSize = part.getSize();
+        if (encodedSize >= 0)
+        {
+            // a parsed part holds its encoded content
+            return size + encodedSize;
+        }
+        final long rawSize = getRawSize(part);
+        if (part instanceof PreencodedMimeBodyPart)
+        {
+            // the data handler holds the encoded content
+            return size + rawSize;
+        }
+        final String encoding = part instanceof MimePart ? ((MimePart) part).getEncoding() : null;
+        if ("base64".equalsIgnoreCase(encoding))
+        {
+            final long lines = (rawSize + BASE64_LINE_BYTES - 1) / BASE64_LINE_BYTES;
+            return size + (rawSize + 2) / 3 * 4 + lines * 2;
+        }
+        if ("quoted-printable".equalsIgnoreCase(encoding))
+        {
+            return size + rawSize + rawSize / 8;
+        }
+        return size + rawSize;
+    }
+
+    /**
+     * Gets the size of the unencoded content of a part without reading it.
+     *
+     * @param part the part
+     * @return the size in bytes, 0 if unknown
+     * @throws MessagingException reading the part failed
+     * @throws IOException reading the part failed
+     */
+    private static long getRawSize(final Part part) throws MessagingException, IOException
+    {
+        final DataHandler dataHandler = part.getDataHandler();
+        final DataSource dataSource = dataHandler != null ? dataHandler.getDataSource() : null;
+        if (dataSource instanceof FileDataSource)
+        {
+            return ((FileDataSource) dataSource).getFile().length();
+        }
+        if (dataSource instanceof ByteArrayDataSource || part instanceof PreencodedMimeBodyPart)
+        {
+            try (InputStream in = dataSource.getInputStream())
+            {
+                // a ByteArrayInputStream over the data, encoded for a preencoded part
+                return in.available();
+            }
+        }
+        if (part.isMimeType("text/*"))
+        {
+            final Object content = part.getContent();
+            if (content instanceof String)
+            {
+                return ((String) content).length();
+            }
+        }
+        return 0;
+    }
 }
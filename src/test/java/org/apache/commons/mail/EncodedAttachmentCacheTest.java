@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.commons.mail.util.MimeMessageUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit test case for EncodedAttachmentCache.
+ */
+public class EncodedAttachmentCacheTest
+{
+    private static final File PDF = new File("./src/test/resources/attachments/logo.pdf");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private static byte[] read(final DataSource dataSource) throws IOException
+    {
+        try (InputStream in = dataSource.getInputStream())
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] random(final int length, final long seed)
+    {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static MultiPartEmail email(final EncodedAttachmentCache cache) throws EmailException
+    {
+        final MultiPartEmail email = new MultiPartEmail();
+        email.setHostName("localhost");
+        email.setFrom("from@apache.org");
+        email.addTo("to@apache.org");
+        email.setSubject("cached");
+        email.setMsg("see attachment");
+        email.setAttachmentCache(cache);
+        return email;
+    }
+
+    private static Part attachment(final MimeMessage message) throws Exception
+    {
+        final Multipart multipart = (Multipart) message.getContent();
+        assertEquals(2, multipart.getCount());
+        return multipart.getBodyPart(1);
+    }
+
+    @Test
+    public void testFileHitAndMiss() throws Exception
+    {
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache();
+        final DataSource first = cache.encode(new FileDataSource(PDF));
+        final DataSource second = cache.encode(new FileDataSource(PDF));
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getEntryCount());
+        final byte[] encoded = read(first);
+        assertArrayEquals(encoded, read(second));
+        assertEquals(encoded.length, cache.getSizeBytes());
+        assertEquals(new FileDataSource(PDF).getContentType(), second.getContentType());
+        assertEquals("logo.pdf", second.getName());
+        assertArrayEquals(Files.readAllBytes(PDF.toPath()), Base64.getMimeDecoder().decode(encoded));
+    }
+
+    @Test
+    public void testModifiedFileMisses() throws Exception
+    {
+        final File file = folder.newFile("report.bin");
+        Files.write(file.toPath(), random(1000, 1));
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache();
+        cache.encode(new FileDataSource(file));
+
+        final byte[] changed = random(2000, 2);
+        Files.write(file.toPath(), changed);
+        final DataSource encoded = cache.encode(new FileDataSource(file));
+
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+        assertArrayEquals(changed, Base64.getMimeDecoder().decode(read(encoded)));
+    }
+
+    @Test
+    public void testContentHashHit() throws Exception
+    {
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache();
+        cache.encode(new ByteArrayDataSource(random(5000, 3), "application/octet-stream"));
+        cache.encode(new ByteArrayDataSource(random(5000, 3), "application/octet-stream"));
+        cache.encode(new ByteArrayDataSource(random(5000, 4), "application/octet-stream"));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getEntryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvictedBySize() throws Exception
+    {
+        // 3000 bytes encode to 4000 characters in 53 lines, 4104 bytes
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache(10000);
+        final DataSource a = new ByteArrayDataSource(random(3000, 5), "application/octet-stream");
+        final DataSource b = new ByteArrayDataSource(random(3000, 6), "application/octet-stream");
+        final DataSource c = new ByteArrayDataSource(random(3000, 7), "application/octet-stream");
+        cache.encode(a);
+        cache.encode(b);
+        cache.encode(a);
+        cache.encode(c);
+
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(2 * 4104, cache.getSizeBytes());
+        cache.encode(a);
+        assertEquals(2, cache.getHitCount());
+        cache.encode(b);
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void testContentLargerThanCacheNotCached() throws Exception
+    {
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache(100);
+        final byte[] content = random(1000, 8);
+        final DataSource encoded = cache.encode(new ByteArrayDataSource(content, "application/octet-stream"));
+
+        assertArrayEquals(content, Base64.getMimeDecoder().decode(read(encoded)));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    @Test
+    public void testSendingCopiesEncodedContent() throws Exception
+    {
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache();
+        final byte[] pdf = Files.readAllBytes(PDF.toPath());
+        for (int i = 0; i < 3; i++)
+        {
+            final MultiPartEmail email = email(cache);
+            assertSame(cache, email.getAttachmentCache());
+            email.attach(PDF);
+            email.buildMimeMessage();
+            final MimeMessage built = email.getMimeMessage();
+            built.saveChanges();
+            final long estimate = MimeMessageUtils.estimateSize(built);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            built.writeTo(out);
+            assertTrue(estimate + " for " + out.size(), Math.abs(estimate - out.size()) < out.size() / 10);
+
+            final Part part = attachment(new MimeMessage(session, new ByteArrayInputStream(out.toByteArray())));
+            assertEquals("base64", ((MimePart) part).getEncoding());
+            assertEquals("logo.pdf", part.getFileName());
+            assertTrue(part.isMimeType(new FileDataSource(PDF).getContentType()));
+            assertArrayEquals(pdf, read(part.getDataHandler().getDataSource()));
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testWritingCopiesEncodedContent() throws Exception
+    {
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache();
+        final byte[] content = random(100000, 9);
+        final MultiPartEmail email = email(cache);
+        email.attach(new ByteArrayDataSource(content, "application/octet-stream"), "data.bin", "data");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        email.writeTo(out);
+        final Part part = attachment(new MimeMessage(session, new ByteArrayInputStream(out.toByteArray())));
+        assertEquals("base64", ((MimePart) part).getEncoding());
+        assertEquals("data.bin", part.getFileName());
+        assertArrayEquals(content, read(part.getDataHandler().getDataSource()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxSize()
+    {
+        new EncodedAttachmentCache(0);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+
+import org.apache.commons.mail.util.MimeMessageUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit test case for FileBodyPart.
+ */
+public class FileBodyPartTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private static byte[] random(final int length, final long seed)
+    {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] read(final Part part) throws Exception
+    {
+        try (InputStream in = part.getInputStream())
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private File file(final String name, final byte[] content) throws IOException
+    {
+        final File file = folder.newFile(name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static MultiPartEmail email(final FileBodyPart part) throws EmailException
+    {
+        final MultiPartEmail email = new MultiPartEmail();
+        email.setHostName("localhost");
+        email.setFrom("from@apache.org");
+        email.addTo("to@apache.org");
+        email.setSubject("file");
+        email.setMsg("see attachment");
+        email.attach(part);
+        return email;
+    }
+
+    private Part attachment(final byte[] message) throws Exception
+    {
+        final MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(message));
+        final Multipart multipart = (Multipart) parsed.getContent();
+        assertEquals(2, multipart.getCount());
+        return multipart.getBodyPart(1);
+    }
+
+    private static int indexOf(final byte[] bytes, final byte[] part)
+    {
+        for (int i = 0; i <= bytes.length - part.length; i++)
+        {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j])
+            {
+                j++;
+            }
+            if (j == part.length)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testSidecarCreatedAndReused() throws Exception
+    {
+        final byte[] content = random(10000, 1);
+        final File file = file("data.bin", content);
+        final File sidecars = new File(folder.getRoot(), "sidecars");
+
+        final FileBodyPart first = FileBodyPart.encoded(file, sidecars);
+        assertEquals(file, first.getFile());
+        assertEquals(sidecars, first.getContentFile().getParentFile());
+        assertEquals(FileBodyPart.BASE64, first.getEncoding());
+        assertArrayEquals(content, Base64.getMimeDecoder().decode(Files.readAllBytes(first.getContentFile().toPath())));
+
+        final long written = first.getContentFile().lastModified();
+        first.getContentFile().setLastModified(written - 10000);
+        final FileBodyPart second = FileBodyPart.encoded(file, sidecars);
+        assertEquals(first.getContentFile(), second.getContentFile());
+        assertEquals(written - 10000, second.getContentFile().lastModified());
+        assertEquals(1, sidecars.list().length);
+    }
+
+    @Test
+    public void testChangedFileRegeneratesSidecar() throws Exception
+    {
+        final File file = file("data.bin", random(10000, 2));
+        final File sidecars = folder.newFolder("sidecars");
+        final File stale = FileBodyPart.encoded(file, sidecars).getContentFile();
+
+        final byte[] changed = random(20000, 3);
+        Files.write(file.toPath(), changed);
+        final FileBodyPart part = FileBodyPart.encoded(file, sidecars);
+
+        assertNotEquals(stale, part.getContentFile());
+        assertArrayEquals(changed, Base64.getMimeDecoder().decode(Files.readAllBytes(part.getContentFile().toPath())));
+
+        // kept for emails still sending the earlier version until deleted explicitly
+        assertTrue(stale.exists());
+        assertEquals(2, sidecars.list().length);
+        assertEquals(1, FileBodyPart.deleteStaleSidecars(file, sidecars));
+        assertFalse(stale.exists());
+        assertTrue(part.getContentFile().exists());
+        assertEquals(0, FileBodyPart.deleteStaleSidecars(file, sidecars));
+    }
+
+    @Test
+    public void testOtherFilesSidecarsKept() throws Exception
+    {
+        final File sidecars = folder.newFolder("sidecars");
+        final File first = FileBodyPart.encoded(file("first.bin", random(1000, 5)), sidecars).getContentFile();
+        final File other = file("other.bin", random(1000, 6));
+        final File second = FileBodyPart.encoded(other, sidecars).getContentFile();
+
+        assertEquals(0, FileBodyPart.deleteStaleSidecars(other, sidecars));
+        assertTrue(first.exists());
+        assertTrue(second.exists());
+    }
+
+    @Test
+    public void testSendingCopiesSidecar() throws Exception
+    {
+        final byte[] content = random(50000, 4);
+        final File file = file("report.bin", content);
+        final MultiPartEmail email = email(FileBodyPart.encoded(file, folder.newFolder("sidecars")));
+        email.buildMimeMessage();
+        final MimeMessage built = email.getMimeMessage();
+        built.saveChanges();
+        final long estimate = MimeMessageUtils.estimateSize(built);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        built.writeTo(out);
+        assertTrue(estimate + " for " + out.size(), Math.abs(estimate - out.size()) < out.size() / 10);
+
+        final Part part = attachment(out.toByteArray());
+        assertEquals("base64", ((MimePart) part).getEncoding());
+        assertEquals("report.bin", part.getFileName());
+        assertEquals(Part.ATTACHMENT, part.getDisposition());
+        assertArrayEquals(content, read(part));
+    }
+
+    @Test
+    public void testWritingToChannelTransfersSidecar() throws Exception
+    {
+        final byte[] content = random(300000, 5);
+        final File file = file("archive.zip", content);
+        final FileBodyPart part = FileBodyPart.encoded(file, folder.newFolder("sidecars"));
+        final File target = new File(folder.getRoot(), "message.eml");
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE))
+        {
+            email(part).writeTo(channel);
+        }
+
+        final byte[] message = Files.readAllBytes(target.toPath());
+        assertTrue(indexOf(message, Files.readAllBytes(part.getContentFile().toPath())) > 0);
+        assertArrayEquals(content, read(attachment(message)));
+    }
+
+    @Test
+    public void testBinaryWrittenAsIs() throws Exception
+    {
+        final byte[] content = random(20000, 6);
+        final File file = file("image.raw", content);
+        final FileBodyPart part = FileBodyPart.binary(file);
+        assertEquals(file, part.getContentFile());
+        assertEquals(FileBodyPart.BINARY, part.getEncoding());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        email(part).writeTo(out);
+        final byte[] message = out.toByteArray();
+        assertTrue(indexOf(message, "Content-Transfer-Encoding: binary".getBytes("US-ASCII")) > 0);
+        assertTrue(indexOf(message, content) > 0);
+    }
+
+    @Test(expected = EmailException.class)
+    public void testMissingFile() throws Exception
+    {
+        FileBodyPart.binary(new File(folder.getRoot(), "missing.bin"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullSidecarDirectory() throws Exception
+    {
+        FileBodyPart.encoded(file("data.bin", random(10, 7)), null);
+    }
+}
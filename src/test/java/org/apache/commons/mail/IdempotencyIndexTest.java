@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit test case for IdempotencyIndex.
+ */
+public class IdempotencyIndexTest extends AbstractEmailTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IdempotencyIndex index;
+
+    @After
+    public void tearDownIndex()
+    {
+        if (index != null)
+        {
+            index.close();
+        }
+    }
+
+    private IdempotencyIndex open(final long ttlMillis, final int capacity) throws IOException
+    {
+        if (index != null)
+        {
+            index.close();
+        }
+        index = new IdempotencyIndex(new File(folder.getRoot(), "delivered.idx"), ttlMillis, capacity);
+        return index;
+    }
+
+    @Test
+    public void testMarkDelivered() throws Exception
+    {
+        open(60000, 16);
+        assertFalse(index.isDelivered("invoice-1"));
+        assertTrue(index.markDelivered("invoice-1"));
+        assertTrue(index.isDelivered("invoice-1"));
+        assertFalse(index.markDelivered("invoice-1"));
+        assertFalse(index.isDelivered("invoice-2"));
+        assertEquals(1, index.getUsedSlots());
+    }
+
+    @Test
+    public void testUnmarkDelivered() throws Exception
+    {
+        open(60000, 16);
+        assertFalse(index.unmarkDelivered("invoice-1"));
+        assertTrue(index.markDelivered("invoice-1"));
+        assertTrue(index.unmarkDelivered("invoice-1"));
+        assertFalse(index.isDelivered("invoice-1"));
+        assertFalse(index.unmarkDelivered("invoice-1"));
+        assertTrue(index.markDelivered("invoice-1"));
+        assertEquals(1, index.getUsedSlots());
+    }
+
+    @Test
+    public void testKeysSurviveReopening() throws Exception
+    {
+        open(60000, 16);
+        index.markDelivered("invoice-1");
+        index.markDelivered("invoice-2");
+
+        // the capacity of the existing file is kept
+        open(60000, 1024);
+        assertEquals(16, index.getCapacity());
+        assertTrue(index.isDelivered("invoice-1"));
+        assertTrue(index.isDelivered("invoice-2"));
+        assertFalse(index.isDelivered("invoice-3"));
+    }
+
+    @Test
+    public void testKeysExpire() throws Exception
+    {
+        open(50, 16);
+        index.markDelivered("invoice-1");
+        Thread.sleep(100);
+        assertFalse(index.isDelivered("invoice-1"));
+        assertTrue(index.markDelivered("invoice-1"));
+        assertTrue(index.isDelivered("invoice-1"));
+        assertEquals(1, index.getUsedSlots());
+    }
+
+    @Test
+    public void testFullTableIsRebuilt() throws Exception
+    {
+        open(60000, 16);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(index.markDelivered("invoice-" + i));
+        }
+        assertTrue(index.getCapacity() >= 1024);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(index.isDelivered("invoice-" + i));
+        }
+
+        open(60000, 16);
+        assertEquals(1000, index.getUsedSlots());
+        assertTrue(index.isDelivered("invoice-999"));
+        assertFalse(new File(folder.getRoot(), "delivered.idx.tmp").exists());
+    }
+
+    @Test
+    public void testExpiredKeysAreDroppedOnRebuild() throws Exception
+    {
+        open(50, 16);
+        for (int i = 0; i < 12; i++)
+        {
+            index.markDelivered("old-" + i);
+        }
+        Thread.sleep(100);
+        // the expired slots are reused or dropped instead of growing the table
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(index.markDelivered("new-" + i));
+        }
+        assertEquals(16, index.getCapacity());
+        assertTrue(index.getUsedSlots() <= 12);
+        for (int i = 0; i < 12; i++)
+        {
+            assertFalse(index.isDelivered("old-" + i));
+        }
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(index.isDelivered("new-" + i));
+        }
+    }
+
+    @Test
+    public void testInvalidFile() throws Exception
+    {
+        final File file = new File(folder.getRoot(), "invalid.idx");
+        Files.write(file.toPath(), new byte[100]);
+        try
+        {
+            new IdempotencyIndex(file, 60000);
+            fail("Should have thrown an exception");
+        }
+        catch (final IOException e)
+        {
+            // expected
+        }
+        assertNotEquals(IdempotencyIndex.hash("a"), IdempotencyIndex.hash("b"));
+    }
+
+    @Test
+    public void testEmailIsSentOnce() throws Exception
+    {
+        getMailServer();
+        open(60000, 16);
+        for (int i = 0; i < 2; i++)
+        {
+            final Email email = new SimpleEmail();
+            email.setHostName(strTestMailServer);
+            email.setSmtpPort(getMailServerPort());
+            email.setFrom(strTestMailFrom);
+            email.addTo(strTestMailTo);
+            email.setSubject("invoice");
+            email.setMsg("Test Msg Body");
+            email.setIdempotencyIndex(index);
+            email.setIdempotencyKey("invoice-1");
+            email.send();
+        }
+        assertEquals(1, fakeMailServer.getMessages().size());
+
+        // sending the same email again keeps its Message-ID
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setMsg("Test Msg Body");
+        email.setIdempotencyIndex(index);
+        final String messageId = email.send();
+        assertEquals(messageId, email.sendMimeMessage());
+        assertEquals(2, fakeMailServer.getMessages().size());
+    }
+
+    private Email createEmail(final int port) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(port);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("invoice");
+        email.setMsg("Test Msg Body");
+        email.setIdempotencyIndex(index);
+        email.setIdempotencyKey("invoice-1");
+        return email;
+    }
+
+    @Test
+    public void testFailedSendReleasesKey() throws Exception
+    {
+        open(60000, 16);
+        final int deadPort;
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            deadPort = socket.getLocalPort();
+        }
+        try
+        {
+            createEmail(deadPort).send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            // expected
+        }
+        assertFalse(index.isDelivered("invoice-1"));
+
+        getMailServer();
+        createEmail(getMailServerPort()).send();
+        assertTrue(index.isDelivered("invoice-1"));
+        assertEquals(1, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testIndexFailureIsReported() throws Exception
+    {
+        getMailServer();
+        open(60000, 16);
+        final Email email = createEmail(getMailServerPort());
+        index.close();
+        try
+        {
+            email.send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, fakeMailServer.getMessages().size());
+    }
+}
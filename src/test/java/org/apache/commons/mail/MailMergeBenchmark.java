@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import javax.activation.FileDataSource;
+
+import org.apache.commons.mail.transport.InMemoryMailTransport;
+
+/**
+ * Compares sending a personalised HTML email with an inline image to many
+ * recipients by building an {@link HtmlEmail} per recipient and by a
+ * {@link MailMerge}. Both write the messages to a discarding transport.
+ * This is not a unit test; run it with the test class path:
+ * <pre>
+ * java -cp target/classes:target/test-classes:... \
+ *     org.apache.commons.mail.MailMergeBenchmark [recipients]
+ * </pre>
+ */
+public final class MailMergeBenchmark
+{
+    private static final File IMAGE = new File("./src/test/resources/images/asf_logo_wide.gif");
+
+    private static final String HTML = "<html><body><img src=\"cid:logo\"><p>Dear %s,</p>"
+            + "<p>your order %s has shipped to %s.</p></body></html>";
+
+    private MailMergeBenchmark()
+    {
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        // warm up
+        runEmails(recipients / 4);
+        runMerge(recipients / 4);
+
+        report("HtmlEmail per recipient", recipients, runEmails(recipients));
+        report("MailMerge", recipients, runMerge(recipients));
+    }
+
+    private static long runEmails(final int recipients) throws Exception
+    {
+        final InMemoryMailTransport transport = new InMemoryMailTransport(false, true);
+        final long start = System.nanoTime();
+        for (int i = 0; i < recipients; i++)
+        {
+            final HtmlEmail email = new HtmlEmail();
+            email.setHostName("localhost");
+            email.setMailTransport(transport);
+            email.setFrom("shop@apache.org");
+            email.addTo("customer" + i + "@apache.org", "Customer " + i);
+            email.setSubject("Order " + i + " has shipped");
+            email.embed(new FileDataSource(IMAGE), "logo.gif", "logo");
+            email.setHtmlMsg(String.format(HTML, "Customer " + i, i, "Street " + i));
+            email.setTextMsg("Dear Customer " + i + ", your order " + i + " has shipped.");
+            email.send();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static long runMerge(final int recipients) throws Exception
+    {
+        final MergeTemplate template = new MergeTemplate()
+            .setFrom("shop@apache.org")
+            .setTo("${name} <${email}>")
+            .setSubject("Order ${order} has shipped")
+            .setTextMsg("Dear ${name}, your order ${order} has shipped.");
+        template.embed(new FileDataSource(IMAGE), "logo.gif", "logo");
+        template.setHtmlMsg(String.format(HTML, "${name}", "${order}", "${street}"));
+        final MailMerge merge = new MailMerge(template, new InMemoryMailTransport(false, true));
+
+        final long start = System.nanoTime();
+        final MergeReport report = merge.run(IntStream.range(0, recipients).mapToObj(i ->
+        {
+            final Map<String, Object> fields = new HashMap<>();
+            fields.put("name", "Customer " + i);
+            fields.put("email", "customer" + i + "@apache.org");
+            fields.put("order", i);
+            fields.put("street", "Street " + i);
+            return fields;
+        }));
+        if (report.getSentCount() != recipients)
+        {
+            throw new IllegalStateException(report.toString());
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void report(final String name, final int recipients, final long millis)
+    {
+        System.out.printf("%-25s %6d messages in %6d ms = %9.1f msg/s%n",
+                name, recipients, millis, recipients * 1000.0 / Math.max(1, millis));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import javax.activation.FileDataSource;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.transport.InMemoryMailTransport;
+import org.junit.Test;
+
+/**
+ * JUnit test case for MailMerge.
+ */
+public class MailMergeTest
+{
+    private static final File IMAGE = new File("./src/test/resources/images/asf_logo_wide.gif");
+
+    private static MergeTemplate template() throws EmailException
+    {
+        final MergeTemplate template = new MergeTemplate()
+            .setFrom("news@apache.org")
+            .setTo("${email}")
+            .setSubject("News for ${name}")
+            .setTextMsg("Dear ${name}");
+        final String cid = template.embed(new FileDataSource(IMAGE), "logo.gif");
+        return template.setHtmlMsg("<img src=\"cid:" + cid + "\"><p>Dear ${name}</p>");
+    }
+
+    private static Map<String, Object> record(final int i)
+    {
+        final Map<String, Object> record = new HashMap<>();
+        record.put("name", "Reader " + i);
+        record.put("email", "reader" + i + "@apache.org");
+        return record;
+    }
+
+    @Test
+    public void testSendsAllRecords() throws Exception
+    {
+        final InMemoryMailTransport transport = new InMemoryMailTransport(true, true);
+        final MailMerge merge = new MailMerge(template(), transport)
+            .setRenderThreads(4)
+            .setSendThreads(3)
+            .setQueueCapacity(8);
+        final MergeReport report = merge.run(IntStream.range(0, 500).mapToObj(MailMergeTest::record));
+
+        assertEquals(500, report.getSentCount());
+        assertEquals(0, report.getFailedCount());
+        final Set<String> recipients = new HashSet<>();
+        final Set<String> messageIds = new HashSet<>();
+        for (final MimeMessage message : transport.getMessages())
+        {
+            final String address = ((InternetAddress) message.getAllRecipients()[0]).getAddress();
+            recipients.add(address);
+            messageIds.add(message.getMessageID());
+            assertEquals("News for " + address.replace("reader", "Reader ").replace("@apache.org", ""),
+                    message.getSubject());
+        }
+        assertEquals(500, recipients.size());
+        assertEquals(500, messageIds.size());
+    }
+
+    @Test
+    public void testFailuresByRecord() throws Exception
+    {
+        final MailTransport transport = new MailTransport()
+        {
+            @Override
+            public String send(final MimeMessage message) throws MessagingException
+            {
+                final Address recipient = message.getAllRecipients()[0];
+                if ("reader7@apache.org".equals(((InternetAddress) recipient).getAddress()))
+                {
+                    throw new SendFailedException("550 mailbox unavailable");
+                }
+                return message.getMessageID();
+            }
+        };
+        final List<Map<String, Object>> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            records.add(record(i));
+        }
+        records.get(3).remove("name");
+
+        final MergeReport report = new MailMerge(template(), transport).run(records);
+
+        assertEquals(18, report.getSentCount());
+        assertEquals(2, report.getFailedCount());
+        assertTrue(report.getFailures().get(3L) instanceof EmailException);
+        assertTrue(report.getFailures().get(7L) instanceof SendFailedException);
+    }
+
+    @Test
+    public void testQueuesBoundRecordsInFlight() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final MailTransport blocked = message ->
+        {
+            try
+            {
+                release.await();
+            }
+            catch (final InterruptedException e)
+            {
+                throw new MessagingException("interrupted", e);
+            }
+            return message.getMessageID();
+        };
+        final AtomicInteger read = new AtomicInteger();
+        final Iterable<Map<String, Object>> records = () -> new Iterator<Map<String, Object>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return read.get() < 1000;
+            }
+
+            @Override
+            public Map<String, Object> next()
+            {
+                return record(read.getAndIncrement());
+            }
+        };
+        final MailMerge merge = new MailMerge(template(), blocked)
+            .setRenderThreads(2)
+            .setSendThreads(1)
+            .setQueueCapacity(4);
+        final AtomicReference<MergeReport> report = new AtomicReference<>();
+        final Thread runner = new Thread(() ->
+        {
+            try
+            {
+                report.set(merge.run(records));
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        runner.start();
+        Thread.sleep(500);
+
+        // two queues, a message per send thread and a record per render thread and the feeder
+        assertTrue("read " + read.get(), read.get() <= 4 + 4 + 1 + 2 + 1);
+        release.countDown();
+        runner.join(TimeUnit.SECONDS.toMillis(30));
+        assertEquals(1000, report.get().getSentCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQueueCapacity() throws Exception
+    {
+        new MailMerge(template(), new InMemoryMailTransport()).setQueueCapacity(0);
+    }
+}
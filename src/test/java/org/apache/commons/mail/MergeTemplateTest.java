@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.activation.FileDataSource;
+import javax.mail.IllegalWriteException;
+import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case for MergeTemplate.
+ */
+public class MergeTemplateTest
+{
+    private static final File IMAGE = new File("./src/test/resources/images/asf_logo_wide.gif");
+
+    private static final File PDF = new File("./src/test/resources/attachments/logo.pdf");
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private static Map<String, Object> fields(final String name, final String email)
+    {
+        final Map<String, Object> fields = new HashMap<>();
+        fields.put("name", name);
+        fields.put("email", email);
+        fields.put("order", 4711);
+        return fields;
+    }
+
+    private static MergeTemplate template() throws EmailException
+    {
+        return new MergeTemplate()
+            .setFrom("Shop <shop@apache.org>")
+            .setTo("${name} <${email}>")
+            .setSubject("Order ${order} for ${name}")
+            .setTextMsg("Dear ${name}, your order ${order} has shipped.")
+            .setHtmlMsg("<p>Dear <b>${name}</b>, your order ${order} has shipped.</p>")
+            .addHeader("X-Order", "${order}");
+    }
+
+    private MimeMessage write(final MimeMessage message) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static String structure(final Part part) throws Exception
+    {
+        final String type = new ContentType(part.getContentType()).getBaseType();
+        if (!part.isMimeType("multipart/*"))
+        {
+            return type;
+        }
+        final Multipart multipart = (Multipart) part.getContent();
+        final StringBuilder builder = new StringBuilder(type).append('[');
+        for (int i = 0; i < multipart.getCount(); i++)
+        {
+            builder.append(i > 0 ? "," : "").append(structure(multipart.getBodyPart(i)));
+        }
+        return builder.append(']').toString();
+    }
+
+    private static Part find(final Part part, final String type) throws Exception
+    {
+        if (part.isMimeType("multipart/*"))
+        {
+            final Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++)
+            {
+                final Part found = find(multipart.getBodyPart(i), type);
+                if (found != null)
+                {
+                    return found;
+                }
+            }
+            return null;
+        }
+        return part.isMimeType(type) ? part : null;
+    }
+
+    private static byte[] raw(final Part part) throws Exception
+    {
+        try (InputStream in = ((MimeBodyPart) part).getRawInputStream())
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testFieldsReplacePlaceholders() throws Exception
+    {
+        final MimeMessage message = write(template().render(fields("Tom & Jerry", "tom@apache.org")));
+
+        assertEquals("Order 4711 for Tom & Jerry", message.getSubject());
+        final InternetAddress to = (InternetAddress) message.getRecipients(Message.RecipientType.TO)[0];
+        assertEquals("tom@apache.org", to.getAddress());
+        assertEquals("Tom & Jerry", to.getPersonal());
+        assertEquals("shop@apache.org", ((InternetAddress) message.getFrom()[0]).getAddress());
+        assertEquals("4711", message.getHeader("X-Order", null));
+        assertTrue(message.getMessageID().endsWith("@apache.org>"));
+        assertEquals("Dear Tom & Jerry, your order 4711 has shipped.", find(message, "text/plain").getContent());
+        assertEquals("<p>Dear <b>Tom &amp; Jerry</b>, your order 4711 has shipped.</p>",
+                find(message, "text/html").getContent());
+    }
+
+    @Test
+    public void testStructureOfHtmlEmail() throws Exception
+    {
+        for (int variant = 0; variant < 8; variant++)
+        {
+            final boolean withText = (variant & 1) != 0;
+            final boolean withImage = (variant & 2) != 0;
+            final boolean withAttachment = (variant & 4) != 0;
+            final MergeTemplate template = new MergeTemplate().setFrom("shop@apache.org").setTo("${email}");
+            final HtmlEmail email = new HtmlEmail();
+            email.setHostName("localhost");
+            email.setFrom("shop@apache.org");
+            email.addTo("tom@apache.org");
+            if (withText)
+            {
+                template.setTextMsg("Dear ${name}");
+                email.setTextMsg("Dear Tom");
+            }
+            template.setHtmlMsg("<p>Dear ${name}</p>");
+            email.setHtmlMsg("<p>Dear Tom</p>");
+            if (withImage)
+            {
+                template.embed(new FileDataSource(IMAGE), "logo.gif", "logo");
+                email.embed(new FileDataSource(IMAGE), "logo.gif", "logo");
+            }
+            if (withAttachment)
+            {
+                template.attach(new FileDataSource(PDF), null, "catalog");
+                email.attach(new FileDataSource(PDF), "logo.pdf", "catalog");
+            }
+            email.buildMimeMessage();
+
+            assertEquals("variant " + variant, structure(write(email.getMimeMessage())),
+                    structure(write(template.render(fields("Tom", "tom@apache.org")))));
+        }
+    }
+
+    @Test
+    public void testStaticPartsAreShared() throws Exception
+    {
+        final MergeTemplate template = template();
+        final String cid = template.embed(new FileDataSource(IMAGE), "logo.gif");
+        template.attach(new FileDataSource(PDF), "catalog.pdf", "catalog");
+        final MimeMessage first = write(template.render(fields("Tom", "tom@apache.org")));
+        final MimeMessage second = write(template.render(fields("Jerry", "jerry@apache.org")));
+
+        assertNotEquals(first.getMessageID(), second.getMessageID());
+        final Part image = find(first, "image/gif");
+        assertEquals("<" + cid + ">", ((MimeBodyPart) image).getContentID());
+        assertArrayEquals(raw(image), raw(find(second, "image/gif")));
+        final Part attachment = find(second, new FileDataSource(PDF).getContentType());
+        assertEquals("catalog.pdf", attachment.getFileName());
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        attachment.getDataHandler().writeTo(content);
+        assertArrayEquals(Files.readAllBytes(PDF.toPath()), content.toByteArray());
+        assertTrue(((String) find(second, "text/html").getContent()).contains("Jerry"));
+    }
+
+    @Test
+    public void testSharedPartsReadInPlace() throws Exception
+    {
+        final MergeTemplate template = template();
+        template.embed(new FileDataSource(IMAGE), "logo.gif");
+        template.attach(new FileDataSource(PDF), "catalog.pdf", "catalog");
+        final MimeMessage message = template.render(fields("Tom", "tom@apache.org"));
+
+        // the parts are parsed from the rendered segments without writing the message first
+        assertEquals("multipart/mixed[multipart/related[multipart/alternative[text/plain,text/html],image/gif],"
+                + new ContentType(new FileDataSource(PDF).getContentType()).getBaseType() + "]", structure(message));
+        final Part attachment = find(message, new FileDataSource(PDF).getContentType());
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        attachment.getDataHandler().writeTo(content);
+        assertArrayEquals(Files.readAllBytes(PDF.toPath()), content.toByteArray());
+        assertArrayEquals(Files.readAllBytes(IMAGE.toPath()), readAll(find(message, "image/gif").getInputStream()));
+        assertTrue(message.getSize() > PDF.length());
+    }
+
+    private static byte[] readAll(final InputStream in) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test(expected = EmailException.class)
+    public void testMissingField() throws Exception
+    {
+        final Map<String, Object> fields = fields("Tom", "tom@apache.org");
+        fields.remove("order");
+        template().render(fields);
+    }
+
+    @Test(expected = EmailException.class)
+    public void testInvalidRecipient() throws Exception
+    {
+        template().render(fields("Tom", "not an address"));
+    }
+
+    @Test(expected = EmailException.class)
+    public void testMissingFrom() throws Exception
+    {
+        new MergeTemplate().setTo("${email}").setTextMsg("Dear ${name}").render(fields("Tom", "tom@apache.org"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosedPlaceholder()
+    {
+        new MergeTemplate().setSubject("Order ${order");
+    }
+
+    @Test(expected = IllegalWriteException.class)
+    public void testContentIsFrozen() throws Exception
+    {
+        template().render(fields("Tom", "tom@apache.org")).setText("changed");
+    }
+}
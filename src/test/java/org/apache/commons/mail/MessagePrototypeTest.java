@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.IllegalWriteException;
+import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.transport.InMemoryMailTransport;
+import org.junit.Test;
+
+/**
+ * JUnit test case for MessagePrototype.
+ */
+public class MessagePrototypeTest
+{
+    private static final File PDF = new File("./src/test/resources/attachments/logo.pdf");
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private static HtmlEmail alert() throws EmailException
+    {
+        final HtmlEmail email = new HtmlEmail();
+        email.setHostName("localhost");
+        email.setFrom("alerts@apache.org", "Alerts");
+        email.addTo("oncall@apache.org");
+        email.setSubject("disk full");
+        email.setTextMsg("The disk is full.");
+        email.setHtmlMsg("<html><body><b>The disk is full.</b></body></html>");
+        email.attach(PDF);
+        return email;
+    }
+
+    private static byte[] write(final MimeMessage message) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private MimeMessage parse(final byte[] bytes) throws Exception
+    {
+        return new MimeMessage(session, new ByteArrayInputStream(bytes));
+    }
+
+    private static byte[] body(final MimeMessage message) throws Exception
+    {
+        try (InputStream in = message.getRawInputStream())
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testCopiesChangeHeadersOnly() throws Exception
+    {
+        final MessagePrototype prototype = alert().toPrototype();
+        final MimeMessage first = prototype.newMessage();
+        first.setRecipients(Message.RecipientType.TO, "db@apache.org");
+        first.setSubject("[db] disk full");
+        first.setHeader("X-Team", "db");
+        first.saveChanges();
+        final MimeMessage second = prototype.newMessage();
+        second.setRecipients(Message.RecipientType.TO, "web@apache.org");
+        second.addRecipients(Message.RecipientType.CC, "lead@apache.org");
+        second.setSubject("[web] disk full");
+        second.saveChanges();
+
+        final MimeMessage written1 = parse(write(first));
+        final MimeMessage written2 = parse(write(second));
+        assertEquals("[db] disk full", written1.getSubject());
+        assertEquals("db@apache.org", ((InternetAddress) written1.getRecipients(Message.RecipientType.TO)[0]).getAddress());
+        assertEquals("db", written1.getHeader("X-Team", null));
+        assertEquals("[web] disk full", written2.getSubject());
+        assertEquals("web@apache.org", ((InternetAddress) written2.getRecipients(Message.RecipientType.TO)[0]).getAddress());
+        assertEquals("lead@apache.org", ((InternetAddress) written2.getRecipients(Message.RecipientType.CC)[0]).getAddress());
+        assertEquals(null, written2.getHeader("X-Team"));
+        assertEquals("alerts@apache.org", ((InternetAddress) written2.getFrom()[0]).getAddress());
+        assertNotNull(written1.getSentDate());
+
+        assertNotNull(written1.getMessageID());
+        assertTrue(written1.getMessageID().endsWith("@apache.org>"));
+        assertNotEquals(written1.getMessageID(), written2.getMessageID());
+        assertArrayEquals(body(written1), body(written2));
+        final Multipart multipart = (Multipart) written1.getContent();
+        assertEquals(2, multipart.getCount());
+        assertEquals("logo.pdf", multipart.getBodyPart(1).getFileName());
+    }
+
+    @Test
+    public void testPrototypeOfBuiltEmail() throws Exception
+    {
+        final HtmlEmail email = alert();
+        email.buildMimeMessage();
+        final MessagePrototype first = email.toPrototype();
+        final MessagePrototype second = email.toPrototype();
+
+        assertEquals(first.getSize(), second.getSize());
+        assertEquals("disk full", first.newMessage().getSubject());
+    }
+
+    @Test
+    public void testMessageIdSetOnCopyIsKept() throws Exception
+    {
+        final MimeMessage copy = alert().toPrototype().newMessage();
+        assertEquals(null, copy.getMessageID());
+        copy.setHeader("Message-ID", "<alert-42@apache.org>");
+        copy.saveChanges();
+
+        assertEquals("<alert-42@apache.org>", parse(write(copy)).getMessageID());
+    }
+
+    @Test(expected = IllegalWriteException.class)
+    public void testContentOfCopyIsImmutable() throws Exception
+    {
+        alert().toPrototype().newMessage().setText("changed");
+    }
+
+    @Test
+    public void testSendWithTransportOfEmail() throws Exception
+    {
+        final InMemoryMailTransport transport = new InMemoryMailTransport(true, true);
+        final HtmlEmail email = alert();
+        email.setMailTransport(transport);
+        final MessagePrototype prototype = email.toPrototype();
+        final MimeMessage copy = prototype.newMessage();
+        copy.setRecipients(Message.RecipientType.TO, "ops@apache.org");
+        final String messageId = prototype.send(copy);
+
+        assertEquals(1, transport.getSentCount());
+        final MimeMessage sent = transport.getMessages().get(0);
+        assertEquals(messageId, sent.getMessageID());
+        assertEquals("ops@apache.org", ((InternetAddress) sent.getAllRecipients()[0]).getAddress());
+    }
+
+    @Test
+    public void testConcurrentCopies() throws Exception
+    {
+        final MessagePrototype prototype = alert().toPrototype();
+        final byte[] expectedBody = body(parse(write(prototype.newMessage())));
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++)
+            {
+                final int team = i;
+                futures.add(executor.submit(() ->
+                {
+                    final MimeMessage copy = prototype.newMessage();
+                    copy.setRecipients(Message.RecipientType.TO, "team" + team + "@apache.org");
+                    copy.setSubject("[team" + team + "] disk full");
+                    copy.saveChanges();
+                    final MimeMessage written = parse(write(copy));
+                    assertEquals("[team" + team + "] disk full", written.getSubject());
+                    assertEquals("team" + team + "@apache.org",
+                            ((InternetAddress) written.getRecipients(Message.RecipientType.TO)[0]).getAddress());
+                    assertArrayEquals(expectedBody, body(written));
+                    return written.getMessageID();
+                }));
+            }
+            final Set<String> messageIds = new HashSet<>();
+            for (final Future<String> future : futures)
+            {
+                messageIds.add(future.get());
+            }
+            assertEquals(200, messageIds.size());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
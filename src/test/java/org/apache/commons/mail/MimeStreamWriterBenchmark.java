@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rendering an email with an attachment by {@link Email#writeTo(OutputStream)}
+ * and by building the MimeMessage and calling {@code MimeMessage.writeTo}.
+ * This is not a unit test; run it with the test class path:
+ * <pre>
+ * java -cp target/classes:target/test-classes:... \
+ *     org.apache.commons.mail.MimeStreamWriterBenchmark [attachment size in KB] [messages]
+ * </pre>
+ */
+public final class MimeStreamWriterBenchmark
+{
+    private MimeStreamWriterBenchmark()
+    {
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 1024) * 1024;
+        final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        final File attachment = File.createTempFile("benchmark", ".bin");
+        attachment.deleteOnExit();
+        Files.write(attachment.toPath(), data);
+
+        // warm up
+        run(attachment, messages / 4, true);
+        run(attachment, messages / 4, false);
+
+        report("MimeMessage.writeTo", size, run(attachment, messages, false));
+        report("Email.writeTo (MimeStreamWriter)", size, run(attachment, messages, true));
+    }
+
+    private static long[] run(final File attachment, final int messages, final boolean streaming) throws Exception
+    {
+        final CountingOutputStream out = new CountingOutputStream();
+        final long start = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+        {
+            final MultiPartEmail email = new MultiPartEmail();
+            email.setHostName("localhost");
+            email.setFrom("test_from@apache.org");
+            email.addTo("test_to@apache.org");
+            email.setSubject("Benchmark " + i);
+            email.setMsg("Benchmark message body");
+            email.attach(attachment);
+            if (streaming)
+            {
+                email.writeTo(out);
+            }
+            else
+            {
+                email.buildMimeMessage();
+                email.getMimeMessage().writeTo(out);
+            }
+        }
+        return new long[] {messages, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), out.count};
+    }
+
+    private static void report(final String name, final int size, final long[] result)
+    {
+        System.out.printf("%-35s %5d messages of %6d KB in %6d ms = %8.1f msg/s, %8.1f MB/s written%n",
+                name, result[0], size / 1024, result[1], result[0] * 1000.0 / Math.max(1, result[1]),
+                result[2] / 1048576.0 * 1000.0 / Math.max(1, result[1]));
+    }
+
+    private static final class CountingOutputStream extends OutputStream
+    {
+        private long count;
+
+        @Override
+        public void write(final int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataSource;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.resolver.DataSourceFileResolver;
+import org.apache.commons.mail.util.MimeMessageParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit test case for MimeStreamWriter and Email.writeTo().
+ */
+public class MimeStreamWriterTest
+{
+    private static final File IMAGE = new File("./src/test/resources/images/asf_logo_wide.gif");
+
+    private static final File PDF = new File("./src/test/resources/attachments/logo.pdf");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private static <T extends Email> T address(final T email) throws EmailException
+    {
+        email.setHostName("localhost");
+        email.setFrom("from@apache.org", "Sender");
+        email.addTo("to@apache.org");
+        email.setSubject("stream");
+        return email;
+    }
+
+    private MimeMessage write(final Email email) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        email.writeTo(out);
+        return new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static String structure(final Part part) throws Exception
+    {
+        final String type = new ContentType(part.getContentType()).getBaseType();
+        if (!part.isMimeType("multipart/*"))
+        {
+            return type;
+        }
+        final Multipart multipart = (Multipart) part.getContent();
+        final StringBuilder builder = new StringBuilder(type).append('[');
+        for (int i = 0; i < multipart.getCount(); i++)
+        {
+            builder.append(i > 0 ? "," : "").append(structure(multipart.getBodyPart(i)));
+        }
+        return builder.append(']').toString();
+    }
+
+    private static byte[] read(final DataSource dataSource) throws IOException
+    {
+        try (InputStream in = dataSource.getInputStream())
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testSimpleEmail() throws Exception
+    {
+        final Email email = address(new SimpleEmail());
+        email.addCc("cc@apache.org");
+        email.addBcc("bcc@apache.org");
+        email.addReplyTo("reply@apache.org");
+        email.addHeader("X-Mailer", "stream");
+        email.setSubject("Grüße");
+        email.setCharset(EmailConstants.UTF_8);
+        email.setMsg("Hello\nWorld");
+
+        final MimeMessage message = write(email);
+        assertEquals("Grüße", message.getSubject());
+        assertEquals("Sender <from@apache.org>", message.getFrom()[0].toString());
+        assertEquals("to@apache.org", message.getRecipients(MimeMessage.RecipientType.TO)[0].toString());
+        assertEquals("cc@apache.org", message.getRecipients(MimeMessage.RecipientType.CC)[0].toString());
+        assertNull(message.getHeader("Bcc"));
+        assertEquals("reply@apache.org", message.getReplyTo()[0].toString());
+        assertEquals("stream", message.getHeader("X-Mailer", null));
+        assertNotNull(message.getMessageID());
+        assertNotNull(message.getSentDate());
+        assertTrue(message.isMimeType("text/plain"));
+        assertEquals("7bit", message.getEncoding());
+        assertEquals("Hello\r\nWorld", message.getContent());
+    }
+
+    @Test
+    public void testMultiPartEmailStreamsAttachment() throws Exception
+    {
+        final byte[] data = new byte[300000];
+        new Random(42).nextBytes(data);
+        final File file = folder.newFile("data.bin");
+        Files.write(file.toPath(), data);
+
+        final MultiPartEmail email = address(new MultiPartEmail());
+        email.setMsg("See the attachment");
+        email.attach(file);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        email.writeTo(out);
+        for (final String line : new String(out.toByteArray(), StandardCharsets.US_ASCII).split("\r\n"))
+        {
+            assertTrue(line, line.length() <= 76);
+        }
+
+        final MimeMessageParser parser = new MimeMessageParser(
+                new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()))).parse();
+        assertEquals("See the attachment", parser.getPlainContent());
+        assertEquals(1, parser.getAttachmentList().size());
+        final DataSource attachment = parser.findAttachmentByName("data.bin");
+        assertArrayEquals(data, read(attachment));
+    }
+
+    @Test
+    public void testHtmlEmailHasTheStructureOfTheBuiltMessage() throws Exception
+    {
+        for (int variant = 0; variant < 16; variant++)
+        {
+            final HtmlEmail streamed = createHtmlEmail(variant);
+            final HtmlEmail built = createHtmlEmail(variant);
+            built.buildMimeMessage();
+            built.getMimeMessage().saveChanges();
+            assertEquals("variant " + variant, structure(built.getMimeMessage()), structure(write(streamed)));
+        }
+    }
+
+    private static HtmlEmail createHtmlEmail(final int variant) throws Exception
+    {
+        final HtmlEmail email = address(new HtmlEmail());
+        if ((variant & 1) != 0)
+        {
+            email.setTextMsg("Text body");
+        }
+        if ((variant & 2) != 0 || (variant & 4) != 0)
+        {
+            String html = "<html><body>HTML body";
+            if ((variant & 4) != 0)
+            {
+                html += "<img src=\"cid:" + email.embed(IMAGE) + "\">";
+            }
+            email.setHtmlMsg(html + "</body></html>");
+        }
+        if ((variant & 8) != 0)
+        {
+            email.attach(PDF);
+        }
+        if (variant == 0)
+        {
+            email.setTextMsg("Text body only");
+        }
+        return email;
+    }
+
+    @Test
+    public void testHtmlEmailContent() throws Exception
+    {
+        final HtmlEmail email = address(new HtmlEmail());
+        final String cid = email.embed(IMAGE);
+        email.setHtmlMsg("<html><body><img src=\"cid:" + cid + "\"></body></html>");
+        email.setTextMsg("Text body");
+        email.attach(PDF);
+
+        final MimeMessageParser parser = new MimeMessageParser(write(email)).parse();
+        assertEquals("Text body", parser.getPlainContent());
+        assertTrue(parser.getHtmlContent().contains("cid:" + cid));
+        assertEquals(2, parser.getAttachmentList().size());
+        assertArrayEquals(Files.readAllBytes(IMAGE.toPath()), read(parser.findAttachmentByCid(cid)));
+        assertArrayEquals(Files.readAllBytes(PDF.toPath()), read(parser.findAttachmentByName("logo.pdf")));
+    }
+
+    @Test
+    public void testImageHtmlEmailEmbedsResolvedImages() throws Exception
+    {
+        final ImageHtmlEmail email = address(new ImageHtmlEmail());
+        email.setDataSourceResolver(new DataSourceFileResolver(new File("./src/test/resources")));
+        email.setHtmlMsg("<html><body><img src=\"images/asf_logo_wide.gif\"></body></html>");
+
+        final MimeMessage message = write(email);
+        assertEquals("multipart/mixed[multipart/related[text/html,image/gif]]", structure(message));
+        final MimeMessageParser parser = new MimeMessageParser(message).parse();
+        assertTrue(parser.getHtmlContent(), parser.getHtmlContent().contains("src=\"cid:"));
+    }
+
+    @Test
+    public void testWriteToChannel() throws Exception
+    {
+        final MultiPartEmail email = address(new MultiPartEmail());
+        email.setMsg("See the attachment");
+        email.attach(PDF);
+        final File file = folder.newFile("message.eml");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            email.writeTo(channel);
+        }
+
+        final MimeMessageParser parser = new MimeMessageParser(
+                new MimeMessage(session, new ByteArrayInputStream(Files.readAllBytes(file.toPath())))).parse();
+        assertEquals("See the attachment", parser.getPlainContent());
+        assertArrayEquals(Files.readAllBytes(PDF.toPath()), read(parser.findAttachmentByName("logo.pdf")));
+    }
+
+    @Test
+    public void testBuiltMessageIsWritten() throws Exception
+    {
+        final Email email = address(new SimpleEmail());
+        email.addBcc("bcc@apache.org");
+        email.setMsg("built");
+        email.buildMimeMessage();
+
+        final MimeMessage message = write(email);
+        assertEquals(email.getMimeMessage().getMessageID(), message.getMessageID());
+        assertNull(message.getHeader("Bcc"));
+        assertEquals("built", message.getContent());
+    }
+
+    @Test
+    public void testMissingFromIsRejected() throws Exception
+    {
+        final Email email = new SimpleEmail();
+        email.addTo("to@apache.org");
+        email.setMsg("no sender");
+        try
+        {
+            email.writeTo(new ByteArrayOutputStream());
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTextEncodings() throws Exception
+    {
+        final StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1200; i++)
+        {
+            longLine.append((char) ('a' + i % 26));
+        }
+        assertText("plain ascii\r\nsecond line", "us-ascii", "7bit");
+        assertText(longLine + "\r\n" + longLine, "us-ascii", "quoted-printable");
+        assertText("trailing space \r\ntab\t\r\na=b, äöü and more ascii text", "utf-8", "quoted-printable");
+        assertText("äöüßäöüß", "utf-8", "base64");
+        assertText("привет", "koi8-r", "base64");
+    }
+
+    private static void assertText(final String text, final String charset, final String encoding) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MimeStreamWriter writer = new MimeStreamWriter(out);
+        writer.writeText(text, "plain", charset);
+        writer.flush();
+        for (final String line : new String(out.toByteArray(), StandardCharsets.US_ASCII).split("\r\n"))
+        {
+            assertTrue(line, line.length() <= 998);
+        }
+
+        final MimeBodyPart part = new MimeBodyPart(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(encoding, part.getEncoding());
+        assertEquals(text, part.getContent());
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Authenticator;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.naming.Context;
+import javax.naming.spi.InitialContextFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit test case for SessionRegistry.
+ */
+public class SessionRegistryTest extends AbstractEmailTest
+{
+    private static final AtomicInteger LOOKUPS = new AtomicInteger();
+
+    private static final Session JNDI_SESSION = Session.getInstance(new Properties());
+
+    private final SessionRegistry registry = new SessionRegistry();
+
+    /**
+     * A JNDI context factory counting the lookups.
+     */
+    public static class CountingContextFactory implements InitialContextFactory
+    {
+        @Override
+        public Context getInitialContext(final Hashtable<?, ?> environment)
+        {
+            return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Context.class},
+                (proxy, method, args) -> {
+                    if ("lookup".equals(method.getName()))
+                    {
+                        LOOKUPS.incrementAndGet();
+                        return JNDI_SESSION;
+                    }
+                    return null;
+                });
+        }
+    }
+
+    @Before
+    public void setUpRegistry()
+    {
+        Email.setSessionRegistry(registry);
+    }
+
+    @After
+    public void tearDownRegistry()
+    {
+        Email.setSessionRegistry(null);
+    }
+
+    private Email createEmail(final String host)
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(host);
+        return email;
+    }
+
+    @Test
+    public void testSessionSharedBySettings() throws Exception
+    {
+        final Email first = createEmail("smtp.example.com");
+        first.setAuthentication("user", "password");
+        final Email second = createEmail("smtp.example.com");
+        second.setAuthentication("user", "password");
+
+        final Session session = first.getMailSession();
+        assertSame(session, second.getMailSession());
+        assertEquals("smtp.example.com", session.getProperty(EmailConstants.MAIL_HOST));
+        assertEquals("true", session.getProperty(EmailConstants.MAIL_SMTP_AUTH));
+        assertEquals(1, registry.size());
+
+        final Email otherPassword = createEmail("smtp.example.com");
+        otherPassword.setAuthentication("user", "other");
+        assertNotSame(session, otherPassword.getMailSession());
+
+        final Email otherPort = createEmail("smtp.example.com");
+        otherPort.setSmtpPort(2525);
+        assertNotSame(session, otherPort.getMailSession());
+
+        final Email ssl = createEmail("smtp.example.com");
+        ssl.setAuthentication("user", "password");
+        ssl.setSSLOnConnect(true);
+        assertNotSame(session, ssl.getMailSession());
+        assertEquals("465", ssl.getMailSession().getProperty(EmailConstants.MAIL_PORT));
+        assertEquals(4, registry.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSessionDropped() throws Exception
+    {
+        final SessionRegistry bounded = new SessionRegistry(2);
+        Email.setSessionRegistry(bounded);
+        final Session first = createEmail("first.example.com").getMailSession();
+        final Session second = createEmail("second.example.com").getMailSession();
+        assertSame(first, createEmail("first.example.com").getMailSession());
+
+        // e.g. VERP bounce addresses, one per recipient
+        final Email verp = createEmail("first.example.com");
+        verp.setBounceAddress("bounces+tom=apache.org@example.com");
+        verp.getMailSession();
+        assertEquals(2, bounded.size());
+        assertSame(first, createEmail("first.example.com").getMailSession());
+        assertNotSame(second, createEmail("second.example.com").getMailSession());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxSessions()
+    {
+        new SessionRegistry(0);
+    }
+
+    @Test
+    public void testCustomAuthenticatorNotShared() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            final Email email = createEmail("smtp.example.com");
+            email.setAuthenticator(new Authenticator()
+            {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication()
+                {
+                    return new PasswordAuthentication("user", "password");
+                }
+            });
+            final Session session = email.getMailSession();
+            assertEquals("true", session.getProperty(EmailConstants.MAIL_SMTP_AUTH));
+            assertTrue(session.getProperties().containsKey("java.version"));
+        }
+
+        // a custom authenticator can only be compared by identity, caching it would grow the registry
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testSnapshotProperties() throws Exception
+    {
+        final Session session = createEmail("smtp.example.com").getMailSession();
+
+        // copied instead of chained to the system properties
+        assertTrue(session.getProperties().containsKey("java.version"));
+        assertEquals(System.getProperty("java.version"), session.getProperty("java.version"));
+
+        Email.setSessionRegistry(null);
+        final Session unshared = createEmail("smtp.example.com").getMailSession();
+        assertFalse(unshared.getProperties().containsKey("java.version"));
+        assertNotSame(session, unshared);
+    }
+
+    @Test
+    public void testClear() throws Exception
+    {
+        final Session session = createEmail("smtp.example.com").getMailSession();
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertNotSame(session, createEmail("smtp.example.com").getMailSession());
+    }
+
+    @Test
+    public void testSendWithSharedSession() throws Exception
+    {
+        getMailServer();
+        for (int i = 0; i < 2; i++)
+        {
+            final Email email = createEmail(strTestMailServer);
+            email.setSmtpPort(getMailServerPort());
+            email.setFrom(strTestMailFrom);
+            email.addTo(strTestMailTo);
+            email.setSubject("shared session");
+            email.setMsg("Test Msg Body");
+            email.send();
+        }
+        assertEquals(1, registry.size());
+        assertEquals(2, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testJndiSessionCached() throws Exception
+    {
+        final String factory = System.getProperty(Context.INITIAL_CONTEXT_FACTORY);
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, CountingContextFactory.class.getName());
+        try
+        {
+            LOOKUPS.set(0);
+            final Email first = new SimpleEmail();
+            first.setMailSessionFromJNDI("java:comp/env/mail/Session");
+            final Email second = new SimpleEmail();
+            second.setMailSessionFromJNDI("java:comp/env/mail/Session");
+
+            assertSame(JNDI_SESSION, first.getMailSession());
+            assertSame(JNDI_SESSION, second.getMailSession());
+            assertEquals(1, LOOKUPS.get());
+            assertSame(JNDI_SESSION, registry.lookup("java:comp/env/mail/Session"));
+            assertEquals(1, LOOKUPS.get());
+        }
+        finally
+        {
+            if (factory == null)
+            {
+                System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+            }
+            else
+            {
+                System.setProperty(Context.INITIAL_CONTEXT_FACTORY, factory);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * JUnit test case for AdaptiveConcurrencyMailTransport.
+ */
+public class AdaptiveConcurrencyMailTransportTest extends AbstractEmailTest
+{
+    private Email createEmail(final String host, final MailTransport transport) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(host);
+        email.setSmtpPort(2525);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("adaptive concurrency");
+        email.setMsg("Test Msg Body");
+        email.setMailTransport(transport);
+        return email;
+    }
+
+    @Test
+    public void testDeferralsDecreaseTheLimitOfTheRelay() throws Exception
+    {
+        final InMemoryMailTransport memory = new InMemoryMailTransport();
+        final AdaptiveConcurrencyMailTransport transport = new AdaptiveConcurrencyMailTransport(message -> {
+            if ("busy.example.com".equals(message.getSession().getProperty("mail.smtp.host")))
+            {
+                throw new SMTPSendFailedException("DATA", 421, "421 too many connections", null, null, null, null);
+            }
+            return memory.send(message);
+        }, () -> new ConcurrencyLimit(8, 1, 16));
+
+        createEmail("Healthy.example.com", transport).send();
+        try
+        {
+            createEmail("busy.example.com", transport).send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            // expected
+        }
+
+        final ConcurrencyLimit busy = transport.getLimit("busy.example.com", 2525);
+        assertEquals(4, busy.getLimit());
+        assertEquals(1, busy.getDeferrals());
+        assertEquals(0, busy.getInFlight());
+        final ConcurrencyLimit healthy = transport.getLimit("healthy.example.com", 2525);
+        assertEquals(8, healthy.getLimit());
+        assertEquals(1, healthy.getSuccesses());
+        assertEquals(2, transport.getLimits().size());
+        assertNull(transport.getLimit("other.example.com", 2525));
+    }
+
+    @Test
+    public void testRejectionsKeepTheLimit() throws Exception
+    {
+        final AdaptiveConcurrencyMailTransport transport = new AdaptiveConcurrencyMailTransport(message -> {
+            throw new SMTPSendFailedException("DATA", 554, "554 rejected", null, null, null, null);
+        });
+        try
+        {
+            createEmail("relay.example.com", transport).send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            // expected
+        }
+
+        final ConcurrencyLimit limit = transport.getLimit("relay.example.com", 2525);
+        assertEquals(ConcurrencyLimit.DEFAULT_INITIAL_LIMIT, limit.getLimit());
+        assertEquals(0, limit.getDeferrals());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void testConcurrentSendsStayWithinTheLimit() throws Exception
+    {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final InMemoryMailTransport memory = new InMemoryMailTransport();
+        final AdaptiveConcurrencyMailTransport transport = new AdaptiveConcurrencyMailTransport(message -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try
+            {
+                Thread.sleep(5);
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            active.decrementAndGet();
+            return memory.send(message);
+        }, () -> new ConcurrencyLimit(2, 1, 3));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            final List<Future<String>> sends = new ArrayList<>();
+            for (int i = 0; i < 40; i++)
+            {
+                final Email email = createEmail("relay.example.com", transport);
+                sends.add(executor.submit(email::send));
+            }
+            for (final Future<String> send : sends)
+            {
+                send.get(10, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(40, memory.getSentCount());
+        assertTrue("max active " + maxActive.get(), maxActive.get() <= 3);
+        final ConcurrencyLimit limit = transport.getLimit("relay.example.com", 2525);
+        assertEquals(0, limit.getInFlight());
+        assertEquals(40, limit.getSuccesses());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SendResult;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+/**
+ * JUnit test case for BatchSender.
+ */
+public class BatchSenderTest extends AbstractEmailTest
+{
+    private static final String REJECTED_TO = "rejected@apache.org";
+
+    @Before
+    public void setUpBatchSenderTest()
+    {
+        // reject a single recipient to provoke a failure in the middle of a batch
+        fakeMailServer = new Wiser()
+        {
+            @Override
+            public boolean accept(final String from, final String recipient)
+            {
+                return !REJECTED_TO.equals(recipient);
+            }
+        };
+        fakeMailServer.setPort(getMailServerPort());
+        fakeMailServer.start();
+    }
+
+    private Email createEmail(final String to, final String subject) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        if (to != null)
+        {
+            email.addTo(to);
+        }
+        email.setSubject(subject);
+        email.setMsg("Test Msg Body");
+        return email;
+    }
+
+    private List<Email> createBatch() throws EmailException
+    {
+        final List<Email> emails = new ArrayList<>();
+        emails.add(createEmail(strTestMailTo, "first"));
+        emails.add(createEmail(REJECTED_TO, "rejected"));
+        emails.add(createEmail(null, "no recipients"));
+        emails.add(createEmail(strTestMailTo, "last"));
+        return emails;
+    }
+
+    private void validateResults(final List<SendResult> results) throws Exception
+    {
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertNotNull(results.get(0).getMessageId());
+        assertFalse(results.get(1).isSuccess());
+        assertNotNull(results.get(1).getException());
+        assertFalse(results.get(2).isSuccess());
+        assertTrue(results.get(3).isSuccess());
+
+        assertEquals(2, fakeMailServer.getMessages().size());
+        assertEquals("first", fakeMailServer.getMessages().get(0).getMimeMessage().getSubject());
+        assertEquals("last", fakeMailServer.getMessages().get(1).getMimeMessage().getSubject());
+        assertEquals(results.get(3).getMessageId(), fakeMailServer.getMessages().get(1).getMimeMessage().getMessageID());
+    }
+
+    @Test
+    public void testSendAll() throws Exception
+    {
+        validateResults(new BatchSender().sendAll(createBatch()));
+    }
+
+    @Test
+    public void testSendAllWithTransportPool() throws Exception
+    {
+        final TransportPool pool = new TransportPool();
+        try
+        {
+            validateResults(new BatchSender(pool).sendAll(createBatch()));
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testSendAllConnectionFailure() throws Exception
+    {
+        final List<Email> emails = new ArrayList<>();
+        emails.add(createEmail(strTestMailTo, "first"));
+        emails.add(createEmail(strTestMailTo, "second"));
+        fakeMailServer.stop();
+
+        final List<SendResult> results = new BatchSender().sendAll(emails);
+        assertFalse(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+
+/**
+ * JUnit test case for ChunkingMailTransport.
+ */
+public class ChunkingMailTransportTest extends AbstractEmailTest
+{
+    private TransportPool pool;
+
+    private SendExecutor executor;
+
+    @Before
+    public void setUpChunking() throws Exception
+    {
+        pool = new TransportPool();
+        executor = new SendExecutor(4, 100);
+
+        // rejects recipients whose address starts with "reject"
+        getMailServer();
+        fakeMailServer.stop();
+        fakeMailServer = new Wiser()
+        {
+            @Override
+            public boolean accept(final String from, final String recipient)
+            {
+                return !recipient.startsWith("reject");
+            }
+        };
+        fakeMailServer.setPort(getMailServerPort());
+        fakeMailServer.start();
+    }
+
+    @After
+    public void tearDownChunking()
+    {
+        pool.close();
+        executor.shutdown(Duration.ofSeconds(5));
+    }
+
+    private Email createEmail(final int recipients, final boolean sendPartial) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setSendPartial(sendPartial);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        for (int i = 1; i < recipients; i++)
+        {
+            email.addBcc("bcc" + i + "@apache.org");
+        }
+        email.setSubject("chunked");
+        email.setMsg("Test Msg Body");
+        return email;
+    }
+
+    /** Removes the Received header the server adds to each transaction. */
+    private static String withoutReceivedHeader(final String data)
+    {
+        final StringBuilder result = new StringBuilder();
+        boolean received = false;
+        for (final String line : data.split("\r\n", -1))
+        {
+            received = line.startsWith("Received:") || received && (line.startsWith(" ") || line.startsWith("\t"));
+            if (!received)
+            {
+                result.append(line).append("\r\n");
+            }
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void testSplitRecipients() throws Exception
+    {
+        final ChunkingMailTransport transport =
+                new ChunkingMailTransport(new EnvelopeSender(pool, executor), 100);
+        final Email email = createEmail(250, false);
+        email.setMailTransport(transport);
+        email.buildMimeMessage();
+        email.getMimeMessage().saveChanges();
+
+        final DeliveryReport report = transport.sendWithReport(email.getMimeMessage());
+
+        assertTrue(report.isSuccess());
+        assertEquals(3, report.getResults().size());
+        assertEquals(100, report.getResults().get(0).getEnvelope().getRecipients().size());
+        assertEquals(50, report.getResults().get(2).getEnvelope().getRecipients().size());
+        assertEquals(250, report.getDelivered().size());
+        assertEquals(email.getMimeMessage().getMessageID(), report.getMessageId());
+
+        // one delivery per recipient, all with the same content and no Bcc header
+        final List<WiserMessage> messages = fakeMailServer.getMessages();
+        assertEquals(250, messages.size());
+        final Set<String> contents = new HashSet<>();
+        for (final WiserMessage message : messages)
+        {
+            contents.add(withoutReceivedHeader(new String(message.getData(), "US-ASCII")));
+            assertNull(message.getMimeMessage().getHeader("Bcc"));
+        }
+        assertEquals(1, contents.size());
+    }
+
+    @Test
+    public void testRejectedRecipients() throws Exception
+    {
+        final ChunkingMailTransport transport = new ChunkingMailTransport(new EnvelopeSender(pool), 2);
+        final Email email = createEmail(3, true);
+        email.addCc("reject@apache.org");
+        email.setMailTransport(transport);
+        email.buildMimeMessage();
+        email.getMimeMessage().saveChanges();
+
+        final DeliveryReport report = transport.sendWithReport(email.getMimeMessage());
+
+        assertFalse(report.isSuccess());
+        assertEquals(2, report.getResults().size());
+        assertEquals(3, report.getDelivered().size());
+        assertEquals(1, report.getFailed().size());
+        final Address rejected = new InternetAddress("reject@apache.org");
+        assertTrue(report.getFailed().get(rejected) instanceof SMTPAddressFailedException);
+        assertEquals(3, fakeMailServer.getMessages().size());
+
+        final Email resent = createEmail(3, true);
+        resent.addCc("reject@apache.org");
+        resent.setMailTransport(transport);
+        try
+        {
+            resent.send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            final SendFailedException cause = (SendFailedException) e.getCause();
+            assertEquals(1, cause.getInvalidAddresses().length);
+            assertEquals(3, cause.getValidSentAddresses().length);
+        }
+    }
+
+    @Test
+    public void testSendWithoutPool() throws Exception
+    {
+        final Email email = createEmail(5, false);
+        email.setMailTransport(new ChunkingMailTransport(new EnvelopeSender(), 2));
+        email.send();
+        assertEquals(5, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testSerializedMessage() throws Exception
+    {
+        final Email email = createEmail(2, false);
+        email.buildMimeMessage();
+        email.getMimeMessage().saveChanges();
+
+        final SerializedMessage serialized = SerializedMessage.of(email.getMimeMessage());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialized.writeTo(out);
+        final String content = out.toString("US-ASCII");
+
+        assertFalse(content.contains("Bcc:"));
+        assertEquals(serialized.getSize(), out.size());
+        assertSame(email.getMimeMessage().getSession(), serialized.getSession());
+        assertEquals(email.getMimeMessage().getMessageID(),
+                serialized.createMimeMessage("bounce@apache.org").getMessageID());
+    }
+
+    @Test
+    public void testSplitEnvelope() throws Exception
+    {
+        final List<Address> recipients = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            recipients.add(new InternetAddress("to" + i + "@apache.org"));
+        }
+        final Envelope envelope = new Envelope("bounce@apache.org", recipients);
+
+        assertEquals(1, envelope.split(5).size());
+        assertSame(envelope, envelope.split(5).get(0));
+        final List<Envelope> envelopes = envelope.split(2);
+        assertEquals(3, envelopes.size());
+        assertEquals(1, envelopes.get(2).getRecipients().size());
+        assertEquals("bounce@apache.org", envelopes.get(2).getFrom());
+        assertEquals(recipients.get(4), envelopes.get(2).getRecipients().get(0));
+    }
+}
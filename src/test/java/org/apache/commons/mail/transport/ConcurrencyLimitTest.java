@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case for ConcurrencyLimit.
+ */
+public class ConcurrencyLimitTest
+{
+    /**
+     * Runs rounds of sends using the whole limit.
+     */
+    private static void succeed(final ConcurrencyLimit limit, final int rounds, final long latencyMillis)
+    {
+        for (int round = 0; round < rounds; round++)
+        {
+            final int permits = limit.getLimit();
+            for (int i = 0; i < permits; i++)
+            {
+                assertTrue(limit.tryAcquire());
+            }
+            for (int i = 0; i < permits; i++)
+            {
+                limit.succeeded(latencyMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Test
+    public void testLimitsConcurrentSends()
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(2, 1, 10);
+        assertTrue(limit.tryAcquire());
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        assertEquals(2, limit.getInFlight());
+
+        limit.finished();
+        assertEquals(2, limit.getLimit());
+        assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void testAdditiveIncrease()
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(2, 1, 10);
+        // one more per limit's worth of sends using at least half the limit
+        succeed(limit, 2, 10);
+        assertEquals(4, limit.getLimit());
+        succeed(limit, 20, 10);
+        assertEquals(10, limit.getLimit());
+        assertEquals(1.0, limit.getSuccessRate(), 0.0);
+        assertEquals(10.0, limit.getLatencyMillis(), 0.001);
+    }
+
+    @Test
+    public void testUnusedLimitIsNotIncreased()
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(8, 1, 64);
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(limit.tryAcquire());
+            limit.succeeded(10, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseOnDeferral()
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(16, 2, 64);
+        assertTrue(limit.tryAcquire());
+        limit.deferred();
+        assertEquals(8, limit.getLimit());
+        assertTrue(limit.tryAcquire());
+        limit.deferred();
+        assertEquals(4, limit.getLimit());
+        for (int i = 0; i < 5; i++)
+        {
+            assertTrue(limit.tryAcquire());
+            limit.deferred();
+        }
+        assertEquals(2, limit.getLimit());
+        assertEquals(7, limit.getDeferrals());
+        assertTrue(limit.getSuccessRate() < 0.5);
+    }
+
+    @Test
+    public void testDeferralsOfOneRoundDecreaseOnce()
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(16, 1, 64);
+        succeed(limit, 1, 60000);
+        final int before = limit.getLimit();
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(limit.tryAcquire());
+        }
+        for (int i = 0; i < 4; i++)
+        {
+            limit.deferred();
+        }
+        assertEquals(before / 2, limit.getLimit());
+        assertEquals(1, limit.getDecreases());
+    }
+
+    @Test
+    public void testRisingLatencyDecreases()
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(8, 1, 64);
+        succeed(limit, 2, 1);
+        final int before = limit.getLimit();
+        assertEquals(0, limit.getDecreases());
+
+        assertTrue(limit.tryAcquire());
+        limit.succeeded(10, TimeUnit.MILLISECONDS);
+        assertTrue(limit.getLatencyMillis() > 2 * limit.getBaselineLatencyMillis());
+        assertEquals(1, limit.getDecreases());
+        assertEquals(before / 2, limit.getLimit());
+    }
+
+    @Test
+    public void testLargeMessageIsNotCongestion()
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(8, 1, 64);
+        succeed(limit, 2, 1);
+        final int before = limit.getLimit();
+
+        // a 10 MB message takes far longer than the small ones, but it is the first of its size
+        assertTrue(limit.tryAcquire());
+        limit.succeeded(500, TimeUnit.MILLISECONDS, 10 * 1024 * 1024);
+        assertEquals(0, limit.getDecreases());
+        assertEquals(before, limit.getLimit());
+        assertEquals(1.0, limit.getBaselineLatencyMillis(), 0.0);
+
+        // a second one that is much slower than the first is congestion
+        assertTrue(limit.tryAcquire());
+        limit.succeeded(5000, TimeUnit.MILLISECONDS, 12 * 1024 * 1024);
+        assertTrue(limit.getLatencyRatio() > limit.getLatencyTolerance());
+        assertEquals(1, limit.getDecreases());
+    }
+
+    @Test
+    public void testWaitsForPermit() throws Exception
+    {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(1, 1, 1);
+        assertTrue(limit.tryAcquire(1, TimeUnit.SECONDS));
+        assertFalse(limit.tryAcquire(50, TimeUnit.MILLISECONDS));
+
+        final Thread releaser = new Thread(() -> {
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+            limit.finished();
+        });
+        releaser.start();
+        assertTrue(limit.tryAcquire(10, TimeUnit.SECONDS));
+        releaser.join();
+        assertEquals(1, limit.getInFlight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnorderedLimits()
+    {
+        new ConcurrencyLimit(8, 1, 4);
+    }
+}
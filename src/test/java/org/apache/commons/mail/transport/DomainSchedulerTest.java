@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit test case for DomainScheduler.
+ */
+public class DomainSchedulerTest extends AbstractEmailTest
+{
+    private SendExecutor executor;
+
+    private DomainScheduler scheduler;
+
+    /** The envelopes sent in order of completion. */
+    private final List<String> completed = Collections.synchronizedList(new ArrayList<>());
+
+    /** The maximum number of concurrent envelopes per domain. */
+    private final ConcurrentMap<String, Integer> maxActive = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicInteger> active = new ConcurrentHashMap<>();
+
+    /**
+     * Records the envelopes instead of sending them.
+     */
+    private final class RecordingSender extends EnvelopeSender
+    {
+        private final long delayMillis;
+
+        /** Holds back the envelopes until opened, may be null. */
+        private final CountDownLatch gate;
+
+        RecordingSender(final long delayMillis)
+        {
+            this(delayMillis, null);
+        }
+
+        RecordingSender(final long delayMillis, final CountDownLatch gate)
+        {
+            this.delayMillis = delayMillis;
+            this.gate = gate;
+        }
+
+        @Override
+        public EnvelopeResult send(final SerializedMessage message, final Envelope envelope)
+        {
+            final String domain = DomainScheduler.getDomain(envelope.getRecipients().get(0));
+            final int current = active.computeIfAbsent(domain, d -> new AtomicInteger()).incrementAndGet();
+            maxActive.merge(domain, current, Math::max);
+            try
+            {
+                if (gate != null)
+                {
+                    gate.await();
+                }
+                Thread.sleep(delayMillis);
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            active.get(domain).decrementAndGet();
+            completed.add(domain);
+            return EnvelopeResult.success(envelope, message.getMessageId());
+        }
+    }
+
+    @Before
+    public void setUpScheduler()
+    {
+        executor = new SendExecutor(8, 1000);
+    }
+
+    @After
+    public void tearDownScheduler()
+    {
+        if (scheduler != null)
+        {
+            scheduler.close();
+        }
+        executor.shutdown(Duration.ofSeconds(5));
+    }
+
+    private MimeMessage createMessage(final String... recipients) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        for (final String recipient : recipients)
+        {
+            email.addBcc(recipient);
+        }
+        email.setSubject("domains");
+        email.setMsg("Test Msg Body");
+        email.buildMimeMessage();
+        return email.getMimeMessage();
+    }
+
+    @Test
+    public void testEnvelopePerDomain() throws Exception
+    {
+        getMailServer();
+        scheduler = new DomainScheduler(new EnvelopeSender(), executor);
+        final MimeMessage message = createMessage("a1@a.org", "b@b.org", "a2@A.org", "c@c.org");
+        message.saveChanges();
+
+        final DeliveryReport report = scheduler.submit(message).get(10, TimeUnit.SECONDS);
+
+        assertTrue(report.isSuccess());
+        assertEquals(3, report.getResults().size());
+        assertEquals(2, report.getResults().get(0).getEnvelope().getRecipients().size());
+        assertEquals(4, report.getDelivered().size());
+        assertEquals(4, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testSendEmail() throws Exception
+    {
+        getMailServer();
+        scheduler = new DomainScheduler(new EnvelopeSender(), executor);
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo("to@a.org");
+        email.addCc("cc@b.org");
+        email.setSubject("domains");
+        email.setMsg("Test Msg Body");
+        email.setMailTransport(scheduler);
+        email.send();
+
+        assertEquals(2, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testDomainOfIdnAddress() throws Exception
+    {
+        assertEquals("xn--bcher-kva.example", DomainScheduler.getDomain(new InternetAddress("user@bücher.example")));
+        assertEquals("example.org", DomainScheduler.getDomain(new InternetAddress("user@Example.ORG")));
+    }
+
+    @Test
+    public void testConcurrencyCap() throws Exception
+    {
+        scheduler = new DomainScheduler(new RecordingSender(20), executor)
+            .setDomainLimit("big.org", 2, 0, 1);
+
+        final List<MimeMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            messages.add(createMessage("user" + i + "@big.org", "user" + i + "@other.org"));
+        }
+
+        final List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+        for (final MimeMessage message : messages)
+        {
+            futures.add(scheduler.submit(message));
+        }
+        for (final CompletableFuture<DeliveryReport> future : futures)
+        {
+            assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+        }
+
+        assertEquals(2, maxActive.get("big.org").intValue());
+        assertTrue(maxActive.get("other.org") <= DomainScheduler.DEFAULT_MAX_CONCURRENCY);
+        assertEquals(0, scheduler.getActive("big.org"));
+        assertEquals(0, scheduler.getQueued("big.org"));
+    }
+
+    @Test
+    public void testRoundRobinFairness() throws Exception
+    {
+        final CountDownLatch queued = new CountDownLatch(1);
+        scheduler = new DomainScheduler(new RecordingSender(1, queued), executor)
+            .setDomainLimit("big.org", 1, 0, 1);
+
+        final List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+        for (int i = 0; i < 30; i++)
+        {
+            futures.add(scheduler.submit(createMessage("user" + i + "@big.org")));
+        }
+        futures.add(scheduler.submit(createMessage("user@small.org")));
+        queued.countDown();
+        for (final CompletableFuture<DeliveryReport> future : futures)
+        {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        // the small domain does not wait for the queue of the big domain
+        assertTrue(completed.toString(), completed.indexOf("small.org") < 3);
+    }
+
+    @Test
+    public void testRate() throws Exception
+    {
+        scheduler = new DomainScheduler(new RecordingSender(0), executor)
+            .setDefaultLimit(4, 20, 1);
+
+        final long start = System.nanoTime();
+        final List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            futures.add(scheduler.submit(createMessage("user" + i + "@paced.org", "user" + i + "@other.org")));
+        }
+        for (final CompletableFuture<DeliveryReport> future : futures)
+        {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // 5 envelopes per domain at 20 per second, the domains are paced independently
+        assertTrue("elapsed " + elapsed, elapsed >= 190 && elapsed < 1000);
+    }
+}
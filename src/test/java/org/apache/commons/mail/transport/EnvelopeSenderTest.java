@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import org.apache.commons.mail.transport.nio.NioSmtpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * JUnit test case for EnvelopeSender.
+ */
+public class EnvelopeSenderTest extends AbstractEmailTest
+{
+    private TransportPool pool;
+
+    private SendExecutor executor;
+
+    @Before
+    public void setUpSender()
+    {
+        pool = new TransportPool();
+        executor = new SendExecutor(4, 100);
+        getMailServer();
+    }
+
+    @After
+    public void tearDownSender()
+    {
+        pool.close();
+        executor.shutdown(Duration.ofSeconds(5));
+    }
+
+    private MimeMessage createMessage() throws Exception
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("fan-out");
+        email.setMsg("Test Msg Body");
+        email.buildMimeMessage();
+        email.getMimeMessage().saveChanges();
+        return email.getMimeMessage();
+    }
+
+    private static Address recipient(final int i)
+    {
+        try
+        {
+            return new InternetAddress("user" + i + "@example.org");
+        }
+        catch (final Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testFanOutWithVerp() throws Exception
+    {
+        final MimeMessage message = createMessage();
+        final EnvelopeSender sender = new EnvelopeSender(pool, executor).setMaxInFlight(2);
+
+        final List<EnvelopeResult> results = sender.sendAll(message, IntStream.range(0, 20)
+            .mapToObj(EnvelopeSenderTest::recipient)
+            .map(to -> new Envelope(Envelope.verp("bounces@apache.org", to), to)));
+
+        assertEquals(20, results.size());
+        for (int i = 0; i < results.size(); i++)
+        {
+            final EnvelopeResult result = results.get(i);
+            assertTrue(result.isSuccess());
+            assertEquals(recipient(i), result.getDelivered().get(0));
+            assertEquals(message.getMessageID(), result.getMessageId());
+        }
+
+        final List<WiserMessage> messages = fakeMailServer.getMessages();
+        assertEquals(20, messages.size());
+        for (final WiserMessage received : messages)
+        {
+            final String to = received.getEnvelopeReceiver();
+            final String user = to.substring(0, to.indexOf('@'));
+            assertEquals("bounces+" + user + "=example.org@apache.org", received.getEnvelopeSender());
+            assertEquals(message.getMessageID(), received.getMimeMessage().getMessageID());
+        }
+    }
+
+    @Test
+    public void testFanOutThroughMailTransport() throws Exception
+    {
+        final MimeMessage message = createMessage();
+        final List<EnvelopeResult> results;
+        try (NioSmtpClient client = new NioSmtpClient(1))
+        {
+            results = new EnvelopeSender(new RetryingMailTransport(client, new RetryPolicy()), executor)
+                .sendAll(message, IntStream.range(0, 5)
+                    .mapToObj(EnvelopeSenderTest::recipient)
+                    .map(to -> new Envelope(Envelope.verp("bounces@apache.org", to), to)));
+        }
+
+        assertEquals(5, results.size());
+        for (final EnvelopeResult result : results)
+        {
+            assertTrue(result.isSuccess());
+        }
+
+        // the envelope, not the To header, determines the transaction
+        final List<WiserMessage> messages = fakeMailServer.getMessages();
+        assertEquals(5, messages.size());
+        for (final WiserMessage received : messages)
+        {
+            final String to = received.getEnvelopeReceiver();
+            final String user = to.substring(0, to.indexOf('@'));
+            assertTrue(to.endsWith("@example.org"));
+            assertEquals("bounces+" + user + "=example.org@apache.org", received.getEnvelopeSender());
+        }
+    }
+
+    @Test
+    public void testEnvelopesConsumedLazily() throws Exception
+    {
+        final AtomicInteger consumed = new AtomicInteger();
+        final Iterator<Envelope> envelopes = new Iterator<Envelope>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return consumed.get() < 10;
+            }
+
+            @Override
+            public Envelope next()
+            {
+                return new Envelope(null, recipient(consumed.getAndIncrement()));
+            }
+        };
+
+        final List<EnvelopeResult> results = new EnvelopeSender(pool, executor)
+            .setMaxInFlight(1)
+            .sendAll(SerializedMessage.of(createMessage()), envelopes);
+
+        assertEquals(10, results.size());
+        assertEquals(10, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testFailedEnvelope() throws Exception
+    {
+        // nothing listens on the port any more
+        fakeMailServer.stop();
+
+        final List<Envelope> envelopes = new ArrayList<>();
+        envelopes.add(new Envelope(null, recipient(1), recipient(2)));
+
+        final List<EnvelopeResult> results = new EnvelopeSender().sendAll(SerializedMessage.of(createMessage()),
+                envelopes);
+
+        final EnvelopeResult result = results.get(0);
+        assertFalse(result.isSuccess());
+        assertTrue(result.getDelivered().isEmpty());
+        assertEquals(2, result.getFailed().size());
+        assertEquals(result.getException(), result.getFailed().get(recipient(2)));
+    }
+
+    @Test
+    public void testVerp() throws Exception
+    {
+        assertEquals("bounces+jane=example.org@example.com",
+                Envelope.verp("bounces@example.com", new InternetAddress("Jane <jane@example.org>")));
+    }
+}
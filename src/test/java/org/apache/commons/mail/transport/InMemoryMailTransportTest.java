@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SendResult;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.Test;
+
+/**
+ * JUnit test case for InMemoryMailTransport.
+ */
+public class InMemoryMailTransportTest extends AbstractEmailTest
+{
+    private Email createEmail(final String subject) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject(subject);
+        email.setMsg("Test Msg Body");
+        return email;
+    }
+
+    @Test
+    public void testSendWithEmailTransport() throws Exception
+    {
+        final InMemoryMailTransport transport = new InMemoryMailTransport();
+        final Email email = createEmail("in memory");
+        email.setMailTransport(transport);
+        assertSame(transport, email.getMailTransport());
+
+        final String messageId = email.send();
+
+        assertEquals(1, transport.getSentCount());
+        assertEquals(messageId, transport.getMessages().get(0).getMessageID());
+        assertEquals("in memory", transport.getMessages().get(0).getSubject());
+        assertEquals(0, transport.getSentBytes());
+    }
+
+    @Test
+    public void testSendWithDefaultTransport() throws Exception
+    {
+        final InMemoryMailTransport transport = new InMemoryMailTransport(false, true);
+        Email.setDefaultMailTransport(transport);
+        try
+        {
+            final Email email = createEmail("default");
+            assertSame(transport, email.getMailTransport());
+            email.send();
+
+            assertEquals(1, transport.getSentCount());
+            assertTrue(transport.getMessages().isEmpty());
+            assertTrue(transport.getSentBytes() > 0);
+        }
+        finally
+        {
+            Email.setDefaultMailTransport(null);
+        }
+        assertTrue(Email.getDefaultMailTransport() instanceof JavaMailTransport);
+    }
+
+    @Test
+    public void testSendAll() throws Exception
+    {
+        final InMemoryMailTransport transport = new InMemoryMailTransport();
+        final Email first = createEmail("first");
+        first.buildMimeMessage();
+        first.getMimeMessage().saveChanges();
+        final Email invalid = createEmail("no recipients");
+        invalid.buildMimeMessage();
+        invalid.getMimeMessage().setRecipients(Message.RecipientType.TO, (Address[]) null);
+
+        final List<MimeMessage> messages = Arrays.asList(first.getMimeMessage(), invalid.getMimeMessage());
+        final List<SendResult> results = transport.sendAll(messages);
+
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(first.getMimeMessage().getMessageID(), results.get(0).getMessageId());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals(1, transport.getSentCount());
+
+        transport.clear();
+        assertEquals(0, transport.getSentCount());
+        assertTrue(transport.getMessages().isEmpty());
+    }
+
+    @Test
+    public void testSendAfterClose() throws Exception
+    {
+        final InMemoryMailTransport transport = new InMemoryMailTransport();
+        transport.close();
+        try
+        {
+            createEmail("closed").setMailTransport(transport).send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
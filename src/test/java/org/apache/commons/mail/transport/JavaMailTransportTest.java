@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.Test;
+
+/**
+ * JUnit test case for JavaMailTransport.
+ */
+public class JavaMailTransportTest extends AbstractEmailTest
+{
+    @Test
+    public void testSendKeepsMessageId() throws Exception
+    {
+        getMailServer();
+
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("Test Msg Subject");
+        email.setMsg("Test Msg Body");
+        email.buildMimeMessage();
+        email.getMimeMessage().saveChanges();
+        final String messageId = email.getMimeMessage().getMessageID();
+
+        assertEquals(messageId, new JavaMailTransport().send(email.getMimeMessage()));
+        assertEquals(1, fakeMailServer.getMessages().size());
+        assertEquals(messageId, fakeMailServer.getMessages().get(0).getMimeMessage().getMessageID());
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit test case for PriorityScheduler.
+ */
+public class PrioritySchedulerTest extends AbstractEmailTest
+{
+    private SendExecutor executor;
+
+    private PriorityScheduler scheduler;
+
+    /** The subjects of the sent messages in order. */
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    /** Holds back the first message until opened. */
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    /** Has the first message been sent? */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /** Records the subjects, holding back the first message. */
+    private final MailTransport recording = message -> {
+        try
+        {
+            if (started.compareAndSet(false, true))
+            {
+                gate.await();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        sent.add(message.getSubject());
+        return message.getMessageID();
+    };
+
+    @Before
+    public void setUpScheduler()
+    {
+        executor = new SendExecutor(8, 1000);
+    }
+
+    @After
+    public void tearDownScheduler()
+    {
+        if (scheduler != null)
+        {
+            scheduler.close();
+        }
+        executor.shutdown(Duration.ofSeconds(5));
+    }
+
+    private MimeMessage createMessage(final String subject) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject(subject);
+        email.setMsg("Test Msg Body");
+        email.buildMimeMessage();
+        return email.getMimeMessage();
+    }
+
+    /** Queues the messages behind a held back bulk message, then opens the gate. */
+    private List<String> sendBehindGate(final int transactional, final int bulk) throws Exception
+    {
+        final SendLane tx = scheduler.getLane("transactional");
+        final SendLane campaign = scheduler.getLane("bulk");
+        final List<CompletableFuture<String>> futures = new ArrayList<>();
+        futures.add(campaign.submit(createMessage("bulk")));
+        for (int i = 0; i < bulk; i++)
+        {
+            futures.add(campaign.submit(createMessage("bulk")));
+        }
+        for (int i = 0; i < transactional; i++)
+        {
+            futures.add(tx.submit(createMessage("tx")));
+        }
+        gate.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        return sent.subList(1, sent.size());
+    }
+
+    @Test
+    public void testStrictPolicyPreemptsBulk() throws Exception
+    {
+        scheduler = new PriorityScheduler(recording, executor, 1).setPolicy(PriorityScheduler.Policy.STRICT);
+        scheduler.addLane("bulk", 1, 1);
+        scheduler.addLane("transactional", 10, 1);
+
+        final List<String> order = sendBehindGate(2, 5);
+        assertEquals(Arrays.asList("tx", "tx", "bulk", "bulk", "bulk", "bulk", "bulk"), order);
+    }
+
+    @Test
+    public void testWeightedPolicySharesSlots() throws Exception
+    {
+        scheduler = new PriorityScheduler(recording, executor, 1);
+        scheduler.addLane("transactional", 3, 1);
+        scheduler.addLane("bulk", 1, 1);
+
+        final List<String> order = sendBehindGate(12, 12);
+        final int transactional = Collections.frequency(order.subList(0, 8), "tx");
+        assertTrue("transactional " + transactional, transactional >= 5 && transactional <= 7);
+        assertEquals(24, order.size());
+    }
+
+    @Test
+    public void testLaneCapLeavesSlotsForOtherLanes() throws Exception
+    {
+        scheduler = new PriorityScheduler(recording, executor, 3);
+        final SendLane bulk = scheduler.addLane("bulk", 1, 1);
+        final SendLane tx = scheduler.addLane("transactional", 1, 3);
+
+        final CompletableFuture<String> held = bulk.submit(createMessage("bulk"));
+        bulk.submit(createMessage("bulk"));
+        assertEquals(1, bulk.getActive());
+        assertEquals(1, bulk.getQueueDepth());
+
+        // the bulk lane is at its cap, a transactional message starts at once
+        tx.send(createMessage("tx"));
+        assertEquals(Arrays.asList("tx"), sent);
+        assertEquals(1, scheduler.getActive());
+        gate.countDown();
+        held.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testRejectedMessageFreesSlotForQueued() throws Exception
+    {
+        final AtomicInteger executions = new AtomicInteger();
+        final Executor rejectingSecond = command -> {
+            if (executions.incrementAndGet() == 2)
+            {
+                throw new RejectedExecutionException("full");
+            }
+            executor.execute(command);
+        };
+        scheduler = new PriorityScheduler(recording, rejectingSecond, 1);
+        final SendLane lane = scheduler.addLane("bulk", 1, 1);
+
+        final CompletableFuture<String> first = lane.submit(createMessage("first"));
+        final CompletableFuture<String> second = lane.submit(createMessage("second"));
+        final CompletableFuture<String> third = lane.submit(createMessage("third"));
+        gate.countDown();
+
+        first.get(10, TimeUnit.SECONDS);
+        try
+        {
+            second.get(10, TimeUnit.SECONDS);
+            fail("Should have thrown an exception");
+        }
+        catch (final ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof MessagingException);
+        }
+        // started in the slot of the rejected message without another submit
+        third.get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("first", "third"), sent);
+        assertEquals(0, scheduler.getActive());
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        scheduler = new PriorityScheduler(recording, executor, 1);
+        final SendLane lane = scheduler.addLane("bulk", 1, 1);
+        final CompletableFuture<String> first = lane.submit(createMessage("bulk"));
+        final CompletableFuture<String> second = lane.submit(createMessage("bulk"));
+        Thread.sleep(50);
+        assertEquals(1, lane.getQueueDepth());
+        assertTrue(lane.getOldestWaitMillis() >= 40);
+
+        gate.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertEquals(0, lane.getQueueDepth());
+        assertEquals(2, lane.getStarted());
+        assertTrue(lane.getMaxWaitMillis() >= 40);
+        assertTrue(lane.getAverageWaitMillis() >= 20);
+        assertEquals(0, lane.getOldestWaitMillis());
+    }
+
+    @Test
+    public void testEmailSendsThroughLane() throws Exception
+    {
+        getMailServer();
+        scheduler = new PriorityScheduler(new JavaMailTransport(), executor, 2);
+        scheduler.addLane("bulk", 1, 1);
+        final SendLane tx = scheduler.addLane("transactional", 10, 2);
+        assertSame(tx, scheduler.getLane("transactional"));
+
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("reset");
+        email.setMsg("Test Msg Body");
+        email.setMailTransport(tx);
+        final String messageId = email.send();
+
+        assertEquals(1, fakeMailServer.getMessages().size());
+        assertEquals(messageId, fakeMailServer.getMessages().get(0).getMimeMessage().getMessageID());
+        assertEquals(1, tx.getStarted());
+    }
+
+    @Test
+    public void testCloseFailsQueuedMessages() throws Exception
+    {
+        scheduler = new PriorityScheduler(recording, executor, 1);
+        final SendLane lane = scheduler.addLane("bulk", 1, 1);
+        final CompletableFuture<String> held = lane.submit(createMessage("bulk"));
+        final CompletableFuture<String> queued = lane.submit(createMessage("bulk"));
+        scheduler.close();
+        try
+        {
+            queued.get(10, TimeUnit.SECONDS);
+            fail("Should have thrown an exception");
+        }
+        catch (final ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof MessagingException);
+        }
+        gate.countDown();
+        held.get(10, TimeUnit.SECONDS);
+    }
+}
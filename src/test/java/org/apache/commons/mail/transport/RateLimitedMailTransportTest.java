@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * JUnit test case for RateLimitedMailTransport.
+ */
+public class RateLimitedMailTransportTest extends AbstractEmailTest
+{
+    @After
+    public void tearDownRateLimits()
+    {
+        RateLimitedMailTransport.clearRateLimits();
+    }
+
+    private Email createEmail(final String host, final int port) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(host);
+        email.setSmtpPort(port);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("rate limit");
+        email.setMsg("Test Msg Body");
+        return email;
+    }
+
+    @Test
+    public void testRejectWhenExceeded() throws Exception
+    {
+        final TokenBucket bucket = RateLimitedMailTransport.setRateLimit("Relay.example.com", 2525, 0.1, 2);
+        assertSame(bucket, RateLimitedMailTransport.getRateLimit("relay.example.com", 2525));
+
+        final InMemoryMailTransport memory = new InMemoryMailTransport();
+        final RateLimitedMailTransport transport = new RateLimitedMailTransport(memory, 0);
+
+        for (int i = 0; i < 2; i++)
+        {
+            final Email email = createEmail("relay.example.com", 2525);
+            email.setMailTransport(transport);
+            email.send();
+        }
+
+        final Email email = createEmail("relay.example.com", 2525);
+        email.setMailTransport(transport);
+        try
+        {
+            email.send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertTrue(e.getCause() instanceof RateLimitExceededException);
+            assertTrue(((RateLimitExceededException) e.getCause()).getRetryAfterMillis() > 0);
+            assertTrue(new RetryPolicy().isRetryable(e));
+        }
+        assertEquals(2, memory.getSentCount());
+    }
+
+    @Test
+    public void testLimitSharedByRelay() throws Exception
+    {
+        RateLimitedMailTransport.setRateLimit("relay.example.com", 25, 0.1, 1);
+        final InMemoryMailTransport memory = new InMemoryMailTransport();
+
+        // a separate transport instance per email still shares the limit
+        final Email first = createEmail("relay.example.com", 25);
+        first.setMailTransport(new RateLimitedMailTransport(memory, 0));
+        first.send();
+
+        final Email second = createEmail("relay.example.com", 25);
+        second.setMailTransport(new RateLimitedMailTransport(memory, 0));
+        try
+        {
+            second.send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertTrue(e.getCause() instanceof RateLimitExceededException);
+        }
+
+        // other relays are not limited
+        final Email other = createEmail("relay.example.com", 587);
+        other.setMailTransport(new RateLimitedMailTransport(memory, 0));
+        other.send();
+        assertNull(RateLimitedMailTransport.getRateLimit("relay.example.com", 587));
+        assertEquals(2, memory.getSentCount());
+    }
+
+    @Test
+    public void testBlockUntilPermitted() throws Exception
+    {
+        getMailServer();
+        RateLimitedMailTransport.setRateLimit(strTestMailServer, getMailServerPort(), 20, 1);
+        final RateLimitedMailTransport transport = new RateLimitedMailTransport(new JavaMailTransport());
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 3; i++)
+        {
+            final Email email = createEmail(strTestMailServer, getMailServerPort());
+            email.setMailTransport(transport);
+            email.send();
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("elapsed " + elapsed, elapsed >= 90);
+        assertEquals(3, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testRetryRejectedMessage() throws Exception
+    {
+        RateLimitedMailTransport.setRateLimit("relay.example.com", 25, 20, 1);
+        final InMemoryMailTransport memory = new InMemoryMailTransport();
+        final RetryingMailTransport transport = new RetryingMailTransport(
+                new RateLimitedMailTransport(memory, 0), new RetryPolicy().setInitialDelayMillis(60).setJitter(0.0));
+
+        for (int i = 0; i < 2; i++)
+        {
+            final Email email = createEmail("relay.example.com", 25);
+            email.setMailTransport(transport);
+            email.send();
+        }
+        assertEquals(2, memory.getSentCount());
+    }
+}
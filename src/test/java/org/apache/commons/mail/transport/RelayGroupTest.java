@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit test case for RelayGroup.
+ */
+public class RelayGroupTest extends AbstractEmailTest
+{
+    private String deadPort;
+
+    @Before
+    public void setUpDeadPort() throws Exception
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            deadPort = String.valueOf(socket.getLocalPort());
+        }
+    }
+
+    private void send(final RelayGroup group) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName("unused.example.com");
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("relay group");
+        email.setMsg("Test Msg Body");
+        email.setMailTransport(group);
+        email.send();
+    }
+
+    @Test
+    public void testFailoverOnConnectError() throws Exception
+    {
+        getMailServer();
+        final RelayGroup group = new RelayGroup()
+            .setOrdered(true)
+            .addEndpoint(strTestMailServer, deadPort)
+            .addEndpoint(strTestMailServer, String.valueOf(getMailServerPort()));
+        final RelayEndpoint dead = group.getEndpoints().get(0);
+        final RelayEndpoint live = group.getEndpoints().get(1);
+
+        send(group);
+
+        assertEquals(1, fakeMailServer.getMessages().size());
+        assertEquals(1, dead.getConsecutiveFailures());
+        assertEquals(RelayEndpoint.State.CLOSED, dead.getState());
+        assertEquals(0, dead.getOutstanding());
+        assertEquals(0, live.getConsecutiveFailures());
+        assertEquals(0, live.getOutstanding());
+        assertTrue(live.getLatencyMillis() >= 0);
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception
+    {
+        getMailServer();
+        final RelayGroup group = new RelayGroup()
+            .setOrdered(true)
+            .setFailureThreshold(2)
+            .addEndpoint(strTestMailServer, deadPort)
+            .addEndpoint(strTestMailServer, String.valueOf(getMailServerPort()));
+        final RelayEndpoint dead = group.getEndpoints().get(0);
+
+        send(group);
+        send(group);
+        assertEquals(RelayEndpoint.State.OPEN, dead.getState());
+
+        // the open circuit is skipped
+        send(group);
+        assertEquals(2, dead.getConsecutiveFailures());
+
+        // the trial send after the open duration fails and reopens the circuit
+        group.setOpenDurationMillis(0);
+        send(group);
+        assertEquals(3, dead.getConsecutiveFailures());
+        assertEquals(RelayEndpoint.State.OPEN, dead.getState());
+        assertEquals(4, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testTransportCreatedOncePerRelay() throws Exception
+    {
+        getMailServer();
+        final List<Session> sessions = Collections.synchronizedList(new ArrayList<Session>());
+        final AtomicInteger sent = new AtomicInteger();
+        try (TransportPool pool = new TransportPool(); RelayGroup group = new RelayGroup())
+        {
+            group.setOrdered(true)
+                .addEndpoint(strTestMailServer, deadPort)
+                .addEndpoint(strTestMailServer, String.valueOf(getMailServerPort()))
+                .setFailureThreshold(10)
+                .setTransportFactory(session -> {
+                    sessions.add(session);
+                    final MailTransport pooled = pool.forSession(session);
+                    return message -> {
+                        sent.incrementAndGet();
+                        return pooled.send(message);
+                    };
+                });
+
+            send(group);
+            send(group);
+            send(group);
+        }
+
+        // one session and transport per relay, reused for the equally configured emails
+        assertEquals(2, sessions.size());
+        assertEquals(deadPort, sessions.get(0).getProperty("mail.smtp.port"));
+        assertEquals(String.valueOf(getMailServerPort()), sessions.get(1).getProperty("mail.smtp.port"));
+        assertEquals(6, sent.get());
+        assertEquals(3, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testAllRelaysDown() throws Exception
+    {
+        final RelayGroup group = new RelayGroup()
+            .setFailureThreshold(1)
+            .addEndpoint(strTestMailServer, deadPort)
+            .addEndpoint("127.0.0.1", deadPort);
+
+        try
+        {
+            send(group);
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertTrue(e.getCause() instanceof MessagingException);
+            assertEquals(1, e.getCause().getSuppressed().length);
+            assertTrue(new RetryPolicy().isRetryable(e));
+        }
+
+        try
+        {
+            send(group);
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertTrue(e.getCause().getMessage().contains("No relay"));
+            assertTrue(new RetryPolicy().isRetryable(e));
+        }
+    }
+
+    @Test
+    public void testLeastOutstandingSelection()
+    {
+        final RelayGroup group = new RelayGroup()
+            .addEndpoint("smtp1.example.com")
+            .addEndpoint("smtp2.example.com", null, 2);
+        final RelayEndpoint first = group.getEndpoints().get(0);
+        final RelayEndpoint second = group.getEndpoints().get(1);
+
+        final List<RelayEndpoint> selected = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+        {
+            selected.add(group.start(Collections.<RelayEndpoint>emptyList()));
+        }
+
+        // the outstanding sends are spread according to the weights
+        assertEquals(2, first.getOutstanding());
+        assertEquals(4, second.getOutstanding());
+        assertEquals(2, Collections.frequency(selected, first));
+    }
+
+    @Test
+    public void testLatencyAwareSelection()
+    {
+        final RelayGroup group = new RelayGroup()
+            .addEndpoint("smtp1.example.com")
+            .addEndpoint("smtp2.example.com");
+        final RelayEndpoint slow = group.getEndpoints().get(0);
+        final RelayEndpoint fast = group.getEndpoints().get(1);
+
+        assertSame(slow, group.start(Collections.<RelayEndpoint>emptyList()));
+        assertSame(fast, group.start(Collections.<RelayEndpoint>emptyList()));
+        slow.succeeded(100000000L, 1.0);
+        fast.succeeded(1000000L, 1.0);
+        assertEquals(100.0, slow.getLatencyMillis(), 0.001);
+
+        // the fast relay takes load until its queue outweighs the latency difference
+        for (int i = 0; i < 10; i++)
+        {
+            assertSame(fast, group.start(Collections.<RelayEndpoint>emptyList()));
+        }
+        assertSame(slow, group.start(Collections.singletonList(fast)));
+    }
+}
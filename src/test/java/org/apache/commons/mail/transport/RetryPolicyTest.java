@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.mail.EmailException;
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.util.MailConnectException;
+import com.sun.mail.util.SocketConnectException;
+
+/**
+ * JUnit test case for RetryPolicy.
+ */
+public class RetryPolicyTest
+{
+    private final RetryPolicy policy = new RetryPolicy();
+
+    private static SMTPSendFailedException replyFailure(final int replyCode)
+    {
+        return new SMTPSendFailedException("DATA", replyCode, replyCode + " failed", null, null, null, null);
+    }
+
+    private static SendFailedException recipientFailures(final int... replyCodes) throws Exception
+    {
+        MessagingException chain = null;
+        for (final int replyCode : replyCodes)
+        {
+            final SMTPAddressFailedException failure = new SMTPAddressFailedException(
+                    new InternetAddress("to@apache.org"), "RCPT TO:<to@apache.org>", replyCode, replyCode + " no");
+            if (chain == null)
+            {
+                chain = failure;
+            }
+            else
+            {
+                chain.setNextException(failure);
+            }
+        }
+        return new SendFailedException("Invalid Addresses", chain);
+    }
+
+    @Test
+    public void testReplyCodes() throws Exception
+    {
+        assertTrue(policy.isRetryable(replyFailure(421)));
+        assertTrue(policy.isRetryable(replyFailure(451)));
+        assertFalse(policy.isRetryable(replyFailure(550)));
+        assertFalse(policy.isRetryable(replyFailure(554)));
+        assertTrue(policy.isRetryable(new MessagingException(
+                "Could not connect to SMTP host: localhost, port: 25, response: 421")));
+        assertFalse(policy.isRetryable(new MessagingException("535 5.7.8 Authentication credentials invalid")));
+        assertTrue(policy.isRetryable(new EmailException("Sending failed", replyFailure(452))));
+    }
+
+    @Test
+    public void testRecipientFailures() throws Exception
+    {
+        assertTrue(policy.isRetryable(recipientFailures(450, 452)));
+        assertFalse(policy.isRetryable(recipientFailures(450, 550)));
+        assertFalse(policy.isRetryable(new SendFailedException("No recipient addresses")));
+    }
+
+    @Test
+    public void testPartialDeliveryNotRetried() throws Exception
+    {
+        final Address[] sent = {new InternetAddress("sent@apache.org")};
+        final Address[] unsent = {new InternetAddress("to@apache.org")};
+        final SendFailedException partial = new SendFailedException("Invalid Addresses",
+                recipientFailures(450).getNextException(), sent, unsent, unsent);
+        assertFalse(policy.isRetryable(partial));
+        assertFalse(policy.isRetryable(new EmailException("Sending failed", partial)));
+
+        final SendFailedException nothingSent = new SendFailedException("Invalid Addresses",
+                recipientFailures(450).getNextException(), new Address[0], unsent, unsent);
+        assertTrue(policy.isRetryable(nothingSent));
+    }
+
+    @Test
+    public void testConnectionFailures()
+    {
+        assertTrue(policy.isRetryable(new MailConnectException(
+                new SocketConnectException("refused", new ConnectException(), "localhost", 25, 1000))));
+        assertTrue(policy.isRetryable(new MessagingException("timeout", new SocketTimeoutException())));
+        assertFalse(policy.isRetryable(new MessagingException("unknown host", new UnknownHostException())));
+        assertFalse(policy.isRetryable(new AuthenticationFailedException("no")));
+        assertFalse(policy.isRetryable(new MessagingException("unknown")));
+        assertFalse(policy.isRetryable(null));
+    }
+
+    @Test
+    public void testDelay()
+    {
+        policy.setInitialDelayMillis(100).setMaxDelayMillis(1000).setMultiplier(2.0).setJitter(0.0);
+        assertEquals(100, policy.getDelayMillis(1));
+        assertEquals(200, policy.getDelayMillis(2));
+        assertEquals(800, policy.getDelayMillis(4));
+        assertEquals(1000, policy.getDelayMillis(5));
+
+        policy.setJitter(0.5);
+        for (int i = 0; i < 100; i++)
+        {
+            final long delay = policy.getDelayMillis(1);
+            assertTrue(delay >= 50 && delay <= 100);
+        }
+    }
+
+    @Test
+    public void testUnknownHostIsPermanent() throws Exception
+    {
+        final Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", "nonexistent.invalid");
+        properties.setProperty("mail.smtp.connectiontimeout", "1000");
+        final Transport transport = Session.getInstance(properties).getTransport("smtp");
+        try
+        {
+            transport.connect();
+            fail("Should not connect to an unknown host");
+        }
+        catch (final MailConnectException e)
+        {
+            assertFalse(policy.isRetryable(e));
+            assertFalse(policy.isRetryable(new EmailException(e)));
+        }
+        // connecting through a proxy wraps the UnknownHostException in an IOException
+        assertFalse(policy.isRetryable(new MailConnectException(new SocketConnectException("unknown",
+                new UnknownHostException("nonexistent.invalid"), "nonexistent.invalid", 25, 1000))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter()
+    {
+        policy.setJitter(1.5);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.SendResult;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * JUnit test case for RetryingMailTransport.
+ */
+public class RetryingMailTransportTest extends AbstractEmailTest
+{
+    private final List<MimeMessage> attempts = new ArrayList<>();
+
+    private final List<Long> delays = new ArrayList<>();
+
+    private final RetryPolicy policy = new RetryPolicy().setInitialDelayMillis(10).setJitter(0.0);
+
+    private MailTransport failing(final int failures, final int replyCode)
+    {
+        return message -> {
+            attempts.add(message);
+            if (attempts.size() <= failures)
+            {
+                throw new SMTPSendFailedException("DATA", replyCode, replyCode + " failed", null, null, null, null);
+            }
+            return message.getMessageID();
+        };
+    }
+
+    private RetryingMailTransport retrying(final MailTransport transport)
+    {
+        return new RetryingMailTransport(transport, policy)
+        {
+            @Override
+            protected boolean sleep(final long millis)
+            {
+                delays.add(millis);
+                return true;
+            }
+        };
+    }
+
+    private MimeMessage createMessage() throws Exception
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.addBcc("bcc@apache.org");
+        email.setSubject("retry");
+        email.setMsg("Test Msg Body");
+        email.buildMimeMessage();
+        email.getMimeMessage().saveChanges();
+        return email.getMimeMessage();
+    }
+
+    private static String content(final MimeMessage message) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void testRetryTransientFailure() throws Exception
+    {
+        final MimeMessage message = createMessage();
+        final SendResult result = retrying(failing(2, 451)).sendWithResult(message);
+
+        assertTrue(result.isSuccess());
+        assertEquals(3, result.getAttempts());
+        assertEquals(message.getMessageID(), result.getMessageId());
+        assertSame(message, result.getMimeMessage());
+        assertEquals(2, delays.size());
+        assertEquals(10, delays.get(0).longValue());
+        assertEquals(20, delays.get(1).longValue());
+
+        // the message is frozen once and sent unchanged
+        assertSame(message, attempts.get(0));
+        assertNotSame(message, attempts.get(1));
+        assertSame(attempts.get(1), attempts.get(2));
+        assertEquals(content(message), content(attempts.get(2)));
+        assertEquals(message.getMessageID(), attempts.get(2).getMessageID());
+        assertEquals(1, attempts.get(2).getRecipients(Message.RecipientType.BCC).length);
+    }
+
+    @Test
+    public void testRetryKeepsEnvelope() throws Exception
+    {
+        final MimeMessage built = createMessage();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        built.writeTo(out);
+        final Address[] envelope = {new InternetAddress("envelope@apache.org")};
+        final SMTPMessage message = new SMTPMessage(built.getSession(), new ByteArrayInputStream(out.toByteArray()))
+        {
+            @Override
+            public Address[] getAllRecipients()
+            {
+                return envelope.clone();
+            }
+        };
+        message.setEnvelopeFrom("bounces+123@apache.org");
+        message.setNotifyOptions(SMTPMessage.NOTIFY_FAILURE);
+
+        assertTrue(retrying(failing(1, 451)).sendWithResult(message).isSuccess());
+
+        final MimeMessage retried = attempts.get(1);
+        assertNotSame(message, retried);
+        assertArrayEquals(envelope, retried.getAllRecipients());
+        assertEquals("bounces+123@apache.org", ((SMTPMessage) retried).getEnvelopeFrom());
+        assertEquals(SMTPMessage.NOTIFY_FAILURE, ((SMTPMessage) retried).getNotifyOptions());
+    }
+
+    @Test
+    public void testPermanentFailure() throws Exception
+    {
+        final SendResult result = retrying(failing(1, 550)).sendWithResult(createMessage());
+
+        assertFalse(result.isSuccess());
+        assertFalse(result.isRetryable());
+        assertEquals(1, result.getAttempts());
+        assertEquals(550, ((SMTPSendFailedException) result.getException().getCause()).getReturnCode());
+        assertTrue(delays.isEmpty());
+    }
+
+    @Test
+    public void testAttemptsExhausted() throws Exception
+    {
+        policy.setMaxAttempts(4);
+        final SendResult result = retrying(failing(10, 421)).sendWithResult(createMessage());
+
+        assertFalse(result.isSuccess());
+        assertTrue(result.isRetryable());
+        assertEquals(4, result.getAttempts());
+        assertEquals(4, attempts.size());
+    }
+
+    @Test
+    public void testSendWithEmail() throws Exception
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("retry");
+        email.setMsg("Test Msg Body");
+        email.setMailTransport(retrying(failing(1, 421)));
+
+        final String messageId = email.send();
+        assertEquals(2, attempts.size());
+        assertEquals(messageId, attempts.get(1).getMessageID());
+
+        attempts.clear();
+        email.getMimeMessage().saveChanges();
+        email.setMailTransport(retrying(failing(1, 554)));
+        try
+        {
+            email.sendMimeMessage();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertTrue(e.getCause() instanceof SMTPSendFailedException);
+            assertFalse(policy.isRetryable(e));
+        }
+    }
+}
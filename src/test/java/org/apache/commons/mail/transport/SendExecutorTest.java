@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit test case for SendExecutor and {@code Email.sendAsync()}.
+ */
+public class SendExecutorTest extends AbstractEmailTest
+{
+    private SendExecutor executor;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUpSendExecutorTest()
+    {
+        this.executor = new SendExecutor(1, 1);
+    }
+
+    @After
+    public void tearDownSendExecutorTest()
+    {
+        release.countDown();
+        executor.shutdown(Duration.ofSeconds(5));
+    }
+
+    private Email createEmail() throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("Test Msg Subject");
+        email.setMsg("Test Msg Body");
+        return email;
+    }
+
+    private void blockExecutor() throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSendAsync() throws Exception
+    {
+        getMailServer();
+
+        final CompletableFuture<String> future = createEmail().sendAsync(executor);
+
+        assertNotNull(future.get(10, TimeUnit.SECONDS));
+        assertEquals(1, fakeMailServer.getMessages().size());
+        assertEquals(future.get(), fakeMailServer.getMessages().get(0).getMimeMessage().getMessageID());
+    }
+
+    @Test
+    public void testSendAsyncDefaultExecutor() throws Exception
+    {
+        getMailServer();
+
+        assertNotNull(createEmail().sendAsync().get(10, TimeUnit.SECONDS));
+        assertSame(SendExecutor.getDefault(), SendExecutor.getDefault());
+    }
+
+    @Test(expected = EmailException.class)
+    public void testSendAsyncValidatesInCallingThread() throws Exception
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setFrom(strTestMailFrom);
+        email.sendAsync(executor);
+    }
+
+    @Test
+    public void testSendAsyncFailure() throws Exception
+    {
+        // no mail server is running
+        final CompletableFuture<String> future = createEmail().sendAsync(executor);
+
+        try
+        {
+            future.get(30, TimeUnit.SECONDS);
+            fail("Should have thrown an exception");
+        }
+        catch (final ExecutionException e)
+        {
+            assertEquals(EmailException.class, e.getCause().getClass());
+        }
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception
+    {
+        blockExecutor();
+        createEmail().sendAsync(executor);
+        assertEquals(1, executor.getQueueSize());
+
+        try
+        {
+            createEmail().sendAsync(executor);
+            fail("Should have thrown an exception");
+        }
+        catch (final RejectedExecutionException e)
+        {
+            assertTrue(true);
+        }
+    }
+
+    @Test
+    public void testShutdownDrainsPendingSends() throws Exception
+    {
+        getMailServer();
+        executor = new SendExecutor(1, 10);
+        blockExecutor();
+
+        final CompletableFuture<String> first = createEmail().sendAsync(executor);
+        final CompletableFuture<String> second = createEmail().sendAsync(executor);
+        release.countDown();
+
+        assertTrue(executor.shutdown(Duration.ofSeconds(10)));
+        assertTrue(executor.isShutdown());
+        assertNotNull(first.getNow(null));
+        assertNotNull(second.getNow(null));
+    }
+
+    @Test
+    public void testShutdownCancelsPendingSendsOnTimeout() throws Exception
+    {
+        blockExecutor();
+        final CompletableFuture<String> pending = createEmail().sendAsync(executor);
+
+        assertFalse(executor.shutdown(Duration.ofMillis(10)));
+        assertTrue(pending.isCancelled());
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.EmailAttachment;
+import org.apache.commons.mail.MultiPartEmail;
+import org.apache.commons.mail.util.MimeMessageUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * JUnit test case for SizeAwareDispatcher.
+ */
+public class SizeAwareDispatcherTest extends AbstractEmailTest
+{
+    private SizeAwareDispatcher dispatcher;
+
+    /** Holds back the large messages until opened. */
+    private final CountDownLatch largeGate = new CountDownLatch(1);
+
+    /** Holds back the messages with the subject "held" until opened. */
+    private final CountDownLatch heldGate = new CountDownLatch(1);
+
+    @After
+    public void tearDownDispatcher()
+    {
+        largeGate.countDown();
+        heldGate.countDown();
+        if (dispatcher != null)
+        {
+            dispatcher.close();
+        }
+    }
+
+    private MimeMessage createMessage(final String subject, final int attachmentSize) throws Exception
+    {
+        final MultiPartEmail email = new MultiPartEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject(subject);
+        email.setMsg("Test Msg Body");
+        if (attachmentSize > 0)
+        {
+            email.attach(new ByteArrayDataSource(new byte[attachmentSize], "application/octet-stream"), "data.bin",
+                    "data", EmailAttachment.ATTACHMENT);
+        }
+        email.buildMimeMessage();
+        final MimeMessage message = email.getMimeMessage();
+        message.saveChanges();
+        return message;
+    }
+
+    private SizeAwareDispatcher createDispatcher(final int smallWorkers, final int largeWorkers)
+    {
+        return new SizeAwareDispatcher(message -> {
+            try
+            {
+                if (dispatcher.isLarge(message))
+                {
+                    largeGate.await();
+                }
+                else if ("held".equals(message.getSubject()))
+                {
+                    heldGate.await();
+                }
+                else if ("error".equals(message.getSubject()))
+                {
+                    throw new AssertionError("broken transport");
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return message.getMessageID();
+        }, smallWorkers, largeWorkers, 100 * 1024);
+    }
+
+    @Test
+    public void testEstimateSize() throws Exception
+    {
+        for (final int attachmentSize : new int[] { 0, 1000, 300 * 1024 })
+        {
+            final MimeMessage message = createMessage("estimate", attachmentSize);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out);
+            final long estimate = MimeMessageUtils.estimateSize(message);
+            assertTrue(estimate + " for " + out.size(), Math.abs(estimate - out.size()) <= out.size() / 10 + 200);
+        }
+
+        final File file = File.createTempFile("attachment", ".bin");
+        try
+        {
+            Files.write(file.toPath(), new byte[200 * 1024]);
+            final MultiPartEmail email = new MultiPartEmail();
+            email.setHostName(strTestMailServer);
+            email.setFrom(strTestMailFrom);
+            email.addTo(strTestMailTo);
+            email.setMsg("Test Msg Body");
+            email.attach(file);
+            email.buildMimeMessage();
+            email.getMimeMessage().saveChanges();
+            assertTrue(MimeMessageUtils.estimateSize(email.getMimeMessage()) > 200 * 1024 * 4 / 3);
+        }
+        finally
+        {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testSmallMessagesPassLargeMessages() throws Exception
+    {
+        dispatcher = createDispatcher(2, 1);
+        final CompletableFuture<String> large1 = dispatcher.submit(createMessage("large", 200 * 1024));
+        final CompletableFuture<String> large2 = dispatcher.submit(createMessage("large", 200 * 1024));
+        assertTrue(dispatcher.isLarge(createMessage("large", 200 * 1024)));
+        assertFalse(dispatcher.isLarge(createMessage("small", 0)));
+
+        // one small worker may take the second large message, the other stays free
+        final List<CompletableFuture<String>> small = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            small.add(dispatcher.submit(createMessage("small", 1000)));
+        }
+        CompletableFuture.allOf(small.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        assertFalse(large1.isDone());
+        assertFalse(large2.isDone());
+        assertEquals(1, dispatcher.getStolen());
+        assertEquals(0, dispatcher.getSmallQueueDepth());
+
+        largeGate.countDown();
+        large1.get(10, TimeUnit.SECONDS);
+        large2.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testIdleLargeWorkerTakesSmallMessages() throws Exception
+    {
+        dispatcher = createDispatcher(1, 1);
+        final CompletableFuture<String> held = dispatcher.submit(createMessage("held", 0));
+        final CompletableFuture<String> small = dispatcher.submit(createMessage("small", 0));
+        small.get(10, TimeUnit.SECONDS);
+        assertFalse(held.isDone());
+        assertEquals(1, dispatcher.getStolen());
+
+        heldGate.countDown();
+        held.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSmallWorkerKeepsToItsLaneWhenAlone() throws Exception
+    {
+        dispatcher = createDispatcher(1, 1);
+        final CompletableFuture<String> large1 = dispatcher.submit(createMessage("large", 200 * 1024));
+        final CompletableFuture<String> large2 = dispatcher.submit(createMessage("large", 200 * 1024));
+        Thread.sleep(100);
+        assertEquals(1, dispatcher.getLargeQueueDepth());
+        assertEquals(0, dispatcher.getStolen());
+        dispatcher.submit(createMessage("small", 0)).get(10, TimeUnit.SECONDS);
+
+        largeGate.countDown();
+        large1.get(10, TimeUnit.SECONDS);
+        large2.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testErrorCompletesFuture() throws Exception
+    {
+        dispatcher = createDispatcher(1, 1);
+        // more errors than workers
+        for (int i = 0; i < 3; i++)
+        {
+            try
+            {
+                dispatcher.submit(createMessage("error", 0)).get(10, TimeUnit.SECONDS);
+                fail("Should have failed");
+            }
+            catch (final ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof AssertionError);
+            }
+        }
+
+        // the workers survived
+        final MimeMessage message = createMessage("small", 0);
+        assertEquals(message.getMessageID(), dispatcher.submit(message).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSubmitAfterClose() throws Exception
+    {
+        dispatcher = createDispatcher(1, 1);
+        dispatcher.close();
+        dispatcher.submit(createMessage("small", 0));
+    }
+}
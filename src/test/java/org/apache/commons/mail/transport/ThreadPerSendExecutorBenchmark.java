@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import org.subethamail.smtp.helper.SimpleMessageListener;
+import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Compares sending with a pool of platform threads ({@link SendExecutor}) and
+ * with a thread per send ({@link ThreadPerSendExecutor}) against a local SMTP
+ * sink discarding all messages. This is not a unit test; run it with the
+ * multi-release jar on the class path to use virtual threads on Java 21:
+ * <pre>
+ * java -cp target/commons-email-1.6-SNAPSHOT.jar:target/test-classes:... \
+ *     org.apache.commons.mail.transport.ThreadPerSendExecutorBenchmark [messages] [concurrency]
+ * </pre>
+ */
+public final class ThreadPerSendExecutorBenchmark
+{
+    private static final int PORT = 2600;
+
+    private ThreadPerSendExecutorBenchmark()
+    {
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final SMTPServer sink = new SMTPServer(new SimpleMessageListenerAdapter(new SimpleMessageListener()
+        {
+            @Override
+            public boolean accept(final String from, final String recipient)
+            {
+                return true;
+            }
+
+            @Override
+            public void deliver(final String from, final String recipient, final java.io.InputStream data)
+            {
+                // discard
+            }
+        }));
+        sink.setPort(PORT);
+        sink.setMaxConnections(concurrency * 2);
+        sink.start();
+
+        try
+        {
+            // warm up
+            run(new SendExecutor(concurrency, messages), messages / 10);
+            run(new ThreadPerSendExecutor(concurrency), messages / 10);
+
+            report("platform threads (SendExecutor)", run(new SendExecutor(concurrency, messages), messages));
+            report("thread per send (virtual=" + ThreadPerSendExecutor.isVirtual() + ")",
+                    run(new ThreadPerSendExecutor(concurrency), messages));
+        }
+        finally
+        {
+            sink.stop();
+        }
+    }
+
+    private static long[] run(final Executor executor, final int messages) throws Exception
+    {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        final List<CompletableFuture<String>> futures = new ArrayList<>(messages);
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < messages; i++)
+        {
+            final Email email = new SimpleEmail();
+            email.setHostName("localhost");
+            email.setSmtpPort(PORT);
+            email.setFrom("test_from@apache.org");
+            email.addTo("test_to@apache.org");
+            email.setSubject("Benchmark " + i);
+            email.setMsg("Benchmark message body");
+            futures.add(email.sendAsync(executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.MINUTES);
+
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (executor instanceof SendExecutor)
+        {
+            ((SendExecutor) executor).shutdown(Duration.ofSeconds(10));
+        }
+        else
+        {
+            ((ThreadPerSendExecutor) executor).shutdown(Duration.ofSeconds(10));
+        }
+        return new long[] {messages, elapsedMillis, threads.getPeakThreadCount()};
+    }
+
+    private static void report(final String name, final long[] result)
+    {
+        System.out.printf("%-45s %6d messages in %6d ms = %8.1f msg/s, peak platform threads %d%n",
+                name, result[0], result[1], result[0] * 1000.0 / Math.max(1, result[1]), result[2]);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SendResult;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit test case for ThreadPerSendExecutor.
+ */
+public class ThreadPerSendExecutorTest extends AbstractEmailTest
+{
+    private ThreadPerSendExecutor executor;
+
+    @Before
+    public void setUpThreadPerSendExecutorTest()
+    {
+        this.executor = new ThreadPerSendExecutor(2);
+    }
+
+    @After
+    public void tearDownThreadPerSendExecutorTest()
+    {
+        executor.shutdown(Duration.ofSeconds(5));
+    }
+
+    private Email createEmail(final int port) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(port);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("Test Msg Subject");
+        email.setMsg("Test Msg Body");
+        return email;
+    }
+
+    @Test
+    public void testSendAsync() throws Exception
+    {
+        getMailServer();
+        final List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            futures.add(createEmail(getMailServerPort()).sendAsync(executor));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertEquals(5, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testMaxConcurrency() throws Exception
+    {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+
+        for (int i = 0; i < 10; i++)
+        {
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try
+                {
+                    Thread.sleep(20);
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void testPlatformThreadsStartedOnlyWithPermit() throws Exception
+    {
+        assumeFalse(ThreadPerSendExecutor.isVirtual());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(50);
+        final int otherThreads = countSendThreads();
+        final AtomicInteger maxThreads = new AtomicInteger();
+
+        for (int i = 0; i < 50; i++)
+        {
+            executor.execute(() -> {
+                try
+                {
+                    release.await();
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+            maxThreads.accumulateAndGet(countSendThreads() - otherThreads, Math::max);
+        }
+
+        assertEquals(50, executor.getActiveCount());
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue("threads: " + maxThreads.get(), maxThreads.get() <= 2);
+        assertTrue(executor.shutdown(Duration.ofSeconds(5)));
+        assertEquals(0, executor.getActiveCount());
+    }
+
+    @Test
+    public void testShutdownCancelsWaitingSends() throws Exception
+    {
+        assumeFalse(ThreadPerSendExecutor.isVirtual());
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            futures.add(future);
+            executor.execute(() -> {
+                try
+                {
+                    release.await();
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                future.complete("sent");
+            });
+        }
+
+        assertFalse(executor.shutdown(Duration.ofMillis(10)));
+        release.countDown();
+        assertTrue(executor.shutdown(Duration.ofSeconds(5)));
+        assertEquals(0, executor.getActiveCount());
+        int sent = 0;
+        for (final CompletableFuture<String> future : futures)
+        {
+            if (future.isDone())
+            {
+                sent++;
+            }
+        }
+        assertEquals(2, sent);
+    }
+
+    private static int countSendThreads()
+    {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith("commons-email-send-") && thread.isAlive())
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try
+            {
+                release.await();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertFalse(executor.shutdown(Duration.ofMillis(10)));
+        assertTrue(executor.isShutdown());
+
+        try
+        {
+            executor.execute(() -> { });
+            fail("Should have thrown an exception");
+        }
+        catch (final RejectedExecutionException e)
+        {
+            assertTrue(true);
+        }
+
+        assertTrue(executor.shutdown(Duration.ofSeconds(5)));
+        assertEquals(0, executor.getActiveCount());
+    }
+
+    @Test
+    public void testBatchSenderSendsGroupsConcurrently() throws Exception
+    {
+        getMailServer();
+        final int firstPort = getMailServerPort();
+        final org.subethamail.wiser.Wiser firstServer = fakeMailServer;
+        fakeMailServer = null;
+        getMailServer();
+
+        try
+        {
+            final List<Email> emails = new ArrayList<>();
+            emails.add(createEmail(firstPort));
+            emails.add(createEmail(getMailServerPort()));
+            emails.add(createEmail(firstPort));
+
+            final List<SendResult> results = new BatchSender(null, executor).sendAll(emails);
+
+            for (final SendResult result : results)
+            {
+                assertTrue(result.toString(), result.isSuccess());
+            }
+            assertEquals(2, firstServer.getMessages().size());
+            assertEquals(1, fakeMailServer.getMessages().size());
+        }
+        finally
+        {
+            firstServer.stop();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case for TokenBucket.
+ */
+public class TokenBucketTest
+{
+    @Test
+    public void testBurst()
+    {
+        final TokenBucket bucket = new TokenBucket(1, 3);
+        assertEquals(3, bucket.getAvailablePermits());
+
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertEquals(0, bucket.getAvailablePermits());
+        assertTrue(bucket.getWaitTime(TimeUnit.MILLISECONDS) > 500);
+    }
+
+    @Test
+    public void testRefill() throws Exception
+    {
+        final TokenBucket bucket = new TokenBucket(50, 1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+
+        Thread.sleep(40);
+        assertTrue(bucket.tryAcquire());
+    }
+
+    @Test
+    public void testBlockingAcquire() throws Exception
+    {
+        final TokenBucket bucket = new TokenBucket(20, 1);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+        {
+            bucket.acquire();
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // the first permit is immediate, the others are 50 ms apart
+        assertTrue("elapsed " + elapsed, elapsed >= 190);
+        assertFalse(bucket.tryAcquire(10, TimeUnit.MILLISECONDS));
+        assertTrue(bucket.tryAcquire(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testConcurrentTryAcquire() throws Exception
+    {
+        final TokenBucket bucket = new TokenBucket(0.001, 100);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            final List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                tasks.add(() -> {
+                    int acquired = 0;
+                    for (int j = 0; j < 1000; j++)
+                    {
+                        if (bucket.tryAcquire())
+                        {
+                            acquired++;
+                        }
+                    }
+                    return acquired;
+                });
+            }
+
+            int total = 0;
+            for (final Future<Integer> future : executor.invokeAll(tasks))
+            {
+                total += future.get();
+            }
+            assertEquals(100, total);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidArguments()
+    {
+        try
+        {
+            new TokenBucket(0, 1);
+            fail("Should have thrown an exception");
+        }
+        catch (final IllegalArgumentException e)
+        {
+            assertTrue(true);
+        }
+        try
+        {
+            new TokenBucket(1, 0);
+            fail("Should have thrown an exception");
+        }
+        catch (final IllegalArgumentException e)
+        {
+            assertTrue(true);
+        }
+    }
+}
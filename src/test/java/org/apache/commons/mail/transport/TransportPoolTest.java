@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Authenticator;
+import javax.mail.Message;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.DefaultAuthenticator;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * JUnit test case for TransportPool.
+ */
+public class TransportPoolTest extends AbstractEmailTest
+{
+    private TransportPool pool;
+
+    @Before
+    public void setUpTransportPoolTest()
+    {
+        this.pool = new TransportPool();
+        this.getMailServer();
+    }
+
+    @After
+    public void tearDownTransportPoolTest()
+    {
+        this.pool.close();
+    }
+
+    private Email createEmail(final String subject) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject(subject);
+        email.setMsg("Test Msg Body");
+        email.setMailTransport(pool);
+        return email;
+    }
+
+    @Test
+    public void testSendReusesTransport() throws Exception
+    {
+        TransportKey key = null;
+
+        for (int i = 0; i < 5; i++)
+        {
+            final Email email = createEmail("Test Msg Subject " + i);
+            assertNotNull(email.send());
+            key = TransportKey.of(email.getMailSession());
+            assertEquals(1, pool.getNumIdle(key));
+            assertEquals(0, pool.getNumActive(key));
+        }
+
+        assertEquals(5, fakeMailServer.getMessages().size());
+        assertEquals("Test Msg Subject 4", fakeMailServer.getMessages().get(4).getMimeMessage().getSubject());
+        assertEquals("localhost", key.getHost());
+        assertEquals(String.valueOf(getMailServerPort()), key.getPort());
+    }
+
+    @Test
+    public void testMaxMessagesPerConnection() throws Exception
+    {
+        pool.setMaxMessagesPerConnection(2);
+
+        final Email first = createEmail("first");
+        first.send();
+        final TransportKey key = TransportKey.of(first.getMailSession());
+        assertEquals(1, pool.getNumIdle(key));
+
+        createEmail("second").send();
+        assertEquals("transport should be recycled", 0, pool.getNumIdle(key));
+
+        createEmail("third").send();
+        assertEquals(1, pool.getNumIdle(key));
+        assertEquals(3, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testEvict() throws Exception
+    {
+        final Email email = createEmail("evict");
+        email.send();
+        final TransportKey key = TransportKey.of(email.getMailSession());
+
+        pool.setMinIdlePerKey(2);
+        pool.evict();
+        assertEquals(2, pool.getNumIdle(key));
+
+        pool.setMinIdlePerKey(0);
+        pool.setMaxIdleTimeMillis(-1);
+        pool.evict();
+        assertEquals(0, pool.getNumIdle(key));
+    }
+
+    @Test
+    public void testStaleTransportIsReplaced() throws Exception
+    {
+        pool.setValidationIntervalMillis(0);
+
+        createEmail("before restart").send();
+        fakeMailServer.stop();
+        fakeMailServer = new Wiser();
+        fakeMailServer.setPort(getMailServerPort());
+        fakeMailServer.start();
+
+        createEmail("after restart").send();
+        assertEquals("after restart", fakeMailServer.getMessages().get(0).getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testSendAfterClose() throws Exception
+    {
+        pool.close();
+
+        try
+        {
+            createEmail("closed").send();
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+        }
+    }
+
+    @Test
+    public void testEvictDoesNotExceedMaxTotal() throws Exception
+    {
+        pool.setMaxTotalPerKey(2);
+        final Email email = createEmail("evict");
+        email.send();
+        final TransportKey key = TransportKey.of(email.getMailSession());
+
+        pool.setMinIdlePerKey(5);
+        pool.setMaxIdlePerKey(5);
+        pool.evict();
+        assertEquals(2, pool.getNumIdle(key));
+        assertEquals(0, pool.getNumActive(key));
+    }
+
+    @Test
+    public void testKeyComputedOncePerSession() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        final Email email = createEmail("key");
+        email.setAuthenticator(new Authenticator()
+        {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication()
+            {
+                requests.incrementAndGet();
+                return new PasswordAuthentication("user", "secret");
+            }
+        });
+        final Session session = email.getMailSession();
+
+        final TransportKey key = TransportKey.of(session);
+        assertSame(key, TransportKey.of(session));
+        assertEquals(1, requests.get());
+        assertEquals("user", key.getUser());
+    }
+
+    @Test
+    public void testKeyDistinguishesCredentialsAndProperties() throws Exception
+    {
+        final Email first = createEmail("first");
+        first.setAuthenticator(new DefaultAuthenticator("user", "first"));
+        final Email second = createEmail("second");
+        second.setAuthenticator(new DefaultAuthenticator("user", "second"));
+        final Email third = createEmail("third");
+        third.setAuthenticator(new DefaultAuthenticator("user", "first"));
+        final Email fourth = createEmail("fourth");
+        fourth.setAuthenticator(new DefaultAuthenticator("user", "first"));
+        fourth.setSocketTimeout(1234);
+
+        final TransportKey key = TransportKey.of(first.getMailSession());
+        assertNotEquals(key, TransportKey.of(second.getMailSession()));
+        assertEquals(key, TransportKey.of(third.getMailSession()));
+        assertNotEquals(key, TransportKey.of(fourth.getMailSession()));
+        assertEquals(key.toString(), TransportKey.of(second.getMailSession()).toString());
+    }
+
+    @Test
+    public void testTransportNotReusedAfterShutdown() throws Exception
+    {
+        final Session session = Session.getInstance(new Properties());
+        final AtomicBoolean connected = new AtomicBoolean(true);
+        final Transport transport = new Transport(session, null)
+        {
+            @Override
+            public void sendMessage(final Message message, final Address[] addresses)
+            {
+                // not used
+            }
+
+            @Override
+            public boolean isConnected()
+            {
+                return connected.get();
+            }
+        };
+        final SendFailedException rejected = new SendFailedException("Invalid Addresses",
+                new SMTPAddressFailedException(new InternetAddress("to@apache.org"), "RCPT TO:<to@apache.org>", 550,
+                        "550 no such user"));
+
+        assertTrue(TransportPool.isReusable(transport, rejected));
+        assertFalse(TransportPool.isReusable(transport,
+                new SMTPSendFailedException("DATA", 421, "421 shutting down", null, null, null, null)));
+        connected.set(false);
+        assertFalse(TransportPool.isReusable(transport, rejected));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case for ContentPipe.
+ */
+public class ContentPipeTest
+{
+    private static final int BLOCK = ContentPipe.BLOCK_SIZE;
+
+    private static CompletableFuture<Void> writeAsync(final ContentPipe pipe, final int length)
+    {
+        return CompletableFuture.runAsync(() -> {
+            try
+            {
+                pipe.write(new byte[length]);
+                pipe.close();
+            }
+            catch (final IOException e)
+            {
+                pipe.fail(e);
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static int size(final List<ByteBuffer> blocks)
+    {
+        int size = 0;
+        for (final ByteBuffer block : blocks)
+        {
+            size += block.remaining();
+        }
+        return size;
+    }
+
+    @Test
+    public void testWriterBlocksAtCapacity() throws Exception
+    {
+        final AtomicInteger signals = new AtomicInteger();
+        final ContentPipe pipe = new ContentPipe(2 * BLOCK, signals::incrementAndGet);
+        assertNull(pipe.take(2 * BLOCK, true));
+
+        final CompletableFuture<Void> writer = writeAsync(pipe, 5 * BLOCK + 10);
+        try
+        {
+            writer.get(200, TimeUnit.MILLISECONDS);
+            fail("Should have blocked at the capacity");
+        }
+        catch (final TimeoutException e)
+        {
+            // expected
+        }
+        assertEquals(1, signals.get());
+
+        int total = 0;
+        while (!pipe.isDrained())
+        {
+            final List<ByteBuffer> blocks = pipe.take(2 * BLOCK, false);
+            if (blocks != null)
+            {
+                assertTrue(size(blocks) <= 2 * BLOCK);
+                total += size(blocks);
+            }
+            else
+            {
+                Thread.sleep(10);
+            }
+        }
+        writer.get(5, TimeUnit.SECONDS);
+        assertEquals(5 * BLOCK + 10, total);
+        assertEquals(0, pipe.take(2 * BLOCK, false).size());
+    }
+
+    @Test
+    public void testPartialTake() throws Exception
+    {
+        final ContentPipe pipe = new ContentPipe(4 * BLOCK, () -> { });
+        pipe.write(new byte[BLOCK + 1]);
+
+        // whole blocks only before the end of the content
+        assertNull(pipe.take(4 * BLOCK, false));
+        assertEquals(BLOCK, size(pipe.take(4 * BLOCK, true)));
+        assertNull(pipe.take(4 * BLOCK, true));
+
+        pipe.close();
+        assertEquals(1, size(pipe.take(4 * BLOCK, false)));
+        assertTrue(pipe.isDrained());
+    }
+
+    @Test
+    public void testCancelReleasesWriter() throws Exception
+    {
+        final ContentPipe pipe = new ContentPipe(BLOCK, () -> { });
+        final CompletableFuture<Void> writer = writeAsync(pipe, 3 * BLOCK);
+        Thread.sleep(100);
+        assertFalse(writer.isDone());
+
+        pipe.cancel();
+        try
+        {
+            writer.get(5, TimeUnit.SECONDS);
+            fail("Should have failed");
+        }
+        catch (final Exception e)
+        {
+            assertTrue(e.getCause().getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testFailureReported() throws Exception
+    {
+        final ContentPipe pipe = new ContentPipe(BLOCK, () -> { });
+        pipe.fail(new MessagingException("broken"));
+        try
+        {
+            pipe.take(BLOCK, true);
+            fail("Should have failed");
+        }
+        catch (final MessagingException e)
+        {
+            assertEquals("broken", e.getNextException().getMessage());
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A minimal SMTP server for testing the protocol features Wiser does not
+ * offer: STARTTLS, implicit TLS, authentication, PIPELINING and CHUNKING.
+ * Records the commands and the content received.
+ */
+final class MockSmtpServer implements Closeable
+{
+    static final String USER = "user";
+
+    static final String PASSWORD = "password";
+
+    private static final String STORE_PASSWORD = "changeit";
+
+    private static SSLContext sslContext;
+
+    private final ServerSocket serverSocket;
+
+    private final SSLContext serverContext;
+
+    private final boolean implicitTls;
+
+    private final boolean requireAuth;
+
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<byte[]> rawMessages = Collections.synchronizedList(new ArrayList<byte[]>());
+
+    private volatile String rejectedRecipient;
+
+    private volatile boolean secure;
+
+    private volatile boolean pipelining;
+
+    private volatile boolean chunking;
+
+    private volatile boolean binaryMime;
+
+    private volatile boolean holdReplies;
+
+    /**
+     * Starts a server on a free port.
+     *
+     * @param serverContext the TLS context or <code>null</code> to not offer TLS
+     * @param implicitTls whether to use TLS from the start
+     * @param requireAuth whether to require authentication
+     */
+    MockSmtpServer(final SSLContext serverContext, final boolean implicitTls, final boolean requireAuth)
+            throws IOException
+    {
+        this.serverContext = serverContext;
+        this.implicitTls = implicitTls;
+        this.requireAuth = requireAuth;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+
+        final Thread acceptor = new Thread(this::accept, "mock-smtp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Creates a context with a self-signed certificate for localhost which
+     * serves both as server key and client trust store.
+     */
+    static synchronized SSLContext getSSLContext() throws Exception
+    {
+        if (sslContext == null)
+        {
+            final File dir = Files.createTempDirectory("mock-smtp").toFile();
+            final File keyStoreFile = new File(dir, "localhost.p12");
+            final String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost",
+                    "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost",
+                    "-storetype", "PKCS12", "-keystore", keyStoreFile.getPath(),
+                    "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD)
+                    .redirectErrorStream(true).start();
+            drain(process.getInputStream());
+            if (process.waitFor() != 0)
+            {
+                throw new IllegalStateException("keytool failed");
+            }
+
+            final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = new FileInputStream(keyStoreFile))
+            {
+                keyStore.load(in, STORE_PASSWORD.toCharArray());
+            }
+            keyStoreFile.delete();
+            dir.delete();
+
+            final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, STORE_PASSWORD.toCharArray());
+            final TrustManagerFactory trustManagers =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore);
+
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        }
+        return sslContext;
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    void setRejectedRecipient(final String rejectedRecipient)
+    {
+        this.rejectedRecipient = rejectedRecipient;
+    }
+
+    void setPipelining(final boolean pipelining)
+    {
+        this.pipelining = pipelining;
+    }
+
+    void setChunking(final boolean chunking)
+    {
+        this.chunking = chunking;
+    }
+
+    void setBinaryMime(final boolean binaryMime)
+    {
+        this.binaryMime = binaryMime;
+    }
+
+    /**
+     * Holds the replies to the envelope until DATA or BDAT has been received,
+     * so only a client pipelining the whole transaction gets a reply.
+     */
+    void setHoldReplies(final boolean holdReplies)
+    {
+        this.holdReplies = holdReplies;
+    }
+
+    List<String> getCommands()
+    {
+        synchronized (commands)
+        {
+            return new ArrayList<String>(commands);
+        }
+    }
+
+    List<String> getMessages()
+    {
+        synchronized (messages)
+        {
+            return new ArrayList<String>(messages);
+        }
+    }
+
+    /**
+     * @return the messages received with BDAT as sent
+     */
+    List<byte[]> getRawMessages()
+    {
+        synchronized (rawMessages)
+        {
+            return new ArrayList<byte[]>(rawMessages);
+        }
+    }
+
+    /**
+     * @return whether the last transferred message was encrypted
+     */
+    boolean isSecure()
+    {
+        return secure;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serverSocket.close();
+    }
+
+    private void accept()
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                final Socket socket = serverSocket.accept();
+                final Thread handler = new Thread(() -> handle(socket), "mock-smtp-session");
+                handler.setDaemon(true);
+                handler.start();
+            }
+            catch (final IOException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private void handle(final Socket plain)
+    {
+        Socket socket = plain;
+        try
+        {
+            boolean tls = false;
+            if (implicitTls)
+            {
+                socket = upgrade(socket);
+                tls = true;
+            }
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            boolean authenticated = false;
+            int validRecipients = 0;
+            final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            final List<String> held = new ArrayList<String>();
+
+            reply(out, "220 localhost mock ESMTP");
+            String line;
+            while ((line = readLine(in)) != null)
+            {
+                commands.add(line);
+                final String command = line.toUpperCase(Locale.ROOT);
+
+                if (command.startsWith("EHLO"))
+                {
+                    final StringBuilder ehlo = new StringBuilder("250-localhost\r\n250-SIZE 10485760\r\n");
+                    if (serverContext != null && !tls)
+                    {
+                        ehlo.append("250-STARTTLS\r\n");
+                    }
+                    if (requireAuth)
+                    {
+                        ehlo.append("250-AUTH PLAIN LOGIN\r\n");
+                    }
+                    if (pipelining)
+                    {
+                        ehlo.append("250-PIPELINING\r\n");
+                    }
+                    if (chunking)
+                    {
+                        ehlo.append("250-CHUNKING\r\n");
+                    }
+                    if (binaryMime)
+                    {
+                        ehlo.append("250-BINARYMIME\r\n");
+                    }
+                    ehlo.append("250 8BITMIME");
+                    reply(out, ehlo.toString());
+                }
+                else if (command.startsWith("HELO") || command.startsWith("RSET") || command.startsWith("NOOP"))
+                {
+                    validRecipients = 0;
+                    chunks.reset();
+                    reply(out, "250 OK");
+                }
+                else if (command.equals("STARTTLS") && serverContext != null && !tls)
+                {
+                    reply(out, "220 Ready to start TLS");
+                    socket = upgrade(socket);
+                    in = socket.getInputStream();
+                    out = socket.getOutputStream();
+                    tls = true;
+                }
+                else if (command.startsWith("AUTH PLAIN "))
+                {
+                    final String credentials = new String(
+                            Base64.getDecoder().decode(line.substring(11).trim()), StandardCharsets.UTF_8);
+                    authenticated = credentials.equals("\0" + USER + "\0" + PASSWORD);
+                    reply(out, authenticated ? "235 Authenticated" : "535 Authentication failed");
+                }
+                else if (command.startsWith("MAIL FROM:"))
+                {
+                    validRecipients = 0;
+                    held.add(requireAuth && !authenticated ? "530 Authentication required" : "250 OK");
+                    if (!holdReplies)
+                    {
+                        reply(out, held);
+                    }
+                }
+                else if (command.startsWith("RCPT TO:"))
+                {
+                    final String rejected = rejectedRecipient;
+                    if (rejected != null && line.contains("<" + rejected + ">"))
+                    {
+                        held.add("550 No such user");
+                    }
+                    else
+                    {
+                        held.add("250 OK");
+                        validRecipients++;
+                    }
+                    if (!holdReplies)
+                    {
+                        reply(out, held);
+                    }
+                }
+                else if (command.equals("DATA"))
+                {
+                    if (validRecipients == 0)
+                    {
+                        held.add("554 No valid recipients");
+                        reply(out, held);
+                        continue;
+                    }
+                    held.add("354 End data with <CR><LF>.<CR><LF>");
+                    reply(out, held);
+                    messages.add(readData(in));
+                    secure = tls;
+                    reply(out, "250 OK queued");
+                }
+                else if (command.startsWith("BDAT ") && chunking)
+                {
+                    final String[] arguments = line.split(" ");
+                    final byte[] chunk = new byte[Integer.parseInt(arguments[1])];
+                    int read = 0;
+                    while (read < chunk.length)
+                    {
+                        final int count = in.read(chunk, read, chunk.length - read);
+                        if (count < 0)
+                        {
+                            return;
+                        }
+                        read += count;
+                    }
+                    final boolean last = arguments.length > 2 && arguments[2].equalsIgnoreCase("LAST");
+                    if (validRecipients == 0)
+                    {
+                        held.add("554 No valid recipients");
+                    }
+                    else
+                    {
+                        chunks.write(chunk);
+                        held.add("250 " + chunk.length + " octets received");
+                        if (last)
+                        {
+                            messages.add(new String(chunks.toByteArray(), StandardCharsets.UTF_8));
+                            rawMessages.add(chunks.toByteArray());
+                            secure = tls;
+                        }
+                    }
+                    if (last)
+                    {
+                        chunks.reset();
+                        validRecipients = 0;
+                    }
+                    reply(out, held);
+                }
+                else if (command.equals("QUIT"))
+                {
+                    reply(out, "221 Bye");
+                    break;
+                }
+                else
+                {
+                    reply(out, "500 Unknown command");
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            // the client went away
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (final IOException e)
+            {
+                // ignore
+            }
+        }
+    }
+
+    private Socket upgrade(final Socket socket) throws IOException
+    {
+        final SSLSocket sslSocket = (SSLSocket) serverContext.getSocketFactory().createSocket(
+                socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    private static String readData(final InputStream in) throws IOException
+    {
+        final StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = readLine(in)) != null && !line.equals("."))
+        {
+            data.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+        }
+        return data.toString();
+    }
+
+    private static String readLine(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n')
+        {
+            if (b < 0)
+            {
+                return null;
+            }
+            line.write(b);
+        }
+        final byte[] bytes = line.toByteArray();
+        final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void reply(final OutputStream out, final List<String> replies) throws IOException
+    {
+        for (final String reply : replies)
+        {
+            reply(out, reply);
+        }
+        replies.clear();
+    }
+
+    private static void reply(final OutputStream out, final String reply) throws IOException
+    {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void drain(final InputStream in) throws IOException
+    {
+        final byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0)
+        {
+            // discard the keytool output
+        }
+    }
+}
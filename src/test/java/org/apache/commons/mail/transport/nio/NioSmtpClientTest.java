@@ -0,0 +1,588 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.FileBodyPart;
+import org.apache.commons.mail.MultiPartEmail;
+import org.apache.commons.mail.SendResult;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import com.sun.mail.util.MailConnectException;
+
+/**
+ * JUnit test case for NioSmtpClient.
+ */
+public class NioSmtpClientTest extends AbstractEmailTest
+{
+    private static final String REJECTED_TO = "rejected@apache.org";
+
+    private static final long TIMEOUT = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NioSmtpClient client;
+
+    @Before
+    public void setUpNioSmtpClientTest() throws Exception
+    {
+        client = new NioSmtpClient(2);
+    }
+
+    @After
+    public void tearDownNioSmtpClientTest()
+    {
+        client.close();
+    }
+
+    private void startWiser()
+    {
+        fakeMailServer = new Wiser()
+        {
+            @Override
+            public boolean accept(final String from, final String recipient)
+            {
+                return !REJECTED_TO.equals(recipient);
+            }
+        };
+        fakeMailServer.setPort(getMailServerPort());
+        fakeMailServer.start();
+    }
+
+    private Email createEmail(final int port, final String subject) throws EmailException
+    {
+        return createEmail(port, strTestMailTo, subject);
+    }
+
+    private Email createEmail(final int port, final String to, final String subject) throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(port);
+        email.setFrom(strTestMailFrom);
+        email.addTo(to);
+        email.setSubject(subject);
+        email.setMsg("Test Msg Body\n.line starting with a dot\n.");
+        return email;
+    }
+
+    private CompletableFuture<String> send(final Email email) throws EmailException
+    {
+        email.buildMimeMessage();
+        return client.send(email.getMailSession(), email.getMimeMessage());
+    }
+
+    private static Throwable failure(final CompletableFuture<String> future) throws Exception
+    {
+        try
+        {
+            future.get(TIMEOUT, TimeUnit.SECONDS);
+            fail("Should have failed");
+            return null;
+        }
+        catch (final ExecutionException e)
+        {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void testSend() throws Exception
+    {
+        startWiser();
+
+        for (int i = 0; i < 3; i++)
+        {
+            final Email email = createEmail(getMailServerPort(), "message " + i);
+            final String messageId = send(email).get(TIMEOUT, TimeUnit.SECONDS);
+            assertEquals(email.getMimeMessage().getMessageID(), messageId);
+        }
+
+        assertEquals(3, fakeMailServer.getMessages().size());
+        final WiserMessage message = fakeMailServer.getMessages().get(2);
+        assertEquals("message 2", message.getMimeMessage().getSubject());
+        assertEquals(strTestMailFrom, message.getEnvelopeSender());
+        assertEquals(strTestMailTo, message.getEnvelopeReceiver());
+        assertTrue(message.toString().contains("\r\n.line starting with a dot\r\n.\r\n"));
+        // the connection has been reused
+        assertEquals(1, client.getConnectionCount());
+    }
+
+    @Test
+    public void testBccNotTransferred() throws Exception
+    {
+        startWiser();
+
+        final Email email = createEmail(getMailServerPort(), "bcc");
+        email.addBcc("secret@example.com");
+        send(email).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(2, fakeMailServer.getMessages().size());
+        for (final WiserMessage message : fakeMailServer.getMessages())
+        {
+            assertNull(message.getMimeMessage().getHeader("Bcc"));
+            assertFalse(new String(message.getData(), StandardCharsets.ISO_8859_1).contains("secret@example.com"));
+        }
+        assertEquals("secret@example.com", fakeMailServer.getMessages().get(1).getEnvelopeReceiver());
+    }
+
+    @Test
+    public void testMailTransport() throws Exception
+    {
+        startWiser();
+
+        final Email email = createEmail(getMailServerPort(), "transport");
+        email.setMailTransport(client);
+        final String messageId = email.send();
+        assertEquals(messageId, fakeMailServer.getMessages().get(0).getMimeMessage().getMessageID());
+
+        final List<MimeMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            final Email batched = createEmail(getMailServerPort(), i == 5 ? REJECTED_TO : strTestMailTo, "batch " + i);
+            batched.buildMimeMessage();
+            batched.getMimeMessage().saveChanges();
+            messages.add(batched.getMimeMessage());
+        }
+        final List<SendResult> results = client.sendAll(messages);
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(i != 5, results.get(i).isSuccess());
+        }
+        assertEquals(10, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testSendConcurrently() throws Exception
+    {
+        startWiser();
+        client.setMaxConnectionsPerRelay(4);
+
+        final List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            futures.add(send(createEmail(getMailServerPort(), "message " + i)));
+        }
+        for (final CompletableFuture<String> future : futures)
+        {
+            assertNotNull(future.get(TIMEOUT, TimeUnit.SECONDS));
+        }
+
+        assertEquals(50, fakeMailServer.getMessages().size());
+        assertTrue(client.getConnectionCount() <= 4);
+    }
+
+    @Test
+    public void testRejectedRecipient() throws Exception
+    {
+        startWiser();
+
+        final Throwable cause = failure(send(createEmail(getMailServerPort(), REJECTED_TO, "rejected")));
+        assertTrue(cause instanceof SendFailedException);
+        assertEquals(REJECTED_TO, ((InternetAddress) ((SendFailedException) cause).getInvalidAddresses()[0])
+                .getAddress());
+
+        assertNotNull(send(createEmail(getMailServerPort(), "accepted")).get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(1, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception
+    {
+        final Throwable cause = failure(send(createEmail(getMailServerPort(), "refused")));
+        assertTrue(cause instanceof MailConnectException);
+        assertEquals(0, client.getConnectionCount());
+    }
+
+    @Test
+    public void testIdleConnectionClosed() throws Exception
+    {
+        startWiser();
+        client.setIdleTimeoutMillis(100);
+
+        send(createEmail(getMailServerPort(), "idle")).get(TIMEOUT, TimeUnit.SECONDS);
+        final long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (client.getConnectionCount() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals(0, client.getConnectionCount());
+    }
+
+    @Test
+    public void testStartTlsWithAuthentication() throws Exception
+    {
+        client.setSSLContext(MockSmtpServer.getSSLContext());
+        try (MockSmtpServer server = new MockSmtpServer(MockSmtpServer.getSSLContext(), false, true))
+        {
+            final Email email = createEmail(server.getPort(), "starttls");
+            email.setStartTLSEnabled(true);
+            email.setStartTLSRequired(true);
+            email.setAuthentication(MockSmtpServer.USER, MockSmtpServer.PASSWORD);
+            send(email).get(TIMEOUT, TimeUnit.SECONDS);
+
+            assertTrue(server.isSecure());
+            assertEquals(1, server.getMessages().size());
+            assertTrue(server.getMessages().get(0).contains("Subject: starttls"));
+            final List<String> commands = server.getCommands();
+            assertEquals("STARTTLS", commands.get(1));
+            assertTrue(commands.get(3).startsWith("AUTH PLAIN "));
+        }
+    }
+
+    @Test
+    public void testSSLOnConnect() throws Exception
+    {
+        client.setSSLContext(MockSmtpServer.getSSLContext());
+        try (MockSmtpServer server = new MockSmtpServer(MockSmtpServer.getSSLContext(), true, false))
+        {
+            for (int i = 0; i < 2; i++)
+            {
+                final Email email = createEmail(server.getPort(), "ssl");
+                email.setSSLOnConnect(true);
+                email.setSslSmtpPort(String.valueOf(server.getPort()));
+                send(email).get(TIMEOUT, TimeUnit.SECONDS);
+            }
+
+            assertTrue(server.isSecure());
+            assertEquals(2, server.getMessages().size());
+        }
+    }
+
+    @Test
+    public void testAuthenticationFailure() throws Exception
+    {
+        try (MockSmtpServer server = new MockSmtpServer(null, false, true))
+        {
+            final Email email = createEmail(server.getPort(), "auth");
+            email.setAuthentication(MockSmtpServer.USER, "wrong");
+            final Throwable cause = failure(send(email));
+            assertTrue(cause instanceof AuthenticationFailedException);
+            assertEquals(0, server.getMessages().size());
+        }
+    }
+
+    private static int indexOf(final List<String> commands, final String prefix)
+    {
+        for (int i = 0; i < commands.size(); i++)
+        {
+            if (commands.get(i).startsWith(prefix))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testPipelining() throws Exception
+    {
+        client.setPipeliningEnabled(true);
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            server.setPipelining(true);
+            // only answers once the whole transaction has been received
+            server.setHoldReplies(true);
+
+            final Email email = createEmail(server.getPort(), "pipelined");
+            email.addTo("second@apache.org");
+            email.addTo("third@apache.org");
+            email.setSendPartial(true);
+            send(email).get(TIMEOUT, TimeUnit.SECONDS);
+
+            assertEquals(1, server.getMessages().size());
+            final List<String> commands = server.getCommands();
+            final int mail = indexOf(commands, "MAIL FROM:");
+            assertEquals("RCPT TO:<third@apache.org>", commands.get(mail + 3));
+            assertEquals("DATA", commands.get(mail + 4));
+        }
+    }
+
+    @Test
+    public void testPipeliningWithRejectedRecipient() throws Exception
+    {
+        client.setPipeliningEnabled(true);
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            server.setPipelining(true);
+            server.setRejectedRecipient(REJECTED_TO);
+
+            final Email email = createEmail(server.getPort(), "rejected");
+            email.addTo(REJECTED_TO);
+            final Throwable cause = failure(send(email));
+            assertTrue(cause instanceof SendFailedException);
+            assertEquals(1, ((SendFailedException) cause).getValidUnsentAddresses().length);
+            assertEquals(1, ((SendFailedException) cause).getInvalidAddresses().length);
+            assertEquals(-1, indexOf(server.getCommands(), "DATA"));
+
+            // the transaction is reset and the connection stays usable
+            send(createEmail(server.getPort(), "accepted")).get(TIMEOUT, TimeUnit.SECONDS);
+            assertEquals(1, server.getMessages().size());
+            assertTrue(server.getMessages().get(0).contains("Subject: accepted"));
+            assertTrue(indexOf(server.getCommands(), "RSET") > 0);
+        }
+    }
+
+    @Test
+    public void testChunking() throws Exception
+    {
+        client.setPipeliningEnabled(true).setChunkingEnabled(true);
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            server.setPipelining(true);
+            server.setChunking(true);
+            server.setHoldReplies(true);
+
+            send(createEmail(server.getPort(), "chunked")).get(TIMEOUT, TimeUnit.SECONDS);
+
+            final List<String> commands = server.getCommands();
+            assertEquals(-1, indexOf(commands, "DATA"));
+            assertTrue(commands.get(indexOf(commands, "BDAT ")).endsWith(" LAST"));
+            assertEquals(1, server.getMessages().size());
+            // sent verbatim, without dot-stuffing or terminating dot line
+            assertTrue(server.getMessages().get(0).endsWith("\r\n.line starting with a dot\r\n.\r\n"));
+        }
+    }
+
+    @Test
+    public void testChunkingLargeMessageWithoutPipelining() throws Exception
+    {
+        client.setPipeliningEnabled(true).setChunkingEnabled(true);
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            server.setChunking(true);
+
+            final StringBuilder body = new StringBuilder();
+            while (body.length() < 1536 * 1024)
+            {
+                body.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\n");
+            }
+            final Email email = createEmail(server.getPort(), "large");
+            email.setMsg(body.toString());
+            send(email).get(TIMEOUT, TimeUnit.SECONDS);
+
+            final List<String> commands = server.getCommands();
+            final int first = indexOf(commands, "BDAT ");
+            assertEquals("BDAT 1048576", commands.get(first));
+            assertTrue(commands.get(first + 1).endsWith(" LAST"));
+            assertEquals(1, server.getMessages().size());
+            assertTrue(server.getMessages().get(0).length() > 1536 * 1024);
+        }
+    }
+
+    @Test
+    public void testLargeMessageStreamedWithData() throws Exception
+    {
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            final StringBuilder body = new StringBuilder();
+            int lines = 0;
+            while (body.length() < 3 * 1024 * 1024)
+            {
+                body.append(".line ").append(lines++).append(" starting with a dot\n");
+            }
+            final Email email = createEmail(server.getPort(), "large");
+            email.setMsg(body.toString());
+            send(email).get(TIMEOUT, TimeUnit.SECONDS);
+
+            assertEquals(1, server.getMessages().size());
+            final String message = server.getMessages().get(0);
+            assertTrue(message.contains("\r\n.line 0 starting with a dot\r\n"));
+            assertTrue(message.endsWith("\r\n.line " + (lines - 1) + " starting with a dot\r\n"));
+        }
+    }
+
+    @Test
+    public void testEncodingFailure() throws Exception
+    {
+        startWiser();
+
+        final Email email = createEmail(getMailServerPort(), "broken");
+        email.buildMimeMessage();
+        final MimeMessage broken = new MimeMessage(email.getMimeMessage())
+        {
+            @Override
+            public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException
+            {
+                os.write(new byte[100000]);
+                throw new IOException("unreadable attachment");
+            }
+        };
+
+        final Throwable cause = failure(client.send(email.getMailSession(), broken));
+        assertTrue(cause.getMessage(), cause.getMessage().contains("Encoding the message failed"));
+        assertEquals(0, fakeMailServer.getMessages().size());
+
+        // other messages are not affected
+        send(createEmail(getMailServerPort(), "accepted")).get(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(1, fakeMailServer.getMessages().size());
+    }
+
+    @Test
+    public void testFallbackWithoutExtensions() throws Exception
+    {
+        client.setPipeliningEnabled(true).setChunkingEnabled(true);
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            final Email email = createEmail(server.getPort(), "fallback");
+            email.addTo("second@apache.org");
+            send(email).get(TIMEOUT, TimeUnit.SECONDS);
+
+            final List<String> commands = server.getCommands();
+            assertEquals(-1, indexOf(commands, "BDAT "));
+            assertTrue(indexOf(commands, "DATA") > indexOf(commands, "RCPT TO:<second@apache.org>"));
+            assertEquals(1, server.getMessages().size());
+            assertTrue(server.getMessages().get(0).endsWith("\r\n.line starting with a dot\r\n.\r\n"));
+        }
+    }
+
+    private MultiPartEmail createBinaryEmail(final int port, final byte[] content) throws Exception
+    {
+        final File file = folder.newFile("data.bin");
+        Files.write(file.toPath(), content);
+        final MultiPartEmail email = new MultiPartEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(port);
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.setSubject("binary");
+        email.setMsg("Test Msg Body\n.line starting with a dot");
+        email.attach(FileBodyPart.binary(file));
+        return email;
+    }
+
+    @Test
+    public void testBinaryMime() throws Exception
+    {
+        client.setChunkingEnabled(true);
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            server.setChunking(true);
+            server.setBinaryMime(true);
+            final byte[] content = "binary\r\n.\r\nbare\nline\rend\0".getBytes(StandardCharsets.ISO_8859_1);
+            final Email email = createBinaryEmail(server.getPort(), content);
+            assertFalse(client.supportsExtension(email.getMailSession(), "BINARYMIME"));
+
+            send(email).get(TIMEOUT, TimeUnit.SECONDS);
+
+            final List<String> commands = server.getCommands();
+            assertTrue(commands.get(indexOf(commands, "MAIL FROM:")).endsWith(" BODY=BINARYMIME"));
+            assertEquals(-1, indexOf(commands, "DATA"));
+            final String message = new String(server.getRawMessages().get(0), StandardCharsets.ISO_8859_1);
+            assertTrue(message.contains("Content-Transfer-Encoding: binary\r\n"));
+            assertTrue(message.contains(new String(content, StandardCharsets.ISO_8859_1)));
+            // the text is still sent with CRLF line endings
+            assertTrue(message.contains("Test Msg Body\r\n.line starting with a dot"));
+            assertTrue(client.supportsExtension(email.getMailSession(), "binarymime"));
+        }
+    }
+
+    @Test
+    public void testBinaryMimeUnsupported() throws Exception
+    {
+        client.setChunkingEnabled(true);
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            server.setChunking(true);
+
+            final Email email = createBinaryEmail(server.getPort(), new byte[] {0, 1, 2});
+            final Throwable failure = failure(send(email));
+            assertTrue(failure.getMessage(), failure.getMessage().contains("BINARYMIME"));
+            assertEquals(-1, indexOf(server.getCommands(), "MAIL FROM:"));
+            assertFalse(client.supportsExtension(email.getMailSession(), "BINARYMIME"));
+            assertTrue(client.supportsExtension(email.getMailSession(), "CHUNKING"));
+
+            // the connection stays usable
+            send(createEmail(server.getPort(), "after binary")).get(TIMEOUT, TimeUnit.SECONDS);
+            assertEquals(1, server.getMessages().size());
+        }
+    }
+
+    @Test
+    public void testBinaryRequiresChunking() throws Exception
+    {
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            final Throwable failure = failure(send(createBinaryEmail(server.getPort(), new byte[] {0})));
+            assertTrue(failure.getMessage(), failure.getMessage().contains("CHUNKING"));
+            assertTrue(server.getCommands().isEmpty());
+        }
+    }
+
+    @Test
+    public void testEightBitMime() throws Exception
+    {
+        try (MockSmtpServer server = new MockSmtpServer(null, false, false))
+        {
+            final Email email = createEmail(server.getPort(), "8bit");
+            email.buildMimeMessage();
+            final MimeMessage message = email.getMimeMessage();
+            message.setText("caf\u00e9", "UTF-8");
+            message.setHeader("Content-Transfer-Encoding", "8bit");
+            client.send(email.getMailSession(), message).get(TIMEOUT, TimeUnit.SECONDS);
+
+            final List<String> commands = server.getCommands();
+            assertTrue(commands.get(indexOf(commands, "MAIL FROM:")).endsWith(" BODY=8BITMIME"));
+            assertTrue(server.getMessages().get(0).contains("caf\u00e9"));
+
+            send(createEmail(server.getPort(), "7bit")).get(TIMEOUT, TimeUnit.SECONDS);
+            String mailFrom = null;
+            for (final String command : server.getCommands())
+            {
+                if (command.startsWith("MAIL FROM:"))
+                {
+                    mailFrom = command;
+                }
+            }
+            assertFalse(mailFrom, mailFrom.contains("BODY="));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case for SmtpDataOutputStream.
+ */
+public class SmtpDataOutputStreamTest
+{
+    private static String encode(final String content, final boolean dotStuffing) throws Exception
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final SmtpDataOutputStream out = new SmtpDataOutputStream(buffer, dotStuffing);
+        out.write(content.getBytes(StandardCharsets.US_ASCII));
+        out.finish();
+        out.finish();
+        return new String(buffer.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testDotStuffing() throws Exception
+    {
+        assertEquals("..first\r\nsecond.\r\n...\r\n.\r\n", encode(".first\r\nsecond.\r\n..\r\n", true));
+    }
+
+    @Test
+    public void testLineEndingNormalization() throws Exception
+    {
+        assertEquals("a\r\nb\r\nc\r\n\r\nd\r\n.\r\n", encode("a\nb\rc\r\n\nd", true));
+        assertEquals("a\r\n..b\r\n..c\r\n.\r\n", encode("a\n.b\r.c", true));
+    }
+
+    @Test
+    public void testWithoutDotStuffing() throws Exception
+    {
+        assertEquals(".first\r\n.\r\n", encode(".first\n.", false));
+        assertEquals("", encode("", false));
+    }
+
+    @Test
+    public void testSingleByteWrites() throws Exception
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final SmtpDataOutputStream out = new SmtpDataOutputStream(buffer, true);
+        for (final byte b : "x\r\r\n.y".getBytes(StandardCharsets.US_ASCII))
+        {
+            out.write(b);
+        }
+        out.finish();
+        assertArrayEquals("x\r\n\r\n..y\r\n.\r\n".getBytes(StandardCharsets.US_ASCII), buffer.toByteArray());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.outbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit test case for Journal.
+ */
+public class JournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Journal journal;
+
+    @After
+    public void tearDownJournal() throws IOException
+    {
+        if (journal != null)
+        {
+            journal.close();
+        }
+    }
+
+    private Journal open(final long segmentSize) throws IOException
+    {
+        if (journal != null)
+        {
+            journal.close();
+        }
+        journal = new Journal(folder.getRoot(), "test-", segmentSize);
+        journal.open();
+        return journal;
+    }
+
+    private static byte[] payload(final String text)
+    {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testRecoverLiveEntries() throws Exception
+    {
+        open(1024 * 1024);
+        assertEquals(1, journal.append(payload("one")));
+        assertEquals(2, journal.append(payload("two")));
+        assertEquals(3, journal.append(payload("three")));
+        assertTrue(journal.ack(2));
+        assertFalse(journal.ack(2));
+        assertNull(journal.read(2));
+
+        open(1024 * 1024);
+        assertEquals(Arrays.asList(1L, 3L), journal.getIds());
+        assertArrayEquals(payload("one"), journal.read(1));
+        assertArrayEquals(payload("three"), journal.read(3));
+        assertArrayEquals(payload("th"), journal.read(3, 2));
+        assertArrayEquals(payload("one"), journal.read(1, 10));
+        assertEquals(4, journal.append(payload("four")));
+    }
+
+    @Test
+    public void testTornRecordIsCutOff() throws Exception
+    {
+        open(1024 * 1024);
+        journal.append(payload("one"));
+        journal.append(payload("two"));
+        journal.close();
+        journal = null;
+
+        // a record cut off by the JVM dying while writing it
+        final File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        try (OutputStream out = new FileOutputStream(files[0], true))
+        {
+            out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 100, 'x' });
+        }
+
+        open(1024 * 1024);
+        assertEquals(Arrays.asList(1L, 2L), journal.getIds());
+        assertEquals(3, journal.append(payload("three")));
+
+        open(1024 * 1024);
+        assertEquals(Arrays.asList(1L, 2L, 3L), journal.getIds());
+        assertArrayEquals(payload("three"), journal.read(3));
+    }
+
+    @Test
+    public void testCorruptRecordIsCutOff() throws Exception
+    {
+        open(1024 * 1024);
+        journal.append(payload("one"));
+        journal.append(payload("two"));
+        journal.close();
+        journal = null;
+
+        // flip the last byte of the payload of the second record
+        final File file = folder.getRoot().listFiles()[0];
+        final byte[] data = Files.readAllBytes(file.toPath());
+        data[data.length - 5] ^= 1;
+        Files.write(file.toPath(), data);
+
+        open(1024 * 1024);
+        assertEquals(Arrays.asList(1L), journal.getIds());
+    }
+
+    @Test
+    public void testCompactDeletesAcknowledgedSegments() throws Exception
+    {
+        // every record starts a new segment
+        open(1);
+        for (int i = 1; i <= 5; i++)
+        {
+            journal.append(payload("entry" + i));
+        }
+        for (long id = 1; id <= 4; id++)
+        {
+            journal.ack(id);
+        }
+        assertEquals(9, journal.getSegmentCount());
+
+        // the segment of the live entry and the following acknowledgements are kept
+        assertEquals(4, journal.compact());
+        assertEquals(5, journal.getSegmentCount());
+
+        open(1);
+        assertEquals(Arrays.asList(5L), journal.getIds());
+        assertArrayEquals(payload("entry5"), journal.read(5));
+    }
+
+    @Test
+    public void testCompactRelocatesFewLiveEntries() throws Exception
+    {
+        // four entries of 26 bytes per segment
+        open(104);
+        for (int i = 1; i <= 8; i++)
+        {
+            journal.append(payload("entry" + i));
+        }
+        journal.ack(2);
+        journal.ack(3);
+        journal.ack(4);
+        assertEquals(3, journal.getSegmentCount());
+
+        assertEquals(1, journal.compact());
+        assertEquals(2, journal.getSegmentCount());
+        assertArrayEquals(payload("entry1"), journal.read(1));
+
+        open(104);
+        assertEquals(Arrays.asList(5L, 6L, 7L, 8L, 1L), journal.getIds());
+        assertArrayEquals(payload("entry1"), journal.read(1));
+        assertEquals(9, journal.append(payload("entry9")));
+    }
+
+    @Test
+    public void testCompactKeepsMostlyLiveSegments() throws Exception
+    {
+        open(1024 * 1024);
+        journal.append(payload("one"));
+        journal.append(payload("two"));
+        journal.compact();
+        assertEquals(1, journal.getSegmentCount());
+
+        open(100);
+        for (int i = 0; i < 10; i++)
+        {
+            journal.append(payload("entry"));
+        }
+        final int segments = journal.getSegmentCount();
+        journal.compact();
+        assertEquals(segments, journal.getSegmentCount());
+        assertEquals(12, journal.size());
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.AbstractEmailTest;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.MailTransport;
+import org.apache.commons.mail.SimpleEmail;
+import org.apache.commons.mail.transport.Envelope;
+import org.apache.commons.mail.transport.InMemoryMailTransport;
+import org.apache.commons.mail.transport.JavaMailTransport;
+import org.apache.commons.mail.transport.RetryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.wiser.WiserMessage;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * JUnit test case for Outbox.
+ */
+public class OutboxTest extends AbstractEmailTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Outbox outbox;
+
+    @Before
+    public void setUpOutbox()
+    {
+        getMailServer();
+    }
+
+    @After
+    public void tearDownOutbox()
+    {
+        if (outbox != null)
+        {
+            outbox.close();
+        }
+    }
+
+    private Email createEmail() throws EmailException
+    {
+        final Email email = new SimpleEmail();
+        email.setHostName(strTestMailServer);
+        email.setSmtpPort(getMailServerPort());
+        email.setFrom(strTestMailFrom);
+        email.addTo(strTestMailTo);
+        email.addBcc("bcc@apache.org");
+        email.setBounceAddress("bounces@apache.org");
+        email.setSubject("outbox");
+        email.setMsg("Test Msg Body");
+        return email;
+    }
+
+    private Outbox start(final MailTransport transport) throws Exception
+    {
+        if (outbox != null)
+        {
+            outbox.close();
+        }
+        outbox = new Outbox(folder.getRoot(), createEmail().getMailSession(), transport)
+                .setRetryPolicy(new RetryPolicy().setMaxAttempts(2).setInitialDelayMillis(10).setJitter(0.0));
+        return outbox.start();
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean())
+        {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testSendDeliversThroughTransport() throws Exception
+    {
+        start(new JavaMailTransport()).setWaitForSync(true);
+        final Email email = createEmail();
+        email.setMailTransport(outbox);
+        final String messageId = email.send();
+
+        await(() -> fakeMailServer.getMessages().size() == 2);
+        await(() -> outbox.getPendingCount() == 0);
+        final List<WiserMessage> messages = fakeMailServer.getMessages();
+        assertEquals(messageId, messages.get(0).getMimeMessage().getMessageID());
+        assertEquals("bounces@apache.org", messages.get(0).getEnvelopeSender());
+        assertNull(messages.get(0).getMimeMessage().getHeader("Bcc"));
+        assertEquals(0, outbox.getDeadLetterCount());
+    }
+
+    @Test
+    public void testUndeliveredMessagesAreReplayedAfterRestart() throws Exception
+    {
+        // a relay failing transiently until the outbox is closed
+        final RetryPolicy slowRetries = new RetryPolicy().setMaxAttempts(100).setInitialDelayMillis(60000);
+        start(message -> {
+            throw new SMTPSendFailedException("DATA", 421, "421 try again later", null, null, null, null);
+        }).setRetryPolicy(slowRetries);
+        final Email email = createEmail();
+        email.buildMimeMessage();
+        final MimeMessage message = email.getMimeMessage();
+        message.saveChanges();
+        outbox.enqueue(message);
+        outbox.enqueue(message);
+        await(() -> outbox.getPendingCount() == 2);
+
+        final InMemoryMailTransport sent = new InMemoryMailTransport();
+        start(sent);
+        await(() -> sent.getSentCount() == 2);
+        await(() -> outbox.getPendingCount() == 0);
+
+        final MimeMessage replayed = sent.getMessages().get(0);
+        assertEquals(message.getMessageID(), replayed.getMessageID());
+        assertEquals(Arrays.<Address>asList(new InternetAddress(strTestMailTo), new InternetAddress("bcc@apache.org")),
+                Arrays.asList(replayed.getAllRecipients()));
+
+        // the delivered messages are not replayed again
+        start(sent);
+        Thread.sleep(200);
+        assertEquals(2, sent.getSentCount());
+    }
+
+    @Test
+    public void testPermanentFailuresAreDeadLettered() throws Exception
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+        start(message -> {
+            attempts.incrementAndGet();
+            throw new SMTPSendFailedException("DATA", 554, "554 rejected", null, null, null, null);
+        });
+        final Email email = createEmail();
+        email.setMailTransport(outbox);
+        email.send();
+
+        await(() -> outbox.getDeadLetterCount() == 1 && outbox.getPendingCount() == 0);
+        assertEquals(1, attempts.get());
+
+        start(new InMemoryMailTransport());
+        final List<OutboxEntry> deadLetters = outbox.getDeadLetters();
+        assertEquals(1, deadLetters.size());
+        assertEquals("554 rejected", deadLetters.get(0).getFailure());
+        assertEquals("bounces@apache.org", deadLetters.get(0).getEnvelope().getFrom());
+        assertEquals("outbox", deadLetters.get(0).getMimeMessage().getSubject());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void testRuntimeFailuresAreDeadLettered() throws Exception
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+        start(message -> {
+            if (attempts.incrementAndGet() == 1)
+            {
+                throw new IllegalStateException("broken transport");
+            }
+            return message.getMessageID();
+        });
+        final Email email = createEmail();
+        email.setMailTransport(outbox);
+        email.send();
+        await(() -> outbox.getDeadLetterCount() == 1 && outbox.getPendingCount() == 0);
+
+        // the worker survived and delivers the next message
+        final Email next = createEmail();
+        next.setMailTransport(outbox);
+        next.send();
+        await(() -> attempts.get() == 2 && outbox.getPendingCount() == 0);
+        assertEquals(1, outbox.getDeadLetterCount());
+        assertTrue(outbox.getDeadLetters().get(0).getFailure().contains("broken transport"));
+    }
+
+    @Test
+    public void testTransientFailuresAreRetried() throws Exception
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+        final InMemoryMailTransport sent = new InMemoryMailTransport();
+        start(message -> {
+            if (attempts.incrementAndGet() == 1)
+            {
+                throw new SMTPSendFailedException("DATA", 451, "451 try again", null, null, null, null);
+            }
+            return sent.send(message);
+        });
+        final Email email = createEmail();
+        email.setMailTransport(outbox);
+        email.send();
+
+        await(() -> sent.getSentCount() == 1);
+        await(() -> outbox.getPendingCount() == 0);
+        assertEquals(2, attempts.get());
+        assertEquals(0, outbox.getDeadLetterCount());
+    }
+
+    @Test
+    public void testSendAtDeliversAtTheScheduledTime() throws Exception
+    {
+        final InMemoryMailTransport sent = new InMemoryMailTransport();
+        start(sent).setWaitForSync(true);
+        final Email email = createEmail();
+        email.setMailTransport(outbox);
+        final long sendAt = System.currentTimeMillis() + 500;
+        final String messageId = email.sendAt(Instant.ofEpochMilli(sendAt));
+        assertEquals(1, outbox.getScheduledCount());
+        assertEquals(0, sent.getSentCount());
+
+        await(() -> sent.getSentCount() == 1);
+        assertTrue(System.currentTimeMillis() >= sendAt);
+        assertEquals(messageId, sent.getMessages().get(0).getMessageID());
+        await(() -> outbox.getPendingCount() == 0);
+        assertEquals(0, outbox.getScheduledCount());
+    }
+
+    @Test
+    public void testScheduleSurvivesRestart() throws Exception
+    {
+        start(new InMemoryMailTransport());
+        final Email email = createEmail();
+        email.buildMimeMessage();
+        final MimeMessage message = email.getMimeMessage();
+        message.saveChanges();
+        final long sendAt = System.currentTimeMillis() + 1000;
+        outbox.sendAt(message, Instant.ofEpochMilli(sendAt));
+        outbox.flush();
+
+        final InMemoryMailTransport sent = new InMemoryMailTransport();
+        start(sent);
+        assertEquals(1, outbox.getScheduledCount());
+        await(() -> sent.getSentCount() == 1);
+        assertTrue(System.currentTimeMillis() >= sendAt);
+        assertEquals(message.getMessageID(), sent.getMessages().get(0).getMessageID());
+    }
+
+    @Test
+    public void testCancelScheduledMessage() throws Exception
+    {
+        start(new InMemoryMailTransport());
+        final Email email = createEmail();
+        email.buildMimeMessage();
+        final MimeMessage message = email.getMimeMessage();
+        message.saveChanges();
+        final Envelope envelope = new Envelope("bounces@apache.org", message.getAllRecipients());
+        final long id = outbox.enqueue(message, envelope, Instant.now().plusSeconds(3600));
+        assertEquals(1, outbox.getPendingCount());
+
+        assertTrue(outbox.cancel(id));
+        assertFalse(outbox.cancel(id));
+        assertEquals(0, outbox.getScheduledCount());
+        assertEquals(0, outbox.getPendingCount());
+
+        final InMemoryMailTransport sent = new InMemoryMailTransport();
+        start(sent);
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(0, sent.getSentCount());
+    }
+
+    @Test
+    public void testSendAtIsNotSupportedByDefault() throws Exception
+    {
+        final Email email = createEmail();
+        email.setMailTransport(new InMemoryMailTransport());
+        try
+        {
+            email.sendAt(Instant.now());
+            fail("Should have thrown an exception");
+        }
+        catch (final EmailException e)
+        {
+            // expected
+        }
+    }
+}
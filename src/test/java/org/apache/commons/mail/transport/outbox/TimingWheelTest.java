@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.mail.transport.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case for TimingWheel.
+ */
+public class TimingWheelTest
+{
+    private final List<String> expired = new ArrayList<>();
+
+    @Test
+    public void testExpiresInOrderOfTime()
+    {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+        wheel.schedule("c", 1300);
+        wheel.schedule("a", 1010);
+        wheel.schedule("b", 1095);
+        assertEquals(3, wheel.size());
+
+        wheel.advance(1009, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(1100, expired::add);
+        assertEquals(Arrays.asList("a", "b"), expired);
+        wheel.advance(1300, expired::add);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastTimesExpireWithNextTick()
+    {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+        wheel.schedule("past", 0);
+        wheel.advance(1005, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(1010, expired::add);
+        assertEquals(Arrays.asList("past"), expired);
+    }
+
+    @Test
+    public void testCascadesAcrossLevels()
+    {
+        // 5 ticks before a boundary of levels 1, 2 and 3
+        final long start = (1L << 18) - 5;
+        final TimingWheel<Long> wheel = new TimingWheel<>(1, start);
+        final long[] delays = { 3, 5, 6, 64, 70, 4095, 4100, 262143, 262150 };
+        for (int i = delays.length - 1; i >= 0; i--)
+        {
+            wheel.schedule(start + delays[i], start + delays[i]);
+        }
+
+        final List<Long> times = new ArrayList<>();
+        for (long now = start; now <= start + delays[delays.length - 1]; now += 7)
+        {
+            final long tick = now;
+            wheel.advance(now, due -> {
+                assertTrue(due + " expired early at " + tick, due <= tick);
+                assertTrue(due + " expired late at " + tick, due > tick - 7);
+                times.add(due);
+            });
+        }
+        wheel.advance(start + delays[delays.length - 1], times::add);
+        assertEquals(delays.length, times.size());
+        for (int i = 0; i < delays.length; i++)
+        {
+            assertEquals(start + delays[i], (long) times.get(i));
+        }
+    }
+
+    @Test
+    public void testCancel()
+    {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+        final TimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", 1050);
+        final TimingWheel.Timeout<String> kept = wheel.schedule("kept", 1050);
+        assertEquals("cancelled", cancelled.getValue());
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertEquals(1, wheel.size());
+
+        wheel.advance(1050, expired::add);
+        assertEquals(Arrays.asList("kept"), expired);
+        assertFalse(wheel.cancel(kept));
+    }
+
+    @Test
+    public void testRejectsTimesBeyondSpan()
+    {
+        final TimingWheel<String> wheel = new TimingWheel<>(1, 0);
+        wheel.schedule("last", (1L << 36) - 1);
+        try
+        {
+            wheel.schedule("beyond", 1L << 36);
+            fail("Should have thrown IllegalArgumentException");
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // expected
+        }
+        assertEquals(1, wheel.size());
+    }
+}